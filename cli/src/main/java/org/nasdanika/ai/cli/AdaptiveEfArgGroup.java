@@ -0,0 +1,162 @@
+package org.nasdanika.ai.cli;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.nasdanika.ai.AdaptiveEfSearch;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.SearchBenchmark;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.common.Description;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import picocli.CommandLine.Option;
+
+/**
+ * Options of serving-side adaptive ef selection, see {@link AdaptiveEfSearch}
+ */
+public class AdaptiveEfArgGroup {
+
+	/**
+	 * Span attribute with ef chosen for a query
+	 */
+	public static final String EF_ATTRIBUTE = "hnsw.ef";
+
+	@Option(
+			names = "--adaptive-ef-min",
+			description = {
+					"Min ef of adaptive search",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "10")
+	protected int minEf;
+
+	@Option(
+			names = "--adaptive-ef-max",
+			description = {
+					"Max ef of adaptive search",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "400")
+	protected int maxEf;
+
+	@Option(
+			names = "--target-latency",
+			description = {
+					"Target latency percentile in milliseconds"
+			})
+	@Description(
+			"""
+			If set, ef is chosen per query to keep the latency percentile (``--target-latency-percentile``) of recent queries under the target.
+			ef is decreased when the target is exceeded and increased when the latency is well below the target.
+			Regardless of the target, ef is lowered proportionally when more queries are executed concurrently than there are processors.
+			Adaptive ef is supported by memory-mapped HNSW indices (``--hnsw-mapped``) which search with per-query ef.
+			The chosen ef is set as ``hnsw.ef`` attribute of the current span.
+			""")
+	protected Double targetLatency;
+
+	@Option(
+			names = "--target-latency-percentile",
+			description = {
+					"Latency percentile for --target-latency",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "0.99")
+	protected double targetLatencyPercentile;
+
+	@Option(
+			names = "--target-recall",
+			description = {
+					"Target recall, e.g. 0.95"
+			})
+	@Description(
+			"""
+			If set, min ef is calibrated when the index is opened - it is the smallest ef which reaches the target recall@k
+			for a sample of index vectors (``--calibration-queries``) against exact nearest neighbors.
+			Adaptive search does not go below the calibrated ef.
+			""")
+	protected Double targetRecall;
+
+	@Option(
+			names = "--calibration-queries",
+			description = {
+					"Number of sampled queries for recall calibration",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "200")
+	protected int calibrationQueries;
+
+	@Option(
+			names = "--calibration-k",
+			description = {
+					"k for recall calibration",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "10")
+	protected int calibrationK;
+
+	/**
+	 * Creates adaptive search of a memory-mapped HNSW index, which supports per-query ef. 
+	 * Other indices are returned by {@link HnswIndexCommandBase#openSearch(java.io.File)}.
+	 * @param index Mapped HNSW index
+	 * @param span Span for the calibration event
+	 * @return Adaptive search
+	 */
+	public AdaptiveEfSearch create(MappedHnswIndex index, Span span) {
+		int min = minEf;
+		if (targetRecall != null) {
+			min = calibrate(index, span);
+		}
+		int max = Math.max(min, maxEf);
+		AdaptiveEfSearch ret = AdaptiveEfSearch.of(index, min, max);
+		if (targetLatency != null) {
+			ret.setLatencyTarget(Duration.ofNanos((long) (targetLatency * 1_000_000)), targetLatencyPercentile);
+		}
+		return ret.setListener(ef -> Span.current().setAttribute(EF_ATTRIBUTE, ef));
+	}
+
+	private int calibrate(MappedHnswIndex index, Span span) {
+		List<EmbeddingsItem> items = new ArrayList<>(index.items());
+		List<EmbeddingsItem> sample = new ArrayList<>(items);
+		Collections.shuffle(sample, new Random(42));
+		List<float[]> queries = new ArrayList<>();
+		for (EmbeddingsItem item: sample.subList(0, Math.min(calibrationQueries, sample.size()))) {
+			queries.add(item.vector());
+		}
+		SearchBenchmark benchmark = new SearchBenchmark(items, queries, calibrationK, index.getDistanceFunction());
+		int ef = AdaptiveEfSearch.calibrate(
+				benchmark,
+				calibrationEf -> (FloatVectorSimilaritySearch) (query, k, results) -> index.search(query, k, results, null, calibrationEf),
+				targetRecall,
+				minEf,
+				maxEf);
+		if (span != null) {
+			span.addEvent(
+					"ef-calibration",
+					Attributes
+						.builder()
+						.put("target-recall", targetRecall)
+						.put("queries", queries.size())
+						.put(EF_ATTRIBUTE, ef)
+						.build());
+		}
+		return ef;
+	}
+
+	public void setSpanAttributes(Span span) {
+		span.setAttribute("hnsw.adaptive-ef-min", minEf);
+		span.setAttribute("hnsw.adaptive-ef-max", maxEf);
+		if (targetLatency != null) {
+			span.setAttribute("hnsw.target-latency", targetLatency);
+		}
+		if (targetRecall != null) {
+			span.setAttribute("hnsw.target-recall", targetRecall);
+		}
+	}
+
+}
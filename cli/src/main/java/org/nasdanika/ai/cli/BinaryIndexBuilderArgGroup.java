@@ -0,0 +1,80 @@
+package org.nasdanika.ai.cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+import org.nasdanika.ai.BinaryIndex;
+import org.nasdanika.ai.BinaryIndexBuilder;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.common.Description;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+
+import io.opentelemetry.api.trace.Span;
+import picocli.CommandLine.Option;
+
+/**
+ * Options for building {@link BinaryIndex} 
+ */
+public class BinaryIndexBuilderArgGroup {
+	
+	@Option( 
+			names = "--binary",
+			description = {
+					"If true, a binary quantized index is built",
+					"instead of an HNSW index"
+			})	
+	@Description(
+			"""
+			If true, each vector is encoded as one bit per dimension - whether the value is above the dimension mean - 
+			and the bits are packed into longs, which is 32 times smaller than float vectors. 
+			Search computes Hamming distances between the query code and codes of all items using population count instructions
+			and re-ranks the closest candidates (``--binary-re-rank``) with full precision vectors.
+			Codes and full precision vectors are kept in a memory-mapped file, there is no graph to build.
+			Use this option for angular distances (cosine, inner product) of high-dimensional embeddings.
+			""")
+	protected boolean enabled;
+	
+	@Option( 
+			names = "--binary-re-rank",
+			description = {
+					"Number of candidates to re-rank with",
+					"full precision vectors",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "200")	
+	protected int reRank;
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Adds items to a builder
+	 * @param dimensions
+	 * @param distanceFunction
+	 * @param items
+	 * @return Builder with all items added
+	 */
+	public BinaryIndexBuilder build(
+			int dimensions, 
+			DistanceFunction<float[], Float> distanceFunction,
+			Collection<EmbeddingsItem> items) {
+		BinaryIndexBuilder builder = new BinaryIndexBuilder(dimensions, distanceFunction, items.size());
+		builder.addAll(items);
+		return builder;
+	}
+	
+	public void write(BinaryIndexBuilder builder, Path path) throws IOException {
+		builder.write(path, reRank);
+	}
+	
+	public void setSpanAttributes(Span span) {
+		span.setAttribute("binary.enabled", enabled);
+		if (enabled) {
+			span.setAttribute("binary.re-rank", reRank);
+		}
+	}
+
+}
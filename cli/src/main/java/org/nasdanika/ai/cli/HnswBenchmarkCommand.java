@@ -0,0 +1,350 @@
+package org.nasdanika.ai.cli;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.MappedIndex;
+import org.nasdanika.ai.SearchBenchmark;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+import org.nasdanika.capability.CapabilityLoader;
+import org.nasdanika.cli.TelemetryCommand;
+import org.nasdanika.common.Description;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.Index;
+import com.github.jelmerk.hnswlib.core.hnsw.HnswIndex;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+/**
+ * Measures recall@k, throughput and latency percentiles of a vector index over a grid of ef and m values.
+ */
+@Command(
+		description = "Measures recall and latency of a vector index for HNSW parameter tuning",
+		mixinStandardHelpOptions = true,
+		name = "hnsw-benchmark")
+@Description(
+		"""
+		Opens a vector index created by an index command, computes exact nearest neighbors of query vectors with a parallel brute-force scan,
+		and then measures recall@k, queries per second and p50/p95/p99 latency for each combination of ``--ef`` and ``--m`` values.
+		For each ``--m`` value the index graph is rebuilt from the index vectors.
+		Flat and IVF-PQ indices are measured as is.
+		""")
+public class HnswBenchmarkCommand extends TelemetryCommand {
+
+	public HnswBenchmarkCommand(OpenTelemetry openTelemetry, CapabilityLoader capabilityLoader) {
+		super(openTelemetry, capabilityLoader);
+	}
+
+	@Parameters(
+		index =  "0",
+		arity = "1",
+		description = "Index file")
+	private File index;
+
+	@Option(
+			names = "--queries",
+			description = {
+					"File with query vectors - a JSON array of arrays",
+					"or one JSON array per line.",
+					"Defaults to a sample of index vectors"
+			})
+	private File queries;
+
+	@Option(
+			names = "--sample",
+			description = {
+					"Number of index vectors to sample as queries",
+					"if --queries is not set",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "1000")
+	private int sample;
+
+	@Option(
+			names = "--seed",
+			description = {
+					"Random seed for query sampling",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "42")
+	private long seed;
+
+	@Option(
+			names = "-k",
+			description = {
+					"Number of nearest neighbors",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "10")
+	private int k;
+
+	@Option(
+			names = "--ef",
+			split = ",",
+			description = {
+					"Comma-separated ef values",
+					"Defaults to the ef of the index"
+			})
+	private List<Integer> efs;
+
+	@Option(
+			names = "--m",
+			split = ",",
+			description = {
+					"Comma-separated m values. The index is rebuilt",
+					"for each value. Defaults to the m of the index"
+			})
+	private List<Integer> ms;
+
+	@Option(
+			names = "--ef-construction",
+			description = {
+					"ef construction for rebuilt indices",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "200")
+	private int efConstruction;
+
+	@Option(
+			names = "--threads",
+			description = {
+					"Number of threads for rebuilding indices",
+					"Default to the number of available processors"
+			})
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(
+			names = "--warmup",
+			description = {
+					"Number of queries to execute before measurement",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "100")
+	private int warmup;
+
+	@Option(
+			names = "--output",
+			description = {
+					"Output file. Format is CSV if the file extension",
+					"is .csv and JSON otherwise.",
+					"Results are written to the standard output",
+					"if not set"
+			})
+	private File output;
+
+	@Option(
+			names = "--csv",
+			description = "Output CSV instead of JSON")
+	private boolean csv;
+
+	@Override
+	public Integer execute(Span commandSpan) throws Exception {
+		Index<IndexId, float[], EmbeddingsItem, Float> idx = HnswIndexCommandBase.openIndex(index);
+		try {
+			List<EmbeddingsItem> items = new ArrayList<>(idx.items());
+			if (items.isEmpty()) {
+				throw new CommandLine.ExecutionException(spec.commandLine(), "Index is empty: " + index.getAbsolutePath());
+			}
+			DistanceFunction<float[], Float> distanceFunction = getDistanceFunction(idx);
+			List<float[]> queryVectors = queries == null ? sample(items) : loadQueries(queries.toPath());
+			SearchBenchmark benchmark = new SearchBenchmark(items, queryVectors, k, distanceFunction);
+			commandSpan.addEvent(
+					"ground-truth",
+					Attributes
+						.builder()
+						.put("items", items.size())
+						.put("queries", queryVectors.size())
+						.build());
+
+			List<SearchBenchmark.Result> results = new ArrayList<>();
+			if (ms == null || ms.isEmpty() || !(idx instanceof HnswIndex || idx instanceof MappedHnswIndex)) {
+				benchmark(idx, Collections.emptyMap(), benchmark, results);
+			} else {
+				for (int m: ms) {
+					Index<IndexId, float[], EmbeddingsItem, Float> rebuilt = rebuild(idx, items, distanceFunction, m);
+					try {
+						benchmark(rebuilt, Map.of("m", m), benchmark, results);
+					} finally {
+						if (rebuilt instanceof AutoCloseable closeable) {
+							closeable.close();
+						}
+					}
+				}
+			}
+
+			for (SearchBenchmark.Result result: results) {
+				commandSpan.addEvent(
+						"benchmark",
+						Attributes
+							.builder()
+							.put("parameters", result.parameters().toString())
+							.put("recall", result.recall())
+							.put("qps", result.qps())
+							.put("p50", result.p50())
+							.put("p95", result.p95())
+							.put("p99", result.p99())
+							.build());
+			}
+			boolean isCsv = csv || (output != null && output.getName().toLowerCase().endsWith(".csv"));
+			String report = isCsv ? SearchBenchmark.toCsv(results) : SearchBenchmark.toJson(results);
+			if (output == null) {
+				System.out.println(report);
+			} else {
+				Files.writeString(output.toPath(), report, StandardCharsets.UTF_8);
+			}
+			return 0;
+		} finally {
+			if (idx instanceof AutoCloseable closeable) {
+				closeable.close();
+			}
+		}
+	}
+
+	/**
+	 * Measures the index for each ef value
+	 */
+	private void benchmark(
+			Index<IndexId, float[], EmbeddingsItem, Float> idx,
+			Map<String,Object> parameters,
+			SearchBenchmark benchmark,
+			List<SearchBenchmark.Result> results) {
+
+		FloatVectorSimilaritySearch search = search(idx);
+		List<Integer> efValues = efs == null || efs.isEmpty() ? Collections.singletonList(null) : efs;
+		for (Integer ef: efValues) {
+			Map<String,Object> runParameters = new LinkedHashMap<>(parameters);
+			if (idx instanceof HnswIndex<IndexId, float[], EmbeddingsItem, Float> hnswIndex) {
+				if (ef != null) {
+					hnswIndex.setEf(ef);
+				}
+				runParameters.putIfAbsent("m", hnswIndex.getM());
+				runParameters.put("ef", hnswIndex.getEf());
+			} else if (idx instanceof MappedHnswIndex mappedIndex) {
+				if (ef != null) {
+					mappedIndex.setEf(ef);
+				}
+				runParameters.putIfAbsent("m", mappedIndex.getM());
+				runParameters.put("ef", mappedIndex.getEf());
+			} else {
+				runParameters.put("index", idx.getClass().getSimpleName());
+				results.add(benchmark.run(runParameters, search, warmup));
+				return;
+			}
+			results.add(benchmark.run(runParameters, search, warmup));
+		}
+	}
+
+	private static FloatVectorSimilaritySearch search(Index<IndexId, float[], EmbeddingsItem, Float> idx) {
+		if (idx instanceof MappedIndex mappedIndex) {
+			return SimilaritySearch.from(mappedIndex);
+		}
+		if (idx instanceof FlatIndex flatIndex) {
+			return SimilaritySearch.from(flatIndex);
+		}
+		return SimilaritySearch.from(idx);
+	}
+
+	private static DistanceFunction<float[], Float> getDistanceFunction(Index<IndexId, float[], EmbeddingsItem, Float> idx) {
+		if (idx instanceof MappedIndex mappedIndex) {
+			return mappedIndex.getDistanceFunction();
+		}
+		if (idx instanceof FlatIndex flatIndex) {
+			return flatIndex.getDistanceFunction();
+		}
+		if (idx instanceof HnswIndex<IndexId, float[], EmbeddingsItem, Float> hnswIndex) {
+			return hnswIndex.getDistanceFunction();
+		}
+		throw new IllegalArgumentException("Unsupported index type: " + idx.getClass());
+	}
+
+	/**
+	 * Rebuilds the index graph with the given m in the same format as the benchmarked index
+	 */
+	private Index<IndexId, float[], EmbeddingsItem, Float> rebuild(
+			Index<IndexId, float[], EmbeddingsItem, Float> idx,
+			List<EmbeddingsItem> items,
+			DistanceFunction<float[], Float> distanceFunction,
+			int m) throws Exception {
+
+		int dimensions = items.get(0).dimensions();
+		if (idx instanceof MappedHnswIndex mappedIndex) {
+			HnswGraphBuilder builder = new HnswGraphBuilder(dimensions, mappedIndex.getTraversalDimensions(), distanceFunction, m, efConstruction, items.size());
+			builder.addAll(items, threads, null, Integer.MAX_VALUE);
+			Path tmp = Files.createTempFile("hnsw-benchmark-", ".bin");
+			tmp.toFile().deleteOnExit();
+			builder.write(tmp, mappedIndex.getEf(), mappedIndex.isQuantized(), mappedIndex.hasSeparateVectors());
+			if (mappedIndex.hasSeparateVectors()) {
+				MappedIndex.getVectorsPath(tmp).toFile().deleteOnExit();
+			}
+			return MappedHnswIndex.load(tmp.toFile());
+		}
+		HnswIndex<IndexId, float[], EmbeddingsItem, Float> hnswIndex = HnswIndex
+				.newBuilder(dimensions, distanceFunction, items.size())
+				.withM(m)
+				.withEfConstruction(efConstruction)
+				.withEf(((HnswIndex<?, ?, ?, ?>) idx).getEf())
+				.build();
+		hnswIndex.addAll(items, threads, (done, max) -> {}, Integer.MAX_VALUE);
+		return hnswIndex;
+	}
+
+	private List<float[]> sample(List<EmbeddingsItem> items) {
+		List<EmbeddingsItem> shuffled = new ArrayList<>(items);
+		Collections.shuffle(shuffled, new Random(seed));
+		List<float[]> ret = new ArrayList<>();
+		for (EmbeddingsItem item: shuffled.subList(0, Math.min(sample, shuffled.size()))) {
+			ret.add(item.vector());
+		}
+		return ret;
+	}
+
+	private static List<float[]> loadQueries(Path path) throws Exception {
+		String content = Files.readString(path, StandardCharsets.UTF_8).trim();
+		Collection<JSONArray> arrays = new ArrayList<>();
+		if (content.startsWith("[") && content.substring(1).stripLeading().startsWith("[")) {
+			JSONArray all = new JSONArray(content);
+			for (int i = 0; i < all.length(); ++i) {
+				arrays.add(all.getJSONArray(i));
+			}
+		} else {
+			for (String line: content.split("\\R")) {
+				if (!line.isBlank()) {
+					arrays.add(new JSONArray(line));
+				}
+			}
+		}
+		List<float[]> ret = new ArrayList<>(arrays.size());
+		for (JSONArray array: arrays) {
+			float[] vector = new float[array.length()];
+			for (int i = 0; i < vector.length; ++i) {
+				vector[i] = array.getFloat(i);
+			}
+			ret.add(vector);
+		}
+		return ret;
+	}
+
+}
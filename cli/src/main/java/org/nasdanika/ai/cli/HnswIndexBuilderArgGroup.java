@@ -51,7 +51,8 @@ public abstract class HnswIndexBuilderArgGroup<TVector, TDistance extends Compar
 			At some point, increasing ``ef-construction`` does not improve the quality of the index. 
 			One way to check if the selection of ``ef-construction`` was ok is to measure a recall for 
 			``M`` nearest neighbor search when ``ef = ef-construction``: if the recall is lower than ``0.9``,
-			then there is room for improvement.
+			then there is room for improvement. 
+			Recall can be measured with the ``hnsw-benchmark`` command.
 			
 			[^ef-construction-javadoc]: [ef-construction javadoc](https://javadoc.io/static/com.github.jelmerk/hnswlib-core/1.2.0/com/github/jelmerk/hnswlib/core/hnsw/HnswIndex.BuilderBase.html#withEfConstruction(int)) 									
 			""")
@@ -96,7 +97,7 @@ public abstract class HnswIndexBuilderArgGroup<TVector, TDistance extends Compar
 				"Number of threads to use for parallel indexing",
 				"Default to the number of available processors"
 		})	
-	private int threads = AVAILABLE_PROCESSORS;
+	protected int threads = AVAILABLE_PROCESSORS;
 
 	@Option( 
 			names = "--hnsw-progress-update-interval",
@@ -106,7 +107,7 @@ public abstract class HnswIndexBuilderArgGroup<TVector, TDistance extends Compar
 					"reported regardless of this setting. ",
 					"Default value: " + Index.DEFAULT_PROGRESS_UPDATE_INTERVAL
 			})		
-	private int progressUpdateInterval = Index.DEFAULT_PROGRESS_UPDATE_INTERVAL;	
+	protected int progressUpdateInterval = Index.DEFAULT_PROGRESS_UPDATE_INTERVAL;	
 	
 	public HnswIndex.Builder<TVector, TDistance> createIndexBuilder(int dimensions, int maxItemCount) {
 		Builder<TVector, TDistance> builder = HnswIndex.newBuilder(dimensions, getDistanceFunction(), maxItemCount)
@@ -123,6 +124,14 @@ public abstract class HnswIndexBuilderArgGroup<TVector, TDistance extends Compar
 
 	protected abstract DistanceFunction<TVector, TDistance> getDistanceFunction();
 	
+	public int getEf() {
+		return ef;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
 	public void setSpanAttributes(Span span) {
 		span.setAttribute("hnsw.ef", ef);
 		span.setAttribute("hnsw.ef-construction", efConstruction);
@@ -135,15 +144,21 @@ public abstract class HnswIndexBuilderArgGroup<TVector, TDistance extends Compar
 			Collection<TItem> items,
 			Span span) throws InterruptedException {
 		HnswIndex<TId, TVector, TItem, TDistance> index = createIndexBuilder(dimensions, items.size()).build();
-		ProgressListener progressListener = (workDone, max) -> {
+		index.addAll(items, threads, createProgressListener(span), progressUpdateInterval);
+		return index;		
+	}
+	
+	/**
+	 * @return Progress listener which reports progress as span events
+	 */
+	protected ProgressListener createProgressListener(Span span) {
+		return (workDone, max) -> {
 			AttributesBuilder ab = Attributes.builder();
 			ab.put("done", workDone);
 			ab.put("total", max);
 			ab.put("percent", (100L * workDone) / max);			
 			span.addEvent("hnsw.progress", ab.build());
 		};
-		index.addAll(items, threads, progressListener, progressUpdateInterval);
-		return index;		
 	}
 	
 }
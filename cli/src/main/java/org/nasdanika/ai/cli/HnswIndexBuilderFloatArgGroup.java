@@ -1,12 +1,37 @@
 package org.nasdanika.ai.cli;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.ShardedSimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+import org.nasdanika.common.Description;
+
 import com.github.jelmerk.hnswlib.core.DistanceFunction;
 import com.github.jelmerk.hnswlib.core.DistanceFunctions;
-//import com.github.jelmerk.hnswlib.jdk17.Jdk17DistanceFunctions;
+import com.github.jelmerk.hnswlib.core.hnsw.HnswIndex;
+import com.github.jelmerk.hnswlib.core.hnsw.SizeLimitExceededException;
 import com.github.jelmerk.hnswlib.util.VectorUtils;
 
+import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.Span;
 import picocli.CommandLine.Option;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 public class HnswIndexBuilderFloatArgGroup extends HnswIndexBuilderArgGroup<float[], Float> {
 	
@@ -15,25 +40,12 @@ public class HnswIndexBuilderFloatArgGroup extends HnswIndexBuilderArgGroup<floa
 		BRAY_CURTIS(DistanceFunctions.FLOAT_BRAY_CURTIS_DISTANCE),
 		CANBERRA(DistanceFunctions.FLOAT_CANBERRA_DISTANCE),
 		CORRELATION(DistanceFunctions.FLOAT_CORRELATION_DISTANCE),
-		COSINE(DistanceFunctions.FLOAT_COSINE_DISTANCE),
-		EUCLIDEAN(DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE),
-		INNER_PRODUCT(DistanceFunctions.FLOAT_INNER_PRODUCT),
-		MANHATTAN(DistanceFunctions.FLOAT_MANHATTAN_DISTANCE);
-		
-		// JDK 17
 		
-//		VECTOR_FLOAT_128_BRAY_CURTIS(Jdk17DistanceFunctions.VECTOR_FLOAT_128_BRAY_CURTIS_DISTANCE),
-//		VECTOR_FLOAT_128_CANBERRA(Jdk17DistanceFunctions.VECTOR_FLOAT_128_CANBERRA_DISTANCE),
-//		VECTOR_FLOAT_128_COSINE(Jdk17DistanceFunctions.VECTOR_FLOAT_128_COSINE_DISTANCE),
-//		VECTOR_FLOAT_128_EUCLIDEAN(Jdk17DistanceFunctions.VECTOR_FLOAT_128_EUCLIDEAN_DISTANCE),
-//		VECTOR_FLOAT_128_INNER_PRODUCT(Jdk17DistanceFunctions.VECTOR_FLOAT_128_INNER_PRODUCT),
-//		VECTOR_FLOAT_128_MANHATTAN(Jdk17DistanceFunctions.VECTOR_FLOAT_128_MANHATTAN_DISTANCE),
-//		VECTOR_FLOAT_256_BRAY_CURTIS(Jdk17DistanceFunctions.VECTOR_FLOAT_256_BRAY_CURTIS_DISTANCE),
-//		VECTOR_FLOAT_256_CANBERRA(Jdk17DistanceFunctions.VECTOR_FLOAT_256_CANBERRA_DISTANCE),
-//		VECTOR_FLOAT_256_COSINE(Jdk17DistanceFunctions.VECTOR_FLOAT_256_COSINE_DISTANCE),
-//		VECTOR_FLOAT_256_EUCLIDEAN(Jdk17DistanceFunctions.VECTOR_FLOAT_256_EUCLIDEAN_DISTANCE),
-//		VECTOR_FLOAT_256_INNER_PRODUCT(Jdk17DistanceFunctions.VECTOR_FLOAT_256_INNER_PRODUCT),
-//		VECTOR_FLOAT_256_MANHATTAN(Jdk17DistanceFunctions.VECTOR_FLOAT_256_MANHATTAN_DISTANCE);					
+		// SIMD kernels if jdk.incubator.vector module is available, scalar otherwise
+		COSINE(KernelDistanceFunctions.FLOAT_COSINE_DISTANCE),
+		EUCLIDEAN(KernelDistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE),
+		INNER_PRODUCT(KernelDistanceFunctions.FLOAT_INNER_PRODUCT),
+		MANHATTAN(KernelDistanceFunctions.FLOAT_MANHATTAN_DISTANCE);
 		
 		public final DistanceFunction<float[], Float> distanceFunction;
 		
@@ -58,6 +70,148 @@ public class HnswIndexBuilderFloatArgGroup extends HnswIndexBuilderArgGroup<floa
 			)	
 	protected boolean normalize;		
 
+	@Option( 
+			names = "--hnsw-mapped",
+			description = {
+					"If true, the index is saved in the memory-mapped",
+					"format which can be opened without loading"
+			})	
+	@Description(
+			"""
+			If true, the index graph, vectors and ids are saved to a single file which is mapped into memory when opened. 
+			The index is ready to serve queries right after opening, pages are loaded by the operating system on access, and vectors are kept off heap.
+			The memory-mapped index is read-only.
+			""")
+	protected boolean mapped;
+	
+	@Option( 
+			names = "--hnsw-quantized",
+			description = {
+					"If true, int8 vector codes are used for graph traversal",
+					"and full precision vectors for re-ranking.",
+					"Implies --hnsw-mapped"
+			})	
+	@Description(
+			"""
+			If true, vectors are quantized to int8 codes with per-dimension min/max calibration and the codes are saved to the memory-mapped index file
+			in addition to full precision vectors. The graph is traversed using distances computed on the codes with SIMD kernels, 
+			which reduces the working set about 4 times, and full precision vectors are read only to re-rank search candidates.
+			""")
+	protected boolean quantized;
+	
+	@Option( 
+			names = "--hnsw-separate-vectors",
+			description = {
+					"If true, full precision vectors are saved to",
+					"a separate <index>.vectors file.",
+					"Implies --hnsw-mapped"
+			})	
+	@Description(
+			"""
+			If true, full precision vectors are saved to a separate ``<index file>.vectors`` file next to the memory-mapped index file,
+			which then contains only the graph, ids and traversal vectors. 
+			With ``--hnsw-quantized`` the index file is about 4 times smaller than the vectors 
+			and the vectors file is accessed only to re-rank search candidates.
+			Both files shall be kept together.
+			""")
+	protected boolean separateVectors;
+	
+	@Option( 
+			names = "--hnsw-traversal-dimensions",
+			description = {
+					"Number of leading vector dimensions used to build",
+					"and traverse the graph, full vectors are used",
+					"for re-ranking. 0 - all dimensions.",
+					"Implies --hnsw-mapped",
+					"Default value: ${DEFAULT-VALUE}"
+			})	
+	@Description(
+			"""
+			Embedding models trained with Matryoshka representation learning, e.g. OpenAI ``text-embedding-3`` models, 
+			produce vectors whose prefixes are meaningful embeddings on their own.
+			If this option is set, e.g. to 256 for 1536-dimensional vectors, the graph is built over vector prefixes 
+			and the prefixes are saved to the memory-mapped index file in addition to full vectors. 
+			The graph is traversed using the prefixes (or their int8 codes with ``--hnsw-quantized``), 
+			which reduces distance computation cost and the working set proportionally to the prefix length,
+			and the candidates are re-ranked using full vectors.
+			""")
+	protected int traversalDimensions;
+	
+	@Option( 
+			names = "--flat-threshold",
+			description = {
+					"Indices with fewer items are saved as exact flat",
+					"indices unless mapped or IVF-PQ index is requested.",
+					"0 - always build HNSW index",
+					"Default value: ${DEFAULT-VALUE}"
+			})	
+	@Description(
+			"""
+			For small corpora building an HNSW graph takes longer than it saves at query time.
+			If the number of items is below this threshold and neither memory-mapped nor IVF-PQ index is requested, 
+			a flat index is saved instead. The flat index has no build cost and returns exact results
+			by scanning all vectors in parallel partitions.
+			Disabled by default, so default index files remain loadable with HnswIndexCommandBase.loadIndex().
+			Flat index files shall be opened with HnswIndexCommandBase.openIndex().
+			""")
+	protected int flatThreshold;
+	
+	@Option( 
+			names = "--hnsw-buffer-size",
+			description = {
+					"Max number of embedded items waiting",
+					"for insertion into the index",
+					"Default value: ${DEFAULT-VALUE}"
+			})	
+	@Description(
+			"""
+			Items are inserted into the index as their embeddings arrive. 
+			If this many items are waiting for insertion, embedding requests are suspended until the index catches up.
+			""")
+	protected int bufferSize = 1024;
+	
+	@Option( 
+			names = "--shards",
+			description = {
+					"Number of index shards",
+					"Default value: ${DEFAULT-VALUE}"
+			})	
+	@Description(
+			"""
+			If greater than one, items are partitioned by hash of their URI into this many shards which are built in parallel.
+			Each shard is saved to a separate ``<output>.<shard>`` file, and the output file is a manifest listing shard files.
+			Sharded indices are searched with a scatter-gather search over all shards.
+			""")
+	protected int shards = 1;
+	
+	public int getShards() {
+		return shards;
+	}
+	
+	public boolean isMapped() {
+		return mapped || quantized || separateVectors || traversalDimensions > 0;
+	}
+	
+	public boolean isQuantized() {
+		return quantized;
+	}
+	
+	public boolean isSeparateVectors() {
+		return separateVectors;
+	}
+	
+	public int getTraversalDimensions() {
+		return traversalDimensions;
+	}
+	
+	/**
+	 * @param size Number of items
+	 * @return true if a flat index shall be built for the given number of items
+	 */
+	public boolean isFlat(int size) {
+		return !isMapped() && size < flatThreshold;
+	}
+
 	@Override
 	protected DistanceFunction<float[], Float> getDistanceFunction() {
 		return distanceFunction.distanceFunction;
@@ -72,10 +226,196 @@ public class HnswIndexBuilderFloatArgGroup extends HnswIndexBuilderArgGroup<floa
 		return normalize ? VectorUtils.normalize(vector) : vector;
 	}	
 	
+	/**
+	 * Builds a graph for the {@link MappedHnswIndex} format
+	 * @param dimensions
+	 * @param items
+	 * @param span
+	 * @return Builder with all items added. Call write() to create an index file.
+	 * @throws InterruptedException
+	 */
+	public HnswGraphBuilder buildMapped(
+			int dimensions, 
+			Collection<EmbeddingsItem> items,
+			Span span) throws InterruptedException {
+		HnswGraphBuilder builder = new HnswGraphBuilder(dimensions, traversalDimensions, getDistanceFunction(), m, efConstruction, items.size());
+		builder.addAll(items, threads, createProgressListener(span), progressUpdateInterval);
+		return builder;		
+	}
+	
+	/**
+	 * Builds an exact {@link FlatIndex}
+	 * @param dimensions
+	 * @param items
+	 * @return
+	 */
+	public FlatIndex buildFlat(int dimensions, Collection<EmbeddingsItem> items) {
+		FlatIndex index = new FlatIndex(dimensions, getDistanceFunction(), items.size());
+		for (EmbeddingsItem item: items) {
+			index.add(item);
+		}
+		return index;
+	}
+	
+	/**
+	 * Inserts items into the index on multiple threads as they arrive and then saves the index.
+	 * At most buffer size items wait for insertion, the items flux is requested more items as they are inserted.
+	 * Items are buffered until the flat threshold is reached. If the flux completes before that, a {@link FlatIndex} is saved.
+	 * Otherwise a memory-mapped or HNSW index is created, buffered items are added to it, and the rest of items are streamed into it.
+	 * Index capacity is grown as needed.
+	 * If there are multiple shards, items are routed to shard builders by URI hash, 
+	 * shards are saved in parallel and a manifest is written to the output file.
+	 * @param dimensions
+	 * @param items
+	 * @param output
+	 * @param span
+	 * @return Number of indexed items
+	 * @throws IOException
+	 */
+	public long buildAndSave(
+			int dimensions, 
+			Flux<EmbeddingsItem> items,
+			File output,
+			Span span) throws IOException {
+		int parallelism = Math.max(1, threads);
+		AtomicLong count = new AtomicLong();
+		StreamingBuilder[] builders = new StreamingBuilder[Math.max(1, shards)];
+		for (int i = 0; i < builders.length; ++i) {
+			builders[i] = new StreamingBuilder(dimensions, span, count);
+		}
+		Scheduler scheduler = Schedulers.newParallel("hnsw-insert", parallelism);
+		try {
+			items
+				.parallel(parallelism, Math.max(1, bufferSize / 2))
+				.runOn(scheduler, Math.max(1, bufferSize / (2 * parallelism)))
+				.doOnNext(item -> builders[ShardedSimilaritySearch.shard(item.id(), builders.length)].add(item))
+				.sequential()
+				.then()
+				.block();
+		} finally {
+			scheduler.dispose();
+		}
+		if (builders.length == 1) {
+			builders[0].save(output);
+			return count.get();
+		}
+		
+		List<Path> shardFiles = new ArrayList<>();
+		for (int i = 0; i < builders.length; ++i) {
+			shardFiles.add(new File(output.getAbsoluteFile().getParentFile(), output.getName() + "." + i).toPath());
+		}
+		try {
+			IntStream.range(0, builders.length).parallel().forEach(i -> {
+				try {
+					builders[i].save(shardFiles.get(i).toFile());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		ShardedSimilaritySearch.writeManifest(output.toPath(), shardFiles);
+		return count.get();
+	}
+	
+	private class StreamingBuilder {
+		
+		private final int dimensions;
+		private final Span span;
+		private final AtomicLong count;
+		private List<EmbeddingsItem> buffer = new ArrayList<>();
+		private volatile Consumer<EmbeddingsItem> target;
+		private HnswGraphBuilder graphBuilder;
+		private HnswIndex<IndexId, float[], EmbeddingsItem, Float> index;
+		
+		StreamingBuilder(int dimensions, Span span, AtomicLong count) {
+			this.dimensions = dimensions;
+			this.span = span;
+			this.count = count;
+			if (isMapped() || flatThreshold <= 0) {
+				target = createTarget();
+			}
+		}
+		
+		private Consumer<EmbeddingsItem> createTarget() {
+			int initialCapacity = 2 * Math.max(bufferSize, Math.max(flatThreshold, buffer == null ? 0 : buffer.size()));
+			if (isMapped()) {
+				graphBuilder = new HnswGraphBuilder(dimensions, traversalDimensions, getDistanceFunction(), m, efConstruction, initialCapacity);
+				return graphBuilder::add;
+			}
+			index = createIndexBuilder(dimensions, initialCapacity).build();
+			return item -> {
+				while (true) {
+					int maxItemCount = index.getMaxItemCount();
+					try {
+						index.add(item);
+						return;
+					} catch (SizeLimitExceededException e) {
+						grow(maxItemCount);
+					}
+				}
+			};
+		}
+		
+		private synchronized void grow(int maxItemCount) {
+			if (index.getMaxItemCount() == maxItemCount) {
+				index.resize(maxItemCount * 2);
+			}
+		}
+		
+		void add(EmbeddingsItem item) {
+			Consumer<EmbeddingsItem> t = target;
+			if (t == null) {
+				synchronized (this) {
+					if (target == null) {
+						buffer.add(item);
+						if (buffer.size() >= flatThreshold) {
+							Consumer<EmbeddingsItem> newTarget = createTarget();
+							buffer.forEach(newTarget);
+							buffer = null;
+							target = newTarget;
+						}
+						onAdded();
+						return;
+					}
+					t = target;
+				}
+			}
+			t.accept(item);
+			onAdded();
+		}
+		
+		private void onAdded() {
+			long done = count.incrementAndGet();
+			if (done % progressUpdateInterval == 0) {
+				span.addEvent("hnsw.progress", Attributes.builder().put("done", done).build());
+			}
+		}
+		
+		void save(File output) throws IOException {
+			if (target == null) {
+				buildFlat(dimensions, buffer).save(output);
+			} else if (graphBuilder != null) {
+				graphBuilder.write(output.toPath(), ef, isQuantized(), isSeparateVectors());
+			} else {
+				index.save(output);
+			}
+		}
+		
+	}	
+	
 	@Override
 	public void setSpanAttributes(Span span) {
 		span.setAttribute("hnsw.distance-function", distanceFunction.name());
 		span.setAttribute("hnsw.normalize", normalize);
+		span.setAttribute("hnsw.mapped", mapped);
+		span.setAttribute("hnsw.quantized", quantized);
+		span.setAttribute("hnsw.separate-vectors", separateVectors);
+		span.setAttribute("hnsw.traversal-dimensions", traversalDimensions);
+		span.setAttribute("hnsw.flat-threshold", flatThreshold);
+		span.setAttribute("hnsw.buffer-size", bufferSize);
+		span.setAttribute("hnsw.shards", shards);
 	}	
 
 }
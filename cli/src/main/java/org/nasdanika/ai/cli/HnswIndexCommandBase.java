@@ -1,14 +1,47 @@
 package org.nasdanika.ai.cli;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.nasdanika.ai.AttributeStore;
+import org.nasdanika.ai.BagOfWordsGenerator;
+import org.nasdanika.ai.BinaryIndex;
+import org.nasdanika.ai.BinaryIndexBuilder;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.IndexUpdate;
+import org.nasdanika.ai.InvertedIndex;
+import org.nasdanika.ai.IvfPqIndex;
+import org.nasdanika.ai.IvfPqIndexBuilder;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.MappedIndex;
+import org.nasdanika.ai.SearchFilter;
+import org.nasdanika.ai.ShardedSimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SwappableSimilaritySearch;
 import org.nasdanika.ai.TextFloatVectorEmbeddingModel;
 import org.nasdanika.ai.TextFloatVectorEncodingChunkingEmbeddingModel;
 import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
@@ -16,8 +49,10 @@ import org.nasdanika.ai.SimilaritySearch.IndexId;
 import org.nasdanika.capability.CapabilityLoader;
 import org.nasdanika.cli.ProgressMonitorMixIn;
 import org.nasdanika.cli.TelemetryCommand;
+import org.nasdanika.common.Description;
 import org.nasdanika.common.ProgressMonitor;
 
+import com.github.jelmerk.hnswlib.core.Index;
 import com.github.jelmerk.hnswlib.core.hnsw.HnswIndex;
 
 import io.opentelemetry.api.OpenTelemetry;
@@ -26,6 +61,7 @@ import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.context.Context;
 import picocli.CommandLine;
 import picocli.CommandLine.ArgGroup;
+import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -45,6 +81,41 @@ public abstract class HnswIndexCommandBase extends TelemetryCommand {
 		description = "Index output file")
 	private File output;
 	
+	@Option(
+			names = "--update",
+			description = {
+					"If true and the output index exists, only new",
+					"and changed items are embedded and the index",
+					"is updated"
+			})
+	@Description(
+			"""
+			Incremental update mode. 
+			SHA-256 hashes of item contents are stored by URI in a ``<output>.hashes`` file next to the index. 
+			On update only items with new or changed hashes are embedded. 
+			Vectors of removed and changed items are removed from the index, attributes of removed items are removed from the attributes file. 
+			An HNSW index built with ``--hnsw-remove-enabled`` and a flat index are updated in place.
+			Other indices are rebuilt from retained vectors of the existing index and vectors of new and changed items.
+			The rebuilt index is written to a temporary file which then atomically replaces the index file, 
+			so processes which have the index file mapped keep reading the previous version until they reopen it.
+			""")
+	private boolean update;
+	
+	@Option(
+			names = "--lexical",
+			description = {
+					"If true, a BM25 inverted index of item texts",
+					"is saved next to the index for hybrid search"
+			})
+	@Description(
+			"""
+			Builds an inverted index of item texts with term frequencies computed by ``BagOfWordsGenerator`` and saves it to a ``<output>.lexical`` file.
+			The inverted index is used for BM25 lexical search, which can be fused with vector search in a hybrid search 
+			to match exact identifiers blurred by embeddings.
+			In the update mode the inverted index is rebuilt from all items.
+			""")
+	private boolean lexical;
+	
 	@ArgGroup(
 			heading = "Progress monitor%n",
 			exclusive = false)
@@ -64,6 +135,16 @@ public abstract class HnswIndexCommandBase extends TelemetryCommand {
 			heading = "Vector index%n",
 			exclusive = false)
 	private HnswIndexBuilderFloatArgGroup hnswIndexArgGroup;	
+	
+	@ArgGroup(
+			heading = "IVF-PQ index%n",
+			exclusive = false)
+	private IvfPqIndexBuilderArgGroup ivfPqIndexArgGroup;	
+	
+	@ArgGroup(
+			heading = "Binary index%n",
+			exclusive = false)
+	private BinaryIndexBuilderArgGroup binaryIndexArgGroup;	
 		
 	@Override
 	public Integer execute(Span commandSpan) throws Exception {
@@ -83,6 +164,14 @@ public abstract class HnswIndexCommandBase extends TelemetryCommand {
 				hnswIndexArgGroup = new HnswIndexBuilderFloatArgGroup();
 			}
 			hnswIndexArgGroup.setSpanAttributes(commandSpan);
+			if (ivfPqIndexArgGroup == null) {
+				ivfPqIndexArgGroup = new IvfPqIndexBuilderArgGroup();
+			}
+			ivfPqIndexArgGroup.setSpanAttributes(commandSpan);
+			if (binaryIndexArgGroup == null) {
+				binaryIndexArgGroup = new BinaryIndexBuilderArgGroup();
+			}
+			binaryIndexArgGroup.setSpanAttributes(commandSpan);
 			
 			TextFloatVectorEmbeddingModel embeddings = embeddingsArgGroup.loadOne(getCapabilityLoader(), progressMonitor);
 			if (embeddings == null) {
@@ -92,30 +181,56 @@ public abstract class HnswIndexCommandBase extends TelemetryCommand {
 			TextFloatVectorEncodingChunkingEmbeddingModel chunkingEmbeddings = encodingChunkingEmbeddingsArgGroup.createChunkingEmbeddings(embeddings);
 	
 			Function<Map.Entry<String,String>, Flux<EmbeddingsItem>> mapper = entry -> {
-				Mono<List<List<Float>>> vectorsMono = chunkingEmbeddings.generateAsync(entry.getValue());
+				Mono<List<float[]>> vectorsMono = chunkingEmbeddings.generateFloatVectorsAsync(entry.getValue());
 				return vectorsMono.map(vectors -> {
 					List<EmbeddingsItem> result = new ArrayList<>();
 					int idx = 0;
-					for (List<Float> vector: vectors) {
-						float[] fVector = new float[vector.size()];
-						for (int j = 0; j < fVector.length; ++j) {
-							fVector[j] = vector.get(j);
-						}
+					for (float[] vector: vectors) {
 						result.add(new EmbeddingsItem(
 								new IndexId(entry.getKey(), idx++), 
-								hnswIndexArgGroup.normalize(fVector), 
-								vector.size()));						
+								hnswIndexArgGroup.normalize(vector), 
+								vector.length));						
 					}
-					onGenerateEmbeddings(entry.getKey(), entry.getValue(), vectors, result);
+					onGenerateEmbeddings(entry.getKey(), entry.getValue(), FloatVectorEmbeddingGenerator.asLists(vectors), result);
 					return result;
 				}).flatMapIterable(Function.identity());
 			};
 			
-			List<EmbeddingsItem> items = getItems(commandSpan, progressMonitor)
+			boolean updating = update && output.exists();
+			IndexUpdate indexUpdate = new IndexUpdate(updating ? loadHashes(output) : Collections.emptyMap());
+			AttributeStore attributes = updating ? loadAttributes(output) : new AttributeStore();
+			BagOfWordsGenerator bagOfWordsGenerator = new BagOfWordsGenerator();
+			Map<String,Map<String,Integer>> bagsOfWords = new ConcurrentHashMap<>();
+			Flux<EmbeddingsItem> itemsFlux = getItems(commandSpan, progressMonitor)
+				.filter(entry -> {
+					attributes.replace(entry.getKey(), getAttributes(entry.getKey(), entry.getValue()));
+					if (lexical) {
+						bagsOfWords.put(entry.getKey(), bagOfWordsGenerator.generate(entry.getValue()));
+					}
+					return indexUpdate.add(entry.getKey(), hash(entry.getValue()));
+				})
 				.flatMap(mapper)
-				.collect(Collectors.toList())
-				.contextWrite(reactor.util.context.Context.of(Context.class, Context.current().with(commandSpan)))
-				.block();
+				.contextWrite(reactor.util.context.Context.of(Context.class, Context.current().with(commandSpan)));
+			
+			if (hnswIndexArgGroup.getShards() > 1 && (update || ivfPqIndexArgGroup.isEnabled() || binaryIndexArgGroup.isEnabled())) {
+				throw new CommandLine.ParameterException(spec.commandLine(), "--shards is not supported with --update, --ivfpq and --binary");
+			}
+			if (!updating && !ivfPqIndexArgGroup.isEnabled() && !binaryIndexArgGroup.isEnabled()) {
+				// Streaming build - items are inserted into the index as their embeddings arrive
+				long size = hnswIndexArgGroup.buildAndSave(embeddings.getDimensions(), itemsFlux, output, commandSpan);
+				commandSpan.addEvent(
+						"items-loaded", 
+						Attributes
+							.builder()
+							.put("size", size)
+							.build());
+				saveHashes(output, indexUpdate.getHashes());
+				saveAttributes(output, attributes);
+				saveLexicalIndex(output, bagsOfWords);
+				return 0;
+			}
+			
+			List<EmbeddingsItem> items = itemsFlux.collect(Collectors.toList()).block();
 			
 			commandSpan.addEvent(
 					"items-loaded", 
@@ -124,13 +239,176 @@ public abstract class HnswIndexCommandBase extends TelemetryCommand {
 						.put("size", items.size())
 						.build());
 	
-			HnswIndex<IndexId, float[], EmbeddingsItem, Float> index = hnswIndexArgGroup.buildAndAddAll(embeddings.getDimensions(), items, commandSpan);
-			index.save(output);		
+			if (updating) {
+				commandSpan.addEvent(
+						"index-update", 
+						Attributes
+							.builder()
+							.put("unchanged", indexUpdate.getUnchanged().size())
+							.put("changed", indexUpdate.getChanged().size())
+							.put("removed", indexUpdate.getRemoved().size())
+							.build());
+				indexUpdate.apply(attributes);
+				
+				Index<IndexId, float[], EmbeddingsItem, Float> existing = openIndex(output);
+				if (indexUpdate.apply(existing, items, hnswIndexArgGroup.getThreads(), hnswIndexArgGroup.createProgressListener(commandSpan))) {
+					existing.save(output);
+					saveHashes(output, indexUpdate.getHashes());
+					saveAttributes(output, attributes);
+					saveLexicalIndex(output, bagsOfWords);
+					return 0;
+				}
+				
+				// Read-only index - rebuilding from retained vectors, the new index file replaces the mapped one atomically
+				items = indexUpdate.merge(existing, items);
+				if (existing instanceof AutoCloseable closeable) {
+					closeable.close();
+				}
+			}
+			
+			if (ivfPqIndexArgGroup.isEnabled()) {
+				IvfPqIndexBuilder ivfPqBuilder = ivfPqIndexArgGroup.build(
+						embeddings.getDimensions(), 
+						hnswIndexArgGroup.getDistanceFunction(), 
+						items, 
+						hnswIndexArgGroup.getThreads(), 
+						commandSpan);
+				ivfPqIndexArgGroup.write(ivfPqBuilder, output.toPath());
+			} else if (binaryIndexArgGroup.isEnabled()) {
+				BinaryIndexBuilder binaryBuilder = binaryIndexArgGroup.build(
+						embeddings.getDimensions(), 
+						hnswIndexArgGroup.getDistanceFunction(), 
+						items);
+				binaryIndexArgGroup.write(binaryBuilder, output.toPath());
+			} else if (hnswIndexArgGroup.isMapped()) {
+				HnswGraphBuilder graphBuilder = hnswIndexArgGroup.buildMapped(embeddings.getDimensions(), items, commandSpan);
+				graphBuilder.write(output.toPath(), hnswIndexArgGroup.getEf(), hnswIndexArgGroup.isQuantized(), hnswIndexArgGroup.isSeparateVectors());
+			} else if (hnswIndexArgGroup.isFlat(items.size())) {
+				FlatIndex index = hnswIndexArgGroup.buildFlat(embeddings.getDimensions(), items);
+				index.save(output);
+			} else {
+				HnswIndex<IndexId, float[], EmbeddingsItem, Float> index = hnswIndexArgGroup.buildAndAddAll(embeddings.getDimensions(), items, commandSpan);
+				index.save(output);
+			}
+			saveHashes(output, indexUpdate.getHashes());
+			saveAttributes(output, attributes);
+			saveLexicalIndex(output, bagsOfWords);
 			
 			return 0;
 		}
 	}
 	
+	/**
+	 * @param content
+	 * @return Content hash used to detect changed items in the update mode
+	 */
+	protected String hash(String content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @param index Index file
+	 * @return File with content hashes of indexed items
+	 */
+	public static File getHashesFile(File index) {
+		return new File(index.getParentFile(), index.getName() + ".hashes");
+	}
+	
+	/**
+	 * Loads content hashes of indexed items by URI
+	 * @param index Index file
+	 * @return Empty map if the hashes file does not exist
+	 * @throws IOException
+	 */
+	public static Map<String,String> loadHashes(File index) throws IOException {
+		Map<String,String> ret = new HashMap<>();
+		File hashesFile = getHashesFile(index);
+		if (hashesFile.isFile()) {
+			Properties properties = new Properties();
+			try (Reader reader = Files.newBufferedReader(hashesFile.toPath(), StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			}
+			for (String uri: properties.stringPropertyNames()) {
+				ret.put(uri, properties.getProperty(uri));
+			}
+		}
+		return ret;
+	}
+	
+	private static void saveHashes(File index, Map<String,String> hashes) throws IOException {
+		Properties properties = new Properties();
+		properties.putAll(hashes);
+		try (Writer writer = Files.newBufferedWriter(getHashesFile(index).toPath(), StandardCharsets.UTF_8)) {
+			properties.store(writer, "Content hashes of indexed items");
+		}
+	}
+	
+	/**
+	 * Override to provide filterable item attributes, e.g. document type or language.
+	 * Attributes are saved to the ``<output>.attributes`` file and are used to create {@link SearchFilter}s with {@link AttributeStore#filter(String, String...)}.
+	 * @param key Item URI
+	 * @param value Item content
+	 * @return Attributes, empty by default
+	 */
+	protected Map<String,String> getAttributes(String key, String value) {
+		return Collections.emptyMap();
+	}
+	
+	/**
+	 * @param index Index file
+	 * @return File with attributes of indexed items
+	 */
+	public static File getAttributesFile(File index) {
+		return new File(index.getParentFile(), index.getName() + ".attributes");
+	}
+	
+	/**
+	 * Loads attributes of indexed items
+	 * @param index Index file
+	 * @return Empty store if the attributes file does not exist
+	 * @throws IOException
+	 */
+	public static AttributeStore loadAttributes(File index) throws IOException {
+		File attributesFile = getAttributesFile(index);
+		return attributesFile.isFile() ? AttributeStore.load(attributesFile.toPath()) : new AttributeStore();
+	}
+	
+	/**
+	 * @param index Index file
+	 * @return BM25 inverted index file
+	 */
+	public static File getLexicalIndexFile(File index) {
+		return new File(index.getParentFile(), index.getName() + ".lexical");
+	}
+	
+	/**
+	 * Loads BM25 inverted index saved with ``--lexical``
+	 * @param index Index file
+	 * @return null if the inverted index file does not exist
+	 * @throws IOException
+	 */
+	public static InvertedIndex loadLexicalIndex(File index) throws IOException {
+		File lexicalIndexFile = getLexicalIndexFile(index);
+		return lexicalIndexFile.isFile() ? InvertedIndex.load(lexicalIndexFile) : null;
+	}
+	
+	private static void saveLexicalIndex(File index, Map<String,Map<String,Integer>> bagsOfWords) throws IOException {
+		if (!bagsOfWords.isEmpty()) {
+			InvertedIndex.build(bagsOfWords).save(getLexicalIndexFile(index));
+		}
+	}
+	
+	private static void saveAttributes(File index, AttributeStore attributes) throws IOException {
+		if (attributes.size() > 0) {
+			attributes.save(getAttributesFile(index).toPath());
+		}
+	}
+	
 	/**
 	 * Listener method for the generation process.
 	 * You may override this method for progress reporting. 
@@ -149,12 +427,98 @@ public abstract class HnswIndexCommandBase extends TelemetryCommand {
 	 */
 	protected abstract Flux<Map.Entry<String,String>> getItems(Span commandSpan, ProgressMonitor progressMonitor);
 	
+	/**
+	 * Loads a Java-serialized hnswlib index. Use {@link #openIndex(File)} for index files of any format.
+	 * @param file
+	 * @return
+	 * @throws IOException If the file is not an hnswlib index
+	 */
 	public static HnswIndex<IndexId, float[], EmbeddingsItem, Float> loadIndex(File file) throws IOException {
+		Path path = file.toPath();
+		if (MappedHnswIndex.isMappedHnswIndex(path) 
+				|| IvfPqIndex.isIvfPqIndex(path) 
+				|| BinaryIndex.isBinaryIndex(path) 
+				|| FlatIndex.isFlatIndex(path) 
+				|| ShardedSimilaritySearch.isManifest(path)) {
+			throw new IOException("Not an hnswlib index, use openIndex(): " + file.getAbsolutePath());
+		}
 		return HnswIndex.load(file);
 	}
 	
 	public static HnswIndex<IndexId, float[], EmbeddingsItem, Float> loadIndex(InputStream in) throws IOException {
 		return HnswIndex.load(in);
 	}
+	
+	/**
+	 * Opens an index file. The format is detected by the file signature. 
+	 * Memory-mapped HNSW, IVF-PQ and binary index files are mapped, binary flat index files are read in parallel, other files are deserialized. 
+	 * This method shall be used instead of {@link #loadIndex(File)} for files which may contain a {@link FlatIndex}.
+	 * Use {@link org.nasdanika.ai.SimilaritySearch#from(Index)} to search the returned index.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static Index<IndexId, float[], EmbeddingsItem, Float> openIndex(File file) throws IOException {
+		if (ShardedSimilaritySearch.isManifest(file.toPath())) {
+			throw new IOException("Sharded index manifest, use openSearch(): " + file.getAbsolutePath());
+		}
+		if (MappedHnswIndex.isMappedHnswIndex(file.toPath())) {
+			return MappedHnswIndex.load(file);
+		}
+		if (IvfPqIndex.isIvfPqIndex(file.toPath())) {
+			return IvfPqIndex.load(file);
+		}
+		if (BinaryIndex.isBinaryIndex(file.toPath())) {
+			return BinaryIndex.load(file);
+		}
+		if (FlatIndex.isFlatIndex(file.toPath())) {
+			return FlatIndex.load(file);
+		}
+		try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
+			return (Index<IndexId, float[], EmbeddingsItem, Float>) in.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Cannot load index from " + file.getAbsolutePath() + ": " + e, e);
+		}
+	}
+	
+	/**
+	 * Opens an index file or a sharded index manifest for search
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static FloatVectorSimilaritySearch openSearch(File file) throws IOException {
+		return openSearch(file, resource -> {});
+	}
+	
+	/**
+	 * Opens an index file or a sharded index manifest for search, 
+	 * e.g. to load a rebuilt index into a {@link SwappableSimilaritySearch} with <code>search.load(resources -&gt; openSearch(file, resources))</code>
+	 * @param file
+	 * @param resources Collects opened indices to close when the search is not used anymore
+	 * @return
+	 * @throws IOException
+	 */
+	public static FloatVectorSimilaritySearch openSearch(File file, Consumer<AutoCloseable> resources) throws IOException {
+		if (ShardedSimilaritySearch.isManifest(file.toPath())) {
+			List<FloatVectorSimilaritySearch> shards = new ArrayList<>();
+			for (Path shard: ShardedSimilaritySearch.readManifest(file.toPath())) {
+				shards.add(openSearch(shard.toFile(), resources));
+			}
+			return new ShardedSimilaritySearch(shards);
+		}
+		Index<IndexId, float[], EmbeddingsItem, Float> index = openIndex(file);
+		if (index instanceof AutoCloseable closeable) {
+			resources.accept(closeable);
+		}
+		if (index instanceof MappedIndex mappedIndex) {
+			return SimilaritySearch.from(mappedIndex);
+		}
+		if (index instanceof FlatIndex flatIndex) {
+			return SimilaritySearch.from(flatIndex);
+		}
+		return SimilaritySearch.from(index);
+	}
 
 }
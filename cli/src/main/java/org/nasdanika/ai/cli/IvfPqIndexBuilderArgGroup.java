@@ -0,0 +1,138 @@
+package org.nasdanika.ai.cli;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+
+import org.nasdanika.ai.IvfPqIndex;
+import org.nasdanika.ai.IvfPqIndexBuilder;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.common.Description;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+
+import io.opentelemetry.api.trace.Span;
+import picocli.CommandLine.Option;
+
+/**
+ * Options for building {@link IvfPqIndex} 
+ */
+public class IvfPqIndexBuilderArgGroup {
+	
+	@Option( 
+			names = "--ivfpq",
+			description = {
+					"If true, an IVF-PQ index is built",
+					"instead of an HNSW index"
+			})	
+	@Description(
+			"""
+			If true, an inverted file index with product quantization (IVF-PQ) is built instead of an HNSW index. 
+			Vectors are partitioned with k-means and residuals to partition centroids are encoded with one byte per sub-quantizer.
+			Only centroids and codebooks are loaded into memory, codes and full precision vectors are kept in a memory-mapped file.
+			Search scans partitions closest to the query and re-ranks the best candidates with full precision vectors.
+			Use this option for corpora where an HNSW graph does not fit into memory.
+			Vectors shall be normalized (``--hnsw-normalize``) for the cosine distance.
+			""")
+	protected boolean enabled;
+	
+	@Option( 
+			names = "--ivfpq-partitions",
+			description = {
+					"Number of coarse partitions",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "256")	
+	protected int partitions;
+	
+	@Option( 
+			names = "--ivfpq-sub-quantizers",
+			description = {
+					"Number of sub-quantizers - bytes per vector code",
+					"Vector dimensions shall be a multiple of this value",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "32")	
+	protected int subQuantizers;
+	
+	@Option( 
+			names = "--ivfpq-iterations",
+			description = {
+					"Maximum number of k-means training iterations",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "20")	
+	protected int iterations;
+	
+	@Option( 
+			names = "--ivfpq-training-size",
+			description = {
+					"Maximum number of vectors to train quantizers on",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "100000")	
+	protected int trainingSize;
+	
+	@Option( 
+			names = "--ivfpq-nprobe",
+			description = {
+					"Number of partitions to scan during the search",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "16")	
+	protected int nProbe;
+	
+	@Option( 
+			names = "--ivfpq-re-rank",
+			description = {
+					"Number of candidates to re-rank with",
+					"full precision vectors",
+					"Default value: ${DEFAULT-VALUE}"
+			},
+			defaultValue = "200")	
+	protected int reRank;
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Adds items to a builder and trains quantizers
+	 * @param dimensions
+	 * @param distanceFunction
+	 * @param items
+	 * @param threads
+	 * @param span
+	 * @return Trained builder
+	 */
+	public IvfPqIndexBuilder build(
+			int dimensions, 
+			DistanceFunction<float[], Float> distanceFunction,
+			Collection<EmbeddingsItem> items,
+			int threads,
+			Span span) {
+		IvfPqIndexBuilder builder = new IvfPqIndexBuilder(dimensions, distanceFunction, partitions, subQuantizers, items.size());
+		builder.addAll(items);
+		span.addEvent("ivfpq.training");
+		builder.train(iterations, trainingSize, threads, 1);
+		span.addEvent("ivfpq.trained");
+		return builder;
+	}
+	
+	public void write(IvfPqIndexBuilder builder, Path path) throws IOException {
+		builder.write(path, nProbe, reRank);
+	}
+	
+	public void setSpanAttributes(Span span) {
+		span.setAttribute("ivfpq.enabled", enabled);
+		if (enabled) {
+			span.setAttribute("ivfpq.partitions", partitions);
+			span.setAttribute("ivfpq.sub-quantizers", subQuantizers);
+			span.setAttribute("ivfpq.iterations", iterations);
+			span.setAttribute("ivfpq.training-size", trainingSize);
+			span.setAttribute("ivfpq.nprobe", nProbe);
+			span.setAttribute("ivfpq.re-rank", reRank);
+		}
+	}
+
+}
@@ -8,6 +8,7 @@ module org.nasdanika.ai {
 	requires transitive java.desktop;
 	requires transitive org.nasdanika.common;
 	requires transitive org.apache.commons.imaging;
+	requires static jdk.incubator.vector;
 		
 	exports org.nasdanika.ai;		
 	
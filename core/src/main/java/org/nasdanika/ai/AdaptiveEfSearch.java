@@ -0,0 +1,188 @@
+package org.nasdanika.ai;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * HNSW search which chooses the size of the dynamic list (ef) per query.
+ * ef is kept between min and max ef.
+ * With a latency target, ef is decreased multiplicatively when the latency percentile of recent queries exceeds the target
+ * and increased additively when it is well below the target.
+ * When more queries are executed concurrently than there are processors, ef is lowered proportionally to the load.
+ * Use {@link #calibrate(SearchBenchmark, IntFunction, double, int, int)} to find min ef for a recall target.
+ * The target search shall support per-query ef, e.g. {@link MappedHnswIndex}. 
+ * hnswlib indices are not supported because their ef is shared by concurrent searches.
+ */
+public class AdaptiveEfSearch implements FloatVectorSimilaritySearch {
+
+	/**
+	 * Number of recent query latencies used to compute the latency percentile
+	 */
+	public static final int WINDOW = 256;
+
+	/**
+	 * Search with the given ef
+	 */
+	@FunctionalInterface
+	public interface EfSearch {
+
+		void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter, int ef);
+
+	}
+
+	private final EfSearch search;
+	private final int minEf;
+	private final int maxEf;
+	private final int parallelism = Runtime.getRuntime().availableProcessors();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile int ef;
+	private volatile long latencyTarget = -1;
+	private volatile double percentile = 0.99;
+	private volatile IntConsumer listener;
+
+	private final long[] latencies = new long[WINDOW];
+	private int position;
+	private int samples;
+	private int sinceAdjustment;
+
+	/**
+	 * @param search Search with per query ef
+	 * @param minEf Min ef, e.g. calibrated for a recall target
+	 * @param maxEf Max ef, used when there is no latency target
+	 */
+	public AdaptiveEfSearch(EfSearch search, int minEf, int maxEf) {
+		if (minEf < 1 || maxEf < minEf) {
+			throw new IllegalArgumentException("Invalid ef range: " + minEf + " - " + maxEf);
+		}
+		this.search = search;
+		this.minEf = minEf;
+		this.maxEf = maxEf;
+		ef = maxEf;
+	}
+
+	/**
+	 * Adaptive search of a memory-mapped index. The filter is applied during graph traversal.
+	 */
+	public static AdaptiveEfSearch of(MappedHnswIndex index, int minEf, int maxEf) {
+		return new AdaptiveEfSearch(index::search, minEf, maxEf);
+	}
+
+	/**
+	 * Sets latency target
+	 * @param latency Target latency, null to remove the target
+	 * @param percentile Latency percentile between 0 and 1, e.g. 0.99 for p99
+	 * @return this search
+	 */
+	public AdaptiveEfSearch setLatencyTarget(Duration latency, double percentile) {
+		this.percentile = percentile;
+		latencyTarget = latency == null ? -1 : latency.toNanos();
+		if (latency == null) {
+			ef = maxEf;
+		}
+		return this;
+	}
+
+	/**
+	 * @param listener Receives ef chosen for each query on the search thread, e.g. to set a span attribute
+	 * @return this search
+	 */
+	public AdaptiveEfSearch setListener(IntConsumer listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * @return ef chosen by the latency controller before load adjustment
+	 */
+	public int getEf() {
+		return ef;
+	}
+
+	public int getMinEf() {
+		return minEf;
+	}
+
+	public int getMaxEf() {
+		return maxEf;
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+		find(query, numberOfItems, results, null);
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+		int concurrency = inFlight.incrementAndGet();
+		try {
+			int queryEf = ef;
+			if (concurrency > parallelism) {
+				queryEf = (int) Math.max(minEf, (long) queryEf * parallelism / concurrency);
+			}
+			queryEf = Math.max(queryEf, numberOfItems);
+			IntConsumer l = listener;
+			if (l != null) {
+				l.accept(queryEf);
+			}
+			long start = System.nanoTime();
+			search.find(query, numberOfItems, results, filter, queryEf);
+			if (latencyTarget > 0) {
+				record(System.nanoTime() - start);
+			}
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Records query latency and adjusts ef every quarter of the window
+	 */
+	private synchronized void record(long latency) {
+		latencies[position] = latency;
+		position = (position + 1) % WINDOW;
+		if (samples < WINDOW) {
+			++samples;
+		}
+		if (++sinceAdjustment < WINDOW / 4) {
+			return;
+		}
+		sinceAdjustment = 0;
+		int count = samples;
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		long observed = sorted[Math.min(count - 1, (int) Math.ceil(percentile * count) - 1)];
+		if (observed > latencyTarget) {
+			ef = Math.max(minEf, ef * 3 / 4);
+		} else if (observed < latencyTarget * 0.8) {
+			ef = Math.min(maxEf, ef + Math.max(1, ef / 8));
+		}
+	}
+
+	/**
+	 * Finds min ef reaching the recall target with binary search over ef values, assuming recall grows with ef
+	 * @param benchmark Benchmark with ground truth
+	 * @param searchWithEf Search using the argument ef
+	 * @param recallTarget Recall target, e.g. 0.95
+	 * @param minEf Min ef to consider
+	 * @param maxEf Max ef to consider, returned if the target is not reached
+	 * @return Min ef with recall at or above the target
+	 */
+	public static int calibrate(SearchBenchmark benchmark, IntFunction<FloatVectorSimilaritySearch> searchWithEf, double recallTarget, int minEf, int maxEf) {
+		int low = Math.max(minEf, benchmark.getK());
+		int high = Math.max(low, maxEf);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (benchmark.run(Map.of("ef", mid), searchWithEf.apply(mid), 0).recall() >= recallTarget) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+}
@@ -0,0 +1,211 @@
+package org.nasdanika.ai;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact store of single-valued string attributes of indexed documents, e.g. document type or language. 
+ * Attributes are keyed by {@link SimilaritySearch.IndexId#uri()}, so all vectors (chunks) of a document share them.
+ * Values are dictionary-encoded - each document row keeps an int code per attribute, 
+ * so a filter by attribute values is a hash lookup of the document row and a bitmap check of the value code.
+ * Thread safe, filters do not lock the store.
+ */
+public class AttributeStore implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final int NO_VALUE = -1;
+
+	private final Map<String, Integer> rows = new ConcurrentHashMap<>();
+	
+	/**
+	 * Number of allocated rows. Rows of removed documents are not reused.
+	 */
+	private int rowCount;
+	private final Map<String, Integer> attributes = new HashMap<>();
+	private final List<Map<String, Integer>> dictionaries = new ArrayList<>();
+	private final List<List<String>> values = new ArrayList<>();
+	
+	/**
+	 * [attribute][row] -> value code
+	 */
+	private volatile int[][] columns = new int[0][];
+	
+	/**
+	 * Sets document attribute value
+	 * @param uri Document URI
+	 * @param attribute Attribute name
+	 * @param value Attribute value, null to remove
+	 */
+	public synchronized void put(String uri, String attribute, String value) {
+		int row = rows.computeIfAbsent(uri, k -> rowCount++);
+		Integer attributeIndex = attributes.get(attribute);
+		if (attributeIndex == null) {
+			if (value == null) {
+				return;
+			}
+			attributeIndex = attributes.size();
+			attributes.put(attribute, attributeIndex);
+			dictionaries.add(new HashMap<>());
+			values.add(new ArrayList<>());
+			int[][] newColumns = Arrays.copyOf(columns, attributeIndex + 1);
+			newColumns[attributeIndex] = new int[0];
+			columns = newColumns;
+		}
+		int[] column = columns[attributeIndex];
+		if (row >= column.length) {
+			int oldLength = column.length;
+			column = Arrays.copyOf(column, Math.max(row + 1, Math.max(16, oldLength * 2)));
+			Arrays.fill(column, oldLength, column.length, NO_VALUE);
+			int[][] newColumns = columns.clone();
+			newColumns[attributeIndex] = column;
+			columns = newColumns;
+		}
+		if (value == null) {
+			column[row] = NO_VALUE;
+		} else {
+			List<String> attributeValues = values.get(attributeIndex);
+			column[row] = dictionaries.get(attributeIndex).computeIfAbsent(value, v -> {
+				attributeValues.add(v);
+				return attributeValues.size() - 1;
+			});
+		}
+	}
+	
+	/**
+	 * Sets document attributes
+	 */
+	public void putAll(String uri, Map<String, String> attributes) {
+		for (Map.Entry<String, String> entry: attributes.entrySet()) {
+			put(uri, entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Replaces document attributes, attributes not present in the map are removed
+	 */
+	public synchronized void replace(String uri, Map<String, String> attributes) {
+		Integer row = rows.get(uri);
+		if (row != null) {
+			clear(row);
+		}
+		putAll(uri, attributes);
+	}
+	
+	/**
+	 * Removes all attributes of a document
+	 */
+	public synchronized void remove(String uri) {
+		Integer row = rows.remove(uri);
+		if (row != null) {
+			clear(row);
+		}
+	}
+	
+	private void clear(int row) {
+		for (int[] column: columns) {
+			if (row < column.length) {
+				column[row] = NO_VALUE;
+			}
+		}
+	}
+	
+	/**
+	 * @return Attribute value or null
+	 */
+	public synchronized String get(String uri, String attribute) {
+		Integer row = rows.get(uri);
+		Integer attributeIndex = attributes.get(attribute);
+		if (row == null || attributeIndex == null) {
+			return null;
+		}
+		int[] column = columns[attributeIndex];
+		if (row >= column.length || column[row] == NO_VALUE) {
+			return null;
+		}
+		return values.get(attributeIndex).get(column[row]);
+	}
+	
+	/**
+	 * @return Number of documents
+	 */
+	public synchronized int size() {
+		return rows.size();
+	}
+	
+	/**
+	 * @return Distinct values of the attribute
+	 */
+	public synchronized List<String> getValues(String attribute) {
+		Integer attributeIndex = attributes.get(attribute);
+		return attributeIndex == null ? Collections.emptyList() : List.copyOf(values.get(attributeIndex));
+	}
+	
+	/**
+	 * @param attribute Attribute name
+	 * @param acceptedValues Accepted values
+	 * @return Filter accepting items of documents with the attribute value in the accepted values
+	 */
+	public synchronized SearchFilter filter(String attribute, String... acceptedValues) {
+		Integer attributeIndex = attributes.get(attribute);
+		if (attributeIndex == null) {
+			return (uri, index) -> false;
+		}
+		BitSet codes = new BitSet();
+		Map<String, Integer> dictionary = dictionaries.get(attributeIndex);
+		for (String value: acceptedValues) {
+			Integer code = dictionary.get(value);
+			if (code != null) {
+				codes.set(code);
+			}
+		}
+		int index = attributeIndex;
+		return (uri, itemIndex) -> {
+			Integer row = rows.get(uri);
+			if (row == null) {
+				return false;
+			}
+			int[] column = columns[index];
+			return row < column.length && column[row] != NO_VALUE && codes.get(column[row]);
+		};
+	}
+	
+	public void save(OutputStream out) throws IOException {
+		try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+			synchronized (this) {
+				oos.writeObject(this);
+			}
+		}
+	}
+	
+	public void save(Path path) throws IOException {
+		save(Files.newOutputStream(path));
+	}
+	
+	public static AttributeStore load(InputStream in) throws IOException {
+		try (ObjectInputStream ois = new ObjectInputStream(in)) {
+			return (AttributeStore) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot load attribute store: " + e, e);
+		}
+	}
+	
+	public static AttributeStore load(Path path) throws IOException {
+		return load(Files.newInputStream(path));
+	}
+
+}
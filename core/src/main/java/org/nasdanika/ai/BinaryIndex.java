@@ -0,0 +1,156 @@
+package org.nasdanika.ai;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.IntPredicate;
+
+/**
+ * Read-only index of 1-bit vector codes mapped into memory.
+ * A search computes Hamming distances between the query code and codes of all items with population count instructions
+ * and re-ranks the closest candidates with full precision vectors read from the mapped file.
+ * Codes are 32 times smaller than float vectors and are scanned sequentially,
+ * so for many corpora the scan is faster than graph traversal and requires no build time.
+ * Index files are created with {@link BinaryIndexBuilder}.
+ */
+public class BinaryIndex extends MappedIndex {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int MAGIC = 0x3151424E; // NBQ1
+
+	static final int VERSION = 1;
+
+	/**
+	 * Number of codes read from the mapped file at once
+	 */
+	static final int BLOCK_SIZE = 1024;
+
+	private final int words;
+	private volatile int reRank;
+	private final transient BinaryQuantizer quantizer;
+	private final long codesOffset;
+
+	private final transient ScratchPool<Scratch> scratch;
+
+	private class Scratch {
+
+		final NodeHeap candidates = new NodeHeap(true, 128);
+		final NodeHeap reRanked = new NodeHeap(true, 16);
+		final float[] vector = new float[dimensions];
+		final long[] query = new long[words];
+		final long[] blockCodes = new long[BLOCK_SIZE * words];
+
+	}
+
+	/**
+	 * Maps the index file into memory
+	 * @param path Index file
+	 * @throws IOException
+	 */
+	public BinaryIndex(Path path) throws IOException {
+		super(path, MAGIC, VERSION, "binary index");
+		words = file.getInt(16);
+		reRank = file.getInt(20);
+		float[] thresholds = new float[dimensions];
+		file.getFloats(file.getLong(48), thresholds, 0, dimensions);
+		quantizer = new BinaryQuantizer(thresholds);
+		codesOffset = file.getLong(56);
+
+		scratch = new ScratchPool<>(Scratch::new);
+	}
+
+	/**
+	 * Maps the index file into memory
+	 * @param file Index file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BinaryIndex load(File file) throws IOException {
+		return new BinaryIndex(file.toPath());
+	}
+
+	/**
+	 * @param path
+	 * @return true if the file starts with the binary index signature
+	 * @throws IOException
+	 */
+	public static boolean isBinaryIndex(Path path) throws IOException {
+		return hasMagic(path, MAGIC);
+	}
+
+	public int getReRank() {
+		return reRank;
+	}
+
+	/**
+	 * Sets the number of candidates to re-rank with full precision vectors. The value is not persisted.
+	 * @param reRank
+	 */
+	public void setReRank(int reRank) {
+		this.reRank = reRank;
+	}
+
+	/**
+	 * Scans codes of all items keeping max(reRank, k) candidates with the smallest Hamming distance
+	 * and re-ranks them with full precision vectors and the index distance function.
+	 * Nodes rejected by the filter are skipped during the scan.
+	 */
+	@Override
+	public int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept) {
+		if (size == 0 || k <= 0) {
+			return 0;
+		}
+		if (query.length != dimensions) {
+			throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + dimensions);
+		}
+		Scratch s = scratch.borrow();
+		try {
+			return search(query, k, nodes, distances, accept, s);
+		} finally {
+			scratch.release(s);
+		}
+	}
+	
+	/**
+	 * Scans codes and re-ranks candidates using the borrowed scratch
+	 */
+	private int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept, Scratch s) {
+		quantizer.encode(query, s.query, 0);
+
+		int limit = Math.max(reRank, k);
+		s.candidates.clear();
+		for (int start = 0; start < size; start += BLOCK_SIZE) {
+			int count = Math.min(BLOCK_SIZE, size - start);
+			file.getLongs(codesOffset + (long) start * words * Long.BYTES, s.blockCodes, 0, count * words);
+			for (int i = 0; i < count; ++i) {
+				int node = start + i;
+				if (accept != null && !accept.test(node)) {
+					continue;
+				}
+				int distance = VectorKernels.hamming(s.query, 0, s.blockCodes, i * words, words);
+				if (s.candidates.size() < limit || distance < s.candidates.topDistance()) {
+					s.candidates.push(node, distance);
+					if (s.candidates.size() > limit) {
+						s.candidates.pop();
+					}
+				}
+			}
+		}
+
+		s.reRanked.clear();
+		while (!s.candidates.isEmpty()) {
+			int node = s.candidates.pop();
+			getVector(node, s.vector);
+			float distance = distanceFunction.distance(query, s.vector);
+			if (s.reRanked.size() < k || distance < s.reRanked.topDistance()) {
+				s.reRanked.push(node, distance);
+				if (s.reRanked.size() > k) {
+					s.reRanked.pop();
+				}
+			}
+		}
+		return s.reRanked.drainAscending(nodes, distances);
+	}
+
+}
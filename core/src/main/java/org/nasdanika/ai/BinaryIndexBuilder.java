@@ -0,0 +1,150 @@
+package org.nasdanika.ai;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.hnsw.SizeLimitExceededException;
+
+/**
+ * Collects items and writes them in the format read by {@link BinaryIndex}.
+ * Vectors are encoded with a {@link BinaryQuantizer} fitted to per-dimension means of all vectors.
+ */
+public class BinaryIndexBuilder {
+
+	private final int dimensions;
+	private final DistanceFunction<float[], Float> distanceFunction;
+	private final int capacity;
+
+	private final float[][] vectors;
+	private final IndexId[] ids;
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param dimensions Vector dimensions
+	 * @param distanceFunction Distance function used to re-rank candidates
+	 * @param capacity Maximum number of items
+	 */
+	public BinaryIndexBuilder(
+			int dimensions,
+			DistanceFunction<float[], Float> distanceFunction,
+			int capacity) {
+
+		if ((long) BinaryQuantizer.words(dimensions) * Long.BYTES * BinaryIndex.BLOCK_SIZE > MappedFile.MAX_RECORD_SIZE) {
+			throw new IllegalArgumentException("Too many dimensions: " + dimensions);
+		}
+		this.dimensions = dimensions;
+		this.distanceFunction = distanceFunction;
+		this.capacity = capacity;
+		vectors = new float[capacity][];
+		ids = new IndexId[capacity];
+	}
+
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Adds an item. Can be called from multiple threads.
+	 */
+	public void add(EmbeddingsItem item) {
+		if (item.vector().length != dimensions) {
+			throw new IllegalArgumentException("Item " + item.id() + " has " + item.vector().length + " dimensions, expected " + dimensions);
+		}
+		int node = size.getAndIncrement();
+		if (node >= capacity) {
+			size.decrementAndGet();
+			throw new SizeLimitExceededException("The number of elements exceeds the specified limit: " + capacity);
+		}
+		vectors[node] = item.vector();
+		ids[node] = item.id();
+	}
+
+	public void addAll(Collection<EmbeddingsItem> items) {
+		items.forEach(this::add);
+	}
+
+	/**
+	 * Writes the index in the {@link BinaryIndex} format.
+	 * Shall not be called concurrently with add().
+	 * @param path Output file
+	 * @param reRank Default number of candidates to re-rank with full precision vectors
+	 * @throws IOException
+	 */
+	public void write(Path path, int reRank) throws IOException {
+		int count = size.get();
+		BinaryQuantizer quantizer = BinaryQuantizer.fit(vectors, count, dimensions);
+		int words = quantizer.getWords();
+
+		ByteArrayOutputStream distanceBytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(distanceBytes)) {
+			oos.writeObject(distanceFunction);
+		}
+
+		MappedFile.write(path, channel -> {
+			MappedFile.Writer writer = new MappedFile.Writer(channel);
+			writer.putBytes(new byte[MappedIndex.HEADER_SIZE]);
+			writer.putBytes(distanceBytes.toByteArray());
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long vectorsOffset = writer.position();
+			for (int i = 0; i < count; ++i) {
+				writer.putFloats(vectors[i]);
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long thresholdsOffset = writer.position();
+			writer.putFloats(quantizer.getThresholds());
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long codesOffset = writer.position();
+			long[] codes = new long[words];
+			for (int i = 0; i < count; ++i) {
+				quantizer.encode(vectors[i], codes, 0);
+				for (long code: codes) {
+					writer.putLong(code);
+				}
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long idsOffset = writer.position();
+			long uriDictionaryOffset = writer.putIds(ids, count);
+			long length = writer.position();
+			writer.close();
+
+			ByteBuffer header = ByteBuffer.allocate(MappedIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header
+				.putInt(BinaryIndex.MAGIC)
+				.putInt(BinaryIndex.VERSION)
+				.putInt(dimensions)
+				.putInt(count)
+				.putInt(words)
+				.putInt(reRank)
+				.putInt(36, distanceBytes.size())
+				.putLong(40, vectorsOffset)
+				.putLong(48, thresholdsOffset)
+				.putLong(56, codesOffset)
+				.putLong(72, idsOffset)
+				.putLong(88, length)
+				.putLong(MappedIndex.URI_DICTIONARY_OFFSET, uriDictionaryOffset);
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		});
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.nasdanika.ai;
+
+/**
+ * 1-bit quantizer. Each dimension is encoded as one bit - 1 if the value is above the dimension threshold, 0 otherwise.
+ * Bits are packed into longs, 64 dimensions per long, so codes are 32 times smaller than float vectors.
+ * Hamming distance between codes approximates the angular distance between vectors.
+ * With zero thresholds bits are signs of the vector components.
+ * Thresholds fitted to per-dimension means center the vectors, which keeps bits informative for embeddings which are not zero-centered.
+ */
+public class BinaryQuantizer {
+
+	private final float[] thresholds;
+
+	/**
+	 * @param thresholds Per-dimension thresholds
+	 */
+	public BinaryQuantizer(float[] thresholds) {
+		this.thresholds = thresholds;
+	}
+
+	/**
+	 * Sign quantizer
+	 * @param dimensions
+	 * @return
+	 */
+	public static BinaryQuantizer signs(int dimensions) {
+		return new BinaryQuantizer(new float[dimensions]);
+	}
+
+	/**
+	 * Calibrates thresholds to per-dimension means of the vectors
+	 * @param vectors Training vectors
+	 * @param count Number of vectors to use
+	 * @param dimensions
+	 * @return
+	 */
+	public static BinaryQuantizer fit(float[][] vectors, int count, int dimensions) {
+		double[] sums = new double[dimensions];
+		for (int i = 0; i < count; ++i) {
+			float[] vector = vectors[i];
+			for (int j = 0; j < dimensions; ++j) {
+				sums[j] += vector[j];
+			}
+		}
+		float[] thresholds = new float[dimensions];
+		if (count > 0) {
+			for (int j = 0; j < dimensions; ++j) {
+				thresholds[j] = (float) (sums[j] / count);
+			}
+		}
+		return new BinaryQuantizer(thresholds);
+	}
+
+	public int getDimensions() {
+		return thresholds.length;
+	}
+
+	/**
+	 * @return Number of longs in a code
+	 */
+	public int getWords() {
+		return words(thresholds.length);
+	}
+
+	/**
+	 * @return Number of longs in a code of a vector with the given number of dimensions
+	 */
+	public static int words(int dimensions) {
+		return (dimensions + Long.SIZE - 1) / Long.SIZE;
+	}
+
+	float[] getThresholds() {
+		return thresholds;
+	}
+
+	/**
+	 * Encodes vector bits into the codes array starting at the offset
+	 */
+	public void encode(float[] vector, long[] codes, int offset) {
+		for (int word = 0, dimension = 0; dimension < thresholds.length; ++word) {
+			long bits = 0;
+			for (int bit = 0; bit < Long.SIZE && dimension < thresholds.length; ++bit, ++dimension) {
+				if (vector[dimension] > thresholds[dimension]) {
+					bits |= 1L << bit;
+				}
+			}
+			codes[offset + word] = bits;
+		}
+	}
+
+	public long[] encode(float[] vector) {
+		long[] codes = new long[getWords()];
+		encode(vector, codes, 0);
+		return codes;
+	}
+
+}
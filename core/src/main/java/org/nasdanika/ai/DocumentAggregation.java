@@ -0,0 +1,144 @@
+package org.nasdanika.ai;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Aggregation of chunk (vector) search results to document (URI) results in multi-vector search.
+ * Aggregated results are sorted by distance in ascending order, 
+ * result index is the index of the closest chunk.
+ */
+public enum DocumentAggregation {
+	
+	/**
+	 * Document distance is the distance of its closest chunk
+	 */
+	MAX_SIM,
+	
+	/**
+	 * Document similarities (1 - distance of the closest chunk) are summed over query vectors.
+	 * Document distance is 1 - sum, so documents matching more query vectors come first.
+	 */
+	SUM,
+	
+	/**
+	 * Reciprocal rank fusion - 1 / ({@link #RRF_K} + rank) of the document is summed over query vector result lists. 
+	 * Document distance is 1 - sum.
+	 */
+	RECIPROCAL_RANK_FUSION;
+	
+	/**
+	 * Rank constant of the reciprocal rank fusion
+	 */
+	public static final int RRF_K = 60;
+	
+	/**
+	 * Maximum number of results per query vector relative to the number of documents to return 
+	 */
+	static final int MAX_OVER_FETCH = 16;
+	
+	/**
+	 * @return true if there are not enough distinct documents and query vector searches may return more results
+	 */
+	static boolean isOverFetchNeeded(List<List<SearchResult<Float>>> vectorResults, List<SearchResult<Float>> documents, int numberOfItems, int fetch) {
+		if (documents.size() >= numberOfItems || fetch >= numberOfItems * MAX_OVER_FETCH) {
+			return false;
+		}
+		for (List<SearchResult<Float>> results: vectorResults) {
+			if (results.size() >= fetch) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static class Document implements SearchResult<Float> {
+		
+		final String uri;
+		int index;
+		float closest = Float.POSITIVE_INFINITY;
+		float score;
+		int lastList = -1;
+		float distance;
+		
+		Document(String uri) {
+			this.uri = uri;
+		}
+
+		@Override
+		public String getUri() {
+			return uri;
+		}
+
+		@Override
+		public int getIndex() {
+			return index;
+		}
+
+		@Override
+		public Float getDistance() {
+			return distance;
+		}
+		
+	}
+	
+	/**
+	 * Aggregates chunk results by URI and selects top documents with a bounded heap.
+	 * @param vectorResults Results for each query vector in ascending distance order
+	 * @param numberOfItems Number of documents to return
+	 * @return Top documents in ascending distance order, fewer than numberOfItems if there are not enough distinct documents
+	 */
+	public List<SearchResult<Float>> aggregate(List<List<SearchResult<Float>>> vectorResults, int numberOfItems) {
+		Map<String, Document> docs = new HashMap<>();
+		for (int list = 0; list < vectorResults.size(); ++list) {
+			int rank = 0;
+			for (SearchResult<Float> result: vectorResults.get(list)) {
+				Document doc = docs.computeIfAbsent(result.getUri(), Document::new);
+				float distance = result.getDistance();
+				if (distance < doc.closest) {
+					doc.closest = distance;
+					doc.index = result.getIndex();
+				}
+				if (doc.lastList != list) {
+					// Results are sorted, the first hit of a document in a list is its best chunk
+					doc.lastList = list;
+					++rank;
+					switch (this) {
+					case SUM:
+						doc.score += 1 - distance;
+						break;
+					case RECIPROCAL_RANK_FUSION:
+						doc.score += 1.0f / (RRF_K + rank);
+						break;
+					default:
+						break;
+					}
+				}
+			}
+		}
+		
+		// Max heap of at most numberOfItems documents
+		PriorityQueue<Document> heap = new PriorityQueue<>(numberOfItems + 1, Comparator.comparing(Document::getDistance).reversed());
+		for (Document doc: docs.values()) {
+			doc.distance = this == MAX_SIM ? doc.closest : 1 - doc.score;
+			if (heap.size() < numberOfItems || doc.distance < heap.peek().distance) {
+				heap.add(doc);
+				if (heap.size() > numberOfItems) {
+					heap.poll();
+				}
+			}
+		}
+		List<SearchResult<Float>> ret = new ArrayList<>(heap.size());
+		while (!heap.isEmpty()) {
+			ret.add(heap.poll());
+		}
+		Collections.reverse(ret);
+		return ret;
+	}
+
+}
@@ -0,0 +1,604 @@
+package org.nasdanika.ai;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
+import org.nasdanika.ai.KernelDistanceFunctions.Metric;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.Index;
+import com.github.jelmerk.hnswlib.core.SearchResult;
+
+/**
+ * Exact (brute-force) index which keeps vectors in a single contiguous array.
+ * There is no build cost, and search scans all vectors computing distances with {@link VectorKernels}.
+ * Large indices are scanned in parallel partitions, each with its own top-k heap, and the heaps are merged at the end.
+ * Cosine, inner product, euclidean and manhattan distances (hnswlib or {@link KernelDistanceFunctions}) are computed in place, 
+ * vector norms for the cosine distance are computed once when vectors are added. 
+ * Other distance functions are called with a copy of each vector.
+ * Item ids are stored as packed keys of a {@link UriDictionary}, so a URI shared by many chunks is stored once.
+ * {@link #save(Path)} writes a binary file of checksummed sections which is read in parallel by {@link #load(File)}, 
+ * {@link #save(OutputStream)} uses Java serialization.
+ * Suitable for small and medium corpora where building an HNSW graph takes longer than it saves.
+ */
+public class FlatIndex implements Index<IndexId, float[], EmbeddingsItem, Float>, UriSource {
+
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Minimum number of vectors in a partition scanned by one thread
+	 */
+	private static final int MIN_PARTITION_SIZE = 4096;
+	
+	static final int MAGIC = 0x314C464E; // NFL1
+	static final int VERSION = 1;
+	
+	private static final int METADATA_SECTION = 1;
+	private static final int VECTORS_SECTION = 2;
+	private static final int NORMS_SECTION = 3;
+	private static final int KEYS_SECTION = 4;
+	private static final int URIS_SECTION = 5;
+
+	private int dimensions;
+	private DistanceFunction<float[], Float> distanceFunction;
+	private float[] matrix;
+	private float[] norms;
+	private long[] keys;
+	private UriDictionary uris;
+	private int size;
+	
+	private transient Metric metric;
+	private transient ReadWriteLock lock;
+	private transient Map<Long, Integer> lookup;
+	private transient volatile int parallelism;
+
+	/**
+	 * @param dimensions Vector dimensions
+	 * @param distanceFunction Distance function
+	 * @param initialCapacity Initial number of vectors, the index grows as needed
+	 */
+	public FlatIndex(int dimensions, DistanceFunction<float[], Float> distanceFunction, int initialCapacity) {
+		this.dimensions = dimensions;
+		this.distanceFunction = distanceFunction;
+		int capacity = Math.max(initialCapacity, 16);
+		matrix = new float[capacity * dimensions];
+		keys = new long[capacity];
+		uris = new UriDictionary();
+		init();
+		if (metric == Metric.COSINE) {
+			norms = new float[capacity];
+		}
+	}
+	
+	private void init() {
+		metric = KernelDistanceFunctions.metric(distanceFunction);
+		lock = new ReentrantReadWriteLock();
+		lookup = new HashMap<>();
+		for (int i = 0; i < size; ++i) {
+			lookup.put(keys[i], i);
+		}
+		parallelism = ForkJoinPool.getCommonPoolParallelism();
+	}
+	
+	/**
+	 * Loads an index saved with {@link #save(OutputStream)}
+	 */
+	public static FlatIndex load(InputStream in) throws IOException {
+		try (ObjectInputStream ois = new ObjectInputStream(in)) {
+			return (FlatIndex) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot load flat index: " + e, e);
+		}
+	}
+	
+	/**
+	 * Loads an index from a binary file written by {@link #save(Path)} or a Java serialization file written by {@link #save(OutputStream)}
+	 */
+	public static FlatIndex load(File file) throws IOException {
+		if (isFlatIndex(file.toPath())) {
+			return read(file.toPath());
+		}
+		return load(Files.newInputStream(file.toPath()));
+	}
+	
+	/**
+	 * @param path
+	 * @return true if the file starts with the binary flat index signature
+	 * @throws IOException
+	 */
+	public static boolean isFlatIndex(Path path) throws IOException {
+		return MappedIndex.hasMagic(path, MAGIC);
+	}
+	
+	/**
+	 * Reads a binary index file. Sections are read and verified by multiple threads. 
+	 */
+	@SuppressWarnings("unchecked")
+	private static FlatIndex read(Path path) throws IOException {
+		try (SectionFile.Reader reader = new SectionFile.Reader(path, MAGIC, VERSION, "flat index")) {
+			ByteBuffer metadata = reader.getBytes(METADATA_SECTION);
+			int dimensions = metadata.getInt();
+			int size = metadata.getInt();
+			byte[] distanceBytes = new byte[metadata.getInt()];
+			metadata.get(distanceBytes);
+			DistanceFunction<float[], Float> distanceFunction;
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(distanceBytes))) {
+				distanceFunction = (DistanceFunction<float[], Float>) ois.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Cannot load distance function: " + e, e);
+			}
+			
+			FlatIndex ret = new FlatIndex(dimensions, distanceFunction, 0);
+			ret.matrix = reader.getFloats(VECTORS_SECTION);
+			ret.keys = reader.getLongs(KEYS_SECTION);
+			if (ret.matrix.length != size * dimensions || ret.keys.length != size) {
+				throw new IOException("Corrupted flat index: " + path);
+			}
+			if (ret.norms != null) {
+				ret.norms = reader.getFloats(NORMS_SECTION);
+			}
+			ByteBuffer uris = reader.getBytes(URIS_SECTION);
+			int uriCount = uris.getInt();
+			for (int i = 0; i < uriCount; ++i) {
+				byte[] uri = new byte[uris.getInt()];
+				uris.get(uri);
+				ret.uris.intern(new String(uri, StandardCharsets.UTF_8));
+			}
+			ret.size = size;
+			ret.init();
+			return ret;
+		}
+	}
+	
+	public int getDimensions() {
+		return dimensions;
+	}
+	
+	public DistanceFunction<float[], Float> getDistanceFunction() {
+		return distanceFunction;
+	}
+	
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	/**
+	 * Sets the maximum number of partitions scanned in parallel in the common fork/join pool.
+	 * Defaults to the common pool parallelism. 1 - scan in the calling thread.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Adds an item or replaces the vector of an item with the same id
+	 */
+	@Override
+	public boolean add(EmbeddingsItem item) {
+		float[] vector = item.vector();
+		if (vector.length != dimensions) {
+			throw new IllegalArgumentException("Item " + item.id() + " has " + vector.length + " dimensions, expected " + dimensions);
+		}
+		lock.writeLock().lock();
+		try {
+			long key = uris.key(item.id());
+			Integer existing = lookup.get(key);
+			int node;
+			if (existing == null) {
+				if (size == keys.length) {
+					int capacity = Math.max(16, keys.length * 2);
+					matrix = Arrays.copyOf(matrix, capacity * dimensions);
+					keys = Arrays.copyOf(keys, capacity);
+					if (norms != null) {
+						norms = Arrays.copyOf(norms, capacity);
+					}
+				}
+				node = size++;
+				keys[node] = key;
+				lookup.put(key, node);
+			} else {
+				node = existing;
+			}
+			System.arraycopy(vector, 0, matrix, node * dimensions, dimensions);
+			if (norms != null) {
+				norms[node] = (float) Math.sqrt(VectorKernels.dot(vector, vector));
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes an item by moving the last item into its place
+	 */
+	@Override
+	public boolean remove(IndexId id, long version) {
+		lock.writeLock().lock();
+		try {
+			long key = uris.find(id);
+			Integer node = key == UriDictionary.NO_KEY ? null : lookup.remove(key);
+			if (node == null) {
+				return false;
+			}
+			int last = --size;
+			if (node != last) {
+				System.arraycopy(matrix, last * dimensions, matrix, node * dimensions, dimensions);
+				keys[node] = keys[last];
+				if (norms != null) {
+					norms[node] = norms[last];
+				}
+				lookup.put(keys[node], node);
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private IndexId id(int node) {
+		return uris.toIndexId(keys[node]);
+	}
+	
+	/**
+	 * URIs are never removed, so keys of search results remain resolvable after the index is modified
+	 */
+	@Override
+	public String getUri(int uriNumber) {
+		lock.readLock().lock();
+		try {
+			return uris.getUri(uriNumber);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return Node predicate testing the filter with node URI and index without materializing the node id
+	 */
+	private IntPredicate accept(SearchFilter filter) {
+		return node -> {
+			long key = keys[node];
+			return filter.test(uris.getUri(UriDictionary.uriNumber(key)), UriDictionary.index(key));
+		};
+	}
+	
+	private EmbeddingsItem item(int node) {
+		return new EmbeddingsItem(id(node), Arrays.copyOfRange(matrix, node * dimensions, (node + 1) * dimensions), dimensions);
+	}
+
+	@Override
+	public Optional<EmbeddingsItem> get(IndexId id) {
+		lock.readLock().lock();
+		try {
+			long key = uris.find(id);
+			Integer node = key == UriDictionary.NO_KEY ? null : lookup.get(key);
+			return node == null ? Optional.empty() : Optional.of(item(node));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Snapshot of items
+	 */
+	@Override
+	public Collection<EmbeddingsItem> items() {
+		lock.readLock().lock();
+		try {
+			List<EmbeddingsItem> ret = new ArrayList<>(size);
+			for (int i = 0; i < size; ++i) {
+				ret.add(item(i));
+			}
+			return ret;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private float distance(float[] query, float queryNorm, int node, float[] buffer) {
+		int offset = node * dimensions;
+		switch (metric) {
+		case COSINE:
+			return 1 - VectorKernels.dot(query, 0, matrix, offset, dimensions) / (queryNorm * norms[node]);
+		case INNER_PRODUCT:
+			return 1 - VectorKernels.dot(query, 0, matrix, offset, dimensions);
+		case EUCLIDEAN:
+			return (float) Math.sqrt(VectorKernels.squaredEuclidean(query, 0, matrix, offset, dimensions));
+		case MANHATTAN:
+			return VectorKernels.manhattan(query, 0, matrix, offset, dimensions);
+		default:
+			System.arraycopy(matrix, offset, buffer, 0, dimensions);
+			return distanceFunction.distance(query, buffer);
+		}
+	}
+	
+	/**
+	 * Scans a range of nodes into a max heap of at most k elements
+	 */
+	private NodeHeap scan(float[] query, float queryNorm, int from, int to, int k, IntPredicate accept) {
+		NodeHeap heap = new NodeHeap(true, k + 1);
+		float[] buffer = metric == Metric.OTHER ? new float[dimensions] : null;
+		for (int node = from; node < to; ++node) {
+			if (accept != null && !accept.test(node)) {
+				continue;
+			}
+			float distance = distance(query, queryNorm, node, buffer);
+			if (heap.size() < k || distance < heap.topDistance()) {
+				heap.push(node, distance);
+				if (heap.size() > k) {
+					heap.pop();
+				}
+			}
+		}
+		return heap;
+	}
+
+	/**
+	 * Finds nearest nodes
+	 * @param query Query vector
+	 * @param k Number of nodes to find
+	 * @param nodes Output array for node numbers, shall be at least k long
+	 * @param distances Output array for distances, shall be at least k long
+	 * @param accept Node filter, null to accept all nodes
+	 * @return Number of found nodes. Nodes are sorted by distance in ascending order.
+	 */
+	private int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept) {
+		if (query.length != dimensions) {
+			throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + dimensions);
+		}
+		if (size == 0 || k <= 0) {
+			return 0;
+		}
+		float queryNorm = metric == Metric.COSINE ? (float) Math.sqrt(VectorKernels.dot(query, query)) : 0;
+		int partitions = Math.max(1, Math.min(parallelism, size / MIN_PARTITION_SIZE));
+		if (partitions == 1) {
+			return scan(query, queryNorm, 0, size, k, accept).drainAscending(nodes, distances);
+		}
+		int partitionSize = (size + partitions - 1) / partitions;
+		List<ForkJoinTask<NodeHeap>> tasks = new ArrayList<>(partitions - 1);
+		for (int i = 1; i < partitions; ++i) {
+			int from = i * partitionSize;
+			int to = Math.min(size, from + partitionSize);
+			tasks.add(ForkJoinPool.commonPool().submit(() -> scan(query, queryNorm, from, to, k, accept)));
+		}
+		NodeHeap heap = scan(query, queryNorm, 0, partitionSize, k, accept);
+		for (ForkJoinTask<NodeHeap> task: tasks) {
+			NodeHeap partitionHeap = task.join();
+			while (!partitionHeap.isEmpty()) {
+				float distance = partitionHeap.topDistance();
+				int node = partitionHeap.pop();
+				if (heap.size() < k || distance < heap.topDistance()) {
+					heap.push(node, distance);
+					if (heap.size() > k) {
+						heap.pop();
+					}
+				}
+			}
+		}
+		return heap.drainAscending(nodes, distances);
+	}
+	
+	/**
+	 * Finds nearest items and adds their ids to the results container
+	 * @param query Query vector
+	 * @param k Number of items to find
+	 * @param results Results container, cleared by this method 
+	 */
+	public void search(float[] query, int k, FloatSearchResults results) {
+		searchAccepted(query, k, results, null);
+	}
+	
+	/**
+	 * Finds nearest items accepted by the filter. Rejected items are skipped during the scan.
+	 * @param query Query vector
+	 * @param k Number of items to find
+	 * @param results Results container, cleared by this method 
+	 * @param filter Filter, null to accept all items
+	 */
+	public void search(float[] query, int k, FloatSearchResults results, SearchFilter filter) {
+		searchAccepted(query, k, results, filter == null ? null : accept(filter));
+	}
+	
+	/**
+	 * Finds nearest items selected by the bitmap
+	 * @param query Query vector
+	 * @param k Number of items to find
+	 * @param results Results container, cleared by this method 
+	 * @param accept Accepted nodes, see {@link #select(SearchFilter)}
+	 */
+	public void search(float[] query, int k, FloatSearchResults results, BitSet accept) {
+		searchAccepted(query, k, results, accept::get);
+	}
+	
+	/**
+	 * Evaluates the filter for all items. 
+	 * The bitmap can be reused for multiple searches with {@link #search(float[], int, FloatSearchResults, BitSet)}
+	 * until the index is modified.
+	 * @param filter
+	 * @return Bitmap of accepted nodes
+	 */
+	public BitSet select(SearchFilter filter) {
+		lock.readLock().lock();
+		try {
+			BitSet ret = new BitSet(size);
+			IntPredicate accept = accept(filter);
+			for (int i = 0; i < size; ++i) {
+				if (accept.test(i)) {
+					ret.set(i);
+				}
+			}
+			return ret;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private void searchAccepted(float[] query, int k, FloatSearchResults results, IntPredicate accept) {
+		results.clear();
+		int[] nodes = new int[k];
+		float[] distances = new float[k];
+		lock.readLock().lock();
+		try {
+			int count = search(query, k, nodes, distances, accept);
+			for (int i = 0; i < count; ++i) {
+				results.add(this, keys[nodes[i]], distances[i]);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<SearchResult<EmbeddingsItem, Float>> findNearest(float[] vector, int k) {
+		int[] nodes = new int[k];
+		float[] distances = new float[k];
+		lock.readLock().lock();
+		try {
+			int count = search(vector, k, nodes, distances, null);
+			List<SearchResult<EmbeddingsItem, Float>> ret = new ArrayList<>(count);
+			for (int i = 0; i < count; ++i) {
+				ret.add(SearchResult.create(item(nodes[i]), distances[i]));
+			}
+			return ret;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void save(File file) throws IOException {
+		save(file.toPath());
+	}
+	
+	/**
+	 * Writes the index to a binary file of checksummed sections: metadata, vectors, norms, id keys, and URIs
+	 */
+	@Override
+	public void save(Path path) throws IOException {
+		lock.readLock().lock();
+		try (SectionFile.Writer writer = new SectionFile.Writer(path, MAGIC, VERSION)) {
+			ByteArrayOutputStream distanceBytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(distanceBytes)) {
+				oos.writeObject(distanceFunction);
+			}
+			ByteBuffer metadata = ByteBuffer.allocate(3 * Integer.BYTES + distanceBytes.size()).order(ByteOrder.LITTLE_ENDIAN);
+			metadata
+				.putInt(dimensions)
+				.putInt(size)
+				.putInt(distanceBytes.size())
+				.put(distanceBytes.toByteArray());
+			writer.beginSection(METADATA_SECTION);
+			writer.putBytes(metadata.array());
+			writer.endSection();
+			
+			writer.beginSection(VECTORS_SECTION);
+			writer.putFloats(matrix, 0, size * dimensions);
+			writer.endSection();
+			
+			if (norms != null) {
+				writer.beginSection(NORMS_SECTION);
+				writer.putFloats(norms, 0, size);
+				writer.endSection();
+			}
+			
+			writer.beginSection(KEYS_SECTION);
+			writer.putLongs(keys, 0, size);
+			writer.endSection();
+			
+			byte[][] uriBytes = new byte[uris.size()][];
+			int urisLength = Integer.BYTES;
+			for (int i = 0; i < uriBytes.length; ++i) {
+				uriBytes[i] = uris.getUri(i).getBytes(StandardCharsets.UTF_8);
+				urisLength += Integer.BYTES + uriBytes[i].length;
+			}
+			ByteBuffer urisBuffer = ByteBuffer.allocate(urisLength).order(ByteOrder.LITTLE_ENDIAN);
+			urisBuffer.putInt(uriBytes.length);
+			for (byte[] uri: uriBytes) {
+				urisBuffer.putInt(uri.length).put(uri);
+			}
+			writer.beginSection(URIS_SECTION);
+			writer.putBytes(urisBuffer.array());
+			writer.endSection();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void save(OutputStream out) throws IOException {
+		try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+			oos.writeObject(this);
+		}
+	}
+	
+	/**
+	 * Writes arrays trimmed to size without modifying the index, so it can be serialized concurrently with searches
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		lock.readLock().lock();
+		try {
+			ObjectOutputStream.PutField fields = out.putFields();
+			fields.put("dimensions", dimensions);
+			fields.put("distanceFunction", distanceFunction);
+			fields.put("matrix", Arrays.copyOf(matrix, size * dimensions));
+			fields.put("norms", norms == null ? null : Arrays.copyOf(norms, size));
+			fields.put("keys", Arrays.copyOf(keys, size));
+			fields.put("uris", uris);
+			fields.put("size", size);
+			out.writeFields();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		dimensions = fields.get("dimensions", 0);
+		distanceFunction = (DistanceFunction<float[], Float>) fields.get("distanceFunction", null);
+		matrix = (float[]) fields.get("matrix", null);
+		norms = (float[]) fields.get("norms", null);
+		size = fields.get("size", 0);
+		keys = (long[]) fields.get("keys", null);
+		uris = (UriDictionary) fields.get("uris", null);
+		init();
+	}	
+
+}
@@ -0,0 +1,42 @@
+package org.nasdanika.ai;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Read-only boxed view of a float array. Elements are boxed on access.
+ */
+class FloatArrayList extends AbstractList<Float> implements RandomAccess {
+	
+	private final float[] array;
+	
+	FloatArrayList(float[] array) {
+		this.array = array;
+	}
+	
+	float[] array() {
+		return array;
+	}
+
+	@Override
+	public Float get(int index) {
+		return array[index];
+	}
+
+	@Override
+	public int size() {
+		return array.length;
+	}
+	
+	/**
+	 * @return Backing array of a view, unboxed copy of other lists
+	 */
+	static float[] toArray(List<Float> list) {
+		if (list instanceof FloatArrayList) {
+			return ((FloatArrayList) list).array();
+		}
+		return FloatVectorEmbeddingGenerator.toFloatArray(list);
+	}
+
+}
@@ -0,0 +1,317 @@
+package org.nasdanika.ai;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+/**
+ * Reusable container of vector search results stored in parallel arrays in ascending distance order. 
+ * Allows to execute searches without boxing distances and allocating a result object per hit.
+ * Item ids are stored as packed keys with their {@link UriSource}, typically the searched index, and URIs are resolved on access.
+ * Results added by id store the id URI. {@link #resolve()}, {@link #copy()} and {@link #toList()} resolve URIs, 
+ * so results outlive sources which are closed after the search.
+ * Not thread safe - an instance shall be used by one thread at a time and cleared before each search.
+ * Scratch containers can be taken from a bounded pool with {@link #borrow()} and returned with {@link #release()}, 
+ * so repeated searches do not allocate result storage. The pool is not tied to threads, so it is reused by searches on virtual threads.
+ */
+public class FloatSearchResults {
+	
+	/**
+	 * Maximum number of containers pooled per concurrent search
+	 */
+	public static final int POOL_SIZE = 8;
+	
+	/**
+	 * Containers with larger capacity are not returned to the pool to avoid retaining large arrays
+	 */
+	public static final int MAX_POOLED_CAPACITY = 4096;
+	
+	private static final ScratchPool<FloatSearchResults> POOL = new ScratchPool<>(FloatSearchResults::new, POOL_SIZE);
+	
+	private long[] keys;
+	private UriSource[] sources;
+	private String[] uris;
+	private float[] distances;
+	private int size;
+	private boolean released;
+	
+	public FloatSearchResults() {
+		this(16);
+	}
+	
+	public FloatSearchResults(int capacity) {
+		keys = new long[Math.max(capacity, 1)];
+		sources = new UriSource[keys.length];
+		uris = new String[keys.length];
+		distances = new float[keys.length];
+	}
+	
+	/**
+	 * Takes an empty container from the pool or creates a new one if the pool is empty.
+	 * Nested borrows return different containers. 
+	 * The container shall be returned with {@link #release()}, typically in a finally block.
+	 */
+	public static FloatSearchResults borrow() {
+		FloatSearchResults ret = POOL.borrow();
+		ret.released = false;
+		return ret;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public void clear() {
+		Arrays.fill(sources, 0, size, null);
+		Arrays.fill(uris, 0, size, null);
+		size = 0;
+	}
+	
+	/**
+	 * Materializes id of a result
+	 */
+	public IndexId getId(int position) {
+		return new IndexId(getUri(position), getIndex(position));
+	}
+	
+	public String getUri(int position) {
+		String uri = uris[position];
+		return uri == null ? sources[position].getUri(UriDictionary.uriNumber(keys[position])) : uri;
+	}
+	
+	public int getIndex(int position) {
+		return UriDictionary.index(keys[position]);
+	}
+	
+	/**
+	 * @return Packed id key, see {@link UriDictionary#key(int, int)}
+	 */
+	public long getKey(int position) {
+		return keys[position];
+	}
+	
+	public float getDistance(int position) {
+		return distances[position];
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if (capacity > keys.length) {
+			int newCapacity = Math.max(capacity, keys.length * 2);
+			keys = Arrays.copyOf(keys, newCapacity);
+			sources = Arrays.copyOf(sources, newCapacity);
+			uris = Arrays.copyOf(uris, newCapacity);
+			distances = Arrays.copyOf(distances, newCapacity);
+		}
+	}
+	
+	/**
+	 * Appends a result. The caller is responsible for adding results in ascending distance order.
+	 * @param source Resolves the key URI when it is accessed
+	 * @param key Packed id key
+	 */
+	public void add(UriSource source, long key, float distance) {
+		add(source, null, key, distance);
+	}
+	
+	private void add(UriSource source, String uri, long key, float distance) {
+		ensureCapacity(size + 1);
+		keys[size] = key;
+		sources[size] = source;
+		uris[size] = uri;
+		distances[size] = distance;
+		++size;
+	}
+	
+	/**
+	 * Appends a result. The caller is responsible for adding results in ascending distance order.
+	 */
+	public void add(IndexId id, float distance) {
+		add(null, id.uri(), UriDictionary.key(0, id.index()), distance);
+	}
+	
+	/**
+	 * Appends a result of another container
+	 */
+	public void add(FloatSearchResults other, int position) {
+		add(other.sources[position], other.uris[position], other.keys[position], other.distances[position]);
+	}
+	
+	/**
+	 * Inserts a result keeping ascending distance order and at most limit results. 
+	 * @param source Resolves the key URI when it is accessed
+	 * @param key Packed id key
+	 * @return true if the result was inserted
+	 */
+	public boolean insert(UriSource source, long key, float distance, int limit) {
+		return insert(source, null, key, distance, limit);
+	}
+	
+	private boolean insert(UriSource source, String uri, long key, float distance, int limit) {
+		if (size >= limit && (size == 0 || distance >= distances[size - 1])) {
+			return false;
+		}
+		int position = size;
+		while (position > 0 && distances[position - 1] > distance) {
+			--position;
+		}
+		if (size < limit) {
+			ensureCapacity(size + 1);
+			++size;
+		}
+		int tail = size - 1 - position;
+		System.arraycopy(keys, position, keys, position + 1, tail);
+		System.arraycopy(sources, position, sources, position + 1, tail);
+		System.arraycopy(uris, position, uris, position + 1, tail);
+		System.arraycopy(distances, position, distances, position + 1, tail);
+		keys[position] = key;
+		sources[position] = source;
+		uris[position] = uri;
+		distances[position] = distance;
+		return true;
+	}
+	
+	/**
+	 * Inserts a result keeping ascending distance order and at most limit results. 
+	 * @return true if the result was inserted
+	 */
+	public boolean insert(IndexId id, float distance, int limit) {
+		return insert(null, id.uri(), UriDictionary.key(0, id.index()), distance, limit);
+	}
+	
+	/**
+	 * Inserts a result of another container keeping ascending distance order and at most limit results. 
+	 * @return true if the result was inserted
+	 */
+	public boolean insert(FloatSearchResults other, int position, int limit) {
+		return insert(other.sources[position], other.uris[position], other.keys[position], other.distances[position], limit);
+	}
+	
+	/**
+	 * Resolves URIs of the results and drops references to their sources.
+	 * Shall be called before sources are closed if the results are used after that.
+	 */
+	public void resolve() {
+		for (int i = 0; i < size; ++i) {
+			if (uris[i] == null) {
+				uris[i] = sources[i].getUri(UriDictionary.uriNumber(keys[i]));
+			}
+			sources[i] = null;
+		}
+	}
+	
+	/**
+	 * Returns the container to the pool. 
+	 * The container shall not be used by the caller after release.
+	 * Containers which grew beyond {@link #MAX_POOLED_CAPACITY} are not pooled.
+	 * Repeated release of a container has no effect.
+	 */
+	public void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		clear();
+		if (keys.length <= MAX_POOLED_CAPACITY) {
+			POOL.release(this);
+		}
+	}
+	
+	/**
+	 * Resolves URIs, see {@link #resolve()}.
+	 * @return Copy of the results with capacity equal to the number of results
+	 */
+	public FloatSearchResults copy() {
+		resolve();
+		FloatSearchResults ret = new FloatSearchResults(size);
+		System.arraycopy(keys, 0, ret.keys, 0, size);
+		System.arraycopy(uris, 0, ret.uris, 0, size);
+		System.arraycopy(distances, 0, ret.distances, 0, size);
+		ret.size = size;
+		return ret;
+	}
+	
+	/**
+	 * Resolves URIs, see {@link #resolve()}.
+	 * @return Compact copy of the results in arrays trimmed to the number of results. 
+	 * List elements are lightweight views of the copy created on access, 
+	 * distances are boxed only when requested and results are compared without boxing.
+	 */
+	public List<SearchResult<Float>> toList() {
+		resolve();
+		return new ResultList(Arrays.copyOf(keys, size), Arrays.copyOf(uris, size), Arrays.copyOf(distances, size));
+	}
+	
+	private static final class ResultList extends AbstractList<SearchResult<Float>> implements RandomAccess {
+		
+		private final long[] keys;
+		private final String[] uris;
+		private final float[] distances;
+		
+		ResultList(long[] keys, String[] uris, float[] distances) {
+			this.keys = keys;
+			this.uris = uris;
+			this.distances = distances;
+		}
+
+		@Override
+		public SearchResult<Float> get(int position) {
+			Objects.checkIndex(position, keys.length);
+			return new Result(this, position);
+		}
+
+		@Override
+		public int size() {
+			return keys.length;
+		}
+		
+	}
+	
+	private static final class Result implements SearchResult<Float> {
+		
+		private final ResultList list;
+		private final int position;
+		
+		Result(ResultList list, int position) {
+			this.list = list;
+			this.position = position;
+		}
+
+		@Override
+		public String getUri() {
+			return list.uris[position];
+		}
+
+		@Override
+		public int getIndex() {
+			return UriDictionary.index(list.keys[position]);
+		}
+
+		@Override
+		public Float getDistance() {
+			return list.distances[position];
+		}
+		
+		@Override
+		public int compareTo(SearchResult<Float> o) {
+			if (o instanceof Result other) {
+				return Float.compare(list.distances[position], other.list.distances[other.position]);
+			}
+			return SearchResult.super.compareTo(o);
+		}
+		
+		@Override
+		public String toString() {
+			return new IndexId(getUri(), getIndex()) + " " + list.distances[position];
+		}
+		
+	}
+
+}
@@ -1,5 +1,141 @@
 package org.nasdanika.ai;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import reactor.core.publisher.Mono;
+
 public interface FloatVectorEmbeddingGenerator<S> extends VectorEmbeddingGenerator<S,Float> {
 	
+	/**
+	 * Primitive counterpart of {@link #generateAsync(Object)} - one array per vector/chunk.
+	 * This implementation unboxes the result of {@link #generateAsync(Object)}.
+	 * Implementations which receive primitive vectors from the model shall override this method
+	 * and {@link #generateFloatVectorsAsync(Collection)}.
+	 */
+	default Mono<List<float[]>> generateFloatVectorsAsync(S input) {
+		return generateAsync(input).map(FloatVectorEmbeddingGenerator::toFloatArrays);
+	}
+	
+	default List<float[]> generateFloatVectors(S input) {
+		return generateFloatVectorsAsync(input).block();
+	}
+	
+	/**
+	 * Asynchronous batch generation of primitive vectors
+	 */
+	default Mono<Map<S, List<float[]>>> generateFloatVectorsAsync(Collection<S> input) {
+		List<Mono<Entry<S,List<float[]>>>> monos = input
+			.stream()
+			.map(ie -> generateFloatVectorsAsync(ie).map(emb -> Map.entry(ie, emb)))
+			.toList();
+			
+		return Mono.zip(monos, elements -> {
+			Map<S, List<float[]>> ret = new LinkedHashMap<>();
+			for (Object el: elements) {
+				@SuppressWarnings("unchecked")
+				Entry<S,List<float[]>> e = (Entry<S,List<float[]>>) el;
+				ret.put(e.getKey(), e.getValue());
+			}		
+			return ret;
+		});		
+	}
+	
+	/**
+	 * Batch generation of primitive vectors
+	 */
+	default Map<S, List<float[]>> generateFloatVectors(Collection<S> input) {
+		return generateFloatVectorsAsync(input).block();
+	}
+	
+	static float[] toFloatArray(List<Float> vector) {
+		float[] ret = new float[vector.size()];
+		for (int i = 0; i < ret.length; ++i) {
+			ret[i] = vector.get(i);
+		}
+		return ret;
+	}
+	
+	static List<float[]> toFloatArrays(List<List<Float>> vectors) {
+		return vectors.stream().map(FloatVectorEmbeddingGenerator::toFloatArray).toList();
+	}
+	
+	/**
+	 * @return Read-only boxed view of the array. Elements are boxed on access.
+	 */
+	static List<Float> asList(float[] vector) {
+		return new FloatArrayList(vector);
+	}
+	
+	/**
+	 * @return Read-only boxed view of the arrays.
+	 */
+	static List<List<Float>> asLists(List<float[]> vectors) {
+		return vectors.stream().map(FloatVectorEmbeddingGenerator::asList).toList();
+	}
+	
+	/**
+	 * @param cache Vectors cache, e.g. of query embeddings
+	 * @return Generator returning cached vectors for repeated inputs
+	 */
+	default FloatVectorEmbeddingGenerator<S> cache(SearchCache<S, List<float[]>> cache) {
+		FloatVectorEmbeddingGenerator<S> target = this;
+		return new FloatVectorEmbeddingGenerator<S>() {
+			
+			@Override
+			public Mono<List<float[]>> generateFloatVectorsAsync(S input) {
+				return cache.getAsync(input, () -> target.generateFloatVectorsAsync(input));
+			}
+			
+			/**
+			 * Generates vectors for cache misses in one batch
+			 */
+			@Override
+			public Mono<Map<S, List<float[]>>> generateFloatVectorsAsync(Collection<S> input) {
+				return Mono.defer(() -> {
+					Map<S, List<float[]>> cached = new LinkedHashMap<>();
+					List<S> misses = new ArrayList<>();
+					for (S ie: input) {
+						List<float[]> vectors = cache.get(ie);
+						if (vectors == null) {
+							misses.add(ie);
+						} else {
+							cached.put(ie, vectors);
+						}
+					}
+					if (misses.isEmpty()) {
+						return Mono.just(cached);
+					}
+					return target.generateFloatVectorsAsync(misses).map(generated -> {
+						Map<S, List<float[]>> ret = new LinkedHashMap<>();
+						for (S ie: input) {
+							List<float[]> vectors = cached.get(ie);
+							if (vectors == null) {
+								vectors = generated.get(ie);
+								cache.put(ie, vectors);
+							}
+							ret.put(ie, vectors);
+						}
+						return ret;
+					});
+				});
+			}
+
+			@Override
+			public Mono<List<List<Float>>> generateAsync(S input) {
+				return generateFloatVectorsAsync(input).map(FloatVectorEmbeddingGenerator::asLists);
+			}
+			
+			@Override
+			public int getDimensions() {
+				return target.getDimensions();
+			}
+			
+		};
+	}
+
 }
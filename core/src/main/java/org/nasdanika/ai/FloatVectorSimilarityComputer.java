@@ -6,23 +6,33 @@ import reactor.core.publisher.Mono;
 
 public interface FloatVectorSimilarityComputer extends VectorSimilarityComputer<Float, Float> {
 	
+	/**
+	 * Primitive counterpart of {@link #compute(Object, Object)}. 
+	 * This implementation boxes the arguments, implementations shall override it. 
+	 */
+	default float compute(float[] a, float[] b) {
+		return compute(FloatVectorEmbeddingGenerator.asList(a), FloatVectorEmbeddingGenerator.asList(b));
+	}
+	
     /**
-     * Calculates the cosine similarity.
+     * Calculates the cosine similarity with {@link VectorKernels}.
+     * Lists created by {@link FloatVectorEmbeddingGenerator#asList(float[])} are not unboxed.
      */
     static FloatVectorSimilarityComputer COSINE_SIMILARITY_COMPUTER = new FloatVectorSimilarityComputer() {
 		
+		@Override
+		public float compute(float[] a, float[] b) {
+			return VectorKernels.cosineSimilarity(a, b);
+		}
+		
+		@Override
+		public Float compute(List<Float> a, List<Float> b) {
+			return compute(FloatArrayList.toArray(a), FloatArrayList.toArray(b));
+		}
+		
 		@Override
 		public Mono<Float> computeAsync(List<Float> a, List<Float> b) {
-            float dot = 0.0f;
-            float nru = 0.0f;
-            float nrv = 0.0f;
-            for (int i = 0; i < a.size(); i++) {
-                dot += a.get(i) * b.get(i);
-                nru += a.get(i) * a.get(i);
-                nrv += b.get(i) * b.get(i);
-            }
-
-            return Mono.just(dot / (float)(Math.sqrt(nru) * Math.sqrt(nrv)));
+			return Mono.just(compute(a, b));
 		}
 	};
 
@@ -0,0 +1,272 @@
+package org.nasdanika.ai;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.IntStream;
+
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Similarity search specialized for primitive float vectors.
+ * Boxed methods of {@link SimilaritySearch} are implemented as adapters of {@link #find(float[], int, FloatSearchResults)}.
+ */
+public interface FloatVectorSimilaritySearch extends SimilaritySearch<List<Float>, Float> {
+	
+	/**
+	 * Finds items closest to the query vector
+	 * @param query Query vector
+	 * @param numberOfItems Number of items to return
+	 * @param results Results container. Cleared by this method and then populated in ascending distance order.
+	 */
+	void find(float[] query, int numberOfItems, FloatSearchResults results);
+	
+	/**
+	 * Finds items closest to the query vector and accepted by the filter.
+	 * This implementation over-fetches unfiltered results doubling the number of fetched items 
+	 * until the requested number of accepted items is found or the search returns fewer items than requested.
+	 * Searches backed by indices supporting filtering apply the filter during the search. 
+	 * @param query Query vector
+	 * @param numberOfItems Number of items to return
+	 * @param results Results container. Cleared by this method and then populated in ascending distance order.
+	 * @param filter Filter, null to accept all items
+	 */
+	default void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+		if (filter == null) {
+			find(query, numberOfItems, results);
+			return;
+		}
+		FloatSearchResults candidates = FloatSearchResults.borrow();
+		try {
+			for (int fetch = numberOfItems; ; fetch *= 2) {
+				find(query, fetch, candidates);
+				results.clear();
+				for (int i = 0; i < candidates.size() && results.size() < numberOfItems; ++i) {
+					if (filter.test(candidates.getUri(i), candidates.getIndex(i))) {
+						results.add(candidates, i);
+					}
+				}
+				if (results.size() >= numberOfItems || candidates.size() < fetch) {
+					return;
+				}
+			}
+		} finally {
+			candidates.release();
+		}
+	}
+	
+	/**
+	 * @param filter
+	 * @return View of this search returning only items accepted by the filter
+	 */
+	default FloatVectorSimilaritySearch filter(SearchFilter filter) {
+		FloatVectorSimilaritySearch target = this;
+		return new FloatVectorSimilaritySearch() {
+
+			@Override
+			public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+				target.find(query, numberOfItems, results, filter);
+			}
+			
+			@Override
+			public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter other) {
+				target.find(query, numberOfItems, results, other == null ? filter : filter.and(other));
+			}
+			
+			@Override
+			public SearchScheduler getScheduler() {
+				return target.getScheduler();
+			}
+			
+		};
+	}
+	
+	/**
+	 * @param vectors Provides vectors of found items, e.g. {@link MaximalMarginalRelevanceSearch#vectors(com.github.jelmerk.hnswlib.core.Index)}
+	 * @param lambda Trade-off between relevance and diversity, 1 - relevance only, 0 - diversity only
+	 * @return View of this search which diversifies results with maximal marginal relevance
+	 */
+	default MaximalMarginalRelevanceSearch diversify(Function<IndexId, float[]> vectors, double lambda) {
+		return new MaximalMarginalRelevanceSearch(this, vectors, lambda);
+	}
+	
+	/**
+	 * Multi-vector (chunks) search. Finds items closest to any of the query vectors.
+	 * @param queries Query vectors
+	 * @param numberOfItems Number of items to return
+	 * @param results Results container. Cleared by this method and then populated in ascending distance order.
+	 */
+	default void findMultiVector(List<float[]> queries, int numberOfItems, FloatSearchResults results) {
+		findMultiVector(queries, numberOfItems, results, null);
+	}
+	
+	/**
+	 * Multi-vector (chunks) search. Finds items closest to any of the query vectors.
+	 * @param queries Query vectors
+	 * @param numberOfItems Number of items to return
+	 * @param results Results container. Cleared by this method and then populated in ascending distance order.
+	 * @param vectorResults Scratch container for results of individual query vectors. If null, a container is borrowed from the pool.
+	 */
+	default void findMultiVector(List<float[]> queries, int numberOfItems, FloatSearchResults results, FloatSearchResults vectorResults) {
+		if (queries.size() == 1) {
+			find(queries.get(0), numberOfItems, results);
+			return;
+		}
+		results.clear();
+		FloatSearchResults scratch = vectorResults == null ? FloatSearchResults.borrow() : vectorResults;
+		try {
+			for (float[] query: queries) {
+				find(query, numberOfItems, scratch);
+				for (int i = 0; i < scratch.size(); ++i) {
+					if (!results.insert(scratch, i, numberOfItems)) {
+						break;
+					}
+				}
+			}
+		} finally {
+			if (vectorResults == null) {
+				scratch.release();
+			}
+		}
+	}
+	
+	/**
+	 * Executes queries in parallel in the common fork/join pool. 
+	 * Queries are striped across at most pool parallelism tasks, each task searches into its scratch results container 
+	 * and keeps a compact copy of the results. 
+	 * @param queries Query vectors
+	 * @param numberOfItems Number of items to return for each query
+	 * @return Results in the order of queries
+	 */
+	default FloatSearchResults[] findAll(float[][] queries, int numberOfItems) {
+		FloatSearchResults[] results = new FloatSearchResults[queries.length];
+		stripe(queries.length, (scratch, i) -> {
+			find(queries[i], numberOfItems, scratch);
+			results[i] = scratch.copy();
+		});
+		return results;
+	}
+	
+	/**
+	 * Executes multi-vector queries in parallel in the common fork/join pool.
+	 * @param queries Multi-vector queries
+	 * @param numberOfItems Number of items to return for each query
+	 * @return Results in the order of queries
+	 */
+	default FloatSearchResults[] findAllMultiVector(List<List<float[]>> queries, int numberOfItems) {
+		FloatSearchResults[] results = new FloatSearchResults[queries.size()];
+		stripe(results.length, (scratch, i) -> {
+			findMultiVector(queries.get(i), numberOfItems, scratch);
+			results[i] = scratch.copy();
+		});
+		return results;
+	}
+	
+	private static void stripe(int count, ObjIntConsumer<FloatSearchResults> action) {
+		int tasks = Math.min(count, ForkJoinPool.getCommonPoolParallelism());
+		IntStream.range(0, tasks).parallel().forEach(task -> {
+			FloatSearchResults scratch = FloatSearchResults.borrow();
+			try {
+				for (int i = task; i < count; i += tasks) {
+					action.accept(scratch, i);
+				}
+			} finally {
+				scratch.release();
+			}
+		});
+	}
+	
+	@Override
+	default List<List<SearchResult<Float>>> findAll(List<List<Float>> queries, int numberOfItems) {
+		float[][] vectors = new float[queries.size()][];
+		for (int i = 0; i < vectors.length; ++i) {
+			vectors[i] = FloatVectorEmbeddingGenerator.toFloatArray(queries.get(i));
+		}
+		List<List<SearchResult<Float>>> results = new ArrayList<>(Collections.nCopies(vectors.length, null));
+		stripe(vectors.length, (scratch, i) -> {
+			find(vectors[i], numberOfItems, scratch);
+			results.set(i, scratch.toList());
+		});
+		return results;
+	}
+	
+	/**
+	 * Searches into a pooled container and returns a compact copy of the results
+	 */
+	@Override
+	default List<SearchResult<Float>> find(List<Float> query, int numberOfItems) {
+		FloatSearchResults results = FloatSearchResults.borrow();
+		try {
+			find(FloatVectorEmbeddingGenerator.toFloatArray(query), numberOfItems, results);
+			return results.toList();
+		} finally {
+			results.release();
+		}
+	}
+	
+	/**
+	 * Executes the search on the default {@link SearchScheduler}
+	 */
+	@Override
+	default Mono<List<SearchResult<Float>>> findAsync(List<Float> query, int numberOfItems) {
+		return getScheduler().schedule(() -> find(query, numberOfItems));
+	}
+	
+	/**
+	 * Executes a multi-vector search on the default {@link SearchScheduler}
+	 * @param queries Query vectors
+	 * @param numberOfItems Number of items to return
+	 * @return Results in ascending distance order
+	 */
+	default Mono<FloatSearchResults> findMultiVectorAsync(List<float[]> queries, int numberOfItems) {
+		return getScheduler().schedule(() -> {
+			FloatSearchResults results = new FloatSearchResults(numberOfItems);
+			findMultiVector(queries, numberOfItems, results);
+			return results;
+		});
+	}
+	
+	/**
+	 * @return Scheduler of asynchronous searches
+	 */
+	default SearchScheduler getScheduler() {
+		return SearchScheduler.getDefault();
+	}
+	
+	/**
+	 * @param scheduler Scheduler for asynchronous searches
+	 * @return Search which delegates to this search and executes asynchronous searches on the argument scheduler
+	 */
+	default FloatVectorSimilaritySearch scheduleOn(SearchScheduler scheduler) {
+		FloatVectorSimilaritySearch target = this;
+		return new FloatVectorSimilaritySearch() {
+
+			@Override
+			public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+				target.find(query, numberOfItems, results);
+			}
+			
+			@Override
+			public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+				target.find(query, numberOfItems, results, filter);
+			}
+			
+			@Override
+			public void findMultiVector(List<float[]> queries, int numberOfItems, FloatSearchResults results, FloatSearchResults vectorResults) {
+				target.findMultiVector(queries, numberOfItems, results, vectorResults);
+			}
+			
+			@Override
+			public SearchScheduler getScheduler() {
+				return scheduler;
+			}
+			
+		};
+	}
+
+}
@@ -0,0 +1,623 @@
+package org.nasdanika.ai;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.ProgressListener;
+
+/**
+ * Builds a hierarchical navigable small world (HNSW) graph on heap
+ * and writes it in the format read by {@link MappedHnswIndex}.
+ * Items can be added from multiple threads concurrently.
+ * The graph can be built over a prefix of vector dimensions (traversal dimensions) of embeddings trained 
+ * with Matryoshka representation learning, e.g. OpenAI <code>text-embedding-3</code> models. 
+ * In this case the prefixes are also written to the index file for graph traversal, 
+ * and full vectors are used to re-rank search candidates.
+ */
+public class HnswGraphBuilder {
+
+	private final int dimensions;
+	private final int traversalDimensions;
+	private final DistanceFunction<float[], Float> distanceFunction;
+	private final int m;
+	private final int maxM0;
+	private final int efConstruction;
+	private final double levelLambda;
+	private int capacity;
+
+	/**
+	 * Vectors used to build the graph - prefixes if traversal dimensions are less than dimensions
+	 */
+	private float[][] vectors;
+	
+	/**
+	 * Full vectors if traversal dimensions are less than dimensions, null otherwise
+	 */
+	private float[][] fullVectors;
+	
+	private IndexId[] ids;
+
+	/**
+	 * node -> level -> [count, neighbor...]
+	 * Node links array is used as a monitor for reading and updating node connections.
+	 */
+	private int[][][] links;
+
+	private final AtomicInteger size = new AtomicInteger();
+	private final ReentrantLock globalLock = new ReentrantLock();
+	
+	/**
+	 * Read lock is held while adding items, write lock while growing arrays
+	 */
+	private final ReentrantReadWriteLock growLock = new ReentrantReadWriteLock();
+	private volatile int entryPoint = -1;
+	private volatile int maxLevel = -1;
+
+	private final ThreadLocal<Scratch> scratch;
+
+	private class Scratch {
+
+		final NodeHeap candidates = new NodeHeap(false, 64);
+		final NodeHeap results = new NodeHeap(true, 64);
+		final int[] neighbors = new int[maxM0 + 1];
+		int[] visited = new int[capacity];
+		int visitedMark;
+
+		void newVisit() {
+			if (visited.length < capacity) {
+				visited = new int[capacity];
+				visitedMark = 0;
+			}
+			if (++visitedMark == 0) {
+				Arrays.fill(visited, 0);
+				visitedMark = 1;
+			}
+		}
+
+	}
+
+	/**
+	 * @param dimensions Vector dimensions
+	 * @param distanceFunction Distance function. Shall be serializable, it is stored in the index file
+	 * @param m Number of bi-directional links created for every new element during construction. Level 0 allows 2*m links.
+	 * @param efConstruction Size of the dynamic list for the nearest neighbors during construction
+	 * @param capacity Initial number of items, the builder grows as items are added
+	 */
+	public HnswGraphBuilder(
+			int dimensions,
+			DistanceFunction<float[], Float> distanceFunction,
+			int m,
+			int efConstruction,
+			int capacity) {
+		this(dimensions, 0, distanceFunction, m, efConstruction, capacity);
+	}
+	
+	/**
+	 * @param dimensions Vector dimensions
+	 * @param traversalDimensions Number of leading dimensions used to build and traverse the graph, 0 - all dimensions
+	 * @param distanceFunction Distance function. Shall be serializable, it is stored in the index file
+	 * @param m Number of bi-directional links created for every new element during construction. Level 0 allows 2*m links.
+	 * @param efConstruction Size of the dynamic list for the nearest neighbors during construction
+	 * @param capacity Initial number of items, the builder grows as items are added
+	 */
+	public HnswGraphBuilder(
+			int dimensions,
+			int traversalDimensions,
+			DistanceFunction<float[], Float> distanceFunction,
+			int m,
+			int efConstruction,
+			int capacity) {
+
+		if (traversalDimensions < 0 || traversalDimensions > dimensions) {
+			throw new IllegalArgumentException("Traversal dimensions shall be between 0 and " + dimensions + ": " + traversalDimensions);
+		}
+		this.dimensions = dimensions;
+		this.traversalDimensions = traversalDimensions == 0 ? dimensions : traversalDimensions;
+		this.distanceFunction = distanceFunction;
+		this.m = m;
+		this.maxM0 = 2 * m;
+		this.efConstruction = Math.max(efConstruction, m);
+		this.levelLambda = 1 / Math.log(Math.max(m, 2));
+		this.capacity = Math.max(capacity, 1);
+		vectors = new float[this.capacity][];
+		if (isTruncated()) {
+			fullVectors = new float[this.capacity][];
+		}
+		ids = new IndexId[this.capacity];
+		links = new int[this.capacity][][];
+		scratch = ThreadLocal.withInitial(Scratch::new);
+	}
+
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	public int getTraversalDimensions() {
+		return traversalDimensions;
+	}
+	
+	private boolean isTruncated() {
+		return traversalDimensions < dimensions;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	private float distance(float[] query, int node) {
+		return distanceFunction.distance(query, vectors[node]);
+	}
+
+	/**
+	 * Copies node connections at a given level to the target array
+	 * @return Number of connections
+	 */
+	private int copyLinks(int node, int level, int[] target) {
+		int[][] nodeLinks = links[node];
+		synchronized (nodeLinks) {
+			int[] levelLinks = nodeLinks[level];
+			int count = levelLinks[0];
+			System.arraycopy(levelLinks, 1, target, 0, count);
+			return count;
+		}
+	}
+
+	/**
+	 * Adds an item to the graph. Grows the graph if it is full.
+	 * @param item
+	 */
+	public void add(EmbeddingsItem item) {
+		if (item.vector().length != dimensions) {
+			throw new IllegalArgumentException("Item " + item.id() + " has " + item.vector().length + " dimensions, expected " + dimensions);
+		}
+		while (true) {
+			int fullCapacity;
+			growLock.readLock().lock();
+			try {
+				int node = size.getAndIncrement();
+				if (node < capacity) {
+					add(item, node);
+					return;
+				}
+				size.decrementAndGet();
+				fullCapacity = capacity;
+			} finally {
+				growLock.readLock().unlock();
+			}
+			grow(fullCapacity);
+		}
+	}
+	
+	/**
+	 * Doubles capacity if it was not grown by another thread already
+	 */
+	private void grow(int fullCapacity) {
+		growLock.writeLock().lock();
+		try {
+			if (capacity == fullCapacity) {
+				capacity = fullCapacity * 2;
+				vectors = Arrays.copyOf(vectors, capacity);
+				if (fullVectors != null) {
+					fullVectors = Arrays.copyOf(fullVectors, capacity);
+				}
+				ids = Arrays.copyOf(ids, capacity);
+				links = Arrays.copyOf(links, capacity);
+			}
+		} finally {
+			growLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds an item to the graph at a given node, shall be called under the grow read lock
+	 */
+	private void add(EmbeddingsItem item, int node) {
+
+		int level = (int) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * levelLambda);
+		int[][] nodeLinks = new int[level + 1][];
+		for (int i = 0; i <= level; ++i) {
+			nodeLinks[i] = new int[(i == 0 ? maxM0 : m) + 1];
+		}
+
+		float[] vector = item.vector();
+		if (fullVectors != null) {
+			fullVectors[node] = vector;
+			vector = Arrays.copyOf(vector, traversalDimensions);
+		}
+		vectors[node] = vector;
+		ids[node] = item.id();
+		links[node] = nodeLinks;
+
+		// Entry point is published before max level, so reading max level first guarantees
+		// that the entry point level is not below it.
+		boolean global = level > maxLevel;
+		if (global) {
+			globalLock.lock();
+		}
+		try {
+			int currentMaxLevel = maxLevel;
+			int currentEntryPoint = entryPoint;
+			if (currentEntryPoint == -1) {
+				entryPoint = node;
+				maxLevel = level;
+				return;
+			}
+
+			Scratch s = scratch.get();
+			int current = currentEntryPoint;
+			float currentDistance = distance(vector, current);
+			for (int lc = currentMaxLevel; lc > level; --lc) {
+				boolean changed = true;
+				while (changed) {
+					changed = false;
+					int count = copyLinks(current, lc, s.neighbors);
+					for (int i = 0; i < count; ++i) {
+						int candidate = s.neighbors[i];
+						float d = distance(vector, candidate);
+						if (d < currentDistance) {
+							currentDistance = d;
+							current = candidate;
+							changed = true;
+						}
+					}
+				}
+			}
+
+			for (int lc = Math.min(level, currentMaxLevel); lc >= 0; --lc) {
+				searchLayer(vector, current, efConstruction, lc, s);
+				int[] candidateNodes = new int[s.results.size()];
+				float[] candidateDistances = new float[candidateNodes.length];
+				int candidateCount = s.results.drainAscending(candidateNodes, candidateDistances);
+				current = candidateNodes[0];
+
+				int[] selected = new int[lc == 0 ? maxM0 : m];
+				int selectedCount = selectNeighbors(candidateNodes, candidateDistances, candidateCount, m, selected);
+				for (int i = 0; i < selectedCount; ++i) {
+					// Merged with links added by concurrent insertions which reached this node through upper levels
+					connect(node, selected[i], lc);
+					connect(selected[i], node, lc);
+				}
+			}
+
+			if (level > currentMaxLevel) {
+				entryPoint = node;
+				maxLevel = level;
+			}
+		} finally {
+			if (global) {
+				globalLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Adds a reverse connection from neighbor to node, shrinks neighbor connections using the heuristic if needed.
+	 */
+	private void connect(int neighbor, int node, int level) {
+		int maxConnections = level == 0 ? maxM0 : m;
+		int[][] neighborLinks = links[neighbor];
+		synchronized (neighborLinks) {
+			int[] levelLinks = neighborLinks[level];
+			int count = levelLinks[0];
+			for (int i = 1; i <= count; ++i) {
+				if (levelLinks[i] == node) {
+					return;
+				}
+			}
+			if (count < maxConnections) {
+				levelLinks[count + 1] = node;
+				levelLinks[0] = count + 1;
+				return;
+			}
+
+			float[] neighborVector = vectors[neighbor];
+			NodeHeap heap = new NodeHeap(true, count + 1);
+			heap.push(node, distance(neighborVector, node));
+			for (int i = 1; i <= count; ++i) {
+				heap.push(levelLinks[i], distance(neighborVector, levelLinks[i]));
+			}
+			int[] candidateNodes = new int[heap.size()];
+			float[] candidateDistances = new float[candidateNodes.length];
+			int candidateCount = heap.drainAscending(candidateNodes, candidateDistances);
+			int[] selected = new int[maxConnections];
+			int selectedCount = selectNeighbors(candidateNodes, candidateDistances, candidateCount, maxConnections, selected);
+			System.arraycopy(selected, 0, levelLinks, 1, selectedCount);
+			levelLinks[0] = selectedCount;
+		}
+	}
+
+	/**
+	 * Neighbor selection heuristic - a candidate is selected if it is closer to the base element than to any of already selected neighbors.
+	 * @param candidates Candidates in ascending distance order
+	 * @return Number of selected neighbors
+	 */
+	private int selectNeighbors(int[] candidates, float[] candidateDistances, int candidateCount, int max, int[] selected) {
+		int selectedCount = 0;
+		for (int i = 0; i < candidateCount && selectedCount < max; ++i) {
+			int candidate = candidates[i];
+			float[] candidateVector = vectors[candidate];
+			boolean good = true;
+			for (int j = 0; j < selectedCount; ++j) {
+				if (distanceFunction.distance(candidateVector, vectors[selected[j]]) < candidateDistances[i]) {
+					good = false;
+					break;
+				}
+			}
+			if (good) {
+				selected[selectedCount++] = candidate;
+			}
+		}
+		return selectedCount;
+	}
+
+	/**
+	 * Beam search in a layer. Results are left in scratch results max heap.
+	 */
+	private void searchLayer(float[] query, int entry, int ef, int level, Scratch s) {
+		s.newVisit();
+		s.candidates.clear();
+		s.results.clear();
+		float entryDistance = distance(query, entry);
+		s.visited[entry] = s.visitedMark;
+		s.candidates.push(entry, entryDistance);
+		s.results.push(entry, entryDistance);
+
+		while (!s.candidates.isEmpty()) {
+			float candidateDistance = s.candidates.topDistance();
+			if (candidateDistance > s.results.topDistance() && s.results.size() >= ef) {
+				break;
+			}
+			int candidate = s.candidates.pop();
+			int count = copyLinks(candidate, level, s.neighbors);
+			for (int i = 0; i < count; ++i) {
+				int neighbor = s.neighbors[i];
+				if (s.visited[neighbor] == s.visitedMark) {
+					continue;
+				}
+				s.visited[neighbor] = s.visitedMark;
+				float d = distance(query, neighbor);
+				if (s.results.size() < ef || d < s.results.topDistance()) {
+					s.candidates.push(neighbor, d);
+					s.results.push(neighbor, d);
+					if (s.results.size() > ef) {
+						s.results.pop();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds all items using multiple threads
+	 * @param items Items to add
+	 * @param threads Number of threads
+	 * @param listener Progress listener, can be null
+	 * @param progressUpdateInterval Progress is reported after this many items
+	 * @throws InterruptedException
+	 */
+	public void addAll(
+			Collection<EmbeddingsItem> items,
+			int threads,
+			ProgressListener listener,
+			int progressUpdateInterval) throws InterruptedException {
+
+		Iterator<EmbeddingsItem> iterator = items.iterator();
+		int total = items.size();
+		AtomicInteger done = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			Future<?>[] futures = new Future<?>[Math.max(1, threads)];
+			for (int i = 0; i < futures.length; ++i) {
+				futures[i] = executor.submit(() -> {
+					while (true) {
+						EmbeddingsItem item;
+						synchronized (iterator) {
+							if (!iterator.hasNext()) {
+								return;
+							}
+							item = iterator.next();
+						}
+						add(item);
+						int workDone = done.incrementAndGet();
+						if (listener != null && (workDone % progressUpdateInterval == 0 || workDone == total)) {
+							listener.updateProgress(workDone, total);
+						}
+					}
+				});
+			}
+			for (Future<?> future: futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * Writes the graph in the {@link MappedHnswIndex} format.
+	 * Shall not be called concurrently with add().
+	 * @param path Output file
+	 * @param ef Default size of the dynamic list for the nearest neighbors used during the search
+	 * @throws IOException
+	 */
+	public void write(Path path, int ef) throws IOException {
+		write(path, ef, false);
+	}
+
+	/**
+	 * Writes the graph in the {@link MappedHnswIndex} format.
+	 * Shall not be called concurrently with add().
+	 * @param path Output file
+	 * @param ef Default size of the dynamic list for the nearest neighbors used during the search
+	 * @param quantize If true, int8 codes of vectors (prefixes if the graph is built over traversal dimensions) 
+	 * are written in addition to full precision vectors.
+	 * The index uses the codes for graph traversal and full precision vectors for re-ranking.
+	 * @throws IOException
+	 */
+	public void write(Path path, int ef, boolean quantize) throws IOException {
+		write(path, ef, quantize, false);
+	}
+
+	/**
+	 * Writes the graph in the {@link MappedHnswIndex} format.
+	 * Shall not be called concurrently with add().
+	 * @param path Output file
+	 * @param ef Default size of the dynamic list for the nearest neighbors used during the search
+	 * @param quantize If true, int8 codes of vectors (prefixes if the graph is built over traversal dimensions) 
+	 * are written in addition to full precision vectors.
+	 * The index uses the codes for graph traversal and full precision vectors for re-ranking.
+	 * @param separateVectors If true, full precision vectors are written to a separate file (see {@link MappedIndex#getVectorsPath(Path)}).
+	 * With quantization, the index file is about 4 times smaller than the vectors and the vectors file is accessed only to re-rank search candidates.
+	 * @throws IOException
+	 */
+	public void write(Path path, int ef, boolean quantize, boolean separateVectors) throws IOException {
+		int count = size.get();
+		float[][] full = fullVectors == null ? vectors : fullVectors;
+		if (separateVectors) {
+			MappedIndex.writeVectors(path, full, count, dimensions);
+		}
+
+		ByteArrayOutputStream distanceBytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(distanceBytes)) {
+			oos.writeObject(distanceFunction);
+		}
+
+		MappedFile.write(path, channel -> {
+			MappedFile.Writer writer = new MappedFile.Writer(channel);
+			writer.putBytes(new byte[MappedIndex.HEADER_SIZE]);
+			writer.putBytes(distanceBytes.toByteArray());
+
+			long vectorsOffset = 0;
+			if (!separateVectors) {
+				writer.align(MappedIndex.ALIGNMENT);
+				vectorsOffset = writer.position();
+				for (int i = 0; i < count; ++i) {
+					writer.putFloats(full[i]);
+				}
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long linksOffset = writer.position();
+			for (int i = 0; i < count; ++i) {
+				int[] levelLinks = links[i][0];
+				for (int j = 0; j <= maxM0; ++j) {
+					writer.putInt(levelLinks[j]);
+				}
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long levelsOffset = writer.position();
+			for (int i = 0; i < count; ++i) {
+				writer.putInt(links[i].length - 1);
+			}
+			int upperBlock = 0;
+			for (int i = 0; i < count; ++i) {
+				writer.putInt(links[i].length > 1 ? upperBlock : -1);
+				upperBlock += links[i].length - 1;
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long upperLinksOffset = writer.position();
+			for (int i = 0; i < count; ++i) {
+				for (int level = 1; level < links[i].length; ++level) {
+					int[] levelLinks = links[i][level];
+					for (int j = 0; j <= m; ++j) {
+						writer.putInt(levelLinks[j]);
+					}
+				}
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long idsOffset = writer.position();
+			long uriDictionaryOffset = writer.putIds(ids, count);
+
+			long quantizerOffset = 0;
+			long codesOffset = 0;
+			if (quantize) {
+				ScalarQuantizer quantizer = ScalarQuantizer.fit(vectors, count, traversalDimensions);
+				writer.align(MappedIndex.ALIGNMENT);
+				quantizerOffset = writer.position();
+				writer.putFloats(quantizer.getOffset());
+				writer.putFloats(quantizer.getScale());
+
+				// Code records: correction, squared residual of the decoded vector, codes
+				writer.align(MappedIndex.ALIGNMENT);
+				codesOffset = writer.position();
+				byte[] codes = new byte[traversalDimensions];
+				for (int i = 0; i < count; ++i) {
+					quantizer.encode(vectors[i], codes);
+					writer.putFloat(quantizer.correction(codes));
+					writer.putFloat(quantizer.squaredResidual(codes));
+					writer.putBytes(codes);
+				}
+			} else if (isTruncated()) {
+				// Vector prefixes are stored contiguously, so graph traversal does not load full vectors
+				writer.align(MappedIndex.ALIGNMENT);
+				codesOffset = writer.position();
+				for (int i = 0; i < count; ++i) {
+					writer.putFloats(vectors[i]);
+				}
+			}
+			long length = writer.position();
+			writer.close();
+
+			ByteBuffer header = ByteBuffer.allocate(MappedIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header
+				.putInt(MappedHnswIndex.MAGIC)
+				.putInt(MappedHnswIndex.VERSION)
+				.putInt(dimensions)
+				.putInt(count)
+				.putInt(m)
+				.putInt(maxM0)
+				.putInt(ef)
+				.putInt(entryPoint)
+				.putInt(maxLevel)
+				.putInt(distanceBytes.size())
+				.putLong(vectorsOffset)
+				.putLong(linksOffset)
+				.putLong(levelsOffset)
+				.putLong(upperLinksOffset)
+				.putLong(idsOffset)
+				.putLong(uriDictionaryOffset)
+				.putLong(length)
+				.putLong(quantizerOffset)
+				.putLong(codesOffset)
+				.putInt(isTruncated() ? traversalDimensions : 0)
+				.putLong(MappedIndex.URI_DICTIONARY_OFFSET, uriDictionaryOffset);
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		});
+	}
+
+}
@@ -0,0 +1,163 @@
+package org.nasdanika.ai;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.Index;
+import com.github.jelmerk.hnswlib.core.ProgressListener;
+import com.github.jelmerk.hnswlib.core.hnsw.HnswIndex;
+
+/**
+ * Incremental update of an index using content hashes of items keyed by document URI.
+ * Hashes of all current items are recorded with {@link #add(String, String)}, which tells whether an item is new or changed and shall be embedded.
+ * Vectors of changed and removed items are stale.
+ * An index which supports removal is updated in place with {@link #apply(Index, Collection, int, ProgressListener)},
+ * other indices are rebuilt from vectors returned by {@link #merge(Index, Collection)}.
+ */
+public class IndexUpdate {
+
+	private final Map<String, String> indexedHashes;
+	private final Map<String, String> hashes = new ConcurrentHashMap<>();
+	private final Set<String> unchanged = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param indexedHashes Content hashes of indexed items by URI, empty for a new index
+	 */
+	public IndexUpdate(Map<String, String> indexedHashes) {
+		this.indexedHashes = indexedHashes;
+	}
+
+	/**
+	 * Records content hash of a current item. Thread safe.
+	 * @param uri Item URI
+	 * @param hash Content hash
+	 * @return true if the item is new or changed and shall be embedded
+	 */
+	public boolean add(String uri, String hash) {
+		hashes.put(uri, hash);
+		if (hash.equals(indexedHashes.get(uri))) {
+			unchanged.add(uri);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Content hashes of current items to save with the updated index
+	 */
+	public Map<String, String> getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return URIs of items with unchanged content
+	 */
+	public Set<String> getUnchanged() {
+		return unchanged;
+	}
+
+	/**
+	 * @return URIs of new and changed items
+	 */
+	public Set<String> getChanged() {
+		Set<String> ret = new HashSet<>(hashes.keySet());
+		ret.removeAll(unchanged);
+		return ret;
+	}
+
+	/**
+	 * @return URIs of indexed items which are not current
+	 */
+	public Set<String> getRemoved() {
+		Set<String> ret = new HashSet<>(indexedHashes.keySet());
+		ret.removeAll(hashes.keySet());
+		return ret;
+	}
+
+	/**
+	 * @return Ids of index vectors of changed and removed items
+	 */
+	public List<IndexId> getStale(Index<IndexId, float[], EmbeddingsItem, Float> index) {
+		List<IndexId> ret = new ArrayList<>();
+		for (EmbeddingsItem item: index.items()) {
+			if (!unchanged.contains(item.id().uri())) {
+				ret.add(item.id());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return true if vectors can be removed from the index - it is a {@link FlatIndex} or an hnswlib index with removal enabled
+	 */
+	public static boolean isUpdatable(Index<IndexId, float[], EmbeddingsItem, Float> index) {
+		return index instanceof FlatIndex || (index instanceof HnswIndex<IndexId, float[], EmbeddingsItem, Float> hnswIndex && hnswIndex.isRemoveEnabled());
+	}
+
+	/**
+	 * Removes stale vectors from an updatable index and adds vectors of new and changed items.
+	 * @param index Index to update
+	 * @param items Vectors of new and changed items
+	 * @param threads Number of threads to add items to an hnswlib index
+	 * @param listener Progress listener of adding items to an hnswlib index, may be null
+	 * @return true if the index was updated, false if the index is not updatable (see {@link #isUpdatable(Index)}) and shall be rebuilt from {@link #merge(Index, Collection)}
+	 * @throws InterruptedException
+	 */
+	public boolean apply(
+			Index<IndexId, float[], EmbeddingsItem, Float> index,
+			Collection<EmbeddingsItem> items,
+			int threads,
+			ProgressListener listener) throws InterruptedException {
+
+		if (!isUpdatable(index)) {
+			return false;
+		}
+		for (IndexId id: getStale(index)) {
+			index.remove(id, 0);
+		}
+		if (index instanceof HnswIndex<IndexId, float[], EmbeddingsItem, Float> hnswIndex) {
+			// Slots of removed nodes are not reused
+			hnswIndex.resize(hnswIndex.getMaxItemCount() + items.size());
+			hnswIndex.addAll(items, threads, listener == null ? (done, max) -> {} : listener, Integer.MAX_VALUE);
+		} else {
+			index.addAll(items);
+		}
+		return true;
+	}
+
+	/**
+	 * Collects vectors to rebuild the index. Shall be called before the index is closed.
+	 * @param index Index to rebuild
+	 * @param items Vectors of new and changed items
+	 * @return Vectors of unchanged items retained from the index followed by the items
+	 */
+	public List<EmbeddingsItem> merge(Index<IndexId, float[], EmbeddingsItem, Float> index, Collection<EmbeddingsItem> items) {
+		List<EmbeddingsItem> ret = new ArrayList<>();
+		for (EmbeddingsItem item: index.items()) {
+			if (unchanged.contains(item.id().uri())) {
+				ret.add(item);
+			}
+		}
+		ret.addAll(items);
+		return ret;
+	}
+
+	/**
+	 * Removes attributes of removed items.
+	 * Attributes of current items shall be set with {@link AttributeStore#replace(String, Map)}.
+	 */
+	public void apply(AttributeStore attributes) {
+		for (String uri: getRemoved()) {
+			attributes.remove(uri);
+		}
+	}
+
+}
@@ -0,0 +1,374 @@
+package org.nasdanika.ai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+
+/**
+ * Immutable in-memory inverted index with BM25 scoring for lexical search.
+ * Documents are bags of words, e.g. computed by {@link BagOfWordsGenerator}.
+ * Postings lists are stored per term in blocks of {@link #BLOCK_SIZE} postings.
+ * Each block contains variable length encoded document number deltas followed by term frequencies.
+ * Queries are scored term at a time into a pooled score accumulator, top documents are selected with a bounded heap.
+ */
+public class InvertedIndex implements Serializable, UriSource {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of postings in a block
+	 */
+	public static final int BLOCK_SIZE = 128;
+
+	public static final float DEFAULT_K1 = 1.2f;
+	public static final float DEFAULT_B = 0.75f;
+
+	private final String[] uris;
+	private final Map<String, Integer> terms;
+	private final int[] documentFrequencies;
+	private final byte[][] postings;
+	private final float k1;
+
+	/**
+	 * k1 * (1 - b + b * document length / average document length) for each document
+	 */
+	private final float[] lengthNorms;
+
+	private transient ScratchPool<Scratch> scratch;
+
+	private class Scratch {
+
+		final float[] scores = new float[uris.length];
+		final int[] touched = new int[uris.length];
+		final int[] blockDocuments = new int[BLOCK_SIZE];
+		final int[] blockFrequencies = new int[BLOCK_SIZE];
+		final NodeHeap heap = new NodeHeap(false, 16);
+
+	}
+
+	private InvertedIndex(String[] uris, Map<String, Integer> terms, int[] documentFrequencies, byte[][] postings, float k1, float[] lengthNorms) {
+		this.uris = uris;
+		this.terms = terms;
+		this.documentFrequencies = documentFrequencies;
+		this.postings = postings;
+		this.k1 = k1;
+		this.lengthNorms = lengthNorms;
+		scratch = new ScratchPool<>(Scratch::new);
+	}
+
+	/**
+	 * Computes bags of words of document texts in parallel and builds an index with default BM25 parameters
+	 * @param documents Texts by document URI
+	 * @param bagOfWords Term frequencies generator, e.g. {@link BagOfWordsGenerator}
+	 */
+	public static InvertedIndex build(Map<String, String> documents, TextEmbeddingGenerator<Map<String, Integer>> bagOfWords) {
+		Map<String, Map<String, Integer>> bags = new ConcurrentHashMap<>();
+		documents.entrySet().parallelStream().forEach(e -> bags.put(e.getKey(), bagOfWords.generate(e.getValue())));
+		return build(bags);
+	}
+
+	/**
+	 * Builds an index with default BM25 parameters
+	 * @param documents Term frequencies by document URI
+	 */
+	public static InvertedIndex build(Map<String, Map<String, Integer>> documents) {
+		return build(documents, DEFAULT_K1, DEFAULT_B);
+	}
+
+	/**
+	 * Builds an index in the common fork/join pool.
+	 * Documents are split into ranges, postings of each range are collected in parallel and then concatenated and encoded per term in parallel.
+	 * @param documents Term frequencies by document URI
+	 * @param k1 BM25 term frequency saturation
+	 * @param b BM25 document length normalization
+	 */
+	public static InvertedIndex build(Map<String, Map<String, Integer>> documents, float k1, float b) {
+		String[] uris = documents.keySet().toArray(String[]::new);
+		List<Map<String, Integer>> bags = new ArrayList<>(uris.length);
+		for (String uri: uris) {
+			bags.add(documents.get(uri));
+		}
+
+		int ranges = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), uris.length / 1024));
+		int rangeSize = (uris.length + ranges - 1) / Math.max(ranges, 1);
+		List<Map<String, IntPairs>> rangePostings = IntStream.range(0, ranges).parallel().mapToObj(range -> {
+			Map<String, IntPairs> ret = new HashMap<>();
+			for (int document = range * rangeSize, end = Math.min(uris.length, document + rangeSize); document < end; ++document) {
+				for (Map.Entry<String, Integer> entry: bags.get(document).entrySet()) {
+					ret.computeIfAbsent(entry.getKey(), t -> new IntPairs()).add(document, entry.getValue());
+				}
+			}
+			return ret;
+		}).toList();
+
+		Map<String, Integer> terms = new HashMap<>();
+		for (Map<String, IntPairs> rp: rangePostings) {
+			for (String term: rp.keySet()) {
+				terms.putIfAbsent(term, terms.size());
+			}
+		}
+		String[] termArray = new String[terms.size()];
+		terms.forEach((term, id) -> termArray[id] = term);
+		int[] documentFrequencies = new int[termArray.length];
+		byte[][] postings = new byte[termArray.length][];
+		IntStream.range(0, termArray.length).parallel().forEach(id -> {
+			IntPairs termPostings = new IntPairs();
+			for (Map<String, IntPairs> rp: rangePostings) {
+				IntPairs rangeTermPostings = rp.get(termArray[id]);
+				if (rangeTermPostings != null) {
+					termPostings.addAll(rangeTermPostings); // Ranges are in document order
+				}
+			}
+			documentFrequencies[id] = termPostings.size;
+			postings[id] = encode(termPostings);
+		});
+
+		float[] lengthNorms = new float[uris.length];
+		long totalLength = 0;
+		for (int i = 0; i < uris.length; ++i) {
+			int length = 0;
+			for (int tf: bags.get(i).values()) {
+				length += tf;
+			}
+			lengthNorms[i] = length;
+			totalLength += length;
+		}
+		float averageLength = uris.length == 0 ? 1 : Math.max(1, (float) totalLength / uris.length);
+		for (int i = 0; i < lengthNorms.length; ++i) {
+			lengthNorms[i] = k1 * (1 - b + b * lengthNorms[i] / averageLength);
+		}
+		return new InvertedIndex(uris, terms, documentFrequencies, postings, k1, lengthNorms);
+	}
+
+	/**
+	 * Growable list of (document, term frequency) pairs
+	 */
+	private static class IntPairs {
+
+		int[] documents = new int[8];
+		int[] frequencies = new int[8];
+		int size;
+
+		void add(int document, int frequency) {
+			if (size == documents.length) {
+				documents = Arrays.copyOf(documents, size * 2);
+				frequencies = Arrays.copyOf(frequencies, size * 2);
+			}
+			documents[size] = document;
+			frequencies[size++] = frequency;
+		}
+
+		void addAll(IntPairs other) {
+			for (int i = 0; i < other.size; ++i) {
+				add(other.documents[i], other.frequencies[i]);
+			}
+		}
+
+	}
+
+	private static byte[] encode(IntPairs termPostings) {
+		byte[] out = new byte[Math.max(16, termPostings.size * 3)];
+		int position = 0;
+		int previous = 0;
+		for (int start = 0; start < termPostings.size; start += BLOCK_SIZE) {
+			int end = Math.min(termPostings.size, start + BLOCK_SIZE);
+			if (out.length - position < (end - start) * 10) {
+				out = Arrays.copyOf(out, Math.max(out.length * 2, position + (end - start) * 10));
+			}
+			for (int i = start; i < end; ++i) {
+				position = writeVarInt(out, position, termPostings.documents[i] - previous);
+				previous = termPostings.documents[i];
+			}
+			for (int i = start; i < end; ++i) {
+				position = writeVarInt(out, position, termPostings.frequencies[i]);
+			}
+		}
+		return Arrays.copyOf(out, position);
+	}
+
+	private static int writeVarInt(byte[] out, int position, int value) {
+		while ((value & ~0x7F) != 0) {
+			out[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Decodes a block of postings
+	 * @return Position of the next block
+	 */
+	private static int decodeBlock(byte[] in, int position, int count, int previous, int[] documents, int[] frequencies) {
+		for (int i = 0; i < count; ++i) {
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = in[position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+			previous += value;
+			documents[i] = previous;
+		}
+		for (int i = 0; i < count; ++i) {
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = in[position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+			frequencies[i] = value;
+		}
+		return position;
+	}
+
+	/**
+	 * @return Number of documents
+	 */
+	public int size() {
+		return uris.length;
+	}
+
+	/**
+	 * @param uriNumber Document number
+	 * @return Document URI
+	 */
+	@Override
+	public String getUri(int uriNumber) {
+		return uris[uriNumber];
+	}
+
+	/**
+	 * @return Number of distinct terms
+	 */
+	public int getTermCount() {
+		return documentFrequencies.length;
+	}
+
+	/**
+	 * @return Number of documents containing the term
+	 */
+	public int getDocumentFrequency(String term) {
+		Integer id = terms.get(term);
+		return id == null ? 0 : documentFrequencies[id];
+	}
+
+	/**
+	 * Finds documents with the highest BM25 score.
+	 * Result distance is 1 / (1 + score), so results are in ascending distance order, result index is always 0.
+	 * @param query Query term frequencies
+	 * @param numberOfItems Number of documents to return
+	 * @param results Results container, cleared by this method
+	 */
+	public void search(Map<String, Integer> query, int numberOfItems, FloatSearchResults results) {
+		results.clear();
+		if (numberOfItems <= 0 || uris.length == 0) {
+			return;
+		}
+		Scratch s = scratch.borrow();
+		try {
+			search(query, numberOfItems, results, s);
+		} finally {
+			scratch.release(s);
+		}
+	}
+	
+	/**
+	 * Scores documents using the borrowed scratch
+	 */
+	private void search(Map<String, Integer> query, int numberOfItems, FloatSearchResults results, Scratch s) {
+		int touchedCount = 0;
+		for (Map.Entry<String, Integer> entry: query.entrySet()) {
+			Integer id = terms.get(entry.getKey());
+			if (id == null) {
+				continue;
+			}
+			int df = documentFrequencies[id];
+			float weight = (float) Math.log(1 + (uris.length - df + 0.5) / (df + 0.5)) * (k1 + 1) * entry.getValue();
+			byte[] termPostings = postings[id];
+			for (int start = 0, position = 0, previous = 0; start < df; start += BLOCK_SIZE) {
+				int count = Math.min(BLOCK_SIZE, df - start);
+				position = decodeBlock(termPostings, position, count, previous, s.blockDocuments, s.blockFrequencies);
+				previous = s.blockDocuments[count - 1];
+				for (int i = 0; i < count; ++i) {
+					int document = s.blockDocuments[i];
+					float tf = s.blockFrequencies[i];
+					if (s.scores[document] == 0) {
+						s.touched[touchedCount++] = document;
+					}
+					s.scores[document] += weight * tf / (tf + lengthNorms[document]);
+				}
+			}
+		}
+
+		// Min heap of the best scores
+		NodeHeap heap = s.heap;
+		heap.clear();
+		for (int i = 0; i < touchedCount; ++i) {
+			int document = s.touched[i];
+			float score = s.scores[document];
+			s.scores[document] = 0;
+			if (heap.size() < numberOfItems || score > heap.topDistance()) {
+				heap.push(document, score);
+				if (heap.size() > numberOfItems) {
+					heap.pop();
+				}
+			}
+		}
+		int[] documents = new int[heap.size()];
+		float[] scores = new float[documents.length];
+		for (int i = documents.length - 1; i >= 0; --i) {
+			scores[i] = heap.topDistance();
+			documents[i] = heap.pop();
+		}
+		for (int i = 0; i < documents.length; ++i) {
+			results.add(this, UriDictionary.key(documents[i], 0), 1 / (1 + scores[i]));
+		}
+	}
+
+	public void save(OutputStream out) throws IOException {
+		try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+			oos.writeObject(this);
+		}
+	}
+
+	public void save(File file) throws IOException {
+		save(Files.newOutputStream(file.toPath()));
+	}
+
+	public static InvertedIndex load(InputStream in) throws IOException {
+		try (ObjectInputStream ois = new ObjectInputStream(in)) {
+			return (InvertedIndex) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot load inverted index: " + e, e);
+		}
+	}
+
+	public static InvertedIndex load(File file) throws IOException {
+		return load(Files.newInputStream(file.toPath()));
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		scratch = new ScratchPool<>(Scratch::new);
+	}
+
+}
@@ -0,0 +1,240 @@
+package org.nasdanika.ai;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.IntPredicate;
+
+/**
+ * Read-only inverted file index with product quantization (IVF-PQ) mapped into memory.
+ * Only coarse centroids, sub-quantizer codebooks and partition boundaries are loaded on heap. 
+ * Partitions closest to the query are scanned using asymmetric distances between the query and vector codes, 
+ * the best candidates are re-ranked with full precision vectors read from the mapped file. 
+ * Index files are created with {@link IvfPqIndexBuilder}.
+ */
+public class IvfPqIndex extends MappedIndex {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int MAGIC = 0x3156494E; // NIV1
+	static final int VERSION = 1;
+	
+	/**
+	 * Number of list entries read from the mapped file at once
+	 */
+	static final int BLOCK_SIZE = 1024;
+
+	private final int partitions;
+	private final int subQuantizers;
+	private final int subDimensions;
+	private final int codebookSize;
+	private volatile int nProbe;
+	private volatile int reRank;
+	private final float[][] centroids;
+	private final float[][][] codebooks;
+	private final int[] listStarts;
+	private final long listNodesOffset;
+	private final long codesOffset;
+
+	private final transient ScratchPool<Scratch> scratch;
+
+	private class Scratch {
+
+		final NodeHeap probes = new NodeHeap(true, 16);
+		final NodeHeap candidates = new NodeHeap(true, 128);
+		final NodeHeap reRanked = new NodeHeap(true, 16);
+		final float[] residual = new float[dimensions];
+		final float[] table = new float[subQuantizers * codebookSize];
+		final float[] vector = new float[dimensions];
+		final int[] blockNodes = new int[BLOCK_SIZE];
+		final byte[] blockCodes = new byte[BLOCK_SIZE * subQuantizers];
+
+	}
+
+	/**
+	 * Maps the index file into memory
+	 * @param path Index file
+	 * @throws IOException
+	 */
+	public IvfPqIndex(Path path) throws IOException {
+		super(path, MAGIC, VERSION, "IVF-PQ index");
+		partitions = file.getInt(16);
+		subQuantizers = file.getInt(20);
+		subDimensions = dimensions / subQuantizers;
+		codebookSize = file.getInt(24);
+		nProbe = file.getInt(28);
+		reRank = file.getInt(32);
+		
+		long centroidsOffset = file.getLong(48);
+		centroids = new float[partitions][dimensions];
+		for (int i = 0; i < partitions; ++i) {
+			file.getFloats(centroidsOffset + (long) i * dimensions * Float.BYTES, centroids[i], 0, dimensions);
+		}
+		
+		long codebooksOffset = file.getLong(56);
+		codebooks = new float[subQuantizers][codebookSize][subDimensions];
+		for (int m = 0; m < subQuantizers; ++m) {
+			for (int c = 0; c < codebookSize; ++c) {
+				long position = codebooksOffset + ((long) m * codebookSize + c) * subDimensions * Float.BYTES;
+				file.getFloats(position, codebooks[m][c], 0, subDimensions);
+			}
+		}
+		
+		long listsOffset = file.getLong(64);
+		listStarts = new int[partitions + 1];
+		file.getInts(listsOffset, listStarts, 0, listStarts.length);
+		listNodesOffset = listsOffset + (long) listStarts.length * Integer.BYTES;		
+		codesOffset = file.getLong(80);
+
+		scratch = new ScratchPool<>(Scratch::new);
+	}
+
+	/**
+	 * Maps the index file into memory
+	 * @param file Index file
+	 * @return
+	 * @throws IOException
+	 */
+	public static IvfPqIndex load(File file) throws IOException {
+		return new IvfPqIndex(file.toPath());
+	}
+
+	/**
+	 * @param path
+	 * @return true if the file starts with the IVF-PQ index signature
+	 * @throws IOException
+	 */
+	public static boolean isIvfPqIndex(Path path) throws IOException {
+		return hasMagic(path, MAGIC);
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public int getSubQuantizers() {
+		return subQuantizers;
+	}
+
+	public int getNProbe() {
+		return nProbe;
+	}
+
+	/**
+	 * Sets the number of partitions to scan during the search. The value is not persisted.
+	 * @param nProbe
+	 */
+	public void setNProbe(int nProbe) {
+		this.nProbe = nProbe;
+	}
+
+	public int getReRank() {
+		return reRank;
+	}
+
+	/**
+	 * Sets the number of candidates to re-rank with full precision vectors. The value is not persisted.
+	 * @param reRank
+	 */
+	public void setReRank(int reRank) {
+		this.reRank = reRank;
+	}
+
+	/**
+	 * Scans a partition adding candidates by approximate distance
+	 */
+	private void scan(float[] query, int partition, int limit, IntPredicate accept, Scratch s) {
+		float[] centroid = centroids[partition];
+		for (int i = 0; i < dimensions; ++i) {
+			s.residual[i] = query[i] - centroid[i];
+		}
+		for (int m = 0; m < subQuantizers; ++m) {
+			float[][] codebook = codebooks[m];
+			for (int c = 0; c < codebookSize; ++c) {
+				s.table[m * codebookSize + c] = KMeans.squaredDistance(s.residual, m * subDimensions, codebook[c]);
+			}
+		}
+		
+		for (int start = listStarts[partition], end = listStarts[partition + 1]; start < end; start += BLOCK_SIZE) {
+			int count = Math.min(BLOCK_SIZE, end - start);
+			file.getInts(listNodesOffset + (long) start * Integer.BYTES, s.blockNodes, 0, count);
+			file.getBytes(codesOffset + (long) start * subQuantizers, s.blockCodes, 0, count * subQuantizers);
+			for (int i = 0, codeOffset = 0; i < count; ++i) {
+				if (accept != null && !accept.test(s.blockNodes[i])) {
+					codeOffset += subQuantizers;
+					continue;
+				}
+				float distance = 0;
+				for (int m = 0, tableOffset = 0; m < subQuantizers; ++m, tableOffset += codebookSize) {
+					distance += s.table[tableOffset + (s.blockCodes[codeOffset++] & 0xFF)];
+				}
+				if (s.candidates.size() < limit || distance < s.candidates.topDistance()) {
+					s.candidates.push(s.blockNodes[i], distance);
+					if (s.candidates.size() > limit) {
+						s.candidates.pop();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans nProbe partitions closest to the query and re-ranks max(reRank, k) best candidates 
+	 * with full precision vectors and the index distance function.
+	 * Nodes rejected by the filter are skipped during the partition scan.
+	 */
+	@Override
+	public int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept) {
+		if (size == 0 || k <= 0) {
+			return 0;
+		}
+		if (query.length != dimensions) {
+			throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + dimensions);
+		}
+		Scratch s = scratch.borrow();
+		try {
+			return search(query, k, nodes, distances, accept, s);
+		} finally {
+			scratch.release(s);
+		}
+	}
+	
+	/**
+	 * Probes partitions and re-ranks candidates using the borrowed scratch
+	 */
+	private int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept, Scratch s) {
+		
+		int probes = Math.max(1, Math.min(nProbe, partitions));
+		s.probes.clear();
+		for (int i = 0; i < partitions; ++i) {
+			float distance = KMeans.squaredDistance(query, 0, centroids[i]);
+			if (s.probes.size() < probes || distance < s.probes.topDistance()) {
+				s.probes.push(i, distance);
+				if (s.probes.size() > probes) {
+					s.probes.pop();
+				}
+			}
+		}
+		
+		int limit = Math.max(reRank, k);
+		s.candidates.clear();
+		while (!s.probes.isEmpty()) {
+			scan(query, s.probes.pop(), limit, accept, s);
+		}
+		
+		s.reRanked.clear();
+		while (!s.candidates.isEmpty()) {
+			int node = s.candidates.pop();
+			getVector(node, s.vector);
+			float distance = distanceFunction.distance(query, s.vector);
+			if (s.reRanked.size() < k || distance < s.reRanked.topDistance()) {
+				s.reRanked.push(node, distance);
+				if (s.reRanked.size() > k) {
+					s.reRanked.pop();
+				}
+			}
+		}
+		return s.reRanked.drainAscending(nodes, distances);
+	}
+
+}
@@ -0,0 +1,306 @@
+package org.nasdanika.ai;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.hnsw.SizeLimitExceededException;
+
+/**
+ * Builds an inverted file index with product quantization (IVF-PQ) and writes it in the format read by {@link IvfPqIndex}.
+ * Vectors are partitioned by a coarse k-means quantizer, residuals of vectors to their partition centroids are split into sub-vectors 
+ * and each sub-vector is encoded as one byte - index of the nearest centroid in the sub-quantizer codebook.
+ * Quantizers are trained with k-means. Vector assignment is parallelized with fork/join.
+ * Euclidean distance is used for quantization, so vectors shall be normalized if cosine distance is used for ranking.
+ */
+public class IvfPqIndexBuilder {
+	
+	private static final int CODEBOOK_SIZE = 256;
+
+	private final int dimensions;
+	private final DistanceFunction<float[], Float> distanceFunction;
+	private final int partitions;
+	private final int subQuantizers;
+	private final int subDimensions;
+	private final int capacity;
+
+	private final float[][] vectors;
+	private final IndexId[] ids;
+	private final AtomicInteger size = new AtomicInteger();
+	
+	private float[][] centroids;
+	private float[][][] codebooks;
+	private int[] assignments;
+	private byte[] codes;
+
+	/**
+	 * @param dimensions Vector dimensions
+	 * @param distanceFunction Distance function used to re-rank candidates
+	 * @param partitions Number of coarse partitions (inverted lists)
+	 * @param subQuantizers Number of sub-quantizers, bytes per vector code. Dimensions shall be a multiple of sub-quantizers.
+	 * @param capacity Maximum number of items
+	 */
+	public IvfPqIndexBuilder(
+			int dimensions, 
+			DistanceFunction<float[], Float> distanceFunction, 
+			int partitions, 
+			int subQuantizers, 
+			int capacity) {
+		
+		if (subQuantizers <= 0 || dimensions % subQuantizers != 0) {
+			throw new IllegalArgumentException("Dimensions " + dimensions + " is not a multiple of sub-quantizers " + subQuantizers);
+		}
+		if (subQuantizers > MappedFile.MAX_RECORD_SIZE / IvfPqIndex.BLOCK_SIZE) {
+			throw new IllegalArgumentException("Too many sub-quantizers: " + subQuantizers);
+		}
+		if (partitions <= 0) {
+			throw new IllegalArgumentException("Partitions shall be positive: " + partitions);
+		}
+		this.dimensions = dimensions;
+		this.distanceFunction = distanceFunction;
+		this.partitions = partitions;
+		this.subQuantizers = subQuantizers;
+		this.subDimensions = dimensions / subQuantizers;
+		this.capacity = capacity;
+		vectors = new float[capacity][];
+		ids = new IndexId[capacity];
+	}
+	
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	public int size() {
+		return size.get();
+	}
+	
+	/**
+	 * Adds an item. Can be called from multiple threads.
+	 */
+	public void add(EmbeddingsItem item) {
+		if (item.vector().length != dimensions) {
+			throw new IllegalArgumentException("Item " + item.id() + " has " + item.vector().length + " dimensions, expected " + dimensions);
+		}
+		int node = size.getAndIncrement();
+		if (node >= capacity) {
+			size.decrementAndGet();
+			throw new SizeLimitExceededException("The number of elements exceeds the specified limit: " + capacity);
+		}
+		vectors[node] = item.vector();
+		ids[node] = item.id();
+	}
+	
+	public void addAll(Collection<EmbeddingsItem> items) {
+		items.forEach(this::add);
+	}
+	
+	/**
+	 * Trains quantizers on a random sample of vectors and encodes all vectors. 
+	 * Shall be called after all items are added.
+	 * @param iterations Maximum number of k-means iterations
+	 * @param trainingSize Maximum number of vectors to train on
+	 * @param threads Number of threads
+	 * @param seed Random seed
+	 */
+	public void train(int iterations, int trainingSize, int threads, long seed) {
+		int count = size.get();
+		if (count == 0) {
+			throw new IllegalStateException("No items to train on");
+		}
+		if ((long) count * subQuantizers > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many codes: " + count + " items, " + subQuantizers + " sub-quantizers");
+		}
+		Random random = new Random(seed);
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			// Training sample
+			float[][] sample = vectors;
+			int sampleSize = count;
+			if (count > trainingSize) {
+				sampleSize = trainingSize;
+				sample = new float[sampleSize][];
+				int[] permutation = IntStream.range(0, count).toArray();
+				for (int i = 0; i < sampleSize; ++i) {
+					int j = i + random.nextInt(count - i);
+					int tmp = permutation[i];
+					permutation[i] = permutation[j];
+					permutation[j] = tmp;
+					sample[i] = vectors[permutation[i]];
+				}
+			}
+			
+			centroids = KMeans.train(sample, sampleSize, 0, dimensions, partitions, iterations, random, pool);
+			
+			int[] sampleAssignments = new int[sampleSize];
+			Arrays.fill(sampleAssignments, -1);
+			KMeans.assign(sample, sampleSize, 0, centroids, sampleAssignments, pool);
+			float[][] residuals = new float[sampleSize][dimensions];
+			for (int i = 0; i < sampleSize; ++i) {
+				float[] centroid = centroids[sampleAssignments[i]];
+				for (int j = 0; j < dimensions; ++j) {
+					residuals[i][j] = sample[i][j] - centroid[j];
+				}
+			}
+			
+			codebooks = new float[subQuantizers][][];
+			for (int m = 0; m < subQuantizers; ++m) {
+				codebooks[m] = KMeans.train(residuals, sampleSize, m * subDimensions, subDimensions, CODEBOOK_SIZE, iterations, random, pool);
+			}
+			
+			assignments = new int[count];
+			Arrays.fill(assignments, -1);
+			KMeans.assign(vectors, count, 0, centroids, assignments, pool);
+			codes = new byte[count * subQuantizers];
+			pool.submit(() -> IntStream.range(0, count).parallel().forEach(this::encode)).join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	private void encode(int node) {
+		float[] vector = vectors[node];
+		float[] centroid = centroids[assignments[node]];
+		for (int m = 0; m < subQuantizers; ++m) {
+			int offset = m * subDimensions;
+			int code = 0;
+			float minDistance = Float.POSITIVE_INFINITY;
+			float[][] codebook = codebooks[m];
+			for (int c = 0; c < codebook.length; ++c) {
+				float[] codeword = codebook[c];
+				float distance = 0;
+				for (int j = 0; j < subDimensions; ++j) {
+					float diff = vector[offset + j] - centroid[offset + j] - codeword[j];
+					distance += diff * diff;
+				}
+				if (distance < minDistance) {
+					minDistance = distance;
+					code = c;
+				}
+			}
+			codes[node * subQuantizers + m] = (byte) code;
+		}
+	}
+
+	/**
+	 * Writes the index in the {@link IvfPqIndex} format. 
+	 * Shall be called after {@link #train(int, int, int, long)}.
+	 * @param path Output file
+	 * @param nProbe Default number of partitions to scan during the search
+	 * @param reRank Default number of candidates to re-rank with full precision vectors
+	 * @throws IOException
+	 */
+	public void write(Path path, int nProbe, int reRank) throws IOException {
+		if (codes == null) {
+			throw new IllegalStateException("Index is not trained");
+		}
+		int count = assignments.length;
+		int partitionCount = centroids.length;
+		
+		ByteArrayOutputStream distanceBytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(distanceBytes)) {
+			oos.writeObject(distanceFunction);
+		}
+		
+		// Counting sort of nodes by partition
+		int[] listStarts = new int[partitionCount + 1];
+		for (int partition: assignments) {
+			++listStarts[partition + 1];
+		}
+		for (int i = 0; i < partitionCount; ++i) {
+			listStarts[i + 1] += listStarts[i];
+		}
+		int[] listNodes = new int[count];
+		int[] positions = Arrays.copyOf(listStarts, partitionCount);
+		for (int i = 0; i < count; ++i) {
+			listNodes[positions[assignments[i]]++] = i;
+		}
+
+		MappedFile.write(path, channel -> {
+			MappedFile.Writer writer = new MappedFile.Writer(channel);
+			writer.putBytes(new byte[MappedIndex.HEADER_SIZE]);
+			writer.putBytes(distanceBytes.toByteArray());
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long vectorsOffset = writer.position();
+			for (int i = 0; i < count; ++i) {
+				writer.putFloats(vectors[i]);
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long centroidsOffset = writer.position();
+			for (float[] centroid: centroids) {
+				writer.putFloats(centroid);
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long codebooksOffset = writer.position();
+			for (float[][] codebook: codebooks) {
+				for (float[] codeword: codebook) {
+					writer.putFloats(codeword);
+				}
+			}
+			
+			writer.align(MappedIndex.ALIGNMENT);
+			long listsOffset = writer.position();
+			for (int listStart: listStarts) {
+				writer.putInt(listStart);
+			}
+			for (int node: listNodes) {
+				writer.putInt(node);
+			}
+			
+			writer.align(MappedIndex.ALIGNMENT);
+			long codesOffset = writer.position();
+			byte[] nodeCodes = new byte[subQuantizers];
+			for (int node: listNodes) {
+				System.arraycopy(codes, node * subQuantizers, nodeCodes, 0, subQuantizers);
+				writer.putBytes(nodeCodes);
+			}
+
+			writer.align(MappedIndex.ALIGNMENT);
+			long idsOffset = writer.position();
+			long uriDictionaryOffset = writer.putIds(ids, count);
+			long length = writer.position();
+			writer.close();
+
+			ByteBuffer header = ByteBuffer.allocate(MappedIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header
+				.putInt(IvfPqIndex.MAGIC)
+				.putInt(IvfPqIndex.VERSION)
+				.putInt(dimensions)
+				.putInt(count)
+				.putInt(partitionCount)
+				.putInt(subQuantizers)
+				.putInt(codebooks[0].length)
+				.putInt(nProbe)
+				.putInt(reRank)
+				.putInt(distanceBytes.size())
+				.putLong(vectorsOffset)
+				.putLong(centroidsOffset)
+				.putLong(codebooksOffset)
+				.putLong(listsOffset)
+				.putLong(idsOffset)
+				.putLong(codesOffset)
+				.putLong(length)
+				.putLong(MappedIndex.URI_DICTIONARY_OFFSET, uriDictionaryOffset);
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		});
+	}
+
+}
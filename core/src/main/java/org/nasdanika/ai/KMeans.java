@@ -0,0 +1,171 @@
+package org.nasdanika.ai;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Lloyd's k-means clustering of (sub)vectors with Euclidean distance.
+ * Assignment of vectors to centroids, which dominates training time, is parallelized with fork/join.
+ */
+class KMeans {
+	
+	private static final int SPLIT_THRESHOLD = 512;
+	
+	private KMeans() {
+		
+	}
+	
+	/**
+	 * @return Squared Euclidean distance between a subvector and a centroid
+	 */
+	static float squaredDistance(float[] vector, int offset, float[] centroid) {
+		return VectorKernels.squaredEuclidean(vector, offset, centroid, 0, centroid.length);
+	}
+	
+	/**
+	 * @return Index of the centroid nearest to the subvector
+	 */
+	static int nearest(float[][] centroids, float[] vector, int offset) {
+		int ret = 0;
+		float minDistance = Float.POSITIVE_INFINITY;
+		for (int i = 0; i < centroids.length; ++i) {
+			float distance = squaredDistance(vector, offset, centroids[i]);
+			if (distance < minDistance) {
+				minDistance = distance;
+				ret = i;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Assigns a range of vectors to nearest centroids
+	 * @return Number of vectors which changed assignment
+	 */
+	private static class AssignTask extends RecursiveTask<Integer> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final float[][] data;
+		private final int offset;
+		private final float[][] centroids;
+		private final int[] assignments;
+		private final int from;
+		private final int to;
+
+		AssignTask(float[][] data, int offset, float[][] centroids, int[] assignments, int from, int to) {
+			this.data = data;
+			this.offset = offset;
+			this.centroids = centroids;
+			this.assignments = assignments;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				int changed = 0;
+				for (int i = from; i < to; ++i) {
+					int nearest = nearest(centroids, data[i], offset);
+					if (nearest != assignments[i]) {
+						assignments[i] = nearest;
+						++changed;
+					}
+				}
+				return changed;
+			}
+			int middle = (from + to) >>> 1;
+			AssignTask left = new AssignTask(data, offset, centroids, assignments, from, middle);
+			left.fork();
+			int right = new AssignTask(data, offset, centroids, assignments, middle, to).compute();
+			return left.join() + right;
+		}
+		
+	}
+	
+	/**
+	 * Assigns subvectors to nearest centroids in parallel
+	 * @param assignments Current assignments, updated by this method
+	 * @return Number of changed assignments
+	 */
+	static int assign(float[][] data, int count, int offset, float[][] centroids, int[] assignments, ForkJoinPool pool) {
+		return pool.invoke(new AssignTask(data, offset, centroids, assignments, 0, count));
+	}
+	
+	/**
+	 * Trains centroids
+	 * @param data Training vectors
+	 * @param count Number of training vectors
+	 * @param offset Subvector offset
+	 * @param dimensions Subvector dimensions
+	 * @param k Number of centroids. If there are fewer training vectors, then the number of centroids is the number of vectors.  
+	 * @param iterations Maximum number of iterations
+	 * @param random Random for centroid initialization
+	 * @param pool Pool for parallel assignment
+	 * @return Centroids
+	 */
+	static float[][] train(
+			float[][] data, 
+			int count, 
+			int offset, 
+			int dimensions, 
+			int k, 
+			int iterations, 
+			Random random, 
+			ForkJoinPool pool) {
+		
+		k = Math.min(k, count);
+		float[][] centroids = new float[k][];
+		
+		// Initialization with distinct random vectors - partial Fisher-Yates shuffle 
+		int[] permutation = new int[count];
+		for (int i = 0; i < count; ++i) {
+			permutation[i] = i;
+		}
+		for (int i = 0; i < k; ++i) {
+			int j = i + random.nextInt(count - i);
+			int tmp = permutation[i];
+			permutation[i] = permutation[j];
+			permutation[j] = tmp;
+			centroids[i] = new float[dimensions];
+			System.arraycopy(data[permutation[i]], offset, centroids[i], 0, dimensions);
+		}
+		
+		int[] assignments = new int[count];
+		Arrays.fill(assignments, -1);
+		int[] counts = new int[k];
+		for (int iteration = 0; iteration < iterations; ++iteration) {
+			int changed = assign(data, count, offset, centroids, assignments, pool);
+			if (changed == 0) {
+				break;
+			}
+			
+			Arrays.fill(counts, 0);
+			float[][] newCentroids = new float[k][dimensions];
+			for (int i = 0; i < count; ++i) {
+				float[] vector = data[i];
+				float[] centroid = newCentroids[assignments[i]];
+				for (int j = 0; j < dimensions; ++j) {
+					centroid[j] += vector[offset + j];
+				}
+				++counts[assignments[i]];
+			}
+			for (int c = 0; c < k; ++c) {
+				if (counts[c] == 0) {
+					// Empty cluster - re-seed with a random vector
+					System.arraycopy(data[random.nextInt(count)], offset, newCentroids[c], 0, dimensions);
+				} else {
+					for (int j = 0; j < dimensions; ++j) {
+						newCentroids[c][j] /= counts[c];
+					}
+				}
+			}
+			centroids = newCentroids;
+		}
+		return centroids;
+	}
+
+}
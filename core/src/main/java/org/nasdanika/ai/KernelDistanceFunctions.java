@@ -0,0 +1,93 @@
+package org.nasdanika.ai;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.DistanceFunctions;
+
+/**
+ * Float vector distance functions backed by {@link VectorKernels}. 
+ * Values are the same as of the corresponding <code>com.github.jelmerk.hnswlib.core.DistanceFunctions</code>. 
+ */
+public final class KernelDistanceFunctions {
+	
+	private KernelDistanceFunctions() {
+		
+	}
+	
+	/**
+	 * Distance metrics which indices compute with their own kernels instead of calling the distance function
+	 */
+	enum Metric { COSINE, INNER_PRODUCT, EUCLIDEAN, MANHATTAN, OTHER }
+	
+	/**
+	 * @return Metric of a kernel or hnswlib distance function, {@link Metric#OTHER} for other functions
+	 */
+	static Metric metric(DistanceFunction<float[], Float> distanceFunction) {
+		Class<?> type = distanceFunction.getClass();
+		if (type == FloatCosineDistance.class || type == DistanceFunctions.FLOAT_COSINE_DISTANCE.getClass()) {
+			return Metric.COSINE;
+		}
+		if (type == FloatInnerProduct.class || type == DistanceFunctions.FLOAT_INNER_PRODUCT.getClass()) {
+			return Metric.INNER_PRODUCT;
+		}
+		if (type == FloatEuclideanDistance.class || type == DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE.getClass()) {
+			return Metric.EUCLIDEAN;
+		}
+		if (type == FloatManhattanDistance.class || type == DistanceFunctions.FLOAT_MANHATTAN_DISTANCE.getClass()) {
+			return Metric.MANHATTAN;
+		}
+		return Metric.OTHER;
+	}
+	
+	static class FloatCosineDistance implements DistanceFunction<float[], Float> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Float distance(float[] u, float[] v) {
+			return 1 - VectorKernels.cosineSimilarity(u, v);
+		}
+		
+	}
+	
+	static class FloatInnerProduct implements DistanceFunction<float[], Float> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Float distance(float[] u, float[] v) {
+			return 1 - VectorKernels.dot(u, v);
+		}
+		
+	}
+	
+	static class FloatEuclideanDistance implements DistanceFunction<float[], Float> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Float distance(float[] u, float[] v) {
+			return VectorKernels.euclidean(u, v);
+		}
+		
+	}
+	
+	static class FloatManhattanDistance implements DistanceFunction<float[], Float> {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public Float distance(float[] u, float[] v) {
+			return VectorKernels.manhattan(u, v);
+		}
+		
+	}
+	
+	public static final DistanceFunction<float[], Float> FLOAT_COSINE_DISTANCE = new FloatCosineDistance();
+	
+	public static final DistanceFunction<float[], Float> FLOAT_INNER_PRODUCT = new FloatInnerProduct();
+	
+	public static final DistanceFunction<float[], Float> FLOAT_EUCLIDEAN_DISTANCE = new FloatEuclideanDistance();
+	
+	public static final DistanceFunction<float[], Float> FLOAT_MANHATTAN_DISTANCE = new FloatManhattanDistance();
+
+}
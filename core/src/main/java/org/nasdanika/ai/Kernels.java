@@ -0,0 +1,29 @@
+package org.nasdanika.ai;
+
+/**
+ * Distance kernel implementation - scalar or SIMD. 
+ * Use {@link VectorKernels} which selects the implementation at runtime.
+ */
+interface Kernels {
+	
+	float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+	
+	float squaredEuclidean(float[] a, int aOffset, float[] b, int bOffset, int length);
+	
+	float manhattan(float[] a, int aOffset, float[] b, int bOffset, int length);
+	
+	/**
+	 * Computes dot product and both norms in one pass
+	 */
+	float cosineSimilarity(float[] a, float[] b);
+	
+	int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length);
+	
+	int squaredEuclidean(byte[] a, int aOffset, byte[] b, int bOffset, int length);
+	
+	/**
+	 * Dot product of a float vector and a signed int8 vector
+	 */
+	float dot(float[] a, int aOffset, byte[] b, int bOffset, int length);
+
+}
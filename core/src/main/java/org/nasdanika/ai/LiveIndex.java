@@ -0,0 +1,440 @@
+package org.nasdanika.ai;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.Index;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Serving index which accepts document upserts and deletes while searches continue.
+ * Documents are identified by URI, an upsert replaces all vectors (chunks) of a document.
+ * The index consists of an immutable base index, e.g. built offline by the CLI, and an append-only delta of upserted vectors.
+ * Writers publish immutable snapshots, so readers never block - a search reads the current snapshot,
+ * searches the base index skipping updated and deleted documents and scans live delta vectors.
+ * Compaction rebuilds the base index from live base and delta vectors in the background
+ * and then publishes a snapshot with the new base and the updates made during the compaction.
+ * The replaced base index is closed when searches in flight complete.
+ * URIs of results are resolved before the base index is released, so results stay valid after it is closed.
+ */
+public class LiveIndex implements FloatVectorSimilaritySearch, AutoCloseable {
+
+	/**
+	 * Maximum number of updates published in one snapshot by {@link #upsert(Flux)}
+	 */
+	public static final int BATCH_SIZE = 256;
+
+	/**
+	 * Maximum time to wait for a batch of updates to fill
+	 */
+	public static final Duration BATCH_TIMEOUT = Duration.ofMillis(100);
+
+	/**
+	 * Builds a new base index from live items
+	 */
+	@FunctionalInterface
+	public interface Compactor {
+
+		Index<IndexId, float[], EmbeddingsItem, Float> compact(List<EmbeddingsItem> items) throws IOException;
+
+	}
+
+	private record Update(String uri, List<float[]> vectors) {}
+
+	/**
+	 * Base index with reference count. The current snapshot owns one reference.
+	 */
+	private static class Base {
+
+		final Index<IndexId, float[], EmbeddingsItem, Float> index;
+		final FloatVectorSimilaritySearch search;
+		final AtomicInteger references = new AtomicInteger(1);
+
+		Base(Index<IndexId, float[], EmbeddingsItem, Float> index) {
+			this.index = index;
+			if (index instanceof MappedIndex mappedIndex) {
+				search = SimilaritySearch.from(mappedIndex);
+			} else if (index instanceof FlatIndex flatIndex) {
+				search = SimilaritySearch.from(flatIndex);
+			} else {
+				search = SimilaritySearch.from(index);
+			}
+		}
+
+		boolean acquire() {
+			for (int count = references.get(); count > 0; count = references.get()) {
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0 && index instanceof AutoCloseable closeable) {
+				try {
+					closeable.close();
+				} catch (Exception e) {
+					// Ignored - the index is not used anymore
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Immutable view of the index.
+	 * Delta arrays are shared with later snapshots which append to them past the count of this snapshot.
+	 * @param base Base index, null if there is no base
+	 * @param updates Sequence number of the last upsert or delete of documents changed after the base was built
+	 * @param vectors Delta vectors
+	 * @param ids Delta vector ids
+	 * @param sequences Sequence numbers of upserts which added delta vectors
+	 * @param count Number of delta vectors
+	 * @param sequence Sequence number of the last update
+	 */
+	private record Snapshot(
+			Base base,
+			Map<String, Long> updates,
+			float[][] vectors,
+			IndexId[] ids,
+			long[] sequences,
+			int count,
+			long sequence) {
+
+		/**
+		 * @return true if the delta vector belongs to the last upsert of its document
+		 */
+		boolean isLive(int slot) {
+			Long latest = updates.get(ids[slot].uri());
+			return latest != null && latest == sequences[slot];
+		}
+
+	}
+
+	private final int dimensions;
+	private final DistanceFunction<float[], Float> distanceFunction;
+	private final Compactor compactor;
+	private final ReentrantLock compactionLock = new ReentrantLock();
+	private volatile Snapshot snapshot;
+	private volatile boolean closed;
+	private ScheduledExecutorService compactionExecutor;
+	private volatile Exception compactionError;
+
+	/**
+	 * @param dimensions Vector dimensions
+	 * @param distanceFunction Distance function of the base index
+	 * @param base Base index, can be null
+	 * @param compactor Builds a new base index, e.g. a {@link FlatIndex} or a memory-mapped HNSW index
+	 */
+	public LiveIndex(
+			int dimensions,
+			DistanceFunction<float[], Float> distanceFunction,
+			Index<IndexId, float[], EmbeddingsItem, Float> base,
+			Compactor compactor) {
+		this.dimensions = dimensions;
+		this.distanceFunction = distanceFunction;
+		this.compactor = compactor;
+		snapshot = new Snapshot(
+				base == null ? null : new Base(base),
+				Collections.emptyMap(),
+				new float[16][],
+				new IndexId[16],
+				new long[16],
+				0,
+				0);
+	}
+
+	/**
+	 * Live index which compacts into a {@link FlatIndex}
+	 */
+	public LiveIndex(int dimensions, DistanceFunction<float[], Float> distanceFunction, Index<IndexId, float[], EmbeddingsItem, Float> base) {
+		this(dimensions, distanceFunction, base, items -> {
+			FlatIndex ret = new FlatIndex(dimensions, distanceFunction, items.size());
+			for (EmbeddingsItem item: items) {
+				ret.add(item);
+			}
+			return ret;
+		});
+	}
+
+	/**
+	 * Replaces document vectors
+	 * @param uri Document URI
+	 * @param vectors Document vectors, an empty list removes the document
+	 */
+	public void upsert(String uri, List<float[]> vectors) {
+		apply(List.of(new Update(uri, vectors)));
+	}
+
+	public void delete(String uri) {
+		apply(List.of(new Update(uri, Collections.emptyList())));
+	}
+
+	/**
+	 * Upserts documents as they arrive. Updates are published in batches.
+	 * @param contents Documents with embeddings, contents without embeddings are deleted
+	 * @return Mono completing when all contents are upserted
+	 */
+	public Mono<Void> upsert(Flux<TextFloatVectorEmbeddingResourceContents> contents) {
+		return contents
+			.map(content -> {
+				List<float[]> vectors = new ArrayList<>();
+				for (List<Float> embedding: content.getEmbeddings()) {
+					vectors.add(FloatVectorEmbeddingGenerator.toFloatArray(embedding));
+				}
+				return new Update(content.getUri(), vectors);
+			})
+			.bufferTimeout(BATCH_SIZE, BATCH_TIMEOUT)
+			.doOnNext(this::apply)
+			.then();
+	}
+
+	/**
+	 * Deletes documents as their URIs arrive
+	 * @param uris
+	 * @return Mono completing when all documents are deleted
+	 */
+	public Mono<Void> delete(Flux<String> uris) {
+		return uris
+			.map(uri -> new Update(uri, Collections.<float[]>emptyList()))
+			.bufferTimeout(BATCH_SIZE, BATCH_TIMEOUT)
+			.doOnNext(this::apply)
+			.then();
+	}
+
+	/**
+	 * Appends vectors to the delta arrays and publishes a new snapshot
+	 */
+	private synchronized void apply(List<Update> batch) {
+		if (closed) {
+			throw new IllegalStateException("Index is closed");
+		}
+		Snapshot current = snapshot;
+		Map<String, Long> updates = new HashMap<>(current.updates());
+		float[][] vectors = current.vectors();
+		IndexId[] ids = current.ids();
+		long[] sequences = current.sequences();
+		int count = current.count();
+		long sequence = current.sequence();
+		for (Update update: batch) {
+			++sequence;
+			updates.put(update.uri(), sequence);
+			for (int i = 0; i < update.vectors().size(); ++i) {
+				float[] vector = update.vectors().get(i);
+				if (vector.length != dimensions) {
+					throw new IllegalArgumentException(update.uri() + " vector " + i + " has " + vector.length + " dimensions, expected " + dimensions);
+				}
+				if (count == vectors.length) {
+					int capacity = vectors.length * 2;
+					vectors = Arrays.copyOf(vectors, capacity);
+					ids = Arrays.copyOf(ids, capacity);
+					sequences = Arrays.copyOf(sequences, capacity);
+				}
+				vectors[count] = vector;
+				ids[count] = new IndexId(update.uri(), i);
+				sequences[count] = sequence;
+				++count;
+			}
+		}
+		snapshot = new Snapshot(current.base(), Collections.unmodifiableMap(updates), vectors, ids, sequences, count, sequence);
+	}
+
+	/**
+	 * Reads the current snapshot and acquires its base
+	 */
+	private Snapshot acquire() {
+		while (true) {
+			Snapshot ret = snapshot;
+			if (ret.base() == null || ret.base().acquire()) {
+				return ret;
+			}
+			if (closed) {
+				throw new IllegalStateException("Index is closed");
+			}
+		}
+	}
+
+	private static void release(Snapshot snapshot) {
+		if (snapshot.base() != null) {
+			snapshot.base().release();
+		}
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+		find(query, numberOfItems, results, null);
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+		Snapshot current = acquire();
+		try {
+			results.clear();
+			if (current.base() != null) {
+				Map<String, Long> updates = current.updates();
+				SearchFilter baseFilter = filter;
+				if (!updates.isEmpty()) {
+					SearchFilter notUpdated = (uri, index) -> !updates.containsKey(uri);
+					baseFilter = filter == null ? notUpdated : notUpdated.and(filter);
+				}
+				current.base().search.find(query, numberOfItems, results, baseFilter);
+			}
+			for (int i = 0; i < current.count(); ++i) {
+				if (current.isLive(i) && (filter == null || filter.test(current.ids()[i]))) {
+					results.insert(current.ids()[i], distanceFunction.distance(query, current.vectors()[i]), numberOfItems);
+				}
+			}
+			results.resolve();
+		} finally {
+			release(current);
+		}
+	}
+
+	/**
+	 * @return Number of vectors in the delta including replaced and deleted ones
+	 */
+	public int getDeltaSize() {
+		return snapshot.count();
+	}
+
+	/**
+	 * @return Number of documents upserted or deleted since the base index was built
+	 */
+	public int getUpdateCount() {
+		return snapshot.updates().size();
+	}
+
+	/**
+	 * @return Error of the last failed background compaction, null if it succeeded
+	 */
+	public Exception getCompactionError() {
+		return compactionError;
+	}
+
+	/**
+	 * Rebuilds the base index from live vectors.
+	 * Updates continue during the compaction and are retained in the delta.
+	 * Does nothing if there were no updates or another compaction is in progress.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		if (!compactionLock.tryLock()) {
+			return;
+		}
+		try {
+			Snapshot compacted = acquire();
+			List<EmbeddingsItem> items = new ArrayList<>();
+			try {
+				if (compacted.updates().isEmpty()) {
+					return;
+				}
+				if (compacted.base() != null) {
+					for (EmbeddingsItem item: compacted.base().index.items()) {
+						if (!compacted.updates().containsKey(item.id().uri())) {
+							items.add(item);
+						}
+					}
+				}
+			} finally {
+				release(compacted);
+			}
+			for (int i = 0; i < compacted.count(); ++i) {
+				if (compacted.isLive(i)) {
+					items.add(new EmbeddingsItem(compacted.ids()[i], compacted.vectors()[i], dimensions));
+				}
+			}
+			Base base = new Base(compactor.compact(items));
+			Base replaced;
+			synchronized (this) {
+				if (closed) {
+					base.release();
+					return;
+				}
+				Snapshot current = snapshot;
+				Map<String, Long> updates = new HashMap<>();
+				for (Map.Entry<String, Long> update: current.updates().entrySet()) {
+					if (update.getValue() > compacted.sequence()) {
+						updates.put(update.getKey(), update.getValue());
+					}
+				}
+				int count = current.count() - compacted.count();
+				int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, count)) * 2);
+				float[][] vectors = new float[capacity][];
+				IndexId[] ids = new IndexId[capacity];
+				long[] sequences = new long[capacity];
+				System.arraycopy(current.vectors(), compacted.count(), vectors, 0, count);
+				System.arraycopy(current.ids(), compacted.count(), ids, 0, count);
+				System.arraycopy(current.sequences(), compacted.count(), sequences, 0, count);
+				replaced = current.base();
+				snapshot = new Snapshot(base, Collections.unmodifiableMap(updates), vectors, ids, sequences, count, current.sequence());
+			}
+			if (replaced != null) {
+				replaced.release();
+			}
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts periodic background compaction
+	 * @param interval Compaction interval
+	 * @param minUpdates Minimum number of updated documents to start compaction
+	 */
+	public synchronized void startCompaction(Duration interval, int minUpdates) {
+		if (compactionExecutor != null) {
+			throw new IllegalStateException("Compaction is already started");
+		}
+		compactionExecutor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("live-index-compaction").factory());
+		compactionExecutor.scheduleWithFixedDelay(() -> {
+			if (getUpdateCount() >= Math.max(1, minUpdates)) {
+				try {
+					compact();
+					compactionError = null;
+				} catch (Exception e) {
+					compactionError = e;
+				}
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops compaction and releases the base index. It is closed when searches in flight complete.
+	 */
+	@Override
+	public void close() {
+		ScheduledExecutorService executor;
+		Snapshot current;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			executor = compactionExecutor;
+			current = snapshot;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		release(current);
+	}
+
+}
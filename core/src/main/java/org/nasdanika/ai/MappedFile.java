@@ -0,0 +1,290 @@
+package org.nasdanika.ai;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+/**
+ * Read-only little-endian view of a file mapped into memory.
+ * {@link MappedByteBuffer} is limited to 2 GB, so the file is mapped in 1 GB chunks
+ * which overlap by {@link #MAX_RECORD_SIZE} bytes.
+ * This way any record not longer than {@link #MAX_RECORD_SIZE} is contained in a single chunk
+ * and can be read with absolute bulk operations without allocation.
+ * Absolute reads do not modify buffer state and are safe to use from multiple threads.
+ */
+class MappedFile {
+
+	static final int CHUNK_SHIFT = 30;
+	static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+	static final long CHUNK_MASK = CHUNK_SIZE - 1;
+	static final int MAX_RECORD_SIZE = 1 << 20;
+
+	private final Path path;
+	private final long length;
+	private ByteBuffer[] chunks;
+	private FloatBuffer[] floatChunks;
+	private IntBuffer[] intChunks;
+	private LongBuffer[] longChunks;
+
+	MappedFile(Path path) throws IOException {
+		this.path = path;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			length = channel.size();
+			int chunkCount = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+			chunks = new ByteBuffer[chunkCount];
+			floatChunks = new FloatBuffer[chunkCount];
+			intChunks = new IntBuffer[chunkCount];
+			longChunks = new LongBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; ++i) {
+				long start = (long) i << CHUNK_SHIFT;
+				long size = Math.min(length - start, CHUNK_SIZE + MAX_RECORD_SIZE);
+				ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, size).order(ByteOrder.LITTLE_ENDIAN);
+				chunks[i] = chunk;
+				floatChunks[i] = chunk.asFloatBuffer();
+				intChunks[i] = chunk.asIntBuffer();
+				longChunks[i] = chunk.asLongBuffer();
+			}
+		}
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	long length() {
+		return length;
+	}
+
+	int getInt(long position) {
+		return chunks[(int) (position >>> CHUNK_SHIFT)].getInt((int) (position & CHUNK_MASK));
+	}
+
+	long getLong(long position) {
+		return chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & CHUNK_MASK));
+	}
+
+	float getFloat(long position) {
+		return chunks[(int) (position >>> CHUNK_SHIFT)].getFloat((int) (position & CHUNK_MASK));
+	}
+
+	void getBytes(long position, byte[] dst, int offset, int length) {
+		chunks[(int) (position >>> CHUNK_SHIFT)].get((int) (position & CHUNK_MASK), dst, offset, length);
+	}
+
+	/**
+	 * @param position Position, shall be a multiple of 4
+	 */
+	void getFloats(long position, float[] dst, int offset, int length) {
+		floatChunks[(int) (position >>> CHUNK_SHIFT)].get((int) ((position & CHUNK_MASK) >>> 2), dst, offset, length);
+	}
+
+	/**
+	 * @param position Position, shall be a multiple of 4
+	 */
+	void getInts(long position, int[] dst, int offset, int length) {
+		intChunks[(int) (position >>> CHUNK_SHIFT)].get((int) ((position & CHUNK_MASK) >>> 2), dst, offset, length);
+	}
+
+	/**
+	 * @param position Position, shall be a multiple of 8
+	 */
+	void getLongs(long position, long[] dst, int offset, int length) {
+		longChunks[(int) (position >>> CHUNK_SHIFT)].get((int) ((position & CHUNK_MASK) >>> 3), dst, offset, length);
+	}
+
+	/**
+	 * Reads a URI from the dictionary written by {@link Writer#putIds(IndexId[], int)}
+	 * @param dictionaryOffset Position of the URI dictionary
+	 * @param uriNumber URI number
+	 */
+	String getUri(long dictionaryOffset, int uriNumber) {
+		long position = getLong(dictionaryOffset + Long.BYTES + (long) uriNumber * Long.BYTES);
+		int length = getInt(position);
+		byte[] uri = new byte[length];
+		getBytes(position + Integer.BYTES, uri, 0, length);
+		return new String(uri, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes file content to a channel
+	 */
+	@FunctionalInterface
+	interface Content {
+		
+		void write(FileChannel channel) throws IOException;
+		
+	}
+	
+	/**
+	 * Writes a file to a temporary file in the same directory and then atomically moves it over the target file.
+	 * This way an existing file which may be mapped by an open index is never truncated or overwritten - 
+	 * the open index keeps reading the replaced file until it is closed.
+	 * @param path Target file
+	 * @param content Writes the file
+	 * @throws IOException
+	 */
+	static void write(Path path, Content content) throws IOException {
+		Path target = path.toAbsolutePath();
+		Path tmp = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				content.write(channel);
+			}
+			Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Releases references to the mapped buffers.
+	 * The memory is unmapped when the buffers are garbage collected.
+	 */
+	void release() {
+		chunks = null;
+		floatChunks = null;
+		intChunks = null;
+		longChunks = null;
+	}
+
+	/**
+	 * Buffered little-endian writer to a channel.
+	 * Tracks position to compute section offsets.
+	 */
+	static class Writer implements Closeable {
+
+		private final WritableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		private long position;
+
+		Writer(WritableByteChannel channel) {
+			this.channel = channel;
+		}
+
+		long position() {
+			return position;
+		}
+
+		private void ensure(int size) throws IOException {
+			if (buffer.remaining() < size) {
+				flush();
+			}
+		}
+
+		void putInt(int value) throws IOException {
+			ensure(Integer.BYTES);
+			buffer.putInt(value);
+			position += Integer.BYTES;
+		}
+
+		void putLong(long value) throws IOException {
+			ensure(Long.BYTES);
+			buffer.putLong(value);
+			position += Long.BYTES;
+		}
+
+		void putFloat(float value) throws IOException {
+			ensure(Float.BYTES);
+			buffer.putFloat(value);
+			position += Float.BYTES;
+		}
+
+		void putFloats(float[] values) throws IOException {
+			for (float value: values) {
+				putFloat(value);
+			}
+		}
+
+		void putBytes(byte[] bytes) throws IOException {
+			for (int offset = 0; offset < bytes.length; ) {
+				ensure(1);
+				int len = Math.min(buffer.remaining(), bytes.length - offset);
+				buffer.put(bytes, offset, len);
+				offset += len;
+				position += len;
+			}
+		}
+
+		/**
+		 * Writes UTF-8 bytes of the string prefixed with the number of bytes
+		 * @param str
+		 * @throws IOException
+		 */
+		void putString(String str) throws IOException {
+			byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			putBytes(bytes);
+		}
+
+		/**
+		 * Writes ids section - packed {@link UriDictionary} keys of items followed by the URI dictionary: 
+		 * number of URIs (long), a table of URI record positions, and records of UTF-8 URI bytes prefixed with their length.
+		 * @return URI dictionary position
+		 */
+		long putIds(IndexId[] ids, int count) throws IOException {
+			UriDictionary dictionary = new UriDictionary();
+			for (int i = 0; i < count; ++i) {
+				putLong(dictionary.key(ids[i]));
+			}
+			long dictionaryOffset = position;
+			int uriCount = dictionary.size();
+			putLong(uriCount);
+			long uriPosition = position + (long) uriCount * Long.BYTES;
+			byte[][] uris = new byte[uriCount][];
+			for (int i = 0; i < uriCount; ++i) {
+				uris[i] = dictionary.getUri(i).getBytes(StandardCharsets.UTF_8);
+				if (uris[i].length + Integer.BYTES > MAX_RECORD_SIZE) {
+					throw new IllegalArgumentException("URI is too long: " + dictionary.getUri(i));
+				}
+				putLong(uriPosition);
+				uriPosition += uris[i].length + Integer.BYTES;
+			}
+			for (byte[] uri: uris) {
+				putInt(uri.length);
+				putBytes(uri);
+			}
+			return dictionaryOffset;
+		}
+
+		/**
+		 * Pads with zeros to the alignment
+		 */
+		void align(int alignment) throws IOException {
+			while (position % alignment != 0) {
+				ensure(1);
+				buffer.put((byte) 0);
+				++position;
+			}
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+	}
+
+}
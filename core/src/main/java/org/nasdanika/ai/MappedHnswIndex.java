@@ -0,0 +1,360 @@
+package org.nasdanika.ai;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import org.nasdanika.ai.KernelDistanceFunctions.Metric;
+
+/**
+ * Read-only HNSW index which keeps vectors, graph links and ids in a single file mapped into memory.
+ * Opening the index does not read the file, pages are loaded by the operating system on access.
+ * This way the index is ready to serve queries right after opening and vectors are not scanned by the garbage collector.
+ * Index files are created with {@link HnswGraphBuilder}.
+ * A quantized index file also contains int8 codes of vectors which are used for graph traversal, 
+ * so the working set is about 4 times smaller. 
+ * Codes have per-dimension quantization steps. The query is weighted by the steps once per search 
+ * and cosine, inner product and euclidean distances are computed on codes with the float by int8 dot product of {@link VectorKernels}. 
+ * Full precision vectors are read only to re-rank search candidates and can be stored in a separate file.
+ * The graph may be built over a prefix of vector dimensions (traversal dimensions) of Matryoshka embeddings.
+ * Such an index is traversed using the prefixes (or their int8 codes) and search candidates are re-ranked using full vectors.
+ */
+public class MappedHnswIndex extends MappedIndex {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int MAGIC = 0x314D484E; // NHM1
+	static final int VERSION = 1;
+
+	private final int m;
+	private final int maxM0;
+	private volatile int ef;
+	private final int entryPoint;
+	private final int maxLevel;
+	private final long linksOffset;
+	private final long levelsOffset;
+	private final long upperLinksOffset;
+	private final transient ScalarQuantizer quantizer;
+	private final int traversalDimensions;
+	private final Metric metric;
+	
+	/**
+	 * Offset of int8 codes if the index is quantized, of vector prefixes if traversal dimensions are less than dimensions, 0 otherwise
+	 */
+	private final long codesOffset;
+
+	private final transient ScratchPool<Scratch> scratch;
+
+	private class Scratch {
+
+		final NodeHeap candidates = new NodeHeap(false, 64);
+		final NodeHeap results = new NodeHeap(true, 64);
+		final int[] neighbors = new int[Math.max(maxM0, m) + 1];
+		final float[] vector = new float[dimensions];
+		final float[] traversalQuery = new float[traversalDimensions];
+		final float[] traversalVector = new float[traversalDimensions];
+		final byte[] codes = new byte[traversalDimensions];
+		final float[] queryWeights = new float[traversalDimensions];
+		float queryOffsetDot;
+		float querySquaredResidual;
+		float queryNorm;
+		final NodeHeap reRanked = new NodeHeap(true, 16);
+		final int[] visited = new int[size];
+		int visitedMark;
+
+		void newVisit() {
+			if (++visitedMark == 0) {
+				Arrays.fill(visited, 0);
+				visitedMark = 1;
+			}
+		}
+
+	}
+
+	/**
+	 * Maps the index file into memory
+	 * @param path Index file
+	 * @throws IOException
+	 */
+	public MappedHnswIndex(Path path) throws IOException {
+		super(path, MAGIC, VERSION, "mapped HNSW index");
+		m = file.getInt(16);
+		maxM0 = file.getInt(20);
+		ef = file.getInt(24);
+		entryPoint = file.getInt(28);
+		maxLevel = file.getInt(32);
+		linksOffset = file.getLong(48);
+		levelsOffset = file.getLong(56);
+		upperLinksOffset = file.getLong(64);
+		int prefix = file.getInt(112);
+		traversalDimensions = prefix == 0 ? dimensions : prefix;
+		long quantizerOffset = file.getLong(96);
+		codesOffset = file.getLong(104);
+		if (quantizerOffset == 0) {
+			quantizer = null;
+		} else {
+			float[] offset = new float[traversalDimensions];
+			file.getFloats(quantizerOffset, offset, 0, traversalDimensions);
+			float[] scale = new float[traversalDimensions];
+			file.getFloats(quantizerOffset + (long) traversalDimensions * Float.BYTES, scale, 0, traversalDimensions);
+			quantizer = new ScalarQuantizer(offset, scale);
+		}
+		metric = KernelDistanceFunctions.metric(distanceFunction);
+
+		scratch = new ScratchPool<>(Scratch::new);
+	}
+
+	/**
+	 * Maps the index file into memory
+	 * @param file Index file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedHnswIndex load(File file) throws IOException {
+		return new MappedHnswIndex(file.toPath());
+	}
+
+	/**
+	 * @param path
+	 * @return true if the file starts with the mapped index signature
+	 * @throws IOException
+	 */
+	public static boolean isMappedHnswIndex(Path path) throws IOException {
+		return hasMagic(path, MAGIC);
+	}
+
+	public int getM() {
+		return m;
+	}
+
+	public int getEf() {
+		return ef;
+	}
+
+	/**
+	 * Sets the size of the dynamic list for the nearest neighbors used during the search.
+	 * The value is not persisted.
+	 * @param ef
+	 */
+	public void setEf(int ef) {
+		this.ef = ef;
+	}
+	
+	@Override
+	protected int getExactScanThreshold(int k) {
+		return 10 * Math.max(ef, k);
+	}
+
+	/**
+	 * @return true if the index contains int8 codes used for graph traversal
+	 */
+	public boolean isQuantized() {
+		return quantizer != null;
+	}
+	
+	/**
+	 * @return Number of leading vector dimensions used for graph traversal
+	 */
+	public int getTraversalDimensions() {
+		return traversalDimensions;
+	}
+	
+	/**
+	 * @return true if search candidates are re-ranked with full precision vectors
+	 */
+	private boolean isReRanked() {
+		return quantizer != null || traversalDimensions < dimensions;
+	}
+
+	private float distance(float[] query, int node, Scratch s) {
+		getVector(node, s.vector);
+		return distanceFunction.distance(query, s.vector);
+	}
+
+	/**
+	 * Computes query or its prefix weights and terms of distances to codes in the scratch
+	 */
+	private void weigh(float[] query, Scratch s) {
+		quantizer.weigh(query, s.queryWeights);
+		s.queryOffsetDot = quantizer.offsetDot(query);
+		s.querySquaredResidual = quantizer.squaredResidual(query);
+		s.queryNorm = (float) Math.sqrt(VectorKernels.dot(query, 0, query, 0, traversalDimensions));
+	}
+
+	/**
+	 * Distance between the query and the node codes if the index is quantized, 
+	 * to the node vector prefix if the graph is built over traversal dimensions, 
+	 * full precision distance otherwise
+	 * @param query Query vector or its prefix
+	 */
+	private float traversalDistance(float[] query, int node, Scratch s) {
+		if (quantizer != null) {
+			long position = codesOffset + (long) node * (2 * Float.BYTES + traversalDimensions);
+			file.getBytes(position + 2 * Float.BYTES, s.codes, 0, traversalDimensions);
+			switch (metric) {
+			case EUCLIDEAN:
+				return (float) Math.sqrt(quantizer.squaredEuclidean(s.querySquaredResidual, VectorKernels.dot(s.queryWeights, s.codes), file.getFloat(position + Float.BYTES)));
+			case INNER_PRODUCT:
+				return 1 - quantizer.dot(s.queryOffsetDot, VectorKernels.dot(s.queryWeights, s.codes), file.getFloat(position));
+			case COSINE:
+				float correction = file.getFloat(position);
+				float norms = s.queryNorm * quantizer.norm(correction, file.getFloat(position + Float.BYTES));
+				return norms == 0 ? 1 : 1 - quantizer.dot(s.queryOffsetDot, VectorKernels.dot(s.queryWeights, s.codes), correction) / norms;
+			default:
+				quantizer.decode(s.codes, s.traversalVector);
+				return distanceFunction.distance(query, s.traversalVector);
+			}
+		}
+		if (traversalDimensions < dimensions) {
+			file.getFloats(codesOffset + (long) node * traversalDimensions * Float.BYTES, s.traversalVector, 0, traversalDimensions);
+			return distanceFunction.distance(query, s.traversalVector);
+		}
+		return distance(query, node, s);
+	}
+
+	private int level0Links(int node, int[] target) {
+		long position = linksOffset + (long) node * (maxM0 + 1) * Integer.BYTES;
+		int count = file.getInt(position);
+		file.getInts(position + Integer.BYTES, target, 0, count);
+		return count;
+	}
+
+	private int upperLinks(int node, int level, int[] target) {
+		int upperStart = file.getInt(levelsOffset + ((long) size + node) * Integer.BYTES);
+		long position = upperLinksOffset + ((long) upperStart + level - 1) * (m + 1) * Integer.BYTES;
+		int count = file.getInt(position);
+		file.getInts(position + Integer.BYTES, target, 0, count);
+		return count;
+	}
+
+	/**
+	 * If the index is quantized or built over traversal dimensions, the graph is traversed using int8 codes or vector prefixes and 
+	 * all nodes of the dynamic list are re-ranked using full precision vectors.
+	 * With a filter, the walk goes through all nodes, but only accepted nodes are added to the dynamic list, 
+	 * so the search continues until it finds ef accepted nodes or runs out of closer candidates.
+	 */
+	@Override
+	public int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept) {
+		return search(query, k, nodes, distances, accept, ef);
+	}
+	
+	/**
+	 * Finds nearest items accepted by the filter using the given size of the dynamic list instead of the index ef
+	 * @param query Query vector
+	 * @param k Number of items to find
+	 * @param results Results container, cleared by this method
+	 * @param filter Filter, null to accept all items
+	 * @param ef Size of the dynamic list for this search
+	 */
+	public void search(float[] query, int k, FloatSearchResults results, SearchFilter filter, int ef) {
+		IntPredicate accept = filter == null ? null : accept(filter);
+		search(k, results, (nodes, distances) -> search(query, k, nodes, distances, accept, ef));
+	}
+	
+	/**
+	 * Finds nearest accepted nodes using the given size of the dynamic list
+	 * @param ef Size of the dynamic list for this search
+	 * @see #search(float[], int, int[], float[], IntPredicate)
+	 */
+	public int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept, int ef) {
+		if (size == 0 || k <= 0) {
+			return 0;
+		}
+		if (query.length != dimensions) {
+			throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + dimensions);
+		}
+		Scratch s = scratch.borrow();
+		try {
+			return search(query, k, nodes, distances, accept, ef, s);
+		} finally {
+			scratch.release(s);
+		}
+	}
+	
+	/**
+	 * Traverses the graph using the borrowed scratch
+	 */
+	private int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept, int ef, Scratch s) {
+		float[] fullQuery = query;
+		if (traversalDimensions < dimensions) {
+			System.arraycopy(query, 0, s.traversalQuery, 0, traversalDimensions);
+			query = s.traversalQuery;
+		}
+		if (quantizer != null) {
+			weigh(query, s);
+		}
+		int current = entryPoint;
+		float currentDistance = traversalDistance(query, current, s);
+		for (int level = maxLevel; level > 0; --level) {
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				int count = upperLinks(current, level, s.neighbors);
+				for (int i = 0; i < count; ++i) {
+					int candidate = s.neighbors[i];
+					float d = traversalDistance(query, candidate, s);
+					if (d < currentDistance) {
+						currentDistance = d;
+						current = candidate;
+						changed = true;
+					}
+				}
+			}
+		}
+
+		int beam = Math.max(ef, k);
+		s.newVisit();
+		s.candidates.clear();
+		s.results.clear();
+		s.visited[current] = s.visitedMark;
+		s.candidates.push(current, currentDistance);
+		if (accept == null || accept.test(current)) {
+			s.results.push(current, currentDistance);
+		}
+		while (!s.candidates.isEmpty()) {
+			if (s.results.size() >= beam && s.candidates.topDistance() > s.results.topDistance()) {
+				break;
+			}
+			int candidate = s.candidates.pop();
+			int count = level0Links(candidate, s.neighbors);
+			for (int i = 0; i < count; ++i) {
+				int neighbor = s.neighbors[i];
+				if (s.visited[neighbor] == s.visitedMark) {
+					continue;
+				}
+				s.visited[neighbor] = s.visitedMark;
+				float d = traversalDistance(query, neighbor, s);
+				if (s.results.size() < beam || d < s.results.topDistance()) {
+					s.candidates.push(neighbor, d);
+					if (accept == null || accept.test(neighbor)) {
+						s.results.push(neighbor, d);
+						if (s.results.size() > beam) {
+							s.results.pop();
+						}
+					}
+				}
+			}
+		}
+		if (isReRanked()) {
+			s.reRanked.clear();
+			while (!s.results.isEmpty()) {
+				int node = s.results.pop();
+				float d = distance(fullQuery, node, s);
+				if (s.reRanked.size() < k || d < s.reRanked.topDistance()) {
+					s.reRanked.push(node, d);
+					if (s.reRanked.size() > k) {
+						s.reRanked.pop();
+					}
+				}
+			}
+			return s.reRanked.drainAscending(nodes, distances);
+		}
+		while (s.results.size() > k) {
+			s.results.pop();
+		}
+		return s.results.drainAscending(nodes, distances);
+	}
+
+}
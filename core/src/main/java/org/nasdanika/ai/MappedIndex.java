@@ -0,0 +1,499 @@
+package org.nasdanika.ai;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.IntPredicate;
+
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.Index;
+import com.github.jelmerk.hnswlib.core.SearchResult;
+
+/**
+ * Base class for read-only indices stored in a single file mapped into memory.
+ * All formats share the header layout (little-endian):
+ * magic (int) at 0, version (int) at 4, dimensions (int) at 8, size (int) at 12, 
+ * serialized distance function length (int) at 36, vectors offset (long) at 40, 
+ * ids offset (long) at 72, file length (long) at 88, and URI dictionary offset (long) at 120.
+ * The header is followed by the serialized distance function.
+ * Ids are stored as packed {@link UriDictionary} keys followed by a dictionary of URIs, 
+ * URIs are decoded on first access and shared by all chunks of a document. 
+ * Zero vectors offset means that full precision vectors are stored in a separate file next to the index file (see {@link #getVectorsPath(Path)}), 
+ * so the index file contains only the data used to traverse the index.
+ * The vectors file header contains magic (int) at 0, version (int) at 4, dimensions (int) at 8, size (int) at 12 and file length (long) at 16. 
+ * Vectors start at offset 64.
+ * Other header fields are format specific.
+ * Index files are written to a temporary file which is then atomically moved over the target file, 
+ * so rebuilding an index does not affect open indices mapping the previous file.
+ * Mapped indices are not serializable, {@link #save(OutputStream)} copies the index file.
+ */
+public abstract class MappedIndex implements Index<IndexId, float[], EmbeddingsItem, Float>, UriSource, AutoCloseable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int HEADER_SIZE = 128;
+	static final int ALIGNMENT = 64;
+	static final int URI_DICTIONARY_OFFSET = 120;
+	
+	static final int VECTORS_MAGIC = 0x3146564E; // NVF1
+	static final int VECTORS_VERSION = 1;
+	static final int VECTORS_HEADER_SIZE = 64;
+	
+	/**
+	 * Extension of the separate vectors file
+	 */
+	public static final String VECTORS_EXTENSION = ".vectors";
+
+	final transient MappedFile file;
+	
+	/**
+	 * Index file or a separate vectors file
+	 */
+	private final transient MappedFile vectorsFile;
+	protected final int dimensions;
+	protected final int size;
+	protected final DistanceFunction<float[], Float> distanceFunction;
+	private final long vectorsOffset;
+	private final long idsOffset;
+	private final long uriDictionaryOffset;
+	
+	/**
+	 * Decoded URIs
+	 */
+	private final String[] uris;
+
+	private transient Map<IndexId, Integer> lookup;
+	
+	private static class ResultBuffers {
+		
+		int[] nodes = new int[16];
+		float[] distances = new float[16];
+		
+	}
+	
+	private final transient ScratchPool<ResultBuffers> resultBuffers = new ScratchPool<>(ResultBuffers::new);
+
+	/**
+	 * Maps the index file into memory and reads the common header fields
+	 * @param path Index file
+	 * @param magic Format signature
+	 * @param version Format version
+	 * @param kind Index kind for error messages
+	 * @throws IOException
+	 */
+	protected MappedIndex(Path path, int magic, int version, String kind) throws IOException {
+		file = new MappedFile(path);
+		if (file.length() < HEADER_SIZE || file.getInt(0) != magic) {
+			throw new IOException("Not a " + kind + ": " + path);
+		}
+		int fileVersion = file.getInt(4);
+		if (fileVersion != version) {
+			throw new IOException("Unsupported " + kind + " version " + fileVersion + ": " + path);
+		}
+		if (file.getLong(88) != file.length()) {
+			throw new IOException("Truncated " + kind + ": " + path);
+		}
+		dimensions = file.getInt(8);
+		size = file.getInt(12);
+		long offset = file.getLong(40);
+		if (offset == 0) {
+			Path vectorsPath = getVectorsPath(path);
+			vectorsFile = new MappedFile(vectorsPath);
+			if (vectorsFile.length() < VECTORS_HEADER_SIZE || vectorsFile.getInt(0) != VECTORS_MAGIC || vectorsFile.getInt(4) != VECTORS_VERSION) {
+				throw new IOException("Not a vectors file: " + vectorsPath);
+			}
+			if (vectorsFile.getInt(8) != dimensions || vectorsFile.getInt(12) != size) {
+				throw new IOException("Vectors file does not match " + kind + ": " + vectorsPath);
+			}
+			if (vectorsFile.getLong(16) != vectorsFile.length()) {
+				throw new IOException("Truncated vectors file: " + vectorsPath);
+			}
+			vectorsOffset = VECTORS_HEADER_SIZE;
+		} else {
+			vectorsFile = file;
+			vectorsOffset = offset;
+		}
+		idsOffset = file.getLong(72);
+		uriDictionaryOffset = file.getLong(URI_DICTIONARY_OFFSET);
+		uris = new String[(int) file.getLong(uriDictionaryOffset)];
+
+		int distanceLength = file.getInt(36);
+		byte[] distanceBytes = new byte[distanceLength];
+		file.getBytes(HEADER_SIZE, distanceBytes, 0, distanceLength);
+		try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(distanceBytes))) {
+			@SuppressWarnings("unchecked")
+			DistanceFunction<float[], Float> df = (DistanceFunction<float[], Float>) ois.readObject();
+			distanceFunction = df;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot load distance function: " + e, e);
+		}
+	}
+
+	/**
+	 * @param path
+	 * @param magic
+	 * @return true if the file starts with the signature
+	 * @throws IOException
+	 */
+	protected static boolean hasMagic(Path path, int magic) throws IOException {
+		try (FileChannel channel = FileChannel.open(path)) {
+			ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) == -1) {
+					return false;
+				}
+			}
+			return buffer.getInt(0) == magic;
+		}
+	}
+
+	/**
+	 * @param path Index file
+	 * @return Path of the file with full precision vectors stored separately from the index file
+	 */
+	public static Path getVectorsPath(Path path) {
+		return path.resolveSibling(path.getFileName() + VECTORS_EXTENSION);
+	}
+	
+	/**
+	 * Writes vectors in the separate vectors file format
+	 * @param path Index file, vectors are written to {@link #getVectorsPath(Path)}
+	 */
+	static void writeVectors(Path path, float[][] vectors, int count, int dimensions) throws IOException {
+		MappedFile.write(getVectorsPath(path), channel -> {
+			MappedFile.Writer writer = new MappedFile.Writer(channel);
+			writer.putInt(VECTORS_MAGIC);
+			writer.putInt(VECTORS_VERSION);
+			writer.putInt(dimensions);
+			writer.putInt(count);
+			writer.putLong(VECTORS_HEADER_SIZE + (long) count * dimensions * Float.BYTES);
+			writer.align(VECTORS_HEADER_SIZE);
+			for (int i = 0; i < count; ++i) {
+				writer.putFloats(vectors[i]);
+			}
+			writer.close();
+		});
+	}
+
+	/**
+	 * @return true if full precision vectors are stored in a separate file
+	 */
+	public boolean hasSeparateVectors() {
+		return vectorsFile != file;
+	}
+
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	public DistanceFunction<float[], Float> getDistanceFunction() {
+		return distanceFunction;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Reads node vector into the target array
+	 */
+	public void getVector(int node, float[] target) {
+		vectorsFile.getFloats(vectorsOffset + (long) node * dimensions * Float.BYTES, target, 0, dimensions);
+	}
+
+	/**
+	 * @return Packed id key of a node, see {@link UriDictionary#key(int, int)}
+	 */
+	public long getKey(int node) {
+		return file.getLong(idsOffset + (long) node * Long.BYTES);
+	}
+
+	/**
+	 * @return URI decoded from the mapped file on first access
+	 */
+	@Override
+	public String getUri(int uriNumber) {
+		String uri = uris[uriNumber];
+		if (uri == null) {
+			// Benign race - concurrent readers may decode the same URI 
+			uri = file.getUri(uriDictionaryOffset, uriNumber);
+			uris[uriNumber] = uri;
+		}
+		return uri;
+	}
+
+	/**
+	 * @return Id of a node decoded from the mapped file
+	 */
+	public IndexId getId(int node) {
+		long key = getKey(node);
+		return new IndexId(getUri(UriDictionary.uriNumber(key)), UriDictionary.index(key));
+	}
+
+	/**
+	 * @return Node predicate testing the filter with node URI and index without materializing the node id
+	 */
+	protected IntPredicate accept(SearchFilter filter) {
+		return node -> {
+			long key = getKey(node);
+			return filter.test(getUri(UriDictionary.uriNumber(key)), UriDictionary.index(key));
+		};
+	}
+
+	/**
+	 * Materializes an item with a copy of the node vector
+	 */
+	public EmbeddingsItem getItem(int node) {
+		float[] vector = new float[dimensions];
+		getVector(node, vector);
+		return new EmbeddingsItem(getId(node), vector, dimensions);
+	}
+
+	/**
+	 * Finds nearest nodes
+	 * @param query Query vector
+	 * @param k Number of nodes to find
+	 * @param nodes Output array for node numbers, shall be at least k long
+	 * @param distances Output array for distances, shall be at least k long
+	 * @return Number of found nodes. Nodes are sorted by distance in ascending order.
+	 */
+	public int search(float[] query, int k, int[] nodes, float[] distances) {
+		return search(query, k, nodes, distances, null);
+	}
+
+	/**
+	 * Finds nearest accepted nodes. The filter is applied during search, not to its results.
+	 * @param query Query vector
+	 * @param k Number of nodes to find
+	 * @param nodes Output array for node numbers, shall be at least k long
+	 * @param distances Output array for distances, shall be at least k long
+	 * @param accept Node filter, null to accept all nodes
+	 * @return Number of found nodes. Nodes are sorted by distance in ascending order.
+	 */
+	public abstract int search(float[] query, int k, int[] nodes, float[] distances, IntPredicate accept);
+	
+	/**
+	 * Exact search of accepted nodes
+	 * @return Number of found nodes. Nodes are sorted by distance in ascending order.
+	 */
+	protected int scan(float[] query, int k, int[] nodes, float[] distances, BitSet accept) {
+		NodeHeap heap = new NodeHeap(true, k + 1);
+		float[] vector = new float[dimensions];
+		for (int node = accept.nextSetBit(0); node >= 0 && node < size; node = accept.nextSetBit(node + 1)) {
+			getVector(node, vector);
+			float distance = distanceFunction.distance(query, vector);
+			if (heap.size() < k || distance < heap.topDistance()) {
+				heap.push(node, distance);
+				if (heap.size() > k) {
+					heap.pop();
+				}
+			}
+		}
+		return heap.drainAscending(nodes, distances);
+	}
+	
+	/**
+	 * If a node bitmap selects fewer nodes than this threshold, they are scanned exactly instead of searching the index.
+	 * @param k Number of nodes to find
+	 */
+	protected int getExactScanThreshold(int k) {
+		return 10 * Math.max(k, 100);
+	}
+	
+	/**
+	 * Evaluates the filter for all nodes. 
+	 * The bitmap can be reused for multiple searches with {@link #search(float[], int, FloatSearchResults, BitSet)}.
+	 * @param filter
+	 * @return Bitmap of accepted nodes 
+	 */
+	public BitSet select(SearchFilter filter) {
+		BitSet ret = new BitSet(size);
+		IntPredicate accept = accept(filter);
+		for (int i = 0; i < size; ++i) {
+			if (accept.test(i)) {
+				ret.set(i);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Finds nearest nodes and adds their ids to the results container
+	 * @param query Query vector
+	 * @param k Number of nodes to find
+	 * @param results Results container, cleared by this method 
+	 */
+	public void search(float[] query, int k, FloatSearchResults results) {
+		search(query, k, results, (IntPredicate) null, null);
+	}
+
+	/**
+	 * Finds nearest items accepted by the filter. The filter is evaluated for nodes visited by the search.
+	 * @param query Query vector
+	 * @param k Number of nodes to find
+	 * @param results Results container, cleared by this method 
+	 * @param filter Filter, null to accept all items
+	 */
+	public void search(float[] query, int k, FloatSearchResults results, SearchFilter filter) {
+		search(query, k, results, filter == null ? null : accept(filter), null);
+	}
+
+	/**
+	 * Finds nearest nodes selected by the bitmap. If the bitmap selects few nodes, they are scanned exactly.
+	 * @param query Query vector
+	 * @param k Number of nodes to find
+	 * @param results Results container, cleared by this method 
+	 * @param accept Accepted nodes, see {@link #select(SearchFilter)}
+	 */
+	public void search(float[] query, int k, FloatSearchResults results, BitSet accept) {
+		search(query, k, results, accept::get, accept.cardinality() <= getExactScanThreshold(k) ? accept : null);
+	}
+
+	private void search(float[] query, int k, FloatSearchResults results, IntPredicate accept, BitSet scan) {
+		search(k, results, (nodes, distances) -> scan == null ? search(query, k, nodes, distances, accept) : scan(query, k, nodes, distances, scan));
+	}
+	
+	/**
+	 * Search of nodes into output arrays
+	 */
+	@FunctionalInterface
+	protected interface NodeSearch {
+		
+		/**
+		 * @return Number of found nodes
+		 */
+		int search(int[] nodes, float[] distances);
+		
+	}
+	
+	/**
+	 * Executes node search with pooled output arrays and adds keys of found nodes to the results container
+	 * @param k Number of nodes to find
+	 * @param results Results container, cleared by this method
+	 * @param nodeSearch
+	 */
+	protected void search(int k, FloatSearchResults results, NodeSearch nodeSearch) {
+		results.clear();
+		ResultBuffers buffers = resultBuffers.borrow();
+		try {
+			if (buffers.nodes.length < k) {
+				buffers.nodes = new int[k];
+				buffers.distances = new float[k];
+			}
+			int count = nodeSearch.search(buffers.nodes, buffers.distances);
+			for (int i = 0; i < count; ++i) {
+				results.add(this, getKey(buffers.nodes[i]), buffers.distances[i]);
+			}
+		} finally {
+			resultBuffers.release(buffers);
+		}
+	}
+
+	@Override
+	public List<SearchResult<EmbeddingsItem, Float>> findNearest(float[] vector, int k) {
+		int[] nodes = new int[k];
+		float[] distances = new float[k];
+		int count = search(vector, k, nodes, distances);
+		List<SearchResult<EmbeddingsItem, Float>> ret = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			ret.add(SearchResult.create(getItem(nodes[i]), distances[i]));
+		}
+		return ret;
+	}
+
+	@Override
+	public boolean add(EmbeddingsItem item) {
+		throw new UnsupportedOperationException("Mapped index is read-only");
+	}
+
+	@Override
+	public boolean remove(IndexId id, long version) {
+		throw new UnsupportedOperationException("Mapped index is read-only");
+	}
+
+	private synchronized Map<IndexId, Integer> getLookup() {
+		if (lookup == null) {
+			lookup = new HashMap<>();
+			for (int i = 0; i < size; ++i) {
+				lookup.put(getId(i), i);
+			}
+		}
+		return lookup;
+	}
+
+	/**
+	 * Builds id lookup on the first call
+	 */
+	@Override
+	public Optional<EmbeddingsItem> get(IndexId id) {
+		Integer node = getLookup().get(id);
+		return node == null ? Optional.empty() : Optional.of(getItem(node));
+	}
+
+	/**
+	 * @return A view of the index which materializes items on access
+	 */
+	@Override
+	public Collection<EmbeddingsItem> items() {
+		return new AbstractList<EmbeddingsItem>() {
+
+			@Override
+			public EmbeddingsItem get(int index) {
+				return getItem(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+		};
+	}
+
+	/**
+	 * Copies the index file to the output stream. 
+	 * A separate vectors file is not copied.
+	 */
+	@Override
+	public void save(OutputStream out) throws IOException {
+		Files.copy(file.getPath(), out);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		throw new NotSerializableException(getClass().getName() + " is memory-mapped, use save() to copy the index file");
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException {
+		throw new NotSerializableException(getClass().getName() + " is memory-mapped, use load() to map the index file");
+	}
+
+	/**
+	 * Releases mapped memory references. The index shall not be used after closing.
+	 */
+	@Override
+	public void close() {
+		file.release();
+		vectorsFile.release();
+	}
+
+}
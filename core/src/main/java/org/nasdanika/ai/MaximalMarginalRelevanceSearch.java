@@ -0,0 +1,213 @@
+package org.nasdanika.ai;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.Index;
+
+/**
+ * Search decorator which diversifies results with maximal marginal relevance (MMR),
+ * so prompts built from the results do not waste tokens on near-duplicate chunks.
+ * Over-fetched candidates are selected greedily by <code>lambda * relevance - (1 - lambda) * redundancy</code>,
+ * where relevance is the cosine similarity of a candidate to the query
+ * and redundancy is the maximum cosine similarity of a candidate to already selected results.
+ * Relevance of a candidate without a vector is derived from its search distance as <code>1 - distance</code>,
+ * which is the cosine similarity for cosine distance.
+ * Candidate vectors are copied into a single row-major matrix of normalized vectors
+ * and similarities are computed with {@link VectorKernels} one matrix row per selected result.
+ * Selected results are returned in ascending order of their original distances.
+ * Results can also be limited per document, e.g. to at most two chunks of the same page.
+ */
+public class MaximalMarginalRelevanceSearch implements FloatVectorSimilaritySearch {
+
+	/**
+	 * Default number of candidates fetched from the target search relative to the number of items to return
+	 */
+	public static final int DEFAULT_OVER_FETCH = 4;
+
+	private final FloatVectorSimilaritySearch target;
+	private final Function<IndexId, float[]> vectors;
+	private final double lambda;
+	private int overFetch = DEFAULT_OVER_FETCH;
+	private int maxPerDocument = Integer.MAX_VALUE;
+
+	/**
+	 * @param target Search to diversify
+	 * @param vectors Provides candidate vectors, e.g. {@link #vectors(Index)}. Candidates without vectors are treated as not redundant.
+	 * Vectors shall have the query dimensions.
+	 * @param lambda Trade-off between relevance and diversity, 1 - relevance only, 0 - diversity only
+	 */
+	public MaximalMarginalRelevanceSearch(FloatVectorSimilaritySearch target, Function<IndexId, float[]> vectors, double lambda) {
+		if (lambda < 0 || lambda > 1) {
+			throw new IllegalArgumentException("Lambda shall be between 0 and 1: " + lambda);
+		}
+		this.target = target;
+		this.vectors = vectors;
+		this.lambda = lambda;
+	}
+
+	/**
+	 * @return Vector lookup of index items
+	 */
+	public static Function<IndexId, float[]> vectors(Index<IndexId, float[], EmbeddingsItem, Float> index) {
+		return id -> index.get(id).map(EmbeddingsItem::vector).orElse(null);
+	}
+
+	/**
+	 * Sets the number of candidates fetched from the target search relative to the number of items to return
+	 * @return this search
+	 */
+	public MaximalMarginalRelevanceSearch setOverFetch(int overFetch) {
+		this.overFetch = Math.max(1, overFetch);
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of results (chunks) with the same URI
+	 * @return this search
+	 */
+	public MaximalMarginalRelevanceSearch setMaxPerDocument(int maxPerDocument) {
+		this.maxPerDocument = Math.max(1, maxPerDocument);
+		return this;
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+		FloatSearchResults candidates = FloatSearchResults.borrow();
+		try {
+			target.find(query, numberOfItems * overFetch, candidates);
+			select(Collections.singletonList(query), candidates, numberOfItems, results);
+		} finally {
+			candidates.release();
+		}
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+		FloatSearchResults candidates = FloatSearchResults.borrow();
+		try {
+			target.find(query, numberOfItems * overFetch, candidates, filter);
+			select(Collections.singletonList(query), candidates, numberOfItems, results);
+		} finally {
+			candidates.release();
+		}
+	}
+
+	/**
+	 * Relevance of a candidate is its maximum similarity to the query vectors
+	 */
+	@Override
+	public void findMultiVector(List<float[]> queries, int numberOfItems, FloatSearchResults results, FloatSearchResults vectorResults) {
+		FloatSearchResults candidates = FloatSearchResults.borrow();
+		try {
+			target.findMultiVector(queries, numberOfItems * overFetch, candidates, vectorResults);
+			select(queries, candidates, numberOfItems, results);
+		} finally {
+			candidates.release();
+		}
+	}
+
+	@Override
+	public SearchScheduler getScheduler() {
+		return target.getScheduler();
+	}
+
+	private static void normalize(float[] matrix, int offset, int dimensions) {
+		float norm = (float) Math.sqrt(VectorKernels.dot(matrix, offset, matrix, offset, dimensions));
+		if (norm > 0) {
+			for (int i = offset, end = offset + dimensions; i < end; ++i) {
+				matrix[i] /= norm;
+			}
+		}
+	}
+
+	private void select(List<float[]> queries, FloatSearchResults candidates, int numberOfItems, FloatSearchResults results) {
+		results.clear();
+		int count = candidates.size();
+		if (count == 0 || numberOfItems <= 0) {
+			return;
+		}
+		int dimensions = queries.get(0).length;
+		float[] matrix = new float[count * dimensions];
+		boolean[] hasVector = new boolean[count];
+		for (int i = 0; i < count; ++i) {
+			IndexId id = candidates.getId(i);
+			float[] vector = vectors.apply(id);
+			if (vector != null) {
+				if (vector.length != dimensions) {
+					throw new IllegalArgumentException("Vector of " + id + " has " + vector.length + " dimensions, expected " + dimensions);
+				}
+				System.arraycopy(vector, 0, matrix, i * dimensions, dimensions);
+				normalize(matrix, i * dimensions, dimensions);
+				hasVector[i] = true;
+			}
+		}
+
+		float[] relevance = new float[count];
+		for (int i = 0; i < count; ++i) {
+			// Distance of a multi-vector candidate is the minimum over queries, i.e. the maximum similarity
+			relevance[i] = hasVector[i] ? Float.NEGATIVE_INFINITY : 1 - candidates.getDistance(i);
+		}
+		float[] query = new float[dimensions];
+		for (float[] q: queries) {
+			if (q.length != dimensions) {
+				throw new IllegalArgumentException("Query has " + q.length + " dimensions, expected " + dimensions);
+			}
+			System.arraycopy(q, 0, query, 0, dimensions);
+			normalize(query, 0, dimensions);
+			for (int i = 0; i < count; ++i) {
+				if (hasVector[i]) {
+					relevance[i] = Math.max(relevance[i], VectorKernels.dot(query, 0, matrix, i * dimensions, dimensions));
+				}
+			}
+		}
+
+		float[] redundancy = new float[count];
+		boolean[] selected = new boolean[count];
+		int[] selection = new int[Math.min(numberOfItems, count)];
+		int selectionSize = 0;
+		Map<String, Integer> perDocument = new HashMap<>();
+		while (selectionSize < selection.length) {
+			int best = -1;
+			double bestScore = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < count; ++i) {
+				if (selected[i] || perDocument.getOrDefault(candidates.getUri(i), 0) >= maxPerDocument) {
+					continue;
+				}
+				double score = lambda * relevance[i] - (1 - lambda) * redundancy[i];
+				if (score > bestScore) {
+					bestScore = score;
+					best = i;
+				}
+			}
+			if (best == -1) {
+				break;
+			}
+			selected[best] = true;
+			selection[selectionSize++] = best;
+			perDocument.merge(candidates.getUri(best), 1, Integer::sum);
+
+			// Redundancy is updated incrementally with the similarity row of the selected candidate
+			for (int i = 0; i < count; ++i) {
+				if (!selected[i]) {
+					float similarity = VectorKernels.dot(matrix, best * dimensions, matrix, i * dimensions, dimensions);
+					redundancy[i] = selectionSize == 1 ? similarity : Math.max(redundancy[i], similarity);
+				}
+			}
+		}
+
+		// Candidates are in ascending distance order
+		Arrays.sort(selection, 0, selectionSize);
+		for (int i = 0; i < selectionSize; ++i) {
+			results.add(candidates, selection[i]);
+		}
+	}
+
+}
@@ -0,0 +1,121 @@
+package org.nasdanika.ai;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of (node, distance) pairs stored in parallel primitive arrays.
+ * Used by graph traversal to avoid boxing and per-candidate allocation.
+ * Not thread safe - instances are meant to be reused by a single thread.
+ */
+class NodeHeap {
+
+	private final boolean max;
+	private int[] nodes;
+	private float[] distances;
+	private int size;
+
+	/**
+	 * @param max If true, the top of the heap is the node with the greatest distance
+	 * @param initialCapacity
+	 */
+	NodeHeap(boolean max, int initialCapacity) {
+		this.max = max;
+		nodes = new int[Math.max(initialCapacity, 1)];
+		distances = new float[nodes.length];
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	int topNode() {
+		return nodes[0];
+	}
+
+	float topDistance() {
+		return distances[0];
+	}
+
+	/**
+	 * @return true if a should be above b
+	 */
+	private boolean above(float a, float b) {
+		return max ? a > b : a < b;
+	}
+
+	void push(int node, float distance) {
+		if (size == nodes.length) {
+			nodes = Arrays.copyOf(nodes, size * 2);
+			distances = Arrays.copyOf(distances, size * 2);
+		}
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!above(distance, distances[parent])) {
+				break;
+			}
+			nodes[i] = nodes[parent];
+			distances[i] = distances[parent];
+			i = parent;
+		}
+		nodes[i] = node;
+		distances[i] = distance;
+	}
+
+	/**
+	 * Removes the top element
+	 * @return Node of the removed element
+	 */
+	int pop() {
+		int ret = nodes[0];
+		--size;
+		if (size > 0) {
+			int node = nodes[size];
+			float distance = distances[size];
+			int i = 0;
+			int half = size >>> 1;
+			while (i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+				if (right < size && above(distances[right], distances[child])) {
+					child = right;
+				}
+				if (!above(distances[child], distance)) {
+					break;
+				}
+				nodes[i] = nodes[child];
+				distances[i] = distances[child];
+				i = child;
+			}
+			nodes[i] = node;
+			distances[i] = distance;
+		}
+		return ret;
+	}
+
+	/**
+	 * Drains a max heap into arrays in ascending distance order
+	 * @return Number of elements written
+	 */
+	int drainAscending(int[] nodesOut, float[] distancesOut) {
+		int count = size;
+		for (int i = count - 1; i >= 0; --i) {
+			float distance = topDistance();
+			int node = pop();
+			if (i < nodesOut.length) {
+				nodesOut[i] = node;
+				distancesOut[i] = distance;
+			}
+		}
+		return Math.min(count, nodesOut.length);
+	}
+
+}
@@ -0,0 +1,77 @@
+package org.nasdanika.ai;
+
+/**
+ * Scalar kernels - used when the Vector API is not available
+ */
+class ScalarKernels implements Kernels {
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float sum = 0;
+		for (int i = 0; i < length; ++i) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float squaredEuclidean(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float sum = 0;
+		for (int i = 0; i < length; ++i) {
+			float diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public float manhattan(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		float sum = 0;
+		for (int i = 0; i < length; ++i) {
+			sum += Math.abs(a[aOffset + i] - b[bOffset + i]);
+		}
+		return sum;
+	}
+
+	@Override
+	public float cosineSimilarity(float[] a, float[] b) {
+		float dot = 0;
+		float aNorm = 0;
+		float bNorm = 0;
+		for (int i = 0; i < a.length; ++i) {
+			dot += a[i] * b[i];
+			aNorm += a[i] * a[i];
+			bNorm += b[i] * b[i];
+		}
+		return dot / (float) (Math.sqrt(aNorm) * Math.sqrt(bNorm));
+	}
+
+	@Override
+	public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; ++i) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public int squaredEuclidean(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		int sum = 0;
+		for (int i = 0; i < length; ++i) {
+			int diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, byte[] b, int bOffset, int length) {
+		float sum = 0;
+		for (int i = 0; i < length; ++i) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.nasdanika.ai;
+
+import java.util.Arrays;
+
+/**
+ * Int8 scalar quantizer.
+ * Each dimension is centered at the middle of the min/max range of the training vectors
+ * and the range is encoded into 256 levels stored as signed bytes with a per-dimension quantization step,
+ * so dimensions with narrow ranges keep their resolution next to outlier dimensions.
+ * A vector is decoded as <code>offset + scale * code</code>.
+ * The query is not quantized. Its residual (query minus offset) is weighted by the dimension steps once per search with {@link #weigh(float[], float[])}, 
+ * so its dot product with decoded vectors and the squared euclidean distance to them are computed 
+ * from one dot product of the weights and codes with {@link VectorKernels#dot(float[], byte[])} without decoding.
+ */
+public class ScalarQuantizer {
+
+	private static final int LEVELS = 255;
+
+	private final float[] offset;
+	private final float[] scale;
+
+	/**
+	 * Sum of squared offsets
+	 */
+	private final float offsetDot;
+
+	/**
+	 * @param offset Per-dimension value encoded as zero
+	 * @param scale Per-dimension size of a quantization step
+	 */
+	public ScalarQuantizer(float[] offset, float[] scale) {
+		this.offset = offset;
+		this.scale = scale;
+		offsetDot = VectorKernels.dot(offset, offset);
+	}
+
+	/**
+	 * Calibrates quantizer to per-dimension min/max of the vectors
+	 * @param vectors Training vectors
+	 * @param count Number of vectors to use
+	 * @param dimensions
+	 * @return
+	 */
+	public static ScalarQuantizer fit(float[][] vectors, int count, int dimensions) {
+		float[] min = new float[dimensions];
+		float[] max = new float[dimensions];
+		Arrays.fill(min, Float.POSITIVE_INFINITY);
+		Arrays.fill(max, Float.NEGATIVE_INFINITY);
+		for (int i = 0; i < count; ++i) {
+			float[] vector = vectors[i];
+			for (int j = 0; j < dimensions; ++j) {
+				min[j] = Math.min(min[j], vector[j]);
+				max[j] = Math.max(max[j], vector[j]);
+			}
+		}
+		float[] offset = new float[dimensions];
+		float[] scale = new float[dimensions];
+		if (count > 0) {
+			for (int j = 0; j < dimensions; ++j) {
+				offset[j] = (min[j] + max[j]) / 2;
+				scale[j] = (max[j] - min[j]) / LEVELS;
+			}
+		}
+		return new ScalarQuantizer(offset, scale);
+	}
+
+	public int getDimensions() {
+		return offset.length;
+	}
+
+	float[] getOffset() {
+		return offset;
+	}
+
+	float[] getScale() {
+		return scale;
+	}
+
+	/**
+	 * Encodes vector into codes. Values outside of the calibration range are clamped.
+	 */
+	public void encode(float[] vector, byte[] codes) {
+		for (int i = 0; i < offset.length; ++i) {
+			int code = scale[i] == 0 ? 0 : Math.round((vector[i] - offset[i]) / scale[i]);
+			codes[i] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, code));
+		}
+	}
+
+	/**
+	 * Decodes codes into the approximation of the original vector
+	 */
+	public void decode(byte[] codes, float[] vector) {
+		for (int i = 0; i < offset.length; ++i) {
+			vector[i] = offset[i] + codes[i] * scale[i];
+		}
+	}
+
+	/**
+	 * @return Dot product of the offsets and the decoded vector residuals.
+	 * It is computed once per vector and passed to {@link #dot(float, float, float)}.
+	 */
+	public float correction(byte[] codes) {
+		float correction = 0;
+		for (int i = 0; i < offset.length; ++i) {
+			correction += offset[i] * scale[i] * codes[i];
+		}
+		return correction;
+	}
+
+	/**
+	 * @return Squared norm of the decoded vector residual (decoded vector minus offset).
+	 * It is computed once per vector and passed to {@link #squaredEuclidean(float, float, float)}.
+	 */
+	public float squaredResidual(byte[] codes) {
+		float squaredResidual = 0;
+		for (int i = 0; i < offset.length; ++i) {
+			float residual = scale[i] * codes[i];
+			squaredResidual += residual * residual;
+		}
+		return squaredResidual;
+	}
+
+	/**
+	 * @return Norm of the decoded vector computed from its correction and squared residual
+	 */
+	public float norm(float correction, float squaredResidual) {
+		return (float) Math.sqrt(Math.max(0, offsetDot + 2 * correction + squaredResidual));
+	}
+
+	/**
+	 * Computes query residual (query minus offset) weighted by the dimension steps. 
+	 * Dot product of the weights and codes of a vector is the dot product of the query and vector residuals.
+	 */
+	public void weigh(float[] query, float[] weights) {
+		for (int i = 0; i < offset.length; ++i) {
+			weights[i] = (query[i] - offset[i]) * scale[i];
+		}
+	}
+
+	/**
+	 * @return Dot product of the query and the offsets. Computed once per query.
+	 */
+	public float offsetDot(float[] query) {
+		return VectorKernels.dot(query, 0, offset, 0, offset.length);
+	}
+
+	/**
+	 * @return Squared norm of the query residual (query minus offset). Computed once per query.
+	 */
+	public float squaredResidual(float[] query) {
+		float squaredResidual = 0;
+		for (int i = 0; i < offset.length; ++i) {
+			float residual = query[i] - offset[i];
+			squaredResidual += residual * residual;
+		}
+		return squaredResidual;
+	}
+
+	/**
+	 * @param queryOffsetDot {@link #offsetDot(float[])} of the query
+	 * @param residualDot Dot product of the query weights and vector codes
+	 * @param correction {@link #correction(byte[])} of the vector
+	 * @return Dot product of the query and the decoded vector
+	 */
+	public float dot(float queryOffsetDot, float residualDot, float correction) {
+		return queryOffsetDot + residualDot + correction;
+	}
+
+	/**
+	 * @param querySquaredResidual {@link #squaredResidual(float[])} of the query
+	 * @param residualDot Dot product of the query weights and vector codes
+	 * @param squaredResidual {@link #squaredResidual(byte[])} of the vector
+	 * @return Squared euclidean distance between the query and the decoded vector
+	 */
+	public float squaredEuclidean(float querySquaredResidual, float residualDot, float squaredResidual) {
+		return Math.max(0, querySquaredResidual - 2 * residualDot + squaredResidual);
+	}
+
+}
@@ -0,0 +1,95 @@
+package org.nasdanika.ai;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Bounded pool of reusable search state (scratch) which is not tied to threads.
+ * Scratch is borrowed for one search and released after it,
+ * so searches executed on short-lived threads, e.g. virtual threads of {@link SearchScheduler},
+ * do not allocate it per search.
+ * The pool retains at most {@link #getCapacity()} instances times the number of instances used per search,
+ * the capacity is raised to max in-flight searches of created schedulers.
+ * The lock is held only to push or pop an instance and does not pin virtual threads.
+ */
+class ScratchPool<T> {
+
+	private static volatile int capacity = Runtime.getRuntime().availableProcessors();
+
+	private final Supplier<T> factory;
+	private final int perSearch;
+	private final ReentrantLock lock = new ReentrantLock();
+	private Object[] instances = new Object[0];
+	private int size;
+
+	/**
+	 * @param factory Creates scratch when the pool is empty
+	 */
+	ScratchPool(Supplier<T> factory) {
+		this(factory, 1);
+	}
+
+	/**
+	 * @param factory Creates scratch when the pool is empty
+	 * @param perSearch Number of instances a single search may hold at the same time
+	 */
+	ScratchPool(Supplier<T> factory, int perSearch) {
+		this.factory = factory;
+		this.perSearch = perSearch;
+	}
+
+	/**
+	 * @return Number of concurrent searches for which scratch is retained
+	 */
+	static int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Raises the capacity of all pools
+	 * @param concurrentSearches Number of concurrent searches
+	 */
+	static synchronized void ensureCapacity(int concurrentSearches) {
+		if (concurrentSearches > capacity) {
+			capacity = concurrentSearches;
+		}
+	}
+
+	/**
+	 * @return Pooled scratch or a new one if the pool is empty
+	 */
+	@SuppressWarnings("unchecked")
+	T borrow() {
+		lock.lock();
+		try {
+			if (size > 0) {
+				T ret = (T) instances[--size];
+				instances[size] = null;
+				return ret;
+			}
+		} finally {
+			lock.unlock();
+		}
+		return factory.get();
+	}
+
+	/**
+	 * Returns scratch to the pool. If the pool is full, the scratch is left to the garbage collector.
+	 */
+	void release(T scratch) {
+		lock.lock();
+		try {
+			int max = capacity * perSearch;
+			if (size < max) {
+				if (size == instances.length) {
+					instances = Arrays.copyOf(instances, max);
+				}
+				instances[size++] = scratch;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
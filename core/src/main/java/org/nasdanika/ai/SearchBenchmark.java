@@ -0,0 +1,187 @@
+package org.nasdanika.ai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+
+/**
+ * Measures recall and latency of approximate vector searches, e.g. for tuning of HNSW ef and m parameters.
+ * Exact ground truth is computed once with a parallel brute-force scan of a {@link FlatIndex}.
+ */
+public class SearchBenchmark {
+
+	/**
+	 * Benchmark result
+	 * @param parameters Search parameters, e.g. ef and m
+	 * @param k Number of items to find
+	 * @param queries Number of measured queries
+	 * @param recall Average fraction of exact k nearest neighbors found by the search
+	 * @param qps Queries per second of sequential execution
+	 * @param p50 Median latency in milliseconds
+	 * @param p95 95th percentile latency in milliseconds
+	 * @param p99 99th percentile latency in milliseconds
+	 */
+	public record Result(Map<String, Object> parameters, int k, int queries, double recall, double qps, double p50, double p95, double p99) {
+
+		public JSONObject toJSON() {
+			JSONObject ret = new JSONObject();
+			ret.put("parameters", new JSONObject(parameters));
+			ret.put("k", k);
+			ret.put("queries", queries);
+			ret.put("recall", recall);
+			ret.put("qps", qps);
+			ret.put("p50", p50);
+			ret.put("p95", p95);
+			ret.put("p99", p99);
+			return ret;
+		}
+
+	}
+
+	private final List<float[]> queries;
+	private final int k;
+	private final List<Set<IndexId>> groundTruth;
+
+	/**
+	 * Computes ground truth
+	 * @param items Indexed items
+	 * @param queries Query vectors
+	 * @param k Number of items to find
+	 * @param distanceFunction Distance function of the benchmarked index
+	 */
+	public SearchBenchmark(Collection<EmbeddingsItem> items, List<float[]> queries, int k, DistanceFunction<float[], Float> distanceFunction) {
+		this.queries = queries;
+		this.k = k;
+		int dimensions = queries.isEmpty() ? 0 : queries.get(0).length;
+		FlatIndex exact = new FlatIndex(dimensions, distanceFunction, items.size());
+		for (EmbeddingsItem item: items) {
+			exact.add(item);
+		}
+		exact.setParallelism(1); // Parallel over queries
+		FloatSearchResults[] exactResults = new FloatSearchResults[queries.size()];
+		IntStream.range(0, queries.size()).parallel().forEach(i -> {
+			exactResults[i] = new FloatSearchResults(k);
+			exact.search(queries.get(i), k, exactResults[i]);
+		});
+		groundTruth = new ArrayList<>(exactResults.length);
+		for (FloatSearchResults results: exactResults) {
+			Set<IndexId> ids = new HashSet<>();
+			for (int i = 0; i < results.size(); ++i) {
+				ids.add(results.getId(i));
+			}
+			groundTruth.add(ids);
+		}
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public List<float[]> getQueries() {
+		return queries;
+	}
+
+	/**
+	 * Executes queries sequentially, measures recall and latency
+	 * @param parameters Search parameters to report
+	 * @param search Benchmarked search
+	 * @param warmup Number of queries to execute before measurement
+	 * @return
+	 */
+	public Result run(Map<String, Object> parameters, FloatVectorSimilaritySearch search, int warmup) {
+		FloatSearchResults results = new FloatSearchResults(k);
+		for (int i = 0; i < warmup && !queries.isEmpty(); ++i) {
+			search.find(queries.get(i % queries.size()), k, results);
+		}
+
+		long[] latencies = new long[queries.size()];
+		long hits = 0;
+		long expected = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < latencies.length; ++i) {
+			long queryStart = System.nanoTime();
+			search.find(queries.get(i), k, results);
+			latencies[i] = System.nanoTime() - queryStart;
+			Set<IndexId> truth = groundTruth.get(i);
+			for (int j = 0; j < results.size(); ++j) {
+				if (truth.contains(results.getId(j))) {
+					++hits;
+				}
+			}
+			expected += truth.size();
+		}
+		long total = System.nanoTime() - start;
+		Arrays.sort(latencies);
+		return new Result(
+				new LinkedHashMap<>(parameters),
+				k,
+				latencies.length,
+				expected == 0 ? 1 : (double) hits / expected,
+				total == 0 ? 0 : latencies.length * 1e9 / total,
+				percentile(latencies, 0.5),
+				percentile(latencies, 0.95),
+				percentile(latencies, 0.99));
+	}
+
+	/**
+	 * @return Nearest rank percentile of sorted latencies in milliseconds
+	 */
+	private static double percentile(long[] sortedLatencies, double percentile) {
+		if (sortedLatencies.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile * sortedLatencies.length);
+		return sortedLatencies[Math.max(0, Math.min(sortedLatencies.length, rank) - 1)] / 1e6;
+	}
+
+	public static String toJson(List<Result> results) {
+		JSONArray ret = new JSONArray();
+		for (Result result: results) {
+			ret.put(result.toJSON());
+		}
+		return ret.toString(2);
+	}
+
+	/**
+	 * @return CSV with a column per parameter followed by k, queries, recall, qps, p50, p95 and p99 columns
+	 */
+	public static String toCsv(List<Result> results) {
+		Set<String> parameterNames = new LinkedHashSet<>();
+		for (Result result: results) {
+			parameterNames.addAll(result.parameters().keySet());
+		}
+		StringBuilder ret = new StringBuilder();
+		for (String name: parameterNames) {
+			ret.append(name).append(',');
+		}
+		ret.append("k,queries,recall,qps,p50,p95,p99").append(System.lineSeparator());
+		for (Result result: results) {
+			for (String name: parameterNames) {
+				Object value = result.parameters().get(name);
+				ret.append(value == null ? "" : value).append(',');
+			}
+			ret
+				.append(result.k()).append(',')
+				.append(result.queries()).append(',')
+				.append(String.format(Locale.ROOT, "%.4f,%.1f,%.3f,%.3f,%.3f", result.recall(), result.qps(), result.p50(), result.p95(), result.p99()))
+				.append(System.lineSeparator());
+		}
+		return ret.toString();
+	}
+
+}
@@ -0,0 +1,174 @@
+package org.nasdanika.ai;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Size and time-to-live bounded least recently used cache of search queries and results or query embeddings.
+ * Used by {@link SimilaritySearch#cache(SearchCache)} and {@link FloatVectorEmbeddingGenerator#cache(SearchCache)}.
+ * Call {@link #invalidateAll()} when the underlying index is replaced or modified.
+ * Values loaded by searches started before invalidation are not cached.
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class SearchCache<K,V> {
+
+	/**
+	 * Results cache key
+	 */
+	public record Query<T>(T query, int numberOfItems) {}
+
+	private record Entry<V>(V value, long expires) {}
+
+	private final int maxSize;
+	private final long ttl;
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private long generation;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * @param maxSize Maximum number of cached entries, least recently used entries are evicted
+	 * @param ttl Time to live of an entry, null for no expiration
+	 */
+	public SearchCache(int maxSize, Duration ttl) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Max size shall be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.ttl = ttl == null ? Long.MAX_VALUE : ttl.toNanos();
+		entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * @return Cached value or null if there is no cached value or it has expired
+	 */
+	public synchronized V get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry != null && entry.expires() - System.nanoTime() < 0) {
+			entries.remove(key);
+			evictions.increment();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.value();
+	}
+
+	public synchronized void put(K key, V value) {
+		put(key, value, generation);
+	}
+
+	/**
+	 * Puts the value if the cache has not been invalidated since the value load started
+	 */
+	private synchronized void put(K key, V value, long loadGeneration) {
+		if (value == null || loadGeneration != generation) {
+			return;
+		}
+		long now = System.nanoTime();
+		entries.put(key, new Entry<>(value, ttl == Long.MAX_VALUE ? now + Long.MAX_VALUE / 2 : now + ttl));
+		if (entries.size() > maxSize) {
+			Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+			while (entries.size() > maxSize) {
+				it.next();
+				it.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	private synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns a cached value or computes and caches it
+	 * @param key
+	 * @param loader Computes value on cache miss
+	 * @return
+	 */
+	public V get(K key, Supplier<V> loader) {
+		long loadGeneration = getGeneration();
+		V ret = get(key);
+		if (ret == null) {
+			ret = loader.get();
+			put(key, ret, loadGeneration);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns a cached value or loads and caches it on subscription
+	 * @param key
+	 * @param loader Loads value on cache miss
+	 * @return
+	 */
+	public Mono<V> getAsync(K key, Supplier<Mono<V>> loader) {
+		return Mono.defer(() -> {
+			long loadGeneration = getGeneration();
+			V cached = get(key);
+			if (cached != null) {
+				return Mono.just(cached);
+			}
+			return loader.get().doOnNext(value -> put(key, value, loadGeneration));
+		});
+	}
+
+	/**
+	 * Removes all entries, e.g. when the index is swapped. Loads in progress are not cached.
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+		++generation;
+		invalidations.increment();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return Number of entries removed because of size limit or expiration
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	/**
+	 * @return Ratio of hits to lookups, 0 if there were no lookups
+	 */
+	public double getHitRate() {
+		long h = getHits();
+		long total = h + getMisses();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+}
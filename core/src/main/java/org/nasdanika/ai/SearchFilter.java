@@ -0,0 +1,71 @@
+package org.nasdanika.ai;
+
+import java.util.Collection;
+import java.util.Set;
+
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+/**
+ * Predicate on index item ids used to restrict vector search results.
+ * Indices which support filtering apply the filter during search, e.g. during HNSW graph traversal,
+ * so the requested number of matching items is returned even for selective filters.
+ * Other searches over-fetch and discard non-matching results, 
+ * see {@link FloatVectorSimilaritySearch#find(float[], int, FloatSearchResults, SearchFilter)}.
+ * Use {@link AttributeStore} to filter by item attributes.
+ */
+@FunctionalInterface
+public interface SearchFilter {
+	
+	/**
+	 * Tests an item without materializing its id, so indices evaluate filters during traversal without allocation.
+	 * @param uri Item URI
+	 * @param index Item index
+	 * @return true if the item may be returned by the search
+	 */
+	boolean test(String uri, int index);
+	
+	/**
+	 * @param id Item id
+	 * @return true if the item may be returned by the search
+	 */
+	default boolean test(IndexId id) {
+		return test(id.uri(), id.index());
+	}
+	
+	default SearchFilter and(SearchFilter other) {
+		return (uri, index) -> test(uri, index) && other.test(uri, index);
+	}
+	
+	default SearchFilter or(SearchFilter other) {
+		return (uri, index) -> test(uri, index) || other.test(uri, index);
+	}
+	
+	default SearchFilter negate() {
+		return (uri, index) -> !test(uri, index);
+	}
+	
+	/**
+	 * @param prefixes
+	 * @return Filter accepting items with URI starting with any of the prefixes
+	 */
+	static SearchFilter uriPrefix(String... prefixes) {
+		return (uri, index) -> {
+			for (String prefix: prefixes) {
+				if (uri.startsWith(prefix)) {
+					return true;
+				}
+			}
+			return false;
+		};
+	}
+	
+	/**
+	 * @param uris
+	 * @return Filter accepting items with the given URIs
+	 */
+	static SearchFilter uris(Collection<String> uris) {
+		Set<String> uriSet = Set.copyOf(uris);
+		return (uri, index) -> uriSet.contains(uri);
+	}
+
+}
@@ -0,0 +1,197 @@
+package org.nasdanika.ai;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Bounded executor of CPU-bound vector searches. 
+ * Searches are executed on dedicated platform or virtual threads, at most max in-flight searches at a time.
+ * Searches waiting for execution are counted as the queue depth. If the queue is full, searches fail with {@link RejectedExecutionException}.
+ * This way search load does not block threads which assemble and subscribe to reactive pipelines, such as HTTP server event loops. 
+ * Indices keep search state in pools sized to max in-flight searches, not in thread locals, 
+ * so searches on virtual threads reuse it instead of allocating it per search.
+ */
+public class SearchScheduler implements AutoCloseable {
+	
+	/**
+	 * Default max number of queued searches
+	 */
+	public static final int DEFAULT_MAX_QUEUED = 10000;
+	
+	private static volatile SearchScheduler defaultScheduler;
+	
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxInFlight;
+	private final int maxQueued;
+	private final boolean virtualThreads;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param maxInFlight Max number of searches executed at the same time
+	 * @param maxQueued Max number of searches waiting for execution
+	 * @param virtualThreads If true, each search is executed on a new virtual thread, and max in-flight is enforced by a semaphore. 
+	 * Otherwise searches are executed by a fixed pool of max in-flight daemon platform threads.
+	 */
+	public SearchScheduler(int maxInFlight, int maxQueued, boolean virtualThreads) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Max in-flight shall be positive: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		this.maxQueued = maxQueued;
+		this.virtualThreads = virtualThreads;
+		ScratchPool.ensureCapacity(maxInFlight);
+		if (virtualThreads) {
+			executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("search-", 0).factory());
+			permits = new Semaphore(maxInFlight);
+		} else {
+			executor = Executors.newFixedThreadPool(maxInFlight, Thread.ofPlatform().name("search-", 0).daemon().factory());
+			permits = null;
+		}
+	}
+	
+	/**
+	 * Shared scheduler used by {@link FloatVectorSimilaritySearch#findAsync(java.util.List, int)}.
+	 * Created on first access with the number of available processors as max in-flight and platform threads.
+	 */
+	public static SearchScheduler getDefault() {
+		SearchScheduler ret = defaultScheduler;
+		if (ret == null) {
+			synchronized (SearchScheduler.class) {
+				if (defaultScheduler == null) {
+					defaultScheduler = new SearchScheduler(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_QUEUED, false);
+				}
+				ret = defaultScheduler;
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Replaces the default scheduler. The previous scheduler is not closed.
+	 */
+	public static void setDefault(SearchScheduler scheduler) {
+		defaultScheduler = scheduler;
+	}
+	
+	/**
+	 * Executes the search on subscription. 
+	 * Cancellation of a queued search removes it from the queue, cancellation of a running search does not interrupt it.
+	 * @param <T>
+	 * @param search
+	 * @return Mono emitting search result on a search thread
+	 */
+	public <T> Mono<T> schedule(Callable<T> search) {
+		return Mono.create(sink -> {
+			if (queued.incrementAndGet() > maxQueued) {
+				queued.decrementAndGet();
+				rejected.increment();
+				sink.error(new RejectedExecutionException("Search queue is full: " + maxQueued));
+				return;
+			}
+			AtomicBoolean claimed = new AtomicBoolean();
+			sink.onCancel(() -> {
+				if (claimed.compareAndSet(false, true)) {
+					queued.decrementAndGet();
+				}
+			});
+			try {
+				executor.execute(() -> {
+					if (permits != null) {
+						permits.acquireUninterruptibly();
+					}
+					try {
+						if (!claimed.compareAndSet(false, true)) {
+							return; // Cancelled while queued
+						}
+						queued.decrementAndGet();
+						inFlight.incrementAndGet();
+						T result;
+						try {
+							result = search.call();
+						} catch (Throwable e) {
+							inFlight.decrementAndGet();
+							completed.increment();
+							sink.error(e);
+							return;
+						}
+						// Metrics are updated before signaling so subscribers observe them
+						inFlight.decrementAndGet();
+						completed.increment();
+						sink.success(result);
+					} finally {
+						if (permits != null) {
+							permits.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				if (claimed.compareAndSet(false, true)) {
+					queued.decrementAndGet();
+				}
+				rejected.increment();
+				sink.error(e);
+			}
+		});
+	}
+	
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+	
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	/**
+	 * @return Number of searches waiting for execution
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+	
+	/**
+	 * @return Number of searches being executed
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * @return Number of executed searches, including failed
+	 */
+	public long getCompleted() {
+		return completed.sum();
+	}
+	
+	/**
+	 * @return Number of searches rejected because the queue was full or the scheduler was closed
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Stops accepting new searches. Queued searches are executed.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+}
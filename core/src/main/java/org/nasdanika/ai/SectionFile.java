@@ -0,0 +1,335 @@
+package org.nasdanika.ai;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32C;
+
+/**
+ * Versioned binary file of checksummed sections, e.g. vectors and ids of an index.
+ * Layout (little-endian): magic (int), version (int), section table offset (long), followed by sections.
+ * Each section is split into blocks of {@link #BLOCK_SIZE} bytes with a CRC32C checksum per block.
+ * The section table at the end of the file contains for each section its id (int), number of blocks (int), offset (long), length (long),
+ * followed by the block checksums (int).
+ * Sections are written with a file channel and read by multiple threads with positional reads,
+ * each thread verifies checksums of the blocks it reads.
+ */
+class SectionFile {
+
+	static final int BLOCK_SIZE = 1 << 22;
+	static final int HEADER_SIZE = 16;
+
+	private record Section(long offset, long length, int[] checksums) {}
+
+	/**
+	 * Writes sections one by one. Arrays are written through a block buffer, so checksums are computed without extra copies.
+	 * A section shall contain elements of one type, so elements do not cross block boundaries.
+	 */
+	static class Writer implements Closeable {
+
+		private final FileChannel channel;
+		private final int magic;
+		private final int version;
+		private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private final CRC32C crc = new CRC32C();
+		private final List<Integer> sectionIds = new ArrayList<>();
+		private final List<Long> sectionOffsets = new ArrayList<>();
+		private final List<Long> sectionLengths = new ArrayList<>();
+		private final List<List<Integer>> sectionChecksums = new ArrayList<>();
+		private long position = HEADER_SIZE;
+		private long sectionLength;
+		private List<Integer> checksums;
+
+		Writer(Path path, int magic, int version) throws IOException {
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			this.magic = magic;
+			this.version = version;
+		}
+
+		void beginSection(int id) {
+			if (checksums != null) {
+				throw new IllegalStateException("Section is not ended");
+			}
+			sectionIds.add(id);
+			sectionOffsets.add(position);
+			sectionLength = 0;
+			checksums = new ArrayList<>();
+		}
+
+		private void ensure(int size) throws IOException {
+			if (block.remaining() < size) {
+				flushBlock();
+			}
+		}
+
+		private void flushBlock() throws IOException {
+			block.flip();
+			if (!block.hasRemaining()) {
+				block.clear();
+				return;
+			}
+			crc.reset();
+			crc.update(block.duplicate());
+			checksums.add((int) crc.getValue());
+			while (block.hasRemaining()) {
+				position += channel.write(block, position);
+			}
+			block.clear();
+		}
+
+		void putFloats(float[] values, int offset, int length) throws IOException {
+			for (int i = 0; i < length; ) {
+				ensure(Float.BYTES);
+				int count = Math.min(block.remaining() / Float.BYTES, length - i);
+				block.asFloatBuffer().put(values, offset + i, count);
+				block.position(block.position() + count * Float.BYTES);
+				i += count;
+				sectionLength += (long) count * Float.BYTES;
+			}
+		}
+
+		void putLongs(long[] values, int offset, int length) throws IOException {
+			for (int i = 0; i < length; ) {
+				ensure(Long.BYTES);
+				int count = Math.min(block.remaining() / Long.BYTES, length - i);
+				block.asLongBuffer().put(values, offset + i, count);
+				block.position(block.position() + count * Long.BYTES);
+				i += count;
+				sectionLength += (long) count * Long.BYTES;
+			}
+		}
+
+		void putBytes(byte[] values) throws IOException {
+			for (int i = 0; i < values.length; ) {
+				ensure(1);
+				int count = Math.min(block.remaining(), values.length - i);
+				block.put(values, i, count);
+				i += count;
+				sectionLength += count;
+			}
+		}
+
+		/**
+		 * Flushes the last block, so the next section starts with a new block
+		 */
+		void endSection() throws IOException {
+			flushBlock();
+			sectionLengths.add(sectionLength);
+			sectionChecksums.add(checksums);
+			checksums = null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (checksums != null) {
+					throw new IllegalStateException("Section is not ended");
+				}
+				long tableOffset = position;
+				int tableSize = Integer.BYTES;
+				for (List<Integer> blockChecksums: sectionChecksums) {
+					tableSize += 2 * Integer.BYTES + 2 * Long.BYTES + blockChecksums.size() * Integer.BYTES;
+				}
+				ByteBuffer table = ByteBuffer.allocate(tableSize).order(ByteOrder.LITTLE_ENDIAN);
+				table.putInt(sectionIds.size());
+				for (int i = 0; i < sectionIds.size(); ++i) {
+					List<Integer> blockChecksums = sectionChecksums.get(i);
+					table
+						.putInt(sectionIds.get(i))
+						.putInt(blockChecksums.size())
+						.putLong(sectionOffsets.get(i))
+						.putLong(sectionLengths.get(i));
+					for (int checksum: blockChecksums) {
+						table.putInt(checksum);
+					}
+				}
+				table.flip();
+				while (table.hasRemaining()) {
+					position += channel.write(table, position);
+				}
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(magic).putInt(version).putLong(tableOffset).flip();
+				long headerPosition = 0;
+				while (header.hasRemaining()) {
+					headerPosition += channel.write(header, headerPosition);
+				}
+			} finally {
+				channel.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Reads sections in parallel in the common fork/join pool. Thread safe.
+	 */
+	static class Reader implements Closeable {
+
+		private final Path path;
+		private final FileChannel channel;
+		private final Map<Integer, Section> sections = new HashMap<>();
+
+		/**
+		 * @param path
+		 * @param magic Format signature
+		 * @param version Format version
+		 * @param kind File kind for error messages
+		 */
+		Reader(Path path, int magic, int version, String kind) throws IOException {
+			this.path = path;
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				if (size < HEADER_SIZE) {
+					throw new IOException("Not a " + kind + ": " + path);
+				}
+				ByteBuffer header = read(0, HEADER_SIZE);
+				if (header.getInt(0) != magic) {
+					throw new IOException("Not a " + kind + ": " + path);
+				}
+				int fileVersion = header.getInt(4);
+				if (fileVersion != version) {
+					throw new IOException("Unsupported " + kind + " version " + fileVersion + ": " + path);
+				}
+				long tableOffset = header.getLong(8);
+				if (tableOffset < HEADER_SIZE || tableOffset > size - Integer.BYTES) {
+					throw new IOException("Truncated " + kind + ": " + path);
+				}
+				ByteBuffer table = read(tableOffset, (int) (size - tableOffset));
+				int sectionCount = table.getInt();
+				for (int i = 0; i < sectionCount; ++i) {
+					int id = table.getInt();
+					int[] checksums = new int[table.getInt()];
+					long offset = table.getLong();
+					long length = table.getLong();
+					table.asIntBuffer().get(checksums);
+					table.position(table.position() + checksums.length * Integer.BYTES);
+					sections.put(id, new Section(offset, length, checksums));
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		boolean hasSection(int id) {
+			return sections.containsKey(id);
+		}
+
+		private ByteBuffer read(long position, int length) throws IOException {
+			ByteBuffer ret = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			while (ret.hasRemaining()) {
+				if (channel.read(ret, position + ret.position()) == -1) {
+					throw new IOException("Unexpected end of file: " + path);
+				}
+			}
+			return ret.flip();
+		}
+
+		private Section getSection(int id) throws IOException {
+			Section ret = sections.get(id);
+			if (ret == null) {
+				throw new IOException("Section " + id + " not found: " + path);
+			}
+			return ret;
+		}
+
+		@FunctionalInterface
+		private interface BlockConsumer {
+
+			/**
+			 * @param block Block data
+			 * @param blockOffset Offset of the block in the section
+			 */
+			void accept(ByteBuffer block, long blockOffset);
+
+		}
+
+		/**
+		 * Reads and verifies section blocks in parallel
+		 */
+		private void readBlocks(Section section, BlockConsumer consumer) throws IOException {
+			int blocks = section.checksums().length;
+			int tasks = Math.max(1, Math.min(blocks, ForkJoinPool.getCommonPoolParallelism()));
+			List<ForkJoinTask<?>> futures = new ArrayList<>(tasks);
+			for (int t = 0; t < tasks; ++t) {
+				int task = t;
+				futures.add(ForkJoinPool.commonPool().submit(() -> {
+					CRC32C crc = new CRC32C();
+					ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+					for (int block = task; block < blocks; block += tasks) {
+						long blockOffset = (long) block * BLOCK_SIZE;
+						int length = (int) Math.min(BLOCK_SIZE, section.length() - blockOffset);
+						buffer.clear().limit(length);
+						try {
+							while (buffer.hasRemaining()) {
+								if (channel.read(buffer, section.offset() + blockOffset + buffer.position()) == -1) {
+									throw new IOException("Unexpected end of file: " + path);
+								}
+							}
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						buffer.flip();
+						crc.reset();
+						crc.update(buffer.duplicate());
+						if ((int) crc.getValue() != section.checksums()[block]) {
+							throw new UncheckedIOException(new IOException("Checksum mismatch at " + (section.offset() + blockOffset) + ": " + path));
+						}
+						consumer.accept(buffer, blockOffset);
+					}
+				}));
+			}
+			try {
+				for (ForkJoinTask<?> future: futures) {
+					future.join();
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+
+		float[] getFloats(int id) throws IOException {
+			Section section = getSection(id);
+			float[] ret = new float[Math.toIntExact(section.length() / Float.BYTES)];
+			readBlocks(section, (block, blockOffset) -> block.asFloatBuffer().get(ret, (int) (blockOffset / Float.BYTES), block.remaining() / Float.BYTES));
+			return ret;
+		}
+
+		long[] getLongs(int id) throws IOException {
+			Section section = getSection(id);
+			long[] ret = new long[Math.toIntExact(section.length() / Long.BYTES)];
+			readBlocks(section, (block, blockOffset) -> block.asLongBuffer().get(ret, (int) (blockOffset / Long.BYTES), block.remaining() / Long.BYTES));
+			return ret;
+		}
+
+		/**
+		 * @return Section bytes as a little-endian buffer
+		 */
+		ByteBuffer getBytes(int id) throws IOException {
+			Section section = getSection(id);
+			byte[] ret = new byte[Math.toIntExact(section.length())];
+			readBlocks(section, (block, blockOffset) -> block.get(ret, (int) blockOffset, block.remaining()));
+			return ByteBuffer.wrap(ret).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+}
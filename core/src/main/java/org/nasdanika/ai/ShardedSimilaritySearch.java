@@ -0,0 +1,179 @@
+package org.nasdanika.ai;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+/**
+ * Similarity search over shards of an index partitioned by hash of item URI, see {@link #shard(IndexId, int)}.
+ * All vectors of a URI are in the same shard. 
+ * Queries are sent to all shards concurrently in the common fork/join pool, 
+ * and per-shard results are merged with a bounded heap.
+ * Shard files are listed in a manifest file, see {@link #writeManifest(Path, List)} and {@link #readManifest(Path)}.
+ */
+public class ShardedSimilaritySearch implements FloatVectorSimilaritySearch {
+	
+	/**
+	 * Manifest file starts with this key
+	 */
+	public static final String MANIFEST_KEY = "nasdanika-sharded-index";
+	
+	private static final int MANIFEST_VERSION = 1;
+	
+	private final FloatVectorSimilaritySearch[] shards;
+
+	public ShardedSimilaritySearch(List<? extends FloatVectorSimilaritySearch> shards) {
+		if (shards.isEmpty()) {
+			throw new IllegalArgumentException("No shards");
+		}
+		this.shards = shards.toArray(new FloatVectorSimilaritySearch[shards.size()]);
+	}
+	
+	/**
+	 * @param id
+	 * @param shards Number of shards
+	 * @return Shard of the item
+	 */
+	public static int shard(IndexId id, int shards) {
+		return shard(id.uri(), shards);
+	}
+	
+	/**
+	 * @param uri
+	 * @param shards Number of shards
+	 * @return Shard of URI items. {@link String#hashCode()} is specified, so shard assignment is stable across JVMs.
+	 */
+	public static int shard(String uri, int shards) {
+		return Math.floorMod(uri.hashCode(), shards);
+	}
+	
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+		find(query, numberOfItems, results, null);
+	}
+	
+	/**
+	 * Passes the filter to the shards so shards supporting filtering apply it during the search
+	 */
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+		results.clear();
+		if (numberOfItems <= 0) {
+			return;
+		}
+		FloatSearchResults[] shardResults = new FloatSearchResults[shards.length];
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(shards.length - 1);
+		for (int i = 1; i < shards.length; ++i) {
+			int shard = i;
+			shardResults[shard] = new FloatSearchResults(numberOfItems);
+			tasks.add(ForkJoinPool.commonPool().submit(() -> shards[shard].find(query, numberOfItems, shardResults[shard], filter)));
+		}
+		shardResults[0] = new FloatSearchResults(numberOfItems);
+		shards[0].find(query, numberOfItems, shardResults[0], filter);
+		for (ForkJoinTask<?> task: tasks) {
+			task.join();
+		}
+		merge(shardResults, numberOfItems, results);
+	}
+	
+	/**
+	 * Merges sorted shard results with a bounded max heap. Heap nodes encode shard and position as shard * numberOfItems + position.
+	 */
+	static void merge(FloatSearchResults[] shardResults, int numberOfItems, FloatSearchResults results) {
+		NodeHeap heap = new NodeHeap(true, numberOfItems + 1);
+		for (int shard = 0; shard < shardResults.length; ++shard) {
+			FloatSearchResults sr = shardResults[shard];
+			for (int i = 0, size = Math.min(sr.size(), numberOfItems); i < size; ++i) {
+				float distance = sr.getDistance(i);
+				if (heap.size() >= numberOfItems && distance >= heap.topDistance()) {
+					break; // Shard results are sorted, the rest are farther
+				}
+				heap.push(shard * numberOfItems + i, distance);
+				if (heap.size() > numberOfItems) {
+					heap.pop();
+				}
+			}
+		}
+		int[] nodes = new int[heap.size()];
+		float[] distances = new float[nodes.length];
+		int count = heap.drainAscending(nodes, distances);
+		for (int i = 0; i < count; ++i) {
+			results.add(shardResults[nodes[i] / numberOfItems], nodes[i] % numberOfItems);
+		}
+	}
+	
+	/**
+	 * Writes a manifest listing shard files. Shard paths are stored relative to the manifest directory.
+	 * @param manifest
+	 * @param shardFiles Shard files in shard order
+	 * @throws IOException
+	 */
+	public static void writeManifest(Path manifest, List<Path> shardFiles) throws IOException {
+		Path base = manifest.toAbsolutePath().getParent();
+		Properties properties = new Properties();
+		properties.setProperty("partitioning", "uri-hash");
+		properties.setProperty("shards", String.valueOf(shardFiles.size()));
+		for (int i = 0; i < shardFiles.size(); ++i) {
+			properties.setProperty("shard." + i, base.relativize(shardFiles.get(i).toAbsolutePath()).toString().replace('\\', '/'));
+		}
+		try (Writer writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+			writer.write(MANIFEST_KEY + "=" + MANIFEST_VERSION + System.lineSeparator());
+			properties.store(writer, null);
+		}
+	}
+	
+	/**
+	 * @param manifest
+	 * @return Shard files in shard order resolved against the manifest directory
+	 * @throws IOException
+	 */
+	public static List<Path> readManifest(Path manifest) throws IOException {
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		}
+		if (!String.valueOf(MANIFEST_VERSION).equals(properties.getProperty(MANIFEST_KEY))) {
+			throw new IOException("Unsupported sharded index manifest version: " + properties.getProperty(MANIFEST_KEY));
+		}
+		Path base = manifest.toAbsolutePath().getParent();
+		int count = Integer.parseInt(properties.getProperty("shards"));
+		List<Path> ret = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			String shard = properties.getProperty("shard." + i);
+			if (shard == null) {
+				throw new IOException("Shard " + i + " is missing in " + manifest);
+			}
+			ret.add(base.resolve(shard));
+		}
+		return ret;
+	}
+	
+	/**
+	 * @param path
+	 * @return true if the file starts with the manifest key
+	 * @throws IOException
+	 */
+	public static boolean isManifest(Path path) throws IOException {
+		byte[] key = MANIFEST_KEY.getBytes(StandardCharsets.US_ASCII);
+		try (InputStream in = Files.newInputStream(path)) {
+			return Arrays.equals(key, in.readNBytes(key.length));
+		}
+	}
+
+}
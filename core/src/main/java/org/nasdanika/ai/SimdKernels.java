@@ -0,0 +1,169 @@
+package org.nasdanika.ai;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels implemented with the incubating Vector API. 
+ * Vector width is the preferred width of the CPU the code runs on.
+ * This class is loaded reflectively by {@link VectorKernels} only if jdk.incubator.vector module is present.
+ */
+class SimdKernels implements Kernels {
+	
+	private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	
+	/**
+	 * Bytes are loaded in vectors of at least 64 bits and widened to int vectors part by part
+	 */
+	private static final VectorSpecies<Byte> BYTE_SPECIES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, INT_SPECIES.length() * Byte.SIZE)));
+	private static final int BYTE_PARTS = BYTE_SPECIES.length() / INT_SPECIES.length();
+	
+	/**
+	 * @return true if the preferred vector shape is wide enough to benefit from SIMD
+	 */
+	static boolean isSupported() {
+		return FLOAT_SPECIES.vectorBitSize() >= 128;
+	}
+	
+	@Override
+	public String toString() {
+		return "SIMD " + FLOAT_SPECIES.vectorBitSize() + " bit";
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector acc = FloatVector.zero(FLOAT_SPECIES);
+		int i = 0;
+		for (int upper = FLOAT_SPECIES.loopBound(length); i < upper; i += FLOAT_SPECIES.length()) {
+			FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i);
+			FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i);
+			acc = va.fma(vb, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public float squaredEuclidean(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector acc = FloatVector.zero(FLOAT_SPECIES);
+		int i = 0;
+		for (int upper = FLOAT_SPECIES.loopBound(length); i < upper; i += FLOAT_SPECIES.length()) {
+			FloatVector diff = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i).sub(FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i));
+			acc = diff.fma(diff, acc);
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			float diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public float manhattan(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector acc = FloatVector.zero(FLOAT_SPECIES);
+		int i = 0;
+		for (int upper = FLOAT_SPECIES.loopBound(length); i < upper; i += FLOAT_SPECIES.length()) {
+			FloatVector diff = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i).sub(FloatVector.fromArray(FLOAT_SPECIES, b, bOffset + i));
+			acc = acc.add(diff.abs());
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			sum += Math.abs(a[aOffset + i] - b[bOffset + i]);
+		}
+		return sum;
+	}
+
+	@Override
+	public float cosineSimilarity(float[] a, float[] b) {
+		FloatVector dotAcc = FloatVector.zero(FLOAT_SPECIES);
+		FloatVector aAcc = FloatVector.zero(FLOAT_SPECIES);
+		FloatVector bAcc = FloatVector.zero(FLOAT_SPECIES);
+		int i = 0;
+		for (int upper = FLOAT_SPECIES.loopBound(a.length); i < upper; i += FLOAT_SPECIES.length()) {
+			FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, i);
+			FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, i);
+			dotAcc = va.fma(vb, dotAcc);
+			aAcc = va.fma(va, aAcc);
+			bAcc = vb.fma(vb, bAcc);
+		}
+		float dot = dotAcc.reduceLanes(VectorOperators.ADD);
+		float aNorm = aAcc.reduceLanes(VectorOperators.ADD);
+		float bNorm = bAcc.reduceLanes(VectorOperators.ADD);
+		for (; i < a.length; ++i) {
+			dot += a[i] * b[i];
+			aNorm += a[i] * a[i];
+			bNorm += b[i] * b[i];
+		}
+		return dot / (float) (Math.sqrt(aNorm) * Math.sqrt(bNorm));
+	}
+
+	@Override
+	public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		IntVector acc = IntVector.zero(INT_SPECIES);
+		int i = 0;
+		for (int upper = BYTE_SPECIES.loopBound(length); i < upper; i += BYTE_SPECIES.length()) {
+			ByteVector va = ByteVector.fromArray(BYTE_SPECIES, a, aOffset + i);
+			ByteVector vb = ByteVector.fromArray(BYTE_SPECIES, b, bOffset + i);
+			for (int part = 0; part < BYTE_PARTS; ++part) {
+				IntVector ia = (IntVector) va.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+				IntVector ib = (IntVector) vb.convertShape(VectorOperators.B2I, INT_SPECIES, part);
+				acc = acc.add(ia.mul(ib));
+			}
+		}
+		int sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+	@Override
+	public int squaredEuclidean(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		IntVector acc = IntVector.zero(INT_SPECIES);
+		int i = 0;
+		for (int upper = BYTE_SPECIES.loopBound(length); i < upper; i += BYTE_SPECIES.length()) {
+			ByteVector va = ByteVector.fromArray(BYTE_SPECIES, a, aOffset + i);
+			ByteVector vb = ByteVector.fromArray(BYTE_SPECIES, b, bOffset + i);
+			for (int part = 0; part < BYTE_PARTS; ++part) {
+				IntVector diff = ((IntVector) va.convertShape(VectorOperators.B2I, INT_SPECIES, part))
+						.sub((IntVector) vb.convertShape(VectorOperators.B2I, INT_SPECIES, part));
+				acc = acc.add(diff.mul(diff));
+			}
+		}
+		int sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			int diff = a[aOffset + i] - b[bOffset + i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, byte[] b, int bOffset, int length) {
+		FloatVector acc = FloatVector.zero(FLOAT_SPECIES);
+		int i = 0;
+		for (int upper = BYTE_SPECIES.loopBound(length); i < upper; i += BYTE_SPECIES.length()) {
+			ByteVector vb = ByteVector.fromArray(BYTE_SPECIES, b, bOffset + i);
+			for (int part = 0; part < BYTE_PARTS; ++part) {
+				FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, aOffset + i + part * FLOAT_SPECIES.length());
+				FloatVector fb = (FloatVector) vb.convertShape(VectorOperators.B2F, FLOAT_SPECIES, part);
+				acc = va.fma(fb, acc);
+			}
+		}
+		float sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; i < length; ++i) {
+			sum += a[aOffset + i] * b[bOffset + i];
+		}
+		return sum;
+	}
+
+}
@@ -5,12 +5,16 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 
 import com.github.jelmerk.hnswlib.core.Index;
 import com.github.jelmerk.hnswlib.core.Item;
 
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * 
@@ -35,6 +39,50 @@ public interface SimilaritySearch<T,D extends Comparable<D>> {
 	 */
 	Mono<List<SearchResult<D>>> findAsync(T query, int numberOfItems);	
 	
+	/**
+	 * Executes multiple queries. This implementation blocks on {@link #findAllAsync(Flux, int)}.
+	 * @param queries
+	 * @param numberOfItems Number of items to return for each query
+	 * @return Results in the order of queries
+	 */
+	default List<List<SearchResult<D>>> findAll(List<T> queries, int numberOfItems) {
+		return findAllAsync(Flux.fromIterable(queries), numberOfItems).collectList().block();
+	}
+	
+	/**
+	 * Executes multiple queries, at most {@link Schedulers#DEFAULT_POOL_SIZE} queries at a time.
+	 * Queries are executed on the scheduler of {@link #findAsync(Object, int)}, 
+	 * so they run concurrently if it executes searches asynchronously.
+	 * @param queries
+	 * @param numberOfItems Number of items to return for each query
+	 * @return Results in the order of queries
+	 */
+	default Flux<List<SearchResult<D>>> findAllAsync(Flux<T> queries, int numberOfItems) {
+		return queries.flatMapSequential(
+				query -> Mono.defer(() -> findAsync(query, numberOfItems)),
+				Schedulers.DEFAULT_POOL_SIZE);
+	}
+	
+	/**
+	 * @param cache Results cache keyed by query and number of items
+	 * @return Search returning cached results for repeated queries
+	 */
+	default SimilaritySearch<T,D> cache(SearchCache<SearchCache.Query<T>, List<SearchResult<D>>> cache) {
+		return new SimilaritySearch<T,D>() {
+
+			@Override
+			public List<SearchResult<D>> find(T query, int numberOfItems) {
+				return cache.get(new SearchCache.Query<>(query, numberOfItems), () -> List.copyOf(SimilaritySearch.this.find(query, numberOfItems)));
+			}
+
+			@Override
+			public Mono<List<SearchResult<D>>> findAsync(T query, int numberOfItems) {
+				return cache.getAsync(new SearchCache.Query<>(query, numberOfItems), () -> SimilaritySearch.this.findAsync(query, numberOfItems).map(List::copyOf));
+			}
+			
+		};
+	}
+	
 	default <U> SimilaritySearch<U,D> adapt(Function<U,T> mapper, Function<U, Mono<T>> asyncMapper) {
 		return new SimilaritySearch<U,D>() {
 
@@ -67,6 +115,57 @@ public interface SimilaritySearch<T,D extends Comparable<D>> {
 				embeddings::generate, 
 				embeddings::generateAsync);
 	}
+
+	/**
+	 * Computes primitive embeddings and uses them for multi-vector search without boxing vector elements and distances.
+	 * @param vectorSearch
+	 * @param embeddings
+	 * @return
+	 */
+	static SimilaritySearch<String,Float> textFloatVectorEmbeddingSearch(
+			FloatVectorSimilaritySearch vectorSearch, 
+			FloatVectorEmbeddingGenerator<String> embeddings) {
+		
+		return new SimilaritySearch<String, Float>() {
+
+			@Override
+			public List<SearchResult<Float>> find(String query, int numberOfItems) {
+				FloatSearchResults results = FloatSearchResults.borrow();
+				try {
+					vectorSearch.findMultiVector(embeddings.generateFloatVectors(query), numberOfItems, results);
+					return results.toList();
+				} finally {
+					results.release();
+				}
+			}
+
+			@Override
+			public Mono<List<SearchResult<Float>>> findAsync(String query, int numberOfItems) {
+				return embeddings
+					.generateFloatVectorsAsync(query)
+					.flatMap(vectors -> vectorSearch.findMultiVectorAsync(vectors, numberOfItems))
+					.map(FloatSearchResults::toList);
+			}
+			
+			/**
+			 * Generates embeddings for all queries in one batch and then searches in parallel
+			 */
+			@Override
+			public List<List<SearchResult<Float>>> findAll(List<String> queries, int numberOfItems) {
+				Map<String, List<float[]>> vectors = embeddings.generateFloatVectors(queries);
+				List<List<float[]>> multiVectorQueries = new ArrayList<>(queries.size());
+				for (String query: queries) {
+					multiVectorQueries.add(vectors.get(query));
+				}
+				List<List<SearchResult<Float>>> ret = new ArrayList<>(queries.size());
+				for (FloatSearchResults results: vectorSearch.findAllMultiVector(multiVectorQueries, numberOfItems)) {
+					ret.add(results.toList());
+				}
+				return ret;
+			}
+			
+		};
+	}
 		
 	/**
 	 * Adapts a single vector search to multi-vector search
@@ -83,6 +182,29 @@ public interface SimilaritySearch<T,D extends Comparable<D>> {
 				Collections.sort(ret);
 				return ret.size() > numberOfItems ? ret.subList(0, numberOfItems) : ret;
 			}
+			
+			/**
+			 * Flattens vectors of all queries into a single batch for the vector search and then merges results per query
+			 */
+			@Override
+			public List<List<SearchResult<D>>> findAll(List<List<List<Float>>> queries, int numberOfItems) {
+				List<List<Float>> vectors = new ArrayList<>();
+				for (List<List<Float>> query: queries) {
+					vectors.addAll(query);
+				}
+				List<List<SearchResult<D>>> vectorResults = vectorSearch.findAll(vectors, numberOfItems);
+				List<List<SearchResult<D>>> ret = new ArrayList<>(queries.size());
+				int offset = 0;
+				for (List<List<Float>> query: queries) {
+					List<SearchResult<D>> queryResults = new ArrayList<>();
+					for (int i = 0; i < query.size(); ++i) {
+						queryResults.addAll(vectorResults.get(offset++));
+					}
+					Collections.sort(queryResults);
+					ret.add(queryResults.size() > numberOfItems ? queryResults.subList(0, numberOfItems) : queryResults);
+				}
+				return ret;
+			}
 
 			@SuppressWarnings("unchecked")
 			@Override
@@ -104,6 +226,50 @@ public interface SimilaritySearch<T,D extends Comparable<D>> {
 		}; 
 	}
 		
+	/**
+	 * Adapts a single vector search to multi-vector search returning one result per document (URI).
+	 * Chunk results are aggregated with a bounded heap without sorting all of them. 
+	 * If query vector results contain fewer than numberOfItems distinct documents, 
+	 * the search is repeated with doubled number of results per query vector.
+	 * @param vectorSearch
+	 * @param aggregation
+	 * @return
+	 */
+	static SimilaritySearch<List<List<Float>>,Float> adapt(SimilaritySearch<List<Float>,Float> vectorSearch, DocumentAggregation aggregation) {
+		return new SimilaritySearch<List<List<Float>>, Float>() {
+
+			@Override
+			public List<SearchResult<Float>> find(List<List<Float>> query, int numberOfItems) {
+				for (int fetch = numberOfItems; ; fetch *= 2) {
+					List<List<SearchResult<Float>>> vectorResults = vectorSearch.findAll(query, fetch);
+					List<SearchResult<Float>> ret = aggregation.aggregate(vectorResults, numberOfItems);
+					if (!DocumentAggregation.isOverFetchNeeded(vectorResults, ret, numberOfItems, fetch)) {
+						return ret;
+					}
+				}
+			}
+
+			@Override
+			public Mono<List<SearchResult<Float>>> findAsync(List<List<Float>> query, int numberOfItems) {
+				return findAsync(query, numberOfItems, numberOfItems);
+			}
+			
+			private Mono<List<SearchResult<Float>>> findAsync(List<List<Float>> query, int numberOfItems, int fetch) {
+				return vectorSearch
+					.findAllAsync(Flux.fromIterable(query), fetch)
+					.collectList()
+					.flatMap(vectorResults -> {
+						List<SearchResult<Float>> ret = aggregation.aggregate(vectorResults, numberOfItems);
+						if (DocumentAggregation.isOverFetchNeeded(vectorResults, ret, numberOfItems, fetch)) {
+							return findAsync(query, numberOfItems, fetch * 2);
+						}
+						return Mono.just(ret);
+					});
+			}
+			
+		};
+	}
+		
 	/**
 	 * Index id - item URI and embedding vector index for URIs with multiple vectors/chunks.
 	 */
@@ -114,58 +280,159 @@ public interface SimilaritySearch<T,D extends Comparable<D>> {
 	 */
 	record EmbeddingsItem(IndexId id, float[] vector, int dimensions) implements Item<IndexId,float[]> {}
 	
-	static SimilaritySearch<List<Float>, Float> from(Index<IndexId, float[], EmbeddingsItem, Float> index) {
+	static FloatVectorSimilaritySearch from(Index<IndexId, float[], EmbeddingsItem, Float> index) {
 		return from(index, Function.identity());
 	}
 	
-	static SimilaritySearch<List<Float>, Float> from(
-			Index<IndexId, float[], EmbeddingsItem, Float> index,
+	static FloatVectorSimilaritySearch from(MappedIndex index) {
+		return from(index, Function.identity());
+	}
+	
+	/**
+	 * Search backed by a memory-mapped index. Item ids are decoded from the mapped file for returned results only.
+	 * @param index
+	 * @param normalizer
+	 * @return
+	 */
+	static FloatVectorSimilaritySearch from(
+			MappedIndex index,
 			Function<float[], float[]> normalizer) {
-		
-		return new SimilaritySearch<List<Float>, Float>() {
-					
+
+		return new FloatVectorSimilaritySearch() {
+			
 			@Override
-			public Mono<List<SearchResult<Float>>> findAsync(List<Float> query, int numberOfItems) {
-				return Mono.just(find(query, numberOfItems));
+			public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+				index.search(normalizer == null ? query : normalizer.apply(query), numberOfItems, results);
 			}
 			
+			/**
+			 * Applies the filter during the index search
+			 */
 			@Override
-			public List<SearchResult<Float>> find(List<Float> query, int numberOfItems) {
-				float[] fVector = new float[query.size()];
-				for (int j = 0; j < fVector.length; ++j) {
-					fVector[j] = query.get(j);
-				}
-				if (normalizer != null) {
-					fVector = normalizer.apply(fVector);
+			public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+				index.search(normalizer == null ? query : normalizer.apply(query), numberOfItems, results, filter);
+			}
+			
+		};
+	}
+	
+	static FloatVectorSimilaritySearch from(FlatIndex index) {
+		return from(index, Function.identity());
+	}
+
+	/**
+	 * Exact search backed by a flat index.
+	 * @param index
+	 * @param normalizer
+	 * @return
+	 */
+	static FloatVectorSimilaritySearch from(
+			FlatIndex index,
+			Function<float[], float[]> normalizer) {
+
+		return new FloatVectorSimilaritySearch() {
+			
+			@Override
+			public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+				index.search(normalizer == null ? query : normalizer.apply(query), numberOfItems, results);
+			}
+			
+			/**
+			 * Applies the filter during the index search
+			 */
+			@Override
+			public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+				index.search(normalizer == null ? query : normalizer.apply(query), numberOfItems, results, filter);
+			}
+			
+		};
+	}
+
+	/**
+	 * Lexical BM25 search. Searches are executed on the default {@link SearchScheduler}.
+	 * @param index Inverted index
+	 * @param bagOfWords Query term frequencies generator, shall be the same as used to build the index
+	 * @return
+	 */
+	static SimilaritySearch<String,Float> from(InvertedIndex index, TextEmbeddingGenerator<Map<String,Integer>> bagOfWords) {
+		return new SimilaritySearch<String, Float>() {
+
+			@Override
+			public List<SearchResult<Float>> find(String query, int numberOfItems) {
+				FloatSearchResults results = FloatSearchResults.borrow();
+				try {
+					index.search(bagOfWords.generate(query), numberOfItems, results);
+					return results.toList();
+				} finally {
+					results.release();
 				}
-				List<SearchResult<Float>> ret = new ArrayList<>();
-				for (com.github.jelmerk.hnswlib.core.SearchResult<EmbeddingsItem, Float> nearest: index.findNearest(fVector, numberOfItems)) {
-					String uri = nearest.item().id().uri();
-					int index = nearest.item().id().index();
-					Float distance = nearest.distance();
-					
-					ret.add(new SearchResult<Float>() {
-						
-						@Override
-						public String getUri() {
-							return uri;
-						}
-						
-						@Override
-						public int getIndex() {
-							return index;
-						}
-						
-						@Override
-						public Float getDistance() {
-							return distance;
+			}
+
+			@Override
+			public Mono<List<SearchResult<Float>>> findAsync(String query, int numberOfItems) {
+				return bagOfWords
+					.generateAsync(query)
+					.flatMap(terms -> SearchScheduler.getDefault().schedule(() -> {
+						FloatSearchResults results = FloatSearchResults.borrow();
+						try {
+							index.search(terms, numberOfItems, results);
+							return results.toList();
+						} finally {
+							results.release();
 						}
-						
-					});
-				}
-				return ret;
+					}));
+			}
+			
+		};
+	}
+	
+	/**
+	 * Number of results fetched from each search of a hybrid search relative to the number of items to return
+	 */
+	int HYBRID_OVER_FETCH = 2;
+	
+	/**
+	 * Hybrid search executing lexical and vector searches concurrently 
+	 * and fusing their results by URI with {@link DocumentAggregation#RECIPROCAL_RANK_FUSION}.
+	 * @param lexical Lexical search, e.g. {@link #from(InvertedIndex, TextEmbeddingGenerator)}
+	 * @param vector Vector search, e.g. {@link #textFloatVectorEmbeddingSearch(FloatVectorSimilaritySearch, FloatVectorEmbeddingGenerator)}
+	 * @return
+	 */
+	static SimilaritySearch<String,Float> hybrid(SimilaritySearch<String,Float> lexical, SimilaritySearch<String,Float> vector) {
+		return new SimilaritySearch<String, Float>() {
+
+			@Override
+			public List<SearchResult<Float>> find(String query, int numberOfItems) {
+				int fetch = numberOfItems * HYBRID_OVER_FETCH;
+				CompletableFuture<List<SearchResult<Float>>> lexicalResults = CompletableFuture.supplyAsync(() -> lexical.find(query, fetch));
+				List<SearchResult<Float>> vectorResults = vector.find(query, fetch);
+				return DocumentAggregation.RECIPROCAL_RANK_FUSION.aggregate(List.of(lexicalResults.join(), vectorResults), numberOfItems);
+			}
+
+			@Override
+			public Mono<List<SearchResult<Float>>> findAsync(String query, int numberOfItems) {
+				int fetch = numberOfItems * HYBRID_OVER_FETCH;
+				return Mono.zip(
+						lexical.findAsync(query, fetch), 
+						vector.findAsync(query, fetch),
+						(lexicalResults, vectorResults) -> DocumentAggregation.RECIPROCAL_RANK_FUSION.aggregate(List.of(lexicalResults, vectorResults), numberOfItems));
 			}
 			
+		};
+	}
+
+	static FloatVectorSimilaritySearch from(
+			Index<IndexId, float[], EmbeddingsItem, Float> index,
+			Function<float[], float[]> normalizer) {
+		
+		return (query, numberOfItems, results) -> {
+			if (normalizer != null) {
+				query = normalizer.apply(query);
+			}
+			results.clear();
+			for (com.github.jelmerk.hnswlib.core.SearchResult<EmbeddingsItem, Float> nearest: index.findNearest(query, numberOfItems)) {
+				results.add(nearest.item().id(), nearest.distance());
+			}
 		};		
 	}
 			
@@ -0,0 +1,267 @@
+package org.nasdanika.ai;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * Holder of a similarity search which can be replaced while serving queries, e.g. when a rebuilt index file lands.
+ * A new search is loaded in the background, warmed with a replay of recent queries, and then atomically swapped in.
+ * Queries in flight finish on the old search, and resources of the old search, e.g. memory-mapped indices,
+ * are closed when the last of them completes.
+ * URIs of results are resolved before the search is released, so results stay valid after the old search is closed.
+ * Caches of search results shall be invalidated on swap, see {@link #invalidateOnSwap(SearchCache)}.
+ */
+public class SwappableSimilaritySearch implements FloatVectorSimilaritySearch, AutoCloseable {
+
+	/**
+	 * Loads a search, e.g. opens an index file
+	 */
+	@FunctionalInterface
+	public interface Loader {
+
+		/**
+		 * @param resources Collects resources to close when the loaded search is swapped out
+		 * @return Loaded search
+		 */
+		FloatVectorSimilaritySearch load(Consumer<AutoCloseable> resources) throws Exception;
+
+	}
+
+	/**
+	 * Search with reference count. The holder owns one reference.
+	 */
+	private static class Generation {
+
+		final FloatVectorSimilaritySearch search;
+		final List<AutoCloseable> resources;
+		final AtomicInteger references = new AtomicInteger(1);
+
+		Generation(FloatVectorSimilaritySearch search, List<AutoCloseable> resources) {
+			this.search = search;
+			this.resources = resources;
+		}
+
+		boolean acquire() {
+			for (int count = references.get(); count > 0; count = references.get()) {
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Closes resources when the last reference is released
+		 */
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				closeAll(resources);
+			}
+		}
+
+	}
+
+	/**
+	 * Closes resources ignoring exceptions - the search is not used anymore
+	 */
+	private static void closeAll(List<AutoCloseable> resources) {
+		for (AutoCloseable resource: resources) {
+			try {
+				resource.close();
+			} catch (Exception e) {
+				// Ignored
+			}
+		}
+	}
+
+	private record RecentQuery(float[] vector, int numberOfItems) {}
+
+	private volatile Generation current;
+	private volatile boolean closed;
+	private final AtomicLong generation = new AtomicLong();
+	private final List<Runnable> swapListeners = new CopyOnWriteArrayList<>();
+	private volatile AtomicReferenceArray<RecentQuery> recentQueries = new AtomicReferenceArray<>(0);
+	private final AtomicLong queryCounter = new AtomicLong();
+
+	/**
+	 * @param search Initial search
+	 * @param resources Resources to close when the search is swapped out
+	 */
+	public SwappableSimilaritySearch(FloatVectorSimilaritySearch search, AutoCloseable... resources) {
+		current = new Generation(search, List.of(resources));
+	}
+
+	/**
+	 * Sets the number of recent queries to record and replay on a new search before swapping it in. 0 - no warm up (default).
+	 * @return this search
+	 */
+	public SwappableSimilaritySearch setWarmupQueries(int warmupQueries) {
+		recentQueries = new AtomicReferenceArray<>(Math.max(0, warmupQueries));
+		return this;
+	}
+
+	/**
+	 * @param listener Called after a new search is swapped in
+	 * @return this search
+	 */
+	public SwappableSimilaritySearch onSwap(Runnable listener) {
+		swapListeners.add(listener);
+		return this;
+	}
+
+	/**
+	 * Invalidates the cache after a new search is swapped in
+	 * @return this search
+	 */
+	public SwappableSimilaritySearch invalidateOnSwap(SearchCache<?,?> cache) {
+		return onSwap(cache::invalidateAll);
+	}
+
+	/**
+	 * @return Number of swaps
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Warms the search with recent queries and swaps it in.
+	 * Resources of the replaced search are closed when queries in flight complete.
+	 * @param search New search
+	 * @param resources Resources to close when the new search is swapped out
+	 */
+	public void swap(FloatVectorSimilaritySearch search, AutoCloseable... resources) {
+		warmup(search);
+		Generation replaced;
+		synchronized (this) {
+			if (closed) {
+				closeAll(List.of(resources));
+				throw new IllegalStateException("Search is closed");
+			}
+			replaced = current;
+			current = new Generation(search, List.of(resources));
+			generation.incrementAndGet();
+		}
+		for (Runnable listener: swapListeners) {
+			listener.run();
+		}
+		replaced.release();
+	}
+
+	/**
+	 * Loads, warms, and swaps in a new search on a background thread
+	 * @param loader
+	 * @return Future completed when the new search is swapped in. Completes exceptionally if loading fails, in which case the current search is retained.
+	 */
+	public CompletableFuture<Void> load(Loader loader) {
+		CompletableFuture<Void> ret = new CompletableFuture<>();
+		Thread
+			.ofPlatform()
+			.daemon()
+			.name("index-loader-" + (generation.get() + 1))
+			.start(() -> {
+				List<AutoCloseable> resources = new ArrayList<>();
+				try {
+					FloatVectorSimilaritySearch search = loader.load(resources::add);
+					swap(search, resources.toArray(new AutoCloseable[resources.size()]));
+					ret.complete(null);
+				} catch (Throwable e) {
+					closeAll(resources);
+					ret.completeExceptionally(e);
+				}
+			});
+		return ret;
+	}
+
+	/**
+	 * Replays recent queries in parallel to load pages of memory-mapped indices and compile search code paths
+	 */
+	private void warmup(FloatVectorSimilaritySearch search) {
+		AtomicReferenceArray<RecentQuery> queries = recentQueries;
+		IntStream.range(0, queries.length()).parallel().forEach(i -> {
+			RecentQuery query = queries.get(i);
+			if (query != null) {
+				search.find(query.vector(), query.numberOfItems(), new FloatSearchResults(query.numberOfItems()));
+			}
+		});
+	}
+
+	private void record(float[] query, int numberOfItems) {
+		AtomicReferenceArray<RecentQuery> queries = recentQueries;
+		if (queries.length() > 0) {
+			queries.set((int) (queryCounter.getAndIncrement() % queries.length()), new RecentQuery(query.clone(), numberOfItems));
+		}
+	}
+
+	private Generation acquire() {
+		while (true) {
+			Generation ret = current;
+			if (ret.acquire()) {
+				return ret;
+			}
+			if (closed) {
+				throw new IllegalStateException("Search is closed");
+			}
+		}
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results) {
+		record(query, numberOfItems);
+		Generation target = acquire();
+		try {
+			target.search.find(query, numberOfItems, results);
+			results.resolve();
+		} finally {
+			target.release();
+		}
+	}
+
+	@Override
+	public void find(float[] query, int numberOfItems, FloatSearchResults results, SearchFilter filter) {
+		record(query, numberOfItems);
+		Generation target = acquire();
+		try {
+			target.search.find(query, numberOfItems, results, filter);
+			results.resolve();
+		} finally {
+			target.release();
+		}
+	}
+
+	@Override
+	public void findMultiVector(List<float[]> queries, int numberOfItems, FloatSearchResults results, FloatSearchResults vectorResults) {
+		for (float[] query: queries) {
+			record(query, numberOfItems);
+		}
+		Generation target = acquire();
+		try {
+			target.search.findMultiVector(queries, numberOfItems, results, vectorResults);
+			results.resolve();
+			if (vectorResults != null) {
+				vectorResults.resolve();
+			}
+		} finally {
+			target.release();
+		}
+	}
+
+	/**
+	 * Releases the current search. Its resources are closed when queries in flight complete.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			current.release();
+		}
+	}
+
+}
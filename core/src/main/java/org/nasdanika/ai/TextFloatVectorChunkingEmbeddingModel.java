@@ -93,7 +93,28 @@ public abstract class TextFloatVectorChunkingEmbeddingModel<T> implements TextFl
 		}
 		return result;
 	}
-	
+
+	@Override
+	public Mono<List<float[]>> generateFloatVectorsAsync(String input) {
+		List<String> chunks = chunk(input);
+		return target.generateFloatVectorsAsync(chunks).map(chunkMap -> {
+			List<float[]> result = new ArrayList<>();
+			for (String chunk: chunks) {
+				result.addAll(chunkMap.get(chunk));
+			}
+			return result;
+		});
+	}
+
+	@Override
+	public List<float[]> generateFloatVectors(String input) {
+		List<float[]> result = new ArrayList<>();
+		for (String chunk: chunk(input)) {
+			result.addAll(target.generateFloatVectors(chunk));
+		}
+		return result;
+	}
+
 	/**
 	 * Encodes a string into tokens
 	 * @param input
@@ -0,0 +1,114 @@
+package org.nasdanika.ai;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+/**
+ * Dictionary of interned document URIs.
+ * Item ids are stored as packed long keys - URI number in the high 32 bits and chunk index in the low 32 bits,
+ * so a URI shared by many chunks is stored once and {@link IndexId} is materialized only when needed.
+ * URIs are never removed from the dictionary.
+ * Not thread safe - access shall be synchronized by the owner.
+ */
+public class UriDictionary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Returned by {@link #find(IndexId)} for ids with unknown URIs
+	 */
+	public static final long NO_KEY = -1L;
+
+	private String[] uris = new String[16];
+	private int size;
+
+	private transient Map<String, Integer> lookup = new HashMap<>();
+
+	/**
+	 * @return URI number, the URI is added if it is not in the dictionary
+	 */
+	public int intern(String uri) {
+		Integer ret = lookup.get(uri);
+		if (ret == null) {
+			if (size == uris.length) {
+				uris = Arrays.copyOf(uris, size * 2);
+			}
+			ret = size++;
+			uris[ret] = uri;
+			lookup.put(uri, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return URI number or -1 if the URI is not in the dictionary
+	 */
+	public int indexOf(String uri) {
+		Integer ret = lookup.get(uri);
+		return ret == null ? -1 : ret;
+	}
+
+	public String getUri(int uriNumber) {
+		return uris[uriNumber];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Interns id URI
+	 * @return Packed id key
+	 */
+	public long key(IndexId id) {
+		return key(intern(id.uri()), id.index());
+	}
+
+	/**
+	 * @return Packed id key or {@link #NO_KEY} if the URI is not in the dictionary
+	 */
+	public long find(IndexId id) {
+		int uriNumber = indexOf(id.uri());
+		return uriNumber == -1 ? NO_KEY : key(uriNumber, id.index());
+	}
+
+	/**
+	 * Materializes id with the interned URI
+	 */
+	public IndexId toIndexId(long key) {
+		return new IndexId(uris[uriNumber(key)], index(key));
+	}
+
+	public static long key(int uriNumber, int index) {
+		return ((long) uriNumber << 32) | (index & 0xFFFFFFFFL);
+	}
+
+	public static int uriNumber(long key) {
+		return (int) (key >>> 32);
+	}
+
+	public static int index(long key) {
+		return (int) key;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		uris = Arrays.copyOf(uris, Math.max(size, 1));
+		out.defaultWriteObject();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		lookup = new HashMap<>();
+		for (int i = 0; i < size; ++i) {
+			lookup.put(uris[i], i);
+		}
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.nasdanika.ai;
+
+/**
+ * Resolves URI numbers of packed item keys (see {@link UriDictionary#key(int, int)}) to URIs.
+ * Indices are URI sources of their search results,
+ * so {@link FloatSearchResults} store keys and URIs are resolved only when they are accessed.
+ */
+@FunctionalInterface
+public interface UriSource {
+
+	/**
+	 * @param uriNumber URI number, see {@link UriDictionary#uriNumber(long)}
+	 * @return URI
+	 */
+	String getUri(int uriNumber);
+
+}
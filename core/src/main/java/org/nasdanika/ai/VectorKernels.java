@@ -0,0 +1,138 @@
+package org.nasdanika.ai;
+
+/**
+ * Distance kernels for float, int8 and binary vectors. 
+ * SIMD implementation based on the incubating Vector API with the preferred vector width of the CPU is used 
+ * if <code>jdk.incubator.vector</code> module is present (<code>--add-modules jdk.incubator.vector</code>), 
+ * scalar implementation is used otherwise.
+ * SIMD can be disabled by setting <code>org.nasdanika.ai.simd</code> system property to <code>false</code>.
+ */
+public final class VectorKernels {
+	
+	public static final String SIMD_PROPERTY = "org.nasdanika.ai.simd";
+	
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	
+	private static final Kernels KERNELS = load();
+	
+	private VectorKernels() {
+		
+	}
+	
+	private static Kernels load() {
+		if (!Boolean.parseBoolean(System.getProperty(SIMD_PROPERTY, "true"))) {
+			return new ScalarKernels();
+		}
+		if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+			return new ScalarKernels();
+		}
+		try {
+			Class<?> simdKernelsClass = Class.forName(VectorKernels.class.getPackageName() + ".SimdKernels");
+			if ((Boolean) simdKernelsClass.getDeclaredMethod("isSupported").invoke(null)) {
+				return (Kernels) simdKernelsClass.getDeclaredConstructor().newInstance();
+			}
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Falling back to scalar
+		}
+		return new ScalarKernels();
+	}
+	
+	/**
+	 * @return true if SIMD kernels are used
+	 */
+	public static boolean isSimd() {
+		return !(KERNELS instanceof ScalarKernels);
+	}
+	
+	/**
+	 * @return Description of the kernels implementation in use
+	 */
+	public static String getImplementation() {
+		return isSimd() ? KERNELS.toString() : "Scalar";
+	}
+	
+	public static float dot(float[] a, float[] b) {
+		return KERNELS.dot(a, 0, b, 0, a.length);
+	}
+	
+	public static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		return KERNELS.dot(a, aOffset, b, bOffset, length);
+	}
+	
+	public static float squaredEuclidean(float[] a, float[] b) {
+		return KERNELS.squaredEuclidean(a, 0, b, 0, a.length);
+	}
+	
+	public static float squaredEuclidean(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		return KERNELS.squaredEuclidean(a, aOffset, b, bOffset, length);
+	}
+	
+	public static float euclidean(float[] a, float[] b) {
+		return (float) Math.sqrt(KERNELS.squaredEuclidean(a, 0, b, 0, a.length));
+	}
+	
+	public static float manhattan(float[] a, float[] b) {
+		return KERNELS.manhattan(a, 0, b, 0, a.length);
+	}
+	
+	public static float manhattan(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		return KERNELS.manhattan(a, aOffset, b, bOffset, length);
+	}
+	
+	/**
+	 * Computes the dot product and norms of both vectors in a single pass
+	 */
+	public static float cosineSimilarity(float[] a, float[] b) {
+		return KERNELS.cosineSimilarity(a, b);
+	}
+	
+	/**
+	 * Dot product of signed int8 vectors
+	 */
+	public static int dot(byte[] a, byte[] b) {
+		return KERNELS.dot(a, 0, b, 0, a.length);
+	}
+	
+	public static int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		return KERNELS.dot(a, aOffset, b, bOffset, length);
+	}
+	
+	/**
+	 * Squared euclidean distance between signed int8 vectors
+	 */
+	public static int squaredEuclidean(byte[] a, byte[] b) {
+		return KERNELS.squaredEuclidean(a, 0, b, 0, a.length);
+	}
+	
+	public static int squaredEuclidean(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		return KERNELS.squaredEuclidean(a, aOffset, b, bOffset, length);
+	}
+	
+	/**
+	 * Dot product of a float vector and a signed int8 vector, e.g. a weighted query and codes of a quantized vector
+	 */
+	public static float dot(float[] a, byte[] b) {
+		return KERNELS.dot(a, 0, b, 0, b.length);
+	}
+	
+	/**
+	 * Hamming distance between bit vectors packed into longs. 
+	 * {@link Long#bitCount(long)} is intrinsified to the population count instruction by the JIT compiler.
+	 */
+	public static int hamming(long[] a, long[] b) {
+		int distance = 0;
+		for (int i = 0; i < a.length; ++i) {
+			distance += Long.bitCount(a[i] ^ b[i]);
+		}
+		return distance;
+	}	
+	
+	public static int hamming(long[] a, int aOffset, long[] b, int bOffset, int length) {
+		int distance = 0;
+		for (int i = 0; i < length; ++i) {
+			distance += Long.bitCount(a[aOffset + i] ^ b[bOffset + i]);
+		}
+		return distance;
+	}
+
+}
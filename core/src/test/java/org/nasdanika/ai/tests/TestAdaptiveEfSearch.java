@@ -0,0 +1,71 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.AdaptiveEfSearch;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.SearchBenchmark;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunctions;
+
+public class TestAdaptiveEfSearch {
+
+	private static final int DIMENSIONS = 32;
+	private static final int SIZE = 3000;
+
+	@Test
+	public void testAdaptiveEf() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		List<float[]> queries = new ArrayList<>();
+		TestData.randomItems(50, DIMENSIONS, 7).forEach(q -> queries.add(q.vector()));
+		SearchBenchmark benchmark = new SearchBenchmark(items, queries, 10, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+		Path indexFile = Files.createTempFile("mapped-hnsw-", ".bin");
+		try {
+			builder.write(indexFile, 10);
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				int minEf = AdaptiveEfSearch.calibrate(
+						benchmark,
+						ef -> (query, k, results) -> index.search(query, k, results, null, ef),
+						0.9,
+						10,
+						400);
+				assertTrue(minEf >= 10 && minEf <= 400);
+
+				AdaptiveEfSearch search = AdaptiveEfSearch.of(index, minEf, 400);
+				assertTrue(benchmark.run(Map.of(), search, 0).recall() >= 0.9);
+
+				search.setLatencyTarget(Duration.ofNanos(1), 0.99); // Unreachable target - ef goes down to min
+				Set<Integer> efs = new HashSet<>();
+				search.setListener(efs::add);
+				FloatSearchResults results = new FloatSearchResults(10);
+				for (int i = 0; i < AdaptiveEfSearch.WINDOW; ++i) {
+					search.find(queries.get(i % queries.size()), 10, results);
+					assertEquals(10, results.size());
+				}
+				assertTrue(search.getEf() < 400);
+				for (int ef: efs) {
+					assertTrue(ef >= minEf && ef <= 400);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+}
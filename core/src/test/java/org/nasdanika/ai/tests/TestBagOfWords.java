@@ -1,12 +1,25 @@
 package org.nasdanika.ai.tests;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.jupiter.api.Test;
 import org.nasdanika.ai.BagOfWordsGenerator;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.InvertedIndex;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SimilaritySearch;
+
+import reactor.core.publisher.Mono;
 
 public class TestBagOfWords {
-	
+
 	@Test
 	public void test() {
 		BagOfWordsGenerator bagOfWordsGenerator = new BagOfWordsGenerator();
@@ -14,4 +27,59 @@ public class TestBagOfWords {
 		bagOfWords.forEach((w,c) -> System.out.println(w + "\t" + c));
 	}
 
+	@Test
+	public void testInvertedIndex() throws Exception {
+		BagOfWordsGenerator bagOfWordsGenerator = new BagOfWordsGenerator();
+		Map<String, String> documents = new LinkedHashMap<>();
+		for (int i = 0; i < 5000; ++i) {
+			documents.put("urn:doc:" + i, "common text number " + (i % 10) + (i % 7 == 0 ? " seven" : "") + (i == 1234 ? " HnswIndexCommandBase" : ""));
+		}
+		InvertedIndex index = InvertedIndex.build(documents, bagOfWordsGenerator);
+		assertEquals(documents.size(), index.size());
+		assertEquals(715, index.getDocumentFrequency("seven"));
+		assertEquals(documents.size(), index.getDocumentFrequency("common"));
+
+		FloatSearchResults results = new FloatSearchResults();
+		index.search(bagOfWordsGenerator.generate("hnswindexcommandbase seven"), 10, results);
+		assertEquals(10, results.size());
+		assertEquals("urn:doc:1234", results.getUri(0));
+		for (int i = 1; i < results.size(); ++i) {
+			assertTrue(results.getDistance(i - 1) <= results.getDistance(i));
+			assertEquals(0, Integer.parseInt(results.getUri(i).substring("urn:doc:".length())) % 7);
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.save(out);
+		InvertedIndex loaded = InvertedIndex.load(new ByteArrayInputStream(out.toByteArray()));
+		SimilaritySearch<String, Float> lexical = SimilaritySearch.from(loaded, bagOfWordsGenerator);
+		assertEquals("urn:doc:1234", lexical.find("HnswIndexCommandBase", 1).get(0).getUri());
+		assertEquals("urn:doc:1234", lexical.findAsync("HnswIndexCommandBase", 1).block().get(0).getUri());
+
+		// Vector search stub which does not know the identifier
+		SimilaritySearch<String, Float> vector = new SimilaritySearch<String, Float>() {
+
+			@Override
+			public List<SearchResult<Float>> find(String query, int numberOfItems) {
+				FloatSearchResults vectorResults = new FloatSearchResults();
+				for (int i = 0; i < numberOfItems; ++i) {
+					vectorResults.add(new SimilaritySearch.IndexId("urn:doc:" + (i * 7), 0), 0.1f * i);
+				}
+				return vectorResults.toList();
+			}
+
+			@Override
+			public Mono<List<SearchResult<Float>>> findAsync(String query, int numberOfItems) {
+				return Mono.fromSupplier(() -> find(query, numberOfItems));
+			}
+
+		};
+		SimilaritySearch<String, Float> hybrid = SimilaritySearch.hybrid(lexical, vector);
+		for (List<SearchResult<Float>> hybridResults: List.of(hybrid.find("HnswIndexCommandBase seven", 5), hybrid.findAsync("HnswIndexCommandBase seven", 5).block())) {
+			assertEquals(5, hybridResults.size());
+			// Exact identifier match is fused with vector results
+			assertTrue(hybridResults.stream().anyMatch(r -> "urn:doc:1234".equals(r.getUri())));
+			assertTrue(hybridResults.stream().allMatch(r -> "urn:doc:1234".equals(r.getUri()) || Integer.parseInt(r.getUri().substring("urn:doc:".length())) % 7 == 0));
+		}
+	}
+
 }
@@ -0,0 +1,102 @@
+package org.nasdanika.ai.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+import org.nasdanika.ai.TextFloatVectorEmbeddingResourceContents;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+
+/**
+ * Random corpora and exact ground truth shared by index and search tests
+ */
+final class TestData {
+
+	private TestData() {
+		// Utility class
+	}
+
+	/**
+	 * @return Items with uniformly distributed components, three chunks per document URI <code>urn:item:&lt;i / 3&gt;</code>
+	 */
+	static List<EmbeddingsItem> randomItems(int size, int dimensions, long seed) {
+		Random random = new Random(seed);
+		List<EmbeddingsItem> items = new ArrayList<>();
+		for (int i = 0; i < size; ++i) {
+			float[] vector = new float[dimensions];
+			for (int j = 0; j < dimensions; ++j) {
+				vector[j] = random.nextFloat() * 2 - 1;
+			}
+			items.add(new EmbeddingsItem(new IndexId("urn:item:" + (i / 3), i % 3), vector, dimensions));
+		}
+		return items;
+	}
+
+	/**
+	 * @return Ids of k items closest to the query computed by sorting all items
+	 */
+	static Set<IndexId> exact(List<EmbeddingsItem> items, float[] query, int k, DistanceFunction<float[], Float> distanceFunction) {
+		return items
+			.stream()
+			.sorted((a, b) -> Float.compare(distanceFunction.distance(query, a.vector()), distanceFunction.distance(query, b.vector())))
+			.limit(k)
+			.map(EmbeddingsItem::id)
+			.collect(Collectors.toSet());
+	}
+
+	/**
+	 * @return Resource contents with the given chunk vectors
+	 */
+	static TextFloatVectorEmbeddingResourceContents contents(String uri, List<float[]> vectors, int dimensions) {
+		return new TextFloatVectorEmbeddingResourceContents() {
+
+			@Override
+			public String getVersion() {
+				return null;
+			}
+
+			@Override
+			public String getProvider() {
+				return "test";
+			}
+
+			@Override
+			public String getName() {
+				return "test";
+			}
+
+			@Override
+			public String getUri() {
+				return uri;
+			}
+
+			@Override
+			public String getMimeType() {
+				return "text/plain";
+			}
+
+			@Override
+			public List<List<Float>> getEmbeddings() {
+				return FloatVectorEmbeddingGenerator.asLists(vectors);
+			}
+
+			@Override
+			public int getDimensions() {
+				return dimensions;
+			}
+
+			@Override
+			public String getContents() {
+				return uri;
+			}
+
+		};
+	}
+
+}
@@ -0,0 +1,50 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.DocumentAggregation;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+
+public class TestDocumentAggregation {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testDocumentAggregation() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(3000, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+		index.addAll(items);
+		FloatVectorSimilaritySearch search = SimilaritySearch.from(index);
+		List<List<Float>> query = List.of(
+				FloatVectorEmbeddingGenerator.asList(items.get(100).vector()), 
+				FloatVectorEmbeddingGenerator.asList(items.get(200).vector()));
+		
+		for (DocumentAggregation aggregation: DocumentAggregation.values()) {
+			SimilaritySearch<List<List<Float>>, Float> documentSearch = SimilaritySearch.adapt(search, aggregation);
+			List<SearchResult<Float>> results = documentSearch.find(query, 20);
+			assertEquals(20, results.size());
+			assertEquals(20, results.stream().map(SearchResult::getUri).distinct().count());
+			for (int i = 1; i < results.size(); ++i) {
+				assertTrue(results.get(i - 1).getDistance() <= results.get(i).getDistance());
+			}
+			Set<String> top = Set.of(results.get(0).getUri(), results.get(1).getUri());
+			assertEquals(Set.of("urn:item:33", "urn:item:66"), top, aggregation.name());
+			
+			List<SearchResult<Float>> asyncResults = documentSearch.findAsync(query, 20).block();
+			assertEquals(results.size(), asyncResults.size());
+			System.out.println(aggregation + ": " + results.get(0).getUri() + " " + results.get(0).getDistance());
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+
+public class TestFlatIndex {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testExactSearch() throws Exception {
+		DistanceFunction<float[], Float> distanceFunction = KernelDistanceFunctions.FLOAT_COSINE_DISTANCE;
+		List<EmbeddingsItem> items = TestData.randomItems(20000, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, distanceFunction, 100);
+		index.addAll(items);
+		assertEquals(items.size(), index.size());
+
+		int k = 10;
+		long start = System.currentTimeMillis();
+		List<EmbeddingsItem> queries = TestData.randomItems(50, DIMENSIONS, 7);
+		for (EmbeddingsItem query: queries) {
+			List<IndexId> expected = new ArrayList<>(TestData.exact(items, query.vector(), k, distanceFunction));
+			List<IndexId> actual = new ArrayList<>();
+			index.findNearest(query.vector(), k).forEach(r -> actual.add(r.item().id()));
+			assertEquals(k, actual.size());
+			assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+		}
+		System.out.println("Flat search: " + (System.currentTimeMillis() - start) / queries.size() + " ms/query");
+
+		index.setParallelism(1);
+		FloatSearchResults results = new FloatSearchResults();
+		SimilaritySearch.from(index).find(items.get(100).vector(), 5, results);
+		assertEquals(items.get(100).id(), results.getId(0));
+
+		index.remove(items.get(100).id(), 0);
+		assertEquals(items.size() - 1, index.size());
+		SimilaritySearch.from(index).find(items.get(100).vector(), 5, results);
+		assertEquals(5, results.size());
+		assertEquals(false, items.get(100).id().equals(results.getId(0)));
+		assertEquals(items.get(items.size() - 1).id(), index.get(items.get(items.size() - 1).id()).get().id());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.save(out);
+		FlatIndex loaded = FlatIndex.load(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(index.size(), loaded.size());
+		FloatSearchResults loadedResults = new FloatSearchResults();
+		loaded.search(items.get(200).vector(), 5, loadedResults);
+		assertEquals(items.get(200).id(), loadedResults.getId(0));
+		loaded.add(items.get(100));
+		assertEquals(items.size(), loaded.size());
+		
+		// Serialization does not modify the index
+		ByteArrayOutputStream again = new ByteArrayOutputStream();
+		index.save(again);
+		assertArrayEquals(out.toByteArray(), again.toByteArray());
+		
+		// Chunks of a document share the interned URI
+		assertEquals(items.get(0).id().uri(), items.get(1).id().uri());
+		assertSame(loaded.get(items.get(0).id()).get().id().uri(), loaded.get(items.get(1).id()).get().id().uri());
+		
+		// Binary format
+		Path indexFile = Files.createTempFile("flat-", ".bin");
+		try {
+			index.save(indexFile.toFile());
+			assertTrue(FlatIndex.isFlatIndex(indexFile));
+			FlatIndex read = FlatIndex.load(indexFile.toFile());
+			assertEquals(index.size(), read.size());
+			read.search(items.get(200).vector(), 5, loadedResults);
+			assertEquals(items.get(200).id(), loadedResults.getId(0));
+			assertEquals(items.get(0).id(), read.get(items.get(0).id()).get().id());
+			
+			byte[] bytes = Files.readAllBytes(indexFile);
+			bytes[bytes.length / 2] ^= 1;
+			Files.write(indexFile, bytes);
+			assertThrows(IOException.class, () -> FlatIndex.load(indexFile.toFile()));
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+}
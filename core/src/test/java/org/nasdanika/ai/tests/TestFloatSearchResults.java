@@ -0,0 +1,77 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+import org.nasdanika.ai.UriDictionary;
+
+public class TestFloatSearchResults {
+
+	@Test
+	public void testPooledResults() {
+		FloatSearchResults results = FloatSearchResults.borrow();
+		FloatSearchResults nested = FloatSearchResults.borrow();
+		assertTrue(results != nested);
+		results.insert(new IndexId("urn:b", 0), 2, 3);
+		results.insert(new IndexId("urn:a", 1), 1, 3);
+		results.insert(new IndexId("urn:c", 0), 3, 3);
+		results.insert(new IndexId("urn:d", 0), 0.5f, 3);
+		
+		List<SearchResult<Float>> list = results.toList();
+		nested.release();
+		results.release();
+		assertTrue(results.isEmpty());
+		
+		// The list is a copy not affected by reuse of the released container
+		FloatSearchResults reused = FloatSearchResults.borrow();
+		assertSame(results, reused);
+		reused.add(new IndexId("urn:e", 0), 0);
+		reused.release();
+		
+		// Repeated release does not pool the container twice
+		reused.release();
+		FloatSearchResults first = FloatSearchResults.borrow();
+		FloatSearchResults second = FloatSearchResults.borrow();
+		assertTrue(first != second);
+		first.release();
+		second.release();
+		
+		assertEquals(3, list.size());
+		assertEquals("urn:d", list.get(0).getUri());
+		assertEquals("urn:a", list.get(1).getUri());
+		assertEquals(1, list.get(1).getIndex());
+		assertEquals(2f, list.get(2).getDistance());
+		
+		List<SearchResult<Float>> sorted = new ArrayList<>(list);
+		sorted.add(0, sorted.remove(2));
+		sorted.sort(null);
+		assertEquals(List.of("urn:d", "urn:a", "urn:b"), sorted.stream().map(SearchResult::getUri).toList());
+	}
+	
+	@Test
+	public void testKeys() {
+		UriDictionary dictionary = new UriDictionary();
+		FloatSearchResults results = new FloatSearchResults(1);
+		results.add(dictionary::getUri, dictionary.key(new IndexId("urn:a", 3)), 1);
+		results.insert(dictionary::getUri, dictionary.key(new IndexId("urn:b", 0)), 0.5f, 2);
+		
+		FloatSearchResults merged = new FloatSearchResults();
+		merged.add(new IndexId("urn:c", 0), 0.2f);
+		assertTrue(merged.insert(results, 1, 2));
+		assertTrue(merged.insert(results, 0, 2));
+		assertEquals(List.of(new IndexId("urn:c", 0), new IndexId("urn:b", 0)), List.of(merged.getId(0), merged.getId(1)));
+		
+		List<SearchResult<Float>> list = results.toList();
+		assertEquals("urn:a", list.get(1).getUri());
+		assertEquals(3, list.get(1).getIndex());
+	}
+
+}
@@ -0,0 +1,57 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+
+import reactor.core.publisher.Flux;
+
+public class TestFloatVectorSimilaritySearch {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testFindAll() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(5000, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, items.size());
+		index.addAll(items);
+		FloatVectorSimilaritySearch search = SimilaritySearch.from(index);
+
+		List<EmbeddingsItem> queries = TestData.randomItems(200, DIMENSIONS, 7);
+		float[][] vectors = new float[queries.size()][];
+		List<List<Float>> boxedQueries = new ArrayList<>();
+		for (int i = 0; i < vectors.length; ++i) {
+			vectors[i] = queries.get(i).vector();
+			boxedQueries.add(FloatVectorEmbeddingGenerator.asList(vectors[i]));
+		}
+		FloatSearchResults[] results = search.findAll(vectors, 5);
+		List<List<SearchResult<Float>>> boxedResults = search.findAll(boxedQueries, 5);
+		List<List<SearchResult<Float>>> asyncResults = search.findAllAsync(Flux.fromIterable(boxedQueries), 5).collectList().block();
+		List<List<SearchResult<Float>>> multiVectorResults = SimilaritySearch.adapt(search).findAll(List.of(boxedQueries.subList(0, 2), boxedQueries.subList(2, 3)), 5);
+		FloatSearchResults expected = new FloatSearchResults();
+		for (int i = 0; i < vectors.length; ++i) {
+			search.find(vectors[i], 5, expected);
+			assertEquals(5, results[i].size());
+			for (int j = 0; j < expected.size(); ++j) {
+				assertEquals(expected.getId(j), results[i].getId(j));
+				assertEquals(expected.getUri(j), boxedResults.get(i).get(j).getUri());
+				assertEquals(expected.getUri(j), asyncResults.get(i).get(j).getUri());
+			}
+		}
+		assertEquals(2, multiVectorResults.size());
+		assertEquals(results[2].getUri(0), multiVectorResults.get(1).get(0).getUri());
+		assertEquals(Math.min(results[0].getDistance(0), results[1].getDistance(0)), multiVectorResults.get(0).get(0).getDistance());
+	}
+
+}
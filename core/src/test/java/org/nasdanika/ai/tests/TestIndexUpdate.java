@@ -0,0 +1,141 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.AttributeStore;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.IndexUpdate;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.Index;
+
+public class TestIndexUpdate {
+
+	private static final int DIMENSIONS = 16;
+
+	/**
+	 * Documents urn:item:0 to urn:item:9 are indexed, 5 is changed, 8 and 9 are removed
+	 */
+	private static IndexUpdate createUpdate() {
+		Map<String, String> indexedHashes = new HashMap<>();
+		for (int i = 0; i < 10; ++i) {
+			indexedHashes.put("urn:item:" + i, "hash-" + i);
+		}
+		IndexUpdate update = new IndexUpdate(indexedHashes);
+		for (int i = 0; i < 8; ++i) {
+			assertEquals(i == 5, update.add("urn:item:" + i, i == 5 ? "changed" : "hash-" + i));
+		}
+		assertEquals(Set.of("urn:item:5"), update.getChanged());
+		assertEquals(Set.of("urn:item:8", "urn:item:9"), update.getRemoved());
+		assertEquals(7, update.getUnchanged().size());
+		assertEquals(8, update.getHashes().size());
+		return update;
+	}
+
+	/**
+	 * Checks that the index contains original vectors of unchanged documents, new vectors of the changed document and no vectors of removed documents
+	 */
+	private static void assertUpdated(Index<IndexId, float[], EmbeddingsItem, Float> index, List<EmbeddingsItem> items, List<EmbeddingsItem> changed) {
+		assertEquals(items.size() - 9 + changed.size(), index.size());
+		for (EmbeddingsItem item: items) {
+			String uri = item.id().uri();
+			if (uri.equals("urn:item:8") || uri.equals("urn:item:9")) {
+				assertTrue(index.get(item.id()).isEmpty());
+			} else if (!uri.equals("urn:item:5")) {
+				assertArrayEquals(item.vector(), index.get(item.id()).get().vector());
+			}
+		}
+		for (EmbeddingsItem item: changed) {
+			assertArrayEquals(item.vector(), index.get(item.id()).get().vector());
+		}
+	}
+
+	private static List<EmbeddingsItem> changedItems() {
+		return TestData.randomItems(18, DIMENSIONS, 7).subList(15, 18); // urn:item:5
+	}
+
+	@Test
+	public void testFlatIndex() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(30, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+		index.addAll(items);
+
+		IndexUpdate update = createUpdate();
+		assertEquals(9, update.getStale(index).size());
+		List<EmbeddingsItem> changed = changedItems();
+		assertTrue(update.apply(index, changed, 1, null));
+		assertUpdated(index, items, changed);
+	}
+
+	@Test
+	public void testMappedIndex() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(30, DIMENSIONS, 42);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 1, null, 1000);
+		Path indexFile = Files.createTempFile("mapped-hnsw-update-", ".bin");
+		try {
+			builder.write(indexFile, 100);
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				IndexUpdate update = createUpdate();
+				List<EmbeddingsItem> changed = changedItems();
+				assertFalse(update.apply(index, changed, 1, null));
+				List<EmbeddingsItem> merged = update.merge(index, changed);
+				assertEquals(24, merged.size());
+
+				// Rebuilt index replaces the file while the previous version is still mapped
+				HnswGraphBuilder rebuilder = new HnswGraphBuilder(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, 16, 200, merged.size());
+				rebuilder.addAll(merged, 1, null, 1000);
+				rebuilder.write(indexFile, 100);
+				assertEquals(items.size(), index.size());
+				assertArrayEquals(items.get(29).vector(), index.get(items.get(29).id()).get().vector());
+
+				try (MappedHnswIndex rebuilt = MappedHnswIndex.load(indexFile.toFile())) {
+					assertUpdated(rebuilt, items, changed);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+	@Test
+	public void testAttributes() {
+		AttributeStore attributes = new AttributeStore();
+		for (int i = 0; i < 10; ++i) {
+			attributes.putAll("urn:item:" + i, Map.of("type", i % 2 == 0 ? "even" : "odd", "indexed", "v1"));
+		}
+		IndexUpdate update = createUpdate();
+		for (int i = 0; i < 8; ++i) {
+			attributes.replace("urn:item:" + i, Map.of("type", i % 2 == 0 ? "even" : "odd"));
+		}
+		update.apply(attributes);
+		assertEquals(8, attributes.size());
+		assertNull(attributes.get("urn:item:9", "type"));
+		assertNull(attributes.get("urn:item:5", "indexed"));
+		assertEquals("odd", attributes.get("urn:item:5", "type"));
+		assertFalse(attributes.filter("type", "odd").test(new IndexId("urn:item:9", 0)));
+
+		// Rows of removed documents are not reused
+		attributes.put("urn:item:10", "type", "even");
+		assertEquals("even", attributes.get("urn:item:10", "type"));
+		assertEquals("odd", attributes.get("urn:item:7", "type"));
+		assertNull(attributes.get("urn:item:8", "type"));
+	}
+
+}
@@ -0,0 +1,69 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.IvfPqIndex;
+import org.nasdanika.ai.IvfPqIndexBuilder;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunctions;
+
+public class TestIvfPqIndex {
+
+	private static final int DIMENSIONS = 32;
+	private static final int SIZE = 3000;
+
+	@Test
+	public void testBuildAndSearch() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		IvfPqIndexBuilder builder = new IvfPqIndexBuilder(DIMENSIONS, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, 16, 8, items.size());
+		builder.addAll(items);
+		builder.train(10, 2000, 4, 1);
+
+		Path indexFile = Files.createTempFile("ivfpq-", ".bin");
+		try {
+			builder.write(indexFile, 8, 100);
+			assertTrue(IvfPqIndex.isIvfPqIndex(indexFile));
+
+			try (IvfPqIndex index = IvfPqIndex.load(indexFile.toFile())) {
+				assertEquals(SIZE, index.size());
+				assertEquals(16, index.getPartitions());
+
+				int k = 10;
+				int hits = 0;
+				List<EmbeddingsItem> queries = TestData.randomItems(50, DIMENSIONS, 7);
+				for (EmbeddingsItem query: queries) {
+					Set<IndexId> expected = TestData.exact(items, query.vector(), k, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE);
+					Set<IndexId> actual = new HashSet<>();
+					index.findNearest(query.vector(), k).forEach(r -> actual.add(r.item().id()));
+					actual.retainAll(expected);
+					hits += actual.size();
+				}
+				double recall = (double) hits / (k * queries.size());
+				System.out.println("Recall IVF-PQ: " + recall);
+				assertTrue(recall > 0.8, "Recall: " + recall);
+
+				FloatVectorSimilaritySearch search = SimilaritySearch.from(index);
+				FloatSearchResults results = new FloatSearchResults();
+				search.find(items.get(100).vector(), 5, results);
+				assertEquals(items.get(100).id(), results.getId(0));
+				assertEquals(0.0f, results.getDistance(0));
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+}
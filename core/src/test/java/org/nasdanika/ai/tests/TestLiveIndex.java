@@ -0,0 +1,87 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.LiveIndex;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+import org.nasdanika.ai.TextFloatVectorEmbeddingResourceContents;
+
+import reactor.core.publisher.Flux;
+
+public class TestLiveIndex {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testLiveIndex() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(600, DIMENSIONS, 42);
+		FlatIndex base = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, 300);
+		base.addAll(items.subList(0, 300));
+		try (LiveIndex index = new LiveIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, base)) {
+			// Concurrent reader
+			AtomicInteger searches = new AtomicInteger();
+			AtomicInteger errors = new AtomicInteger();
+			Thread reader = new Thread(() -> {
+				FloatSearchResults results = new FloatSearchResults();
+				while (!Thread.currentThread().isInterrupted()) {
+					index.find(items.get(searches.get() % items.size()).vector(), 10, results);
+					if (results.size() != 10) {
+						errors.incrementAndGet();
+					}
+					searches.incrementAndGet();
+				}
+			});
+			reader.start();
+			
+			// Document urn:item:10 gets the vector of item 400, urn:item:20 is deleted, documents of items 300-599 are added
+			List<TextFloatVectorEmbeddingResourceContents> contents = new ArrayList<>();
+			contents.add(TestData.contents("urn:item:10", List.of(items.get(400).vector()), DIMENSIONS));
+			contents.add(TestData.contents("urn:item:20", List.of(), DIMENSIONS));
+			for (int i = 300; i < items.size(); i += 3) {
+				contents.add(TestData.contents(items.get(i).id().uri(), List.of(items.get(i).vector(), items.get(i + 1).vector(), items.get(i + 2).vector()), DIMENSIONS));
+			}
+			index.upsert(Flux.fromIterable(contents)).block();
+			
+			FloatSearchResults results = new FloatSearchResults();
+			index.find(items.get(30).vector(), 3, results);
+			assertTrue(!"urn:item:10".equals(results.getUri(0)));
+			index.find(items.get(60).vector(), 3, results);
+			assertTrue(!"urn:item:20".equals(results.getUri(0)));
+			index.find(items.get(500).vector(), 1, results);
+			assertEquals(items.get(500).id(), results.getId(0));
+			index.find(items.get(400).vector(), 2, results);
+			assertEquals(Set.of(new IndexId("urn:item:10", 0), items.get(400).id()), Set.of(results.getId(0), results.getId(1)));
+			assertEquals(102, index.getUpdateCount());
+			
+			index.compact();
+			assertEquals(0, index.getDeltaSize());
+			assertEquals(0, index.getUpdateCount());
+			index.find(items.get(400).vector(), 2, results);
+			assertEquals(Set.of(new IndexId("urn:item:10", 0), items.get(400).id()), Set.of(results.getId(0), results.getId(1)));
+			index.find(items.get(60).vector(), 3, results);
+			assertTrue(!"urn:item:20".equals(results.getUri(0)));
+			
+			index.delete("urn:item:10");
+			index.find(items.get(400).vector(), 2, results);
+			assertEquals(items.get(400).id(), results.getId(0));
+			assertTrue(!"urn:item:10".equals(results.getUri(1)));
+			
+			reader.interrupt();
+			reader.join();
+			assertTrue(searches.get() > 0);
+			assertEquals(0, errors.get());
+		}
+	}
+
+}
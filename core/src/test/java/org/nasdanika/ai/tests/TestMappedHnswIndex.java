@@ -0,0 +1,353 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.AttributeStore;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.SearchFilter;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunction;
+import com.github.jelmerk.hnswlib.core.DistanceFunctions;
+
+public class TestMappedHnswIndex {
+
+	private static final int DIMENSIONS = 32;
+	private static final int SIZE = 3000;
+
+	@Test
+	public void testBuildAndSearch() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+
+		Path indexFile = Files.createTempFile("mapped-hnsw-", ".bin");
+		try {
+			builder.write(indexFile, 100);
+			assertTrue(MappedHnswIndex.isMappedHnswIndex(indexFile));
+
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				assertEquals(SIZE, index.size());
+				assertEquals(DIMENSIONS, index.getDimensions());
+				assertEquals(items.get(7).id(), index.get(items.get(7).id()).get().id());
+				assertTrue(Arrays.equals(items.get(7).vector(), index.get(items.get(7).id()).get().vector()));
+
+				int k = 10;
+				int hits = 0;
+				List<EmbeddingsItem> queries = TestData.randomItems(50, DIMENSIONS, 7);
+				for (EmbeddingsItem query: queries) {
+					Set<IndexId> expected = TestData.exact(items, query.vector(), k, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE);
+					Set<IndexId> actual = new HashSet<>();
+					index.findNearest(query.vector(), k).forEach(r -> actual.add(r.item().id()));
+					actual.retainAll(expected);
+					hits += actual.size();
+				}
+				double recall = (double) hits / (k * queries.size());
+				System.out.println("Recall: " + recall);
+				assertTrue(recall > 0.9, "Recall: " + recall);
+
+				SimilaritySearch<List<Float>, Float> search = SimilaritySearch.from(index);
+				List<Float> query = new ArrayList<>();
+				for (float f: items.get(100).vector()) {
+					query.add(f);
+				}
+				List<SearchResult<Float>> results = search.find(query, 5);
+				assertEquals(5, results.size());
+				assertEquals("urn:item:33", results.get(0).getUri());
+				assertEquals(1, results.get(0).getIndex());
+				assertEquals(0.0f, results.get(0).getDistance());
+
+				FloatVectorSimilaritySearch floatSearch = SimilaritySearch.from(index);
+				FloatSearchResults floatResults = new FloatSearchResults();
+				floatSearch.find(items.get(100).vector(), 5, floatResults);
+				assertEquals(5, floatResults.size());
+				assertEquals(items.get(100).id(), floatResults.getId(0));
+				floatSearch.findMultiVector(List.of(items.get(200).vector(), items.get(100).vector()), 5, floatResults);
+				assertEquals(5, floatResults.size());
+				assertEquals(0.0f, floatResults.getDistance(1));
+				for (int i = 1; i < floatResults.size(); ++i) {
+					assertTrue(floatResults.getDistance(i - 1) <= floatResults.getDistance(i));
+				}
+				
+				try (ObjectOutputStream out = new ObjectOutputStream(new ByteArrayOutputStream())) {
+					assertThrows(NotSerializableException.class, () -> out.writeObject(index));
+				}
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+	@Test
+	public void testQuantized() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, DistanceFunctions.FLOAT_COSINE_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+
+		Path indexFile = Files.createTempFile("mapped-hnsw-int8-", ".bin");
+		try {
+			builder.write(indexFile, 100, true);
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				assertTrue(index.isQuantized());
+				int k = 10;
+				int hits = 0;
+				List<EmbeddingsItem> queries = TestData.randomItems(50, DIMENSIONS, 7);
+				for (EmbeddingsItem query: queries) {
+					Set<IndexId> expected = TestData.exact(items, query.vector(), k, DistanceFunctions.FLOAT_COSINE_DISTANCE);
+					Set<IndexId> actual = new HashSet<>();
+					index.findNearest(query.vector(), k).forEach(r -> actual.add(r.item().id()));
+					actual.retainAll(expected);
+					hits += actual.size();
+				}
+				double recall = (double) hits / (k * queries.size());
+				System.out.println("Recall int8: " + recall);
+				assertTrue(recall > 0.9, "Recall: " + recall);
+				
+				FloatSearchResults results = new FloatSearchResults();
+				index.search(items.get(100).vector(), 1, results);
+				assertEquals(items.get(100).id(), results.getId(0));
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+	/**
+	 * Dimensions with narrow ranges keep their resolution with per-dimension quantization steps
+	 */
+	@Test
+	public void testQuantizedAnisotropic() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		List<EmbeddingsItem> queries = TestData.randomItems(50, DIMENSIONS, 7);
+		// Rare outliers widen the range of the first dimension
+		for (int i = 0; i < items.size(); i += 100) {
+			items.get(i).vector()[0] *= 200;
+		}
+		for (DistanceFunction<float[], Float> distanceFunction: List.of(DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, DistanceFunctions.FLOAT_INNER_PRODUCT)) {
+			HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, distanceFunction, 16, 200, items.size());
+			builder.addAll(items, 4, null, 1000);
+			Path indexFile = Files.createTempFile("mapped-hnsw-int8-", ".bin");
+			try {
+				builder.write(indexFile, 100, true);
+				try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+					int k = 10;
+					int hits = 0;
+					for (EmbeddingsItem query: queries) {
+						Set<IndexId> expected = TestData.exact(items, query.vector(), k, distanceFunction);
+						Set<IndexId> actual = new HashSet<>();
+						index.findNearest(query.vector(), k).forEach(r -> actual.add(r.item().id()));
+						actual.retainAll(expected);
+						hits += actual.size();
+					}
+					double recall = (double) hits / (k * queries.size());
+					System.out.println("Recall int8 anisotropic: " + recall);
+					assertTrue(recall > 0.9, "Recall: " + recall);
+				}
+			} finally {
+				Files.deleteIfExists(indexFile);
+			}
+		}
+	}
+	
+	@Test
+	public void testSeparateVectors() throws Exception {
+		int dimensions = 256;
+		List<EmbeddingsItem> items = TestData.randomItems(1000, dimensions, 42);
+		HnswGraphBuilder builder = new HnswGraphBuilder(dimensions, KernelDistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+
+		Path indexFile = Files.createTempFile("mapped-hnsw-separate-", ".bin");
+		Path vectorsFile = MappedHnswIndex.getVectorsPath(indexFile);
+		try {
+			builder.write(indexFile, 100, true, true);
+			assertTrue(Files.size(indexFile) * 2 < Files.size(vectorsFile), "Index file: " + Files.size(indexFile) + ", vectors file: " + Files.size(vectorsFile));
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				assertTrue(index.isQuantized());
+				assertTrue(index.hasSeparateVectors());
+				assertTrue(Arrays.equals(items.get(7).vector(), index.get(items.get(7).id()).get().vector()));
+				int k = 10;
+				int hits = 0;
+				List<EmbeddingsItem> queries = TestData.randomItems(20, dimensions, 7);
+				for (EmbeddingsItem query: queries) {
+					Set<IndexId> expected = TestData.exact(items, query.vector(), k, KernelDistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE);
+					Set<IndexId> actual = new HashSet<>();
+					index.findNearest(query.vector(), k).forEach(r -> actual.add(r.item().id()));
+					actual.retainAll(expected);
+					hits += actual.size();
+				}
+				double recall = (double) hits / (k * queries.size());
+				System.out.println("Recall int8 separate vectors: " + recall);
+				assertTrue(recall > 0.9, "Recall: " + recall);
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+			Files.deleteIfExists(vectorsFile);
+		}
+	}
+
+	@Test
+	public void testTraversalDimensions() throws Exception {
+		// Matryoshka-like vectors - leading dimensions carry most of the variance
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		List<EmbeddingsItem> queries = TestData.randomItems(50, DIMENSIONS, 7);
+		for (EmbeddingsItem item: items) {
+			for (int j = 0; j < DIMENSIONS; ++j) {
+				item.vector()[j] /= 1 + j / 4f;
+			}
+		}
+		for (EmbeddingsItem query: queries) {
+			for (int j = 0; j < DIMENSIONS; ++j) {
+				query.vector()[j] /= 1 + j / 4f;
+			}
+		}
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, DIMENSIONS / 2, DistanceFunctions.FLOAT_COSINE_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+
+		for (boolean quantize: new boolean[] { false, true }) {
+			Path indexFile = Files.createTempFile("mapped-hnsw-prefix-", ".bin");
+			try {
+				builder.write(indexFile, 200, quantize);
+				try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+					assertEquals(DIMENSIONS / 2, index.getTraversalDimensions());
+					assertEquals(quantize, index.isQuantized());
+					assertTrue(Arrays.equals(items.get(7).vector(), index.get(items.get(7).id()).get().vector()));
+					int k = 10;
+					int hits = 0;
+					for (EmbeddingsItem query: queries) {
+						Set<IndexId> expected = TestData.exact(items, query.vector(), k, DistanceFunctions.FLOAT_COSINE_DISTANCE);
+						Set<IndexId> actual = new HashSet<>();
+						index.findNearest(query.vector(), k).forEach(r -> actual.add(r.item().id()));
+						actual.retainAll(expected);
+						hits += actual.size();
+					}
+					double recall = (double) hits / (k * queries.size());
+					System.out.println("Recall prefix" + (quantize ? " int8: " : ": ") + recall);
+					assertTrue(recall > 0.8, "Recall: " + recall);
+					
+					// Re-ranked with full vectors
+					FloatSearchResults results = new FloatSearchResults();
+					index.search(items.get(100).vector(), 1, results);
+					assertEquals(items.get(100).id(), results.getId(0));
+					assertEquals(0.0f, results.getDistance(0), 1e-6f);
+				}
+			} finally {
+				Files.deleteIfExists(indexFile);
+			}
+		}
+	}
+
+	@Test
+	public void testGrowth() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, 16, 200, 10);
+		builder.addAll(items, 4, null, 1000);
+		assertEquals(SIZE, builder.size());
+
+		Path indexFile = Files.createTempFile("mapped-hnsw-growth-", ".bin");
+		try {
+			builder.write(indexFile, 100);
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				assertEquals(SIZE, index.size());
+				for (int i = 0; i < SIZE; i += 100) {
+					assertEquals(items.get(i).id(), index.findNearest(items.get(i).vector(), 1).get(0).item().id());
+				}
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+	@Test
+	public void testFilteredSearch() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		AttributeStore attributes = new AttributeStore();
+		for (EmbeddingsItem item: items) {
+			int document = Integer.parseInt(item.id().uri().substring("urn:item:".length()));
+			attributes.put(item.id().uri(), "parity", document % 2 == 0 ? "even" : "odd");
+			attributes.put(item.id().uri(), "category", document % 50 == 0 ? "rare" : "common");
+		}
+		assertEquals(SIZE / 3, attributes.size());
+		assertEquals(List.of("even", "odd"), attributes.getValues("parity"));
+		
+		FlatIndex flatIndex = new FlatIndex(DIMENSIONS, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, items.size());
+		flatIndex.addAll(items);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+		Path indexFile = Files.createTempFile("mapped-hnsw-", ".bin");
+		try {
+			builder.write(indexFile, 100);
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				FloatVectorSimilaritySearch exactSearch = SimilaritySearch.from(flatIndex);
+				FloatVectorSimilaritySearch graphSearch = SimilaritySearch.from(index);
+				int k = 10;
+				for (SearchFilter filter: List.of(attributes.filter("parity", "even"), attributes.filter("category", "rare"))) {
+					BitSet selected = index.select(filter);
+					int hits = 0;
+					FloatSearchResults expected = new FloatSearchResults();
+					FloatSearchResults actual = new FloatSearchResults();
+					FloatSearchResults overFetched = new FloatSearchResults();
+					FloatSearchResults bitmap = new FloatSearchResults();
+					List<EmbeddingsItem> queries = TestData.randomItems(20, DIMENSIONS, 7);
+					for (EmbeddingsItem query: queries) {
+						exactSearch.find(query.vector(), k, expected, filter);
+						graphSearch.find(query.vector(), k, actual, filter);
+						((FloatVectorSimilaritySearch) graphSearch::find).find(query.vector(), k, overFetched, filter);
+						index.search(query.vector(), k, bitmap, selected);
+						assertEquals(k, expected.size());
+						assertEquals(k, actual.size());
+						assertEquals(k, overFetched.size());
+						assertEquals(k, bitmap.size());
+						Set<IndexId> expectedIds = new HashSet<>();
+						for (int i = 0; i < k; ++i) {
+							expectedIds.add(expected.getId(i));
+						}
+						for (int i = 0; i < k; ++i) {
+							assertTrue(filter.test(actual.getId(i)));
+							assertTrue(filter.test(overFetched.getId(i)));
+							assertTrue(filter.test(bitmap.getId(i)));
+							if (expectedIds.contains(actual.getId(i))) {
+								++hits;
+							}
+						}
+					}
+					double recall = (double) hits / (queries.size() * k);
+					System.out.println("Filtered recall@" + k + " (" + selected.cardinality() + " selected): " + recall);
+					assertTrue(recall > 0.8, "Recall: " + recall);
+				}
+				
+				FloatSearchResults results = new FloatSearchResults();
+				graphSearch.filter(SearchFilter.uriPrefix("urn:item:1")).find(items.get(5).vector(), k, results);
+				assertEquals(k, results.size());
+				for (int i = 0; i < k; ++i) {
+					assertTrue(results.getUri(i).startsWith("urn:item:1"));
+				}
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.MaximalMarginalRelevanceSearch;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SimilaritySearch.IndexId;
+
+public class TestMaximalMarginalRelevanceSearch {
+
+	@Test
+	public void testMaximalMarginalRelevance() throws Exception {
+		// Three near-duplicate chunks of one page and two less similar pages
+		FlatIndex index = new FlatIndex(3, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, 8);
+		index.add(new EmbeddingsItem(new IndexId("urn:page:a", 0), new float[] { 1, 0.1f, 0 }, 3));
+		index.add(new EmbeddingsItem(new IndexId("urn:page:a", 1), new float[] { 1, 0.11f, 0 }, 3));
+		index.add(new EmbeddingsItem(new IndexId("urn:page:a", 2), new float[] { 1, 0.12f, 0 }, 3));
+		index.add(new EmbeddingsItem(new IndexId("urn:page:b", 0), new float[] { 1, 0, 0.8f }, 3));
+		index.add(new EmbeddingsItem(new IndexId("urn:page:c", 0), new float[] { 1, -0.8f, 0 }, 3));
+		FloatVectorSimilaritySearch search = SimilaritySearch.from(index);
+		float[] query = { 1, 0, 0 };
+		
+		FloatSearchResults results = new FloatSearchResults();
+		search.find(query, 3, results);
+		for (int i = 0; i < results.size(); ++i) {
+			assertEquals("urn:page:a", results.getUri(i));
+		}
+		
+		FloatVectorSimilaritySearch diverse = search.diversify(MaximalMarginalRelevanceSearch.vectors(index), 0.5);
+		diverse.find(query, 3, results);
+		Set<String> uris = new HashSet<>();
+		for (int i = 0; i < results.size(); ++i) {
+			uris.add(results.getUri(i));
+			if (i > 0) {
+				assertTrue(results.getDistance(i - 1) <= results.getDistance(i));
+			}
+		}
+		assertEquals(Set.of("urn:page:a", "urn:page:b", "urn:page:c"), uris);
+		assertEquals(new IndexId("urn:page:a", 0), results.getId(0));
+		
+		// Relevance only, at most two chunks per page
+		search.diversify(MaximalMarginalRelevanceSearch.vectors(index), 1).setMaxPerDocument(2).find(query, 3, results);
+		assertEquals(3, results.size());
+		assertEquals("urn:page:a", results.getUri(0));
+		assertEquals("urn:page:a", results.getUri(1));
+		assertTrue(!"urn:page:a".equals(results.getUri(2)));
+		
+		// Relevance of a candidate without a vector is derived from its distance
+		IndexId closest = new IndexId("urn:page:a", 0);
+		Function<IndexId, float[]> vectors = MaximalMarginalRelevanceSearch.vectors(index);
+		search.diversify(id -> id.equals(closest) ? null : vectors.apply(id), 1).find(query, 1, results);
+		assertEquals(closest, results.getId(0));
+		
+		FloatVectorSimilaritySearch mismatch = search.diversify(id -> new float[2], 0.5);
+		FloatSearchResults mismatchResults = new FloatSearchResults();
+		assertThrows(IllegalArgumentException.class, () -> mismatch.find(query, 3, mismatchResults));
+	}
+
+}
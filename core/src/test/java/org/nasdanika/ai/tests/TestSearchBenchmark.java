@@ -0,0 +1,57 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.SearchBenchmark;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunctions;
+
+public class TestSearchBenchmark {
+
+	private static final int DIMENSIONS = 32;
+	private static final int SIZE = 3000;
+
+	@Test
+	public void testBenchmark() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(SIZE, DIMENSIONS, 42);
+		List<float[]> queries = new ArrayList<>();
+		TestData.randomItems(100, DIMENSIONS, 7).forEach(q -> queries.add(q.vector()));
+		SearchBenchmark benchmark = new SearchBenchmark(items, queries, 10, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+		Path indexFile = Files.createTempFile("mapped-hnsw-", ".bin");
+		try {
+			builder.write(indexFile, 100);
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				List<SearchBenchmark.Result> results = new ArrayList<>();
+				for (int ef: new int[] { 10, 100 }) {
+					index.setEf(ef);
+					results.add(benchmark.run(Map.of("ef", ef), SimilaritySearch.from(index), 10));
+				}
+				assertTrue(results.get(1).recall() >= results.get(0).recall());
+				assertTrue(results.get(1).recall() > 0.9);
+				assertTrue(results.get(0).p50() <= results.get(0).p99());
+				String csv = SearchBenchmark.toCsv(results);
+				assertTrue(csv.startsWith("ef,k,queries,recall,qps,p50,p95,p99"));
+				assertEquals(3, csv.split("\\R").length);
+				assertTrue(SearchBenchmark.toJson(results).contains("\"recall\""));
+				System.out.print(csv);
+			}
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+}
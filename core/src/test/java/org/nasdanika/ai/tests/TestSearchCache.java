@@ -0,0 +1,75 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.SearchCache;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+
+import reactor.core.publisher.Mono;
+
+public class TestSearchCache {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testSearchCache() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(300, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+		index.addAll(items);
+		AtomicInteger generated = new AtomicInteger();
+		FloatVectorEmbeddingGenerator<String> embeddings = new FloatVectorEmbeddingGenerator<String>() {
+			
+			@Override
+			public Mono<List<List<Float>>> generateAsync(String input) {
+				generated.incrementAndGet();
+				return Mono.just(FloatVectorEmbeddingGenerator.asLists(List.of(items.get(Integer.parseInt(input)).vector())));
+			}
+			
+		};
+		
+		SearchCache<String, List<float[]>> vectorCache = new SearchCache<>(100, Duration.ofMinutes(5));
+		SearchCache<SearchCache.Query<String>, List<SearchResult<Float>>> resultsCache = new SearchCache<>(2, null);
+		SimilaritySearch<String, Float> search = SimilaritySearch.textFloatVectorEmbeddingSearch(SimilaritySearch.from(index), embeddings.cache(vectorCache)).cache(resultsCache);
+		
+		assertEquals(items.get(7).id().uri(), search.find("7", 3).get(0).getUri());
+		assertEquals(items.get(7).id().uri(), search.findAsync("7", 3).block().get(0).getUri());
+		assertEquals(1, generated.get());
+		assertEquals(1, resultsCache.getHits());
+		assertEquals(1, resultsCache.getMisses());
+		
+		// Different k - results miss, vector hit
+		search.find("7", 5);
+		assertEquals(1, generated.get());
+		assertEquals(1, vectorCache.getHits());
+		
+		// Size bound
+		search.find("8", 3);
+		assertEquals(2, resultsCache.size());
+		assertEquals(1, resultsCache.getEvictions());
+		
+		// Invalidation
+		resultsCache.invalidateAll();
+		assertEquals(0, resultsCache.size());
+		search.find("8", 3);
+		assertEquals(2, generated.get());
+		assertEquals(2, vectorCache.getHits());
+		
+		// Expiration
+		SearchCache<String, String> expiring = new SearchCache<>(10, Duration.ofMillis(1));
+		expiring.put("a", "b");
+		Thread.sleep(5);
+		assertEquals(null, expiring.get("a"));
+		assertEquals(1, expiring.getEvictions());
+	}
+
+}
@@ -0,0 +1,106 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SearchScheduler;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+
+import reactor.core.publisher.Flux;
+
+public class TestSearchScheduler {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testSearchScheduler() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(3000, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+		index.addAll(items);
+		for (boolean virtualThreads: new boolean[] { false, true }) {
+			try (SearchScheduler scheduler = new SearchScheduler(2, 1000, virtualThreads)) {
+				FloatVectorSimilaritySearch search = SimilaritySearch.from(index).scheduleOn(scheduler);
+				String caller = Thread.currentThread().getName();
+				List<List<SearchResult<Float>>> results = Flux.range(0, 100)
+					.flatMapSequential(i -> search.findAsync(FloatVectorEmbeddingGenerator.asList(items.get(i).vector()), 3)
+							.doOnNext(r -> assertTrue(!caller.equals(Thread.currentThread().getName()))))
+					.collectList()
+					.block();
+				for (int i = 0; i < results.size(); ++i) {
+					assertEquals(items.get(i).id().uri(), results.get(i).get(0).getUri());
+				}
+				assertEquals(100, scheduler.getCompleted());
+				assertEquals(0, scheduler.getQueueDepth());
+				assertEquals(0, scheduler.getRejected());
+			}
+		}
+	}
+	
+	@Test
+	public void testMappedIndexOnVirtualThreads() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(3000, DIMENSIONS, 42);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, 16, 200, items.size());
+		builder.addAll(items, 4, null, 1000);
+		Path indexFile = Files.createTempFile("mapped-hnsw-virtual-", ".bin");
+		try (SearchScheduler scheduler = new SearchScheduler(4, 1000, true)) {
+			builder.write(indexFile, 100, true);
+			try (MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile())) {
+				FloatVectorSimilaritySearch search = SimilaritySearch.from(index).scheduleOn(scheduler);
+				List<List<SearchResult<Float>>> results = Flux.range(0, 200)
+					.flatMapSequential(i -> search.findAsync(FloatVectorEmbeddingGenerator.asList(items.get(i).vector()), 3))
+					.collectList()
+					.block();
+				for (int i = 0; i < results.size(); ++i) {
+					assertEquals(items.get(i).id().uri(), results.get(i).get(0).getUri());
+					assertEquals(items.get(i).id().index(), results.get(i).get(0).getIndex());
+				}
+				assertEquals(200, scheduler.getCompleted());
+			}
+			
+			// Pooled containers are not tied to threads - a container released on one virtual thread is borrowed on another
+			FloatSearchResults released = scheduler.schedule(() -> {
+				FloatSearchResults container = FloatSearchResults.borrow();
+				container.release();
+				return container;
+			}).block();
+			assertSame(released, scheduler.schedule(FloatSearchResults::borrow).block());
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+	
+	@Test
+	public void testRejection() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(100, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+		index.addAll(items);
+		try (SearchScheduler scheduler = new SearchScheduler(1, 1, false)) {
+			FloatVectorSimilaritySearch search = SimilaritySearch.from(index).scheduleOn(scheduler);
+			List<Boolean> outcomes = Flux.range(0, 20)
+				.flatMap(i -> search.findAsync(FloatVectorEmbeddingGenerator.asList(items.get(i).vector()), 3)
+					.map(r -> true)
+					.onErrorReturn(RejectedExecutionException.class, false))
+				.collectList()
+				.block();
+			assertTrue(scheduler.getRejected() > 0);
+			assertEquals(scheduler.getRejected(), outcomes.stream().filter(o -> !o).count());
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.ShardedSimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+
+public class TestShardedSimilaritySearch {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testShardedSearch() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(6000, DIMENSIONS, 42);
+		FlatIndex index = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+		index.addAll(items);
+		int shardCount = 4;
+		List<FlatIndex> shards = new ArrayList<>();
+		for (int i = 0; i < shardCount; ++i) {
+			shards.add(new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size() / shardCount));
+		}
+		for (EmbeddingsItem item: items) {
+			shards.get(ShardedSimilaritySearch.shard(item.id(), shardCount)).add(item);
+		}
+		List<FloatVectorSimilaritySearch> shardSearches = new ArrayList<>();
+		for (FlatIndex shard: shards) {
+			assertTrue(shard.size() > 0);
+			shardSearches.add(SimilaritySearch.from(shard));
+		}
+		
+		ShardedSimilaritySearch shardedSearch = new ShardedSimilaritySearch(shardSearches);
+		FloatVectorSimilaritySearch search = SimilaritySearch.from(index);
+		FloatSearchResults expected = new FloatSearchResults();
+		FloatSearchResults actual = new FloatSearchResults();
+		for (EmbeddingsItem query: TestData.randomItems(20, DIMENSIONS, 7)) {
+			search.find(query.vector(), 10, expected);
+			shardedSearch.find(query.vector(), 10, actual);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); ++i) {
+				assertEquals(expected.getId(i), actual.getId(i));
+				assertEquals(expected.getDistance(i), actual.getDistance(i));
+			}
+		}
+		
+		Path manifest = Files.createTempFile("sharded-", ".manifest");
+		try {
+			List<Path> shardFiles = List.of(manifest.resolveSibling("a.0"), manifest.resolveSibling("a.1"));
+			ShardedSimilaritySearch.writeManifest(manifest, shardFiles);
+			assertTrue(ShardedSimilaritySearch.isManifest(manifest));
+			assertEquals(shardFiles, ShardedSimilaritySearch.readManifest(manifest));
+		} finally {
+			Files.deleteIfExists(manifest);
+		}
+	}
+
+}
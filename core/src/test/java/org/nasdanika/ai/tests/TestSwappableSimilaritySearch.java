@@ -0,0 +1,105 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FlatIndex;
+import org.nasdanika.ai.FloatSearchResults;
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.FloatVectorSimilaritySearch;
+import org.nasdanika.ai.HnswGraphBuilder;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.MappedHnswIndex;
+import org.nasdanika.ai.SearchCache;
+import org.nasdanika.ai.SearchResult;
+import org.nasdanika.ai.SimilaritySearch;
+import org.nasdanika.ai.SimilaritySearch.EmbeddingsItem;
+import org.nasdanika.ai.SwappableSimilaritySearch;
+
+public class TestSwappableSimilaritySearch {
+
+	private static final int DIMENSIONS = 32;
+
+	@Test
+	public void testSwap() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(600, DIMENSIONS, 42);
+		FlatIndex oldIndex = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, 300);
+		oldIndex.addAll(items.subList(0, 300));
+		FlatIndex newIndex = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+		newIndex.addAll(items);
+		
+		AtomicInteger closed = new AtomicInteger();
+		SearchCache<SearchCache.Query<List<Float>>, List<SearchResult<Float>>> cache = new SearchCache<>(10, null);
+		SwappableSimilaritySearch search = new SwappableSimilaritySearch(SimilaritySearch.from(oldIndex), closed::incrementAndGet)
+			.setWarmupQueries(4)
+			.invalidateOnSwap(cache);
+		
+		FloatSearchResults results = new FloatSearchResults();
+		search.find(items.get(400).vector(), 1, results);
+		assertTrue(!items.get(400).id().equals(results.getId(0)));
+		search.cache(cache).find(FloatVectorEmbeddingGenerator.asList(items.get(400).vector()), 1);
+		assertEquals(1, cache.size());
+
+		AtomicInteger warmed = new AtomicInteger();
+		FloatVectorSimilaritySearch newSearch = SimilaritySearch.from(newIndex);
+		search.load(resources -> {
+			resources.accept(closed::decrementAndGet);
+			return (query, numberOfItems, r) -> {
+				warmed.incrementAndGet();
+				newSearch.find(query, numberOfItems, r);
+			};
+		}).get();
+		
+		assertEquals(1, search.getGeneration());
+		assertEquals(2, warmed.get());
+		assertEquals(1, closed.get());
+		assertEquals(0, cache.size());
+		search.find(items.get(400).vector(), 1, results);
+		assertEquals(items.get(400).id(), results.getId(0));
+		
+		search.close();
+		assertEquals(0, closed.get());
+		assertThrows(IllegalStateException.class, () -> search.find(items.get(400).vector(), 1, results));
+		
+		// Failed load retains the current search
+		SwappableSimilaritySearch failing = new SwappableSimilaritySearch(SimilaritySearch.from(oldIndex));
+		assertThrows(Exception.class, () -> failing.load(resources -> { throw new IOException("Missing index"); }).get());
+		assertEquals(0, failing.getGeneration());
+	}
+	
+	@Test
+	public void testResultsOutliveSwappedIndex() throws Exception {
+		List<EmbeddingsItem> items = TestData.randomItems(300, DIMENSIONS, 42);
+		HnswGraphBuilder builder = new HnswGraphBuilder(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, 16, 100, items.size());
+		builder.addAll(items, 4, null, 1000);
+		Path indexFile = Files.createTempFile("swappable-hnsw-", ".bin");
+		try {
+			builder.write(indexFile, 100);
+			MappedHnswIndex index = MappedHnswIndex.load(indexFile.toFile());
+			SwappableSimilaritySearch search = new SwappableSimilaritySearch(SimilaritySearch.from(index), index);
+			FloatSearchResults results = new FloatSearchResults();
+			search.find(items.get(7).vector(), 3, results);
+			List<SearchResult<Float>> list = search.find(FloatVectorEmbeddingGenerator.asList(items.get(200).vector()), 3);
+			
+			// Swapping closes the mapped index, URIs of the results are resolved by the search
+			FlatIndex newIndex = new FlatIndex(DIMENSIONS, KernelDistanceFunctions.FLOAT_COSINE_DISTANCE, items.size());
+			newIndex.addAll(items);
+			FloatVectorSimilaritySearch newSearch = SimilaritySearch.from(newIndex);
+			search.load(resources -> newSearch).get();
+			assertEquals(items.get(7).id(), results.getId(0));
+			assertEquals(items.get(200).id().uri(), list.get(0).getUri());
+			search.close();
+		} finally {
+			Files.deleteIfExists(indexFile);
+		}
+	}
+
+}
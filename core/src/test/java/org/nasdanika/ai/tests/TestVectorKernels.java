@@ -0,0 +1,71 @@
+package org.nasdanika.ai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.FloatVectorEmbeddingGenerator;
+import org.nasdanika.ai.FloatVectorSimilarityComputer;
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.nasdanika.ai.VectorKernels;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunctions;
+
+public class TestVectorKernels {
+	
+	private static float[] randomVector(Random random, int dimensions) {
+		float[] vector = new float[dimensions];
+		for (int i = 0; i < dimensions; ++i) {
+			vector[i] = random.nextFloat() * 2 - 1;
+		}
+		return vector;
+	}
+	
+	@Test
+	public void testFloatKernels() {
+		System.out.println("Kernels: " + VectorKernels.getImplementation());
+		Random random = new Random(42);
+		for (int dimensions: new int[] { 1, 3, 7, 16, 33, 384, 1537 }) {
+			float[] a = randomVector(random, dimensions);
+			float[] b = randomVector(random, dimensions);
+			float delta = 1e-4f * dimensions;
+			assertEquals(DistanceFunctions.FLOAT_COSINE_DISTANCE.distance(a, b), KernelDistanceFunctions.FLOAT_COSINE_DISTANCE.distance(a, b), delta);
+			assertEquals(DistanceFunctions.FLOAT_INNER_PRODUCT.distance(a, b), KernelDistanceFunctions.FLOAT_INNER_PRODUCT.distance(a, b), delta);
+			assertEquals(DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE.distance(a, b), KernelDistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE.distance(a, b), delta);
+			assertEquals(DistanceFunctions.FLOAT_MANHATTAN_DISTANCE.distance(a, b), KernelDistanceFunctions.FLOAT_MANHATTAN_DISTANCE.distance(a, b), delta);
+			assertEquals(
+					1 - DistanceFunctions.FLOAT_COSINE_DISTANCE.distance(a, b), 
+					FloatVectorSimilarityComputer.COSINE_SIMILARITY_COMPUTER.compute(FloatVectorEmbeddingGenerator.asList(a), FloatVectorEmbeddingGenerator.asList(b)), 
+					delta);
+		}
+	}
+	
+	@Test
+	public void testInt8AndBinaryKernels() {
+		Random random = new Random(42);
+		for (int dimensions: new int[] { 1, 5, 8, 17, 64, 385 }) {
+			byte[] a = new byte[dimensions];
+			byte[] b = new byte[dimensions];
+			random.nextBytes(a);
+			random.nextBytes(b);
+			int dot = 0;
+			int squaredEuclidean = 0;
+			for (int i = 0; i < dimensions; ++i) {
+				dot += a[i] * b[i];
+				squaredEuclidean += (a[i] - b[i]) * (a[i] - b[i]);
+			}
+			assertEquals(dot, VectorKernels.dot(a, b));
+			assertEquals(squaredEuclidean, VectorKernels.squaredEuclidean(a, b));
+			
+			float[] weights = randomVector(random, dimensions);
+			float weightedDot = 0;
+			for (int i = 0; i < dimensions; ++i) {
+				weightedDot += weights[i] * b[i];
+			}
+			assertEquals(weightedDot, VectorKernels.dot(weights, b), 1e-2f * dimensions);
+		}
+		assertEquals(3, VectorKernels.hamming(new long[] { 0b1011L, -1L }, new long[] { 0b0001L, Long.MAX_VALUE }));
+	}
+
+}
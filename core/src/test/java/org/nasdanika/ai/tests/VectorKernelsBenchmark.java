@@ -0,0 +1,93 @@
+package org.nasdanika.ai.tests;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nasdanika.ai.KernelDistanceFunctions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.jelmerk.hnswlib.core.DistanceFunctions;
+
+/**
+ * Compares hnswlib scalar distance functions with {@link KernelDistanceFunctions}.
+ * Run {@link #main(String[])} with the test classpath. 
+ * Forked JVMs are started with <code>--add-modules jdk.incubator.vector</code>, 
+ * <code>simd=false</code> runs measure the scalar fallback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class VectorKernelsBenchmark {
+	
+	@Param({ "384", "1536" })
+	public int dimensions;
+	
+	@Param({ "true", "false" })
+	public String simd;
+	
+	private float[] a;
+	private float[] b;
+	
+	@Setup
+	public void setup() {
+		System.setProperty("org.nasdanika.ai.simd", simd);
+		Random random = new Random(42);
+		a = new float[dimensions];
+		b = new float[dimensions];
+		for (int i = 0; i < dimensions; ++i) {
+			a[i] = random.nextFloat();
+			b[i] = random.nextFloat();
+		}
+	}
+	
+	@Benchmark
+	public float hnswlibCosine() {
+		return DistanceFunctions.FLOAT_COSINE_DISTANCE.distance(a, b);
+	}
+	
+	@Benchmark
+	public float kernelCosine() {
+		return KernelDistanceFunctions.FLOAT_COSINE_DISTANCE.distance(a, b);
+	}
+	
+	@Benchmark
+	public float hnswlibInnerProduct() {
+		return DistanceFunctions.FLOAT_INNER_PRODUCT.distance(a, b);
+	}
+	
+	@Benchmark
+	public float kernelInnerProduct() {
+		return KernelDistanceFunctions.FLOAT_INNER_PRODUCT.distance(a, b);
+	}
+	
+	@Benchmark
+	public float hnswlibEuclidean() {
+		return DistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE.distance(a, b);
+	}
+	
+	@Benchmark
+	public float kernelEuclidean() {
+		return KernelDistanceFunctions.FLOAT_EUCLIDEAN_DISTANCE.distance(a, b);
+	}
+	
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(VectorKernelsBenchmark.class.getSimpleName()).build()).run();
+	}
+
+}
@@ -3,6 +3,7 @@ package org.nasdanika.ai.ollama;
 import java.lang.module.ModuleDescriptor.Version;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BiFunction;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -155,12 +156,23 @@ public class TextFloatVectorOllamaEmbeddings implements TextFloatVectorEmbedding
 		return ret;
 	}
 	
-	protected List<List<Float>> unmarshal(String response, Span span) {
+	/**
+	 * Parses response, reports token usage
+	 * @return embeddings JSON array
+	 */
+	protected JSONArray unmarshalEmbeddings(String response, Span span) {
 		JSONObject jResponse = new JSONObject(response);
 		if (jResponse.has(ERROR_KEY)) {
 			throw new NasdanikaException(jResponse.getString(ERROR_KEY));
 		}
-		JSONArray jEmbeddings = jResponse.getJSONArray("embeddings");
+		int promptTokens = jResponse.getInt("prompt_eval_count");
+		tokenCounter.add(promptTokens);
+		span.setAttribute("tokens", promptTokens);
+		return jResponse.getJSONArray("embeddings");
+	}
+	
+	protected List<List<Float>> unmarshal(String response, Span span) {
+		JSONArray jEmbeddings = unmarshalEmbeddings(response, span);
 		List<List<Float>> ret = new ArrayList<>();
 		for (int i = 0; i < jEmbeddings.length(); ++i) {
 			List<Float> vector = new ArrayList<>();
@@ -170,10 +182,20 @@ public class TextFloatVectorOllamaEmbeddings implements TextFloatVectorEmbedding
 			}
 			ret.add(vector);
 		}
-		
-		int promptTokens = jResponse.getInt("prompt_eval_count");
-		tokenCounter.add(promptTokens);
-		span.setAttribute("tokens", promptTokens);
+		return ret;
+	}
+	
+	protected List<float[]> unmarshalFloatVectors(String response, Span span) {
+		JSONArray jEmbeddings = unmarshalEmbeddings(response, span);
+		List<float[]> ret = new ArrayList<>(jEmbeddings.length());
+		for (int i = 0; i < jEmbeddings.length(); ++i) {
+			JSONArray jVector = jEmbeddings.getJSONArray(i);
+			float[] vector = new float[jVector.length()];
+			for (int j = 0; j < vector.length; ++j) {
+				vector[j] = jVector.getFloat(j);
+			}
+			ret.add(vector);
+		}
 		return ret;
 	}
 	
@@ -188,6 +210,18 @@ public class TextFloatVectorOllamaEmbeddings implements TextFloatVectorEmbedding
 
 	@Override
 	public Mono<List<List<Float>>> generateAsync(String input) {
+		return generateAsync(input, this::unmarshal);
+	}
+	
+	@Override
+	public Mono<List<float[]>> generateFloatVectorsAsync(String input) {
+		return generateAsync(input, this::unmarshalFloatVectors);
+	}
+	
+	/**
+	 * Sends embedding request and unmarshals the response with the unmarshaller
+	 */
+	protected <V> Mono<V> generateAsync(String input, BiFunction<String, Span, V> unmarshaller) {
 		return Mono.deferContextual(contextView -> {
 			Context parentContext = contextView.getOrDefault(Context.class, Context.current());
 		
@@ -216,7 +250,7 @@ public class TextFloatVectorOllamaEmbeddings implements TextFloatVectorEmbedding
 					.asString()
 					.map(result -> {
 						span.setStatus(StatusCode.OK);
-						return unmarshal(result, span);
+						return unmarshaller.apply(result, span);
 					})
 					.onErrorMap(error -> {
 						span.recordException(error);
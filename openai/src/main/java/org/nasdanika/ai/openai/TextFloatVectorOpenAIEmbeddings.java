@@ -1,12 +1,20 @@
 package org.nasdanika.ai.openai;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.lang.module.ModuleDescriptor.Version;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 import org.nasdanika.ai.TextFloatVectorEmbeddingModel;
 import org.nasdanika.common.Util;
@@ -16,6 +24,9 @@ import com.azure.ai.openai.OpenAIClient;
 import com.azure.ai.openai.models.EmbeddingItem;
 import com.azure.ai.openai.models.EmbeddingsOptions;
 import com.azure.ai.openai.models.EmbeddingsUsage;
+import com.azure.json.JsonProviders;
+import com.azure.json.JsonReader;
+import com.azure.json.JsonWriter;
 import com.knuddels.jtokkit.Encodings;
 import com.knuddels.jtokkit.api.Encoding;
 import com.knuddels.jtokkit.api.EncodingRegistry;
@@ -166,6 +177,64 @@ public class TextFloatVectorOpenAIEmbeddings implements TextFloatVectorEmbedding
 
 	@Override
 	public Map<String, List<List<Float>>> generate(Collection<String> input) {
+		return generate(input, EmbeddingItem::getEmbedding);
+	}
+	
+	@Override
+	public List<float[]> generateFloatVectors(String input) {
+		return generateFloatVectors(Collections.singletonList(input)).get(input);
+	}
+	
+	@Override
+	public Map<String, List<float[]>> generateFloatVectors(Collection<String> input) {
+		return generate(input, TextFloatVectorOpenAIEmbeddings::toFloatArray);
+	}
+	
+	/**
+	 * Creates options requesting embeddings in base64 format, which is about four times more compact than a JSON float array
+	 * and is decoded by {@link #toFloatArray(EmbeddingItem)} without parsing and boxing individual floats. 
+	 * The encoding format setter is not public in the client library, so the options are read from JSON. 
+	 * @param input Batch of inputs
+	 * @return
+	 */
+	protected static EmbeddingsOptions createEmbeddingsOptions(List<String> input) {
+		StringWriter json = new StringWriter();
+		try (JsonWriter jsonWriter = JsonProviders.createWriter(json)) {
+			jsonWriter
+				.writeStartObject()
+				.writeArrayField("input", input, JsonWriter::writeString)
+				.writeStringField("encoding_format", "base64")
+				.writeEndObject()
+				.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try (JsonReader jsonReader = JsonProviders.createReader(json.toString())) {
+			return EmbeddingsOptions.fromJson(jsonReader);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Decodes base64 little-endian embedding into a float array without boxing.
+	 * If the service returned a JSON float array instead of base64, the client library encodes it to base64,
+	 * so the decoding works for both formats.
+	 */
+	public static float[] toFloatArray(EmbeddingItem embeddingItem) {
+		FloatBuffer floatBuffer = ByteBuffer
+			.wrap(Base64.getDecoder().decode(embeddingItem.getEmbeddingAsString()))
+			.order(ByteOrder.LITTLE_ENDIAN)
+			.asFloatBuffer();
+		float[] ret = new float[floatBuffer.remaining()];
+		floatBuffer.get(ret);
+		return ret;
+	}
+	
+	/**
+	 * Generates embeddings converting each embedding item with the converter
+	 */
+	protected <V> Map<String, List<V>> generate(Collection<String> input, Function<EmbeddingItem, V> converter) {
         String spanName = "TextFloatVectorEmbeddingModel " + provider + " " + model;
         if (!Util.isBlank(version)) {
         	spanName += " " + version;
@@ -177,15 +246,15 @@ public class TextFloatVectorOpenAIEmbeddings implements TextFloatVectorEmbedding
 	        	.startSpan();
 	        
 	    try (Scope scope = span.makeCurrent()) {
-			Map<String, List<List<Float>>> ret = new LinkedHashMap<>();
+			Map<String, List<V>> ret = new LinkedHashMap<>();
 			List<String> inputList = List.copyOf(input);
 	    	for (int i = 0; i < input.size(); i += batchSize) {
 	    		List<String> batch = inputList.subList(i, Math.min(i + batchSize, input.size()));
-				EmbeddingsOptions embeddingOptions = new EmbeddingsOptions(batch);
+				EmbeddingsOptions embeddingOptions = createEmbeddingsOptions(batch);
 				com.azure.ai.openai.models.Embeddings embeddings = openAIClient.getEmbeddings(model, embeddingOptions);
 				for (EmbeddingItem ei: embeddings.getData()) {
 					String prompt = inputList.get(i + ei.getPromptIndex());
-					ret.put(prompt, Collections.singletonList(ei.getEmbedding()));
+					ret.put(prompt, Collections.singletonList(converter.apply(ei)));
 				}
 				EmbeddingsUsage usage = embeddings.getUsage();
 				tokenCounter.add(usage.getPromptTokens());
@@ -235,6 +304,23 @@ public class TextFloatVectorOpenAIEmbeddings implements TextFloatVectorEmbedding
 
 	@Override
 	public Mono<Map<String, List<List<Float>>>> generateAsync(Collection<String> input) {
+		return generateAsync(input, EmbeddingItem::getEmbedding);
+	}
+	
+	@Override
+	public Mono<List<float[]>> generateFloatVectorsAsync(String input) {
+		return generateFloatVectorsAsync(Collections.singletonList(input)).map(result -> result.get(input));
+	}
+	
+	@Override
+	public Mono<Map<String, List<float[]>>> generateFloatVectorsAsync(Collection<String> input) {
+		return generateAsync(input, TextFloatVectorOpenAIEmbeddings::toFloatArray);
+	}
+	
+	/**
+	 * Asynchronously generates embeddings converting each embedding item with the converter
+	 */
+	protected <V> Mono<Map<String, List<V>>> generateAsync(Collection<String> input, Function<EmbeddingItem, V> converter) {
 		return Mono.deferContextual(contextView -> {
 			Context parentContext = contextView.getOrDefault(Context.class, Context.current());
 
@@ -254,7 +340,7 @@ public class TextFloatVectorOpenAIEmbeddings implements TextFloatVectorEmbedding
 	    		List<String> inputList = List.copyOf(input);
 		    	for (int i = 0; i < input.size(); i += batchSize) {
 		    		List<String> batch = inputList.subList(i, Math.min(i + batchSize, input.size()));		
-					EmbeddingsOptions embeddingOptions = new EmbeddingsOptions(batch);
+					EmbeddingsOptions embeddingOptions = createEmbeddingsOptions(batch);
 					final int offset = i;
 					Mono<Map.Entry<Integer,com.azure.ai.openai.models.Embeddings>> batchResult = openAIAsyncClient
 							.getEmbeddings(model, embeddingOptions)
@@ -263,16 +349,16 @@ public class TextFloatVectorOpenAIEmbeddings implements TextFloatVectorEmbedding
 					batchResults.add(batchResult);
 		    	}
 		    	
-				Mono<Map<String, List<List<Float>>>> result = Mono.zip(batchResults, embeddingsArray -> {
+				Mono<Map<String, List<V>>> result = Mono.zip(batchResults, embeddingsArray -> {
 			        try (Scope zipScope = span.makeCurrent()) {
-						Map<String, List<List<Float>>> ret = new LinkedHashMap<>();
+						Map<String, List<V>> ret = new LinkedHashMap<>();
 						int promptTokens = 0;
 						for (Object ae: (Object[]) embeddingsArray) {
 							@SuppressWarnings("unchecked")
 							Map.Entry<Integer,com.azure.ai.openai.models.Embeddings> embeddingsEntry = (Map.Entry<Integer,com.azure.ai.openai.models.Embeddings>) ae;
 							for (EmbeddingItem ei: embeddingsEntry.getValue().getData()) {
 								String prompt = inputList.get(embeddingsEntry.getKey() + ei.getPromptIndex());
-								ret.put(prompt, Collections.singletonList(ei.getEmbedding()));
+								ret.put(prompt, Collections.singletonList(converter.apply(ei)));
 							}
 							EmbeddingsUsage usage = embeddingsEntry.getValue().getUsage();
 							promptTokens += usage.getPromptTokens();
@@ -0,0 +1,34 @@
+package org.nasdanika.ai.openai.tests;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.nasdanika.ai.openai.TextFloatVectorOpenAIEmbeddings;
+
+import com.azure.ai.openai.models.EmbeddingItem;
+import com.azure.json.JsonProviders;
+import com.azure.json.JsonReader;
+
+public class TestTextFloatVectorOpenAIEmbeddings {
+
+	private static EmbeddingItem embeddingItem(String json) throws IOException {
+		try (JsonReader jsonReader = JsonProviders.createReader(json)) {
+			return EmbeddingItem.fromJson(jsonReader);
+		}
+	}
+
+	@Test
+	public void testToFloatArray() throws IOException {
+		float[] expected = { 1.0f, -2.5f, 0.25f };
+
+		// Little-endian floats 1.0, -2.5, 0.25
+		EmbeddingItem base64 = embeddingItem("{\"object\":\"embedding\",\"index\":0,\"embedding\":\"AACAPwAAIMAAAIA+\"}");
+		assertArrayEquals(expected, TextFloatVectorOpenAIEmbeddings.toFloatArray(base64));
+
+		EmbeddingItem floats = embeddingItem("{\"object\":\"embedding\",\"index\":0,\"embedding\":[1.0,-2.5,0.25]}");
+		assertArrayEquals(expected, TextFloatVectorOpenAIEmbeddings.toFloatArray(floats));
+	}
+
+}